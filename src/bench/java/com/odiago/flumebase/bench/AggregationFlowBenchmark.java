@@ -0,0 +1,79 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.bench;
+
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures complete flows of windowed GROUP BY aggregations (executed by
+ * BucketedAggregationElement) as the number of groups varies. Events arrive
+ * 1 ms apart. Scores are in input events per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AggregationFlowBenchmark extends FlowBenchmarkBase {
+
+  private static final int NUM_EVENTS = 100000;
+
+  /** Number of distinct grouping keys. */
+  @Param({ "1", "100", "10000" })
+  int groups;
+
+  @Setup
+  public void setUp() throws IOException, InterruptedException {
+    setUpEnvironment();
+    int[] keys = new int[NUM_EVENTS];
+    for (int i = 0; i < NUM_EVENTS; i++) {
+      keys[i] = i % groups;
+    }
+    addStream("s", "k", "v", keys, 1);
+    connect();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException, InterruptedException {
+    tearDownEnvironment();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_EVENTS)
+  public int groupBy() throws IOException, InterruptedException {
+    return runQuery("SELECT k, SUM(v) AS total, COUNT(*) AS n FROM s GROUP BY k "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+  }
+}
@@ -0,0 +1,192 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+
+import org.apache.avro.io.BinaryEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.io.AvroEventParser;
+import com.odiago.flumebase.io.ColumnParseException;
+import com.odiago.flumebase.io.DelimitedEventParser;
+import com.odiago.flumebase.io.EventParser;
+import com.odiago.flumebase.io.RegexEventParser;
+
+import com.odiago.flumebase.lang.Type;
+
+/**
+ * Measures the cost of parsing columns out of events in each of the
+ * supported event formats. Events alternate INT and STRING columns.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class EventParserBenchmark {
+
+  /** Number of columns in each event. */
+  private static final int NUM_COLUMNS = 8;
+
+  /** Number of distinct events parsed in rotation. */
+  private static final int NUM_EVENTS = 1024;
+
+  @Param({ "delimited", "regex", "avro" })
+  String format;
+
+  private EventParser mParser;
+  private Event[] mEvents;
+  private Type[] mTypes;
+  private int mNextEvent;
+
+  @Setup
+  public void setUp() throws IOException {
+    mTypes = new Type[NUM_COLUMNS];
+    for (int i = 0; i < NUM_COLUMNS; i++) {
+      mTypes[i] = Type.getPrimitive(i % 2 == 0 ? Type.TypeName.INT : Type.TypeName.STRING);
+    }
+
+    mEvents = new Event[NUM_EVENTS];
+    if ("delimited".equals(format)) {
+      mParser = new DelimitedEventParser();
+      for (int i = 0; i < NUM_EVENTS; i++) {
+        mEvents[i] = new EventImpl(formatText(i, ',').getBytes());
+      }
+    } else if ("regex".equals(format)) {
+      StringBuilder regex = new StringBuilder();
+      for (int i = 0; i < NUM_COLUMNS; i++) {
+        if (i > 0) {
+          regex.append(' ');
+        }
+        regex.append("([^ ]*)");
+      }
+      Map<String, String> params = new HashMap<String, String>();
+      params.put("regex", regex.toString());
+      mParser = new RegexEventParser(params);
+      for (int i = 0; i < NUM_EVENTS; i++) {
+        mEvents[i] = new EventImpl(formatText(i, ' ').getBytes());
+      }
+    } else if ("avro".equals(format)) {
+      Schema schema = makeSchema();
+      Map<String, String> params = new HashMap<String, String>();
+      params.put(AvroEventParser.SCHEMA_PARAM, schema.toString());
+      mParser = new AvroEventParser(params);
+      GenericDatumWriter<GenericRecord> writer = new GenericDatumWriter<GenericRecord>(schema);
+      for (int i = 0; i < NUM_EVENTS; i++) {
+        GenericData.Record record = new GenericData.Record(schema);
+        for (int col = 0; col < NUM_COLUMNS; col++) {
+          record.put(col, getValue(i, col));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(record, new BinaryEncoder(out));
+        mEvents[i] = new EventImpl(out.toByteArray());
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown format: " + format);
+    }
+  }
+
+  /** @return the value of column 'col' of the i'th event. */
+  private static Object getValue(int i, int col) {
+    if (col % 2 == 0) {
+      return Integer.valueOf(i * NUM_COLUMNS + col);
+    } else {
+      return "value-" + i + "-" + col;
+    }
+  }
+
+  private static String formatText(int i, char delimiter) {
+    StringBuilder sb = new StringBuilder();
+    for (int col = 0; col < NUM_COLUMNS; col++) {
+      if (col > 0) {
+        sb.append(delimiter);
+      }
+      sb.append(getValue(i, col));
+    }
+    return sb.toString();
+  }
+
+  private static Schema makeSchema() {
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+    for (int col = 0; col < NUM_COLUMNS; col++) {
+      Schema.Type type = col % 2 == 0 ? Schema.Type.INT : Schema.Type.STRING;
+      fields.add(new Schema.Field("c" + col, Schema.create(type), null, null));
+    }
+    Schema schema = Schema.createRecord("BenchRecord", null, null, false);
+    schema.setFields(fields);
+    return schema;
+  }
+
+  /** Reset the parser onto the next event in rotation. */
+  private void nextEvent() {
+    mParser.reset(mEvents[mNextEvent]);
+    mNextEvent = (mNextEvent + 1) % NUM_EVENTS;
+  }
+
+  @Benchmark
+  public Object firstColumn() throws ColumnParseException, IOException {
+    nextEvent();
+    return mParser.getColumn(0, mTypes[0]);
+  }
+
+  @Benchmark
+  public Object lastColumn() throws ColumnParseException, IOException {
+    nextEvent();
+    return mParser.getColumn(NUM_COLUMNS - 1, mTypes[NUM_COLUMNS - 1]);
+  }
+
+  @Benchmark
+  public void allColumns(Blackhole bh) throws ColumnParseException, IOException {
+    nextEvent();
+    for (int col = 0; col < NUM_COLUMNS; col++) {
+      bh.consume(mParser.getColumn(col, mTypes[col]));
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.bench;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.util.Utf8;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.odiago.flumebase.exec.AssignedSymbol;
+import com.odiago.flumebase.exec.BuiltInSymbolTable;
+import com.odiago.flumebase.exec.CompiledExpr;
+import com.odiago.flumebase.exec.ExprCompiler;
+import com.odiago.flumebase.exec.HashSymbolTable;
+import com.odiago.flumebase.exec.RowLayout;
+import com.odiago.flumebase.exec.SymbolTable;
+import com.odiago.flumebase.exec.TypedRow;
+
+import com.odiago.flumebase.lang.BindSlotsVisitor;
+import com.odiago.flumebase.lang.Type;
+import com.odiago.flumebase.lang.TypeChecker;
+
+import com.odiago.flumebase.parser.BinExpr;
+import com.odiago.flumebase.parser.BinOp;
+import com.odiago.flumebase.parser.ConstExpr;
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.FnCallExpr;
+import com.odiago.flumebase.parser.IdentifierExpr;
+
+/**
+ * Measures the evaluation of BinExpr and FnCallExpr expressions, both
+ * interpreted with Expr.eval() and compiled by ExprCompiler, over rows with
+ * the fields a INT NOT NULL, b BIGINT and s STRING.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ExprBenchmark {
+
+  /** Number of rows each expression is evaluated over per invocation. */
+  private static final int NUM_ROWS = 1024;
+
+  /** a * 2 + b */
+  private Expr mArithExpr;
+
+  /** a % 10 = 0 */
+  private Expr mPredicateExpr;
+
+  /** square(a + 1) */
+  private Expr mFnCallExpr;
+
+  /** length(s) */
+  private Expr mStringFnCallExpr;
+
+  private CompiledExpr mCompiledArith;
+  private CompiledExpr mCompiledPredicate;
+  private CompiledExpr mCompiledFnCall;
+  private CompiledExpr mCompiledStringFnCall;
+
+  private TypedRow[] mRows;
+
+  private static Expr id(String name) {
+    return new IdentifierExpr(name);
+  }
+
+  private static Expr intConst(int val) {
+    return new ConstExpr(Type.getPrimitive(Type.TypeName.INT), Integer.valueOf(val));
+  }
+
+  private static Expr fnCall(String fnName, Expr arg) {
+    FnCallExpr fnCall = new FnCallExpr(fnName);
+    fnCall.addArg(arg);
+    return fnCall;
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    SymbolTable symbols = new HashSymbolTable(new BuiltInSymbolTable());
+    symbols.addSymbol(new AssignedSymbol("a", Type.getPrimitive(Type.TypeName.INT), "a",
+        IdentifierExpr.AccessType.FIELD));
+    symbols.addSymbol(new AssignedSymbol("b", Type.getNullable(Type.TypeName.BIGINT), "b",
+        IdentifierExpr.AccessType.FIELD));
+    symbols.addSymbol(new AssignedSymbol("s", Type.getNullable(Type.TypeName.STRING), "s",
+        IdentifierExpr.AccessType.FIELD));
+
+    mArithExpr = new BinExpr(new BinExpr(id("a"), BinOp.Times, intConst(2)), BinOp.Add, id("b"));
+    mPredicateExpr = new BinExpr(new BinExpr(id("a"), BinOp.Mod, intConst(10)), BinOp.Eq,
+        intConst(0));
+    mFnCallExpr = fnCall("square", new BinExpr(id("a"), BinOp.Add, intConst(1)));
+    mStringFnCallExpr = fnCall("length", id("s"));
+
+    // Bind every field, so that the rows can be filled in.
+    List<Expr> exprs = new ArrayList<Expr>();
+    exprs.add(id("a"));
+    exprs.add(id("b"));
+    exprs.add(id("s"));
+    exprs.add(mArithExpr);
+    exprs.add(mPredicateExpr);
+    exprs.add(mFnCallExpr);
+    exprs.add(mStringFnCallExpr);
+    for (Expr e : exprs) {
+      e.accept(new TypeChecker(symbols));
+    }
+    RowLayout layout = BindSlotsVisitor.bind(exprs);
+
+    mCompiledArith = ExprCompiler.compile(mArithExpr);
+    mCompiledPredicate = ExprCompiler.compile(mPredicateExpr);
+    mCompiledFnCall = ExprCompiler.compile(mFnCallExpr);
+    mCompiledStringFnCall = ExprCompiler.compile(mStringFnCallExpr);
+
+    mRows = new TypedRow[NUM_ROWS];
+    for (int i = 0; i < NUM_ROWS; i++) {
+      TypedRow row = new TypedRow(layout);
+      row.wrap(null);
+      row.setInt(layout.getSlot("a"), i);
+      if (i % 8 == 0) {
+        row.setNull(layout.getSlot("b"));
+      } else {
+        row.setLong(layout.getSlot("b"), 1000L * i);
+      }
+      row.setObject(layout.getSlot("s"), new Utf8("row-" + i));
+      mRows[i] = row;
+    }
+  }
+
+  private void eval(Expr expr, Blackhole bh) throws IOException {
+    for (TypedRow row : mRows) {
+      bh.consume(expr.eval(row));
+    }
+  }
+
+  private void eval(CompiledExpr expr, Blackhole bh) throws IOException {
+    for (TypedRow row : mRows) {
+      bh.consume(expr.evalObject(row));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public void binExprArith(Blackhole bh) throws IOException {
+    eval(mArithExpr, bh);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public void binExprArithCompiled(Blackhole bh) throws IOException {
+    eval(mCompiledArith, bh);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public void binExprPredicate(Blackhole bh) throws IOException {
+    eval(mPredicateExpr, bh);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public void binExprPredicateCompiled(Blackhole bh) throws IOException {
+    for (TypedRow row : mRows) {
+      bh.consume(mCompiledPredicate.evalBoolean(row));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public void fnCallExpr(Blackhole bh) throws IOException {
+    eval(mFnCallExpr, bh);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public void fnCallExprCompiled(Blackhole bh) throws IOException {
+    eval(mCompiledFnCall, bh);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public void fnCallExprString(Blackhole bh) throws IOException {
+    eval(mStringFnCallExpr, bh);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public void fnCallExprStringCompiled(Blackhole bh) throws IOException {
+    eval(mCompiledStringFnCall, bh);
+  }
+}
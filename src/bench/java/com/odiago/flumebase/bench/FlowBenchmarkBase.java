@@ -0,0 +1,126 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.bench;
+
+import java.io.IOException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.generic.GenericData;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.odiago.flumebase.exec.BuiltInSymbolTable;
+import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.HashSymbolTable;
+import com.odiago.flumebase.exec.QuerySubmitResponse;
+import com.odiago.flumebase.exec.StreamSymbol;
+import com.odiago.flumebase.exec.SymbolTable;
+
+import com.odiago.flumebase.exec.local.LocalEnvironment;
+import com.odiago.flumebase.exec.local.MemoryOutputElement;
+
+import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.SelectStmt;
+
+import com.odiago.flumebase.testutil.MemStreamBuilder;
+
+/**
+ * Base class for benchmarks of complete flows. Each benchmark invocation
+ * runs a query to completion in a LocalEnvironment, over in-memory streams
+ * built with MemStreamBuilder; subclasses create the streams during setup.
+ */
+public abstract class FlowBenchmarkBase {
+
+  /** Name of the in-memory output the queries write to. */
+  private static final String OUTPUT_NAME = "bench";
+
+  private LocalEnvironment mEnvironment;
+  private SymbolTable mSymbolTable;
+  private Map<String, MemoryOutputElement> mOutputs;
+  private EmbeddedFlumeConfig mFlumeConfig;
+
+  /** Create the environment, before any streams are added. */
+  protected void setUpEnvironment() {
+    Configuration conf = new Configuration();
+    conf.set(SelectStmt.CLIENT_SELECT_TARGET_KEY, OUTPUT_NAME);
+    mSymbolTable = new HashSymbolTable(new BuiltInSymbolTable());
+    mOutputs = Collections.synchronizedMap(new HashMap<String, MemoryOutputElement>());
+    mFlumeConfig = new EmbeddedFlumeConfig(conf);
+    mEnvironment = new LocalEnvironment(conf, mSymbolTable, mOutputs, mFlumeConfig);
+  }
+
+  /**
+   * Define a stream of two INT columns with the specified names. The i'th
+   * event holds (keys[i], i) and has timestamp i * timeStep.
+   */
+  protected void addStream(String streamName, String keyCol, String valCol, int[] keys,
+      long timeStep) {
+    MemStreamBuilder streamBuilder = new MemStreamBuilder(streamName);
+    streamBuilder.addField(keyCol, Type.getPrimitive(Type.TypeName.INT));
+    streamBuilder.addField(valCol, Type.getNullable(Type.TypeName.INT));
+    for (int i = 0; i < keys.length; i++) {
+      streamBuilder.addEvent(keys[i] + "," + i, i * timeStep);
+    }
+    addStream(streamBuilder.build());
+  }
+
+  protected void addStream(StreamSymbol stream) {
+    mSymbolTable.addSymbol(stream);
+  }
+
+  /** Start the environment, after all streams are added. */
+  protected void connect() throws IOException, InterruptedException {
+    mEnvironment.connect();
+  }
+
+  /**
+   * Run the query to completion.
+   * @return the number of records it output.
+   */
+  protected int runQuery(String query) throws IOException, InterruptedException {
+    QuerySubmitResponse response = mEnvironment.submitQuery(query,
+        new HashMap<String, String>());
+    FlowId id = response.getFlowId();
+    if (null == id) {
+      throw new IOException("Could not run query: " + response.getMessage());
+    }
+    mEnvironment.joinFlow(id);
+
+    List<GenericData.Record> records = mOutputs.get(OUTPUT_NAME).getRecords();
+    synchronized (records) {
+      return records.size();
+    }
+  }
+
+  protected void tearDownEnvironment() throws IOException, InterruptedException {
+    if (null != mEnvironment && mEnvironment.isConnected()) {
+      mEnvironment.shutdown();
+    }
+
+    if (null != mFlumeConfig && mFlumeConfig.isRunning()) {
+      mFlumeConfig.stop();
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.bench;
+
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures complete flows of windowed joins (executed by HashJoinElement)
+ * as the width of the join window varies. Each stream has an event every
+ * 10 ms, and each join key recurs every 10 seconds, so a wider window holds
+ * more state and matches more events. Scores are in input events (on both
+ * sides) per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JoinFlowBenchmark extends FlowBenchmarkBase {
+
+  /** Number of events in each of the joined streams. */
+  private static final int NUM_EVENTS = 20000;
+
+  private static final int NUM_KEYS = 1000;
+
+  private static final long TIME_STEP = 10;
+
+  /** Width of the join window, in seconds. */
+  @Param({ "1", "15", "60" })
+  int windowSeconds;
+
+  @Setup
+  public void setUp() throws IOException, InterruptedException {
+    setUpEnvironment();
+    int[] keys = new int[NUM_EVENTS];
+    for (int i = 0; i < NUM_EVENTS; i++) {
+      keys[i] = i % NUM_KEYS;
+    }
+    addStream("lt", "a", "b", keys, TIME_STEP);
+    addStream("rt", "c", "d", keys, TIME_STEP);
+    connect();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException, InterruptedException {
+    tearDownEnvironment();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(2 * NUM_EVENTS)
+  public int join() throws IOException, InterruptedException {
+    return runQuery("SELECT * FROM lt JOIN rt ON a = c OVER RANGE INTERVAL "
+        + windowSeconds + " SECONDS PRECEDING");
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.bench;
+
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures complete flows of stateless operators: projection, expression
+ * evaluation and filtering. Scores are in input events per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SelectFlowBenchmark extends FlowBenchmarkBase {
+
+  private static final int NUM_EVENTS = 100000;
+
+  @Setup
+  public void setUp() throws IOException, InterruptedException {
+    setUpEnvironment();
+    int[] keys = new int[NUM_EVENTS];
+    for (int i = 0; i < NUM_EVENTS; i++) {
+      keys[i] = i;
+    }
+    addStream("s", "a", "b", keys, 1);
+    connect();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException, InterruptedException {
+    tearDownEnvironment();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_EVENTS)
+  public int selectAll() throws IOException, InterruptedException {
+    return runQuery("SELECT * FROM s");
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_EVENTS)
+  public int selectExprs() throws IOException, InterruptedException {
+    return runQuery("SELECT a * 2 + b AS x, square(b) AS y FROM s");
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_EVENTS)
+  public int filter() throws IOException, InterruptedException {
+    return runQuery("SELECT * FROM s WHERE a % 10 = 0");
+  }
+}
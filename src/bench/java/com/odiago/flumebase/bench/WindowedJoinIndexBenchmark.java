@@ -0,0 +1,193 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.bench;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.odiago.flumebase.util.ValueSerializer;
+import com.odiago.flumebase.util.WindowedJoinIndex;
+
+/**
+ * Measures the WindowedJoinIndex operations performed by windowed joins:
+ * inserting entries, looking up the entries of a key within a time range,
+ * and expiring the entries that have left the window.
+ *
+ * <p>The index holds WINDOW entries, one per timestamp, spread over numKeys
+ * keys; each new entry is one time unit later than the last. With the
+ * "spill" storage, the index's memory budget holds only a fraction of the
+ * window, so most values are read back from its spill files.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class WindowedJoinIndexBenchmark {
+
+  /** Number of timestamps spanned by the entries in the index. */
+  private static final int WINDOW = 65536;
+
+  /** Width of the index's expiry segments. */
+  private static final long SEGMENT_WIDTH = 1024;
+
+  /** Number of entries expired by each call to removeOlderThan() when sliding the window. */
+  private static final int EXPIRE_INTERVAL = 64;
+
+  /** Number of entries expired per invocation of the expire benchmark. */
+  private static final int EXPIRE_ENTRIES = 16384;
+
+  /** Memory budget of a spilling index: room for about an eighth of the window. */
+  private static final long SPILL_BUDGET = (WINDOW / 8) * 80;
+
+  @Param({ "16", "1024", "65536" })
+  int numKeys;
+
+  /** "heap" keeps every value on the heap; "spill" spills the values of old segments. */
+  @Param({ "heap", "spill" })
+  String storage;
+
+  private WindowedJoinIndex<Integer, Integer> mIndex;
+  private List<Integer> mOut;
+  private Random mRandom;
+  private long mNextTime;
+
+  /** Serializes the Integer values held by a spilling index. */
+  private static class IntSerializer implements ValueSerializer<Integer> {
+    public long estimateSize(Integer value) {
+      return 64;
+    }
+
+    public boolean write(Integer value, DataOutput out) throws IOException {
+      out.writeInt(value.intValue());
+      return true;
+    }
+
+    public Integer read(DataInput in) throws IOException {
+      return Integer.valueOf(in.readInt());
+    }
+  }
+
+  /** Fill an index with WINDOW entries, at times [0, WINDOW). */
+  private WindowedJoinIndex<Integer, Integer> fill() {
+    WindowedJoinIndex<Integer, Integer> index;
+    if ("spill".equals(storage)) {
+      index = new WindowedJoinIndex<Integer, Integer>(SEGMENT_WIDTH, new IntSerializer(),
+          SPILL_BUDGET, null);
+    } else {
+      index = new WindowedJoinIndex<Integer, Integer>(SEGMENT_WIDTH);
+    }
+
+    for (int i = 0; i < WINDOW; i++) {
+      index.put(Integer.valueOf(i % numKeys), Integer.valueOf(i), i);
+    }
+    return index;
+  }
+
+  @Setup
+  public void setUp() {
+    mIndex = fill();
+    mOut = new ArrayList<Integer>();
+    mRandom = new Random(1234);
+    mNextTime = WINDOW;
+  }
+
+  @TearDown
+  public void tearDown() {
+    mIndex.clear(); // Delete any spill files.
+  }
+
+  /**
+   * Insert an entry at the head of the window, expiring old entries at the
+   * tail of the window in batches, as a join does.
+   */
+  @Benchmark
+  public void put() {
+    long time = mNextTime++;
+    mIndex.put(Integer.valueOf((int) (time % numKeys)), Integer.valueOf((int) time), time);
+    if (time % EXPIRE_INTERVAL == 0) {
+      mIndex.removeOlderThan(time - WINDOW);
+    }
+  }
+
+  /** Look up the entries of a random key in the most recent half of the window. */
+  @Benchmark
+  public int getRange() {
+    Integer key = Integer.valueOf(mRandom.nextInt(numKeys));
+    long hi = mNextTime - 1;
+    mOut.clear();
+    return mIndex.getRange(key, hi - WINDOW / 2, hi, false, false, mOut);
+  }
+
+  /** Look up the entries of a random key in the oldest half of the window. */
+  @Benchmark
+  public int getRangeOld() {
+    Integer key = Integer.valueOf(mRandom.nextInt(numKeys));
+    long lo = mNextTime - WINDOW;
+    mOut.clear();
+    return mIndex.getRange(key, lo, lo + WINDOW / 2, false, true, mOut);
+  }
+
+  /** State for the expire benchmark: a full index, refilled for each invocation. */
+  @State(Scope.Thread)
+  public static class ExpireState {
+    private WindowedJoinIndex<Integer, Integer> mIndex;
+
+    @Setup(Level.Invocation)
+    public void setUp(WindowedJoinIndexBenchmark bench) {
+      mIndex = bench.fill();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+      mIndex.clear();
+    }
+  }
+
+  /** Expire the oldest EXPIRE_ENTRIES entries, EXPIRE_INTERVAL entries at a time. */
+  @Benchmark
+  @OperationsPerInvocation(EXPIRE_ENTRIES)
+  public void removeOlderThan(ExpireState state) {
+    for (long time = EXPIRE_INTERVAL; time <= EXPIRE_ENTRIES; time += EXPIRE_INTERVAL) {
+      state.mIndex.removeOlderThan(time);
+    }
+  }
+}
@@ -17,7 +17,25 @@
 
 package com.odiago.flumebase.client;
 
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+
+import com.odiago.flumebase.exec.ConsoleRows;
+
 import com.odiago.flumebase.thrift.ClientConsole;
+import com.odiago.flumebase.thrift.TRowBlock;
 
 /**
  * Implementation of the ClientConsole rpc server.
@@ -35,6 +53,12 @@ public class ClientConsoleImpl implements ClientConsole.Iface {
 
   public static final int DEFAULT_CONSOLE_SERVER_PORT = 9293;
 
+  /** Readers for the schemas of the row blocks we have received, keyed by schema. */
+  private final Map<String, GenericDatumReader<GenericRecord>> mReaders =
+      new HashMap<String, GenericDatumReader<GenericRecord>>();
+
+  private BinaryDecoder mDecoder;
+
   /** Print ordinary info / records from the server to the console. */
   @Override
   public void sendInfo(String info) {
@@ -47,4 +71,35 @@ public class ClientConsoleImpl implements ClientConsole.Iface {
     System.err.println(err);
   }
 
+  /** Print a block of output records from the server to the console. */
+  @Override
+  public synchronized void sendRows(TRowBlock rows) {
+    if (rows.getNumDropped() > 0) {
+      System.err.println("(" + rows.getNumDropped()
+          + " rows dropped; the console could not keep up with the output)");
+    }
+
+    GenericDatumReader<GenericRecord> reader = mReaders.get(rows.getSchema());
+    if (null == reader) {
+      reader = new GenericDatumReader<GenericRecord>(Schema.parse(rows.getSchema()));
+      mReaders.put(rows.getSchema(), reader);
+    }
+
+    StringBuilder sb = new StringBuilder();
+    GenericRecord record = null;
+    for (ByteBuffer row : rows.getRows()) {
+      mDecoder = DecoderFactory.defaultFactory().createBinaryDecoder(row.array(),
+          row.arrayOffset() + row.position(), row.remaining(), mDecoder);
+      try {
+        record = reader.read(record, mDecoder);
+      } catch (IOException ioe) {
+        System.err.println("Could not decode output record: " + ioe);
+        continue;
+      }
+      sb.append(ConsoleRows.formatRecord(record));
+      sb.append('\n');
+    }
+    System.out.print(sb);
+  }
+
 }
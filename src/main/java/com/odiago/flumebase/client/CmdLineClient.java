@@ -32,6 +32,7 @@ import com.odiago.flumebase.exec.DummyExecEnv;
 import com.odiago.flumebase.exec.ExecEnvironment;
 import com.odiago.flumebase.exec.FlowId;
 import com.odiago.flumebase.exec.FlowInfo;
+import com.odiago.flumebase.exec.FlowMetrics;
 import com.odiago.flumebase.exec.QuerySubmitResponse;
 
 import com.odiago.flumebase.exec.local.LocalEnvironment;
@@ -114,6 +115,32 @@ public class CmdLineClient {
     }
   }
 
+  /**
+   * Format the runtime metrics of the running flows to stdout. If flowIdStr
+   * is non-null, describe that flow and each of its elements in detail.
+   */
+  private void showMetrics(String flowIdStr) {
+    try {
+      Map<FlowId, FlowMetrics> metrics = mExecEnv.getFlowMetrics();
+      if (null != flowIdStr) {
+        FlowMetrics flowMetrics = metrics.get(new FlowId(Long.valueOf(flowIdStr)));
+        if (null == flowMetrics) {
+          System.out.println("No such flow: " + flowIdStr);
+        } else {
+          System.out.print(flowMetrics.toDetailString());
+        }
+        return;
+      }
+
+      System.out.println(FlowMetrics.getHeader());
+      for (FlowMetrics flowMetrics : metrics.values()) {
+        System.out.println(flowMetrics.toString());
+      }
+    } catch (Exception e) {
+      LOG.error("Exception retrieving flow metrics: " + StringUtils.stringifyException(e));
+    }
+  }
+
   /**
    * @return the set of configuration options to pass to the execEnvironment
    * governing a submitted query's behavior. This is all the elements in our
@@ -146,6 +173,7 @@ public class CmdLineClient {
     System.out.println("  \\disconnect           Disconnects from the server.");
     System.out.println("  \\f                    List flows.");
     System.out.println("  \\h                    Print help message.");
+    System.out.println("  \\metrics [flowId]     Show runtime metrics of flows.");
     System.out.println("  \\name flowId [str]    Set 'str' as the output stream name for flowId.");
     System.out.println("  \\open server [port]   Connects to the specified server.");
     System.out.println("  \\set property[=val]   Sets or retrieves configuration properties.");
@@ -404,6 +432,8 @@ public class CmdLineClient {
       } else if (requireArgs(args, 2)) {
         getFlowName(args[1]);
       }
+    } else if (args[0].equals("\\metrics")) {
+      showMetrics(args.length >= 2 ? args[1] : null);
     } else if (args[0].equals("\\dname")) {
       if (requireArgs(args, 2)) {
         setFlowName(args[1], null);
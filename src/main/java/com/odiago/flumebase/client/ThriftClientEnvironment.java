@@ -50,6 +50,7 @@ import org.slf4j.LoggerFactory;
 import com.odiago.flumebase.exec.ExecEnvironment;
 import com.odiago.flumebase.exec.FlowId;
 import com.odiago.flumebase.exec.FlowInfo;
+import com.odiago.flumebase.exec.FlowMetrics;
 import com.odiago.flumebase.exec.QuerySubmitResponse;
 
 import com.odiago.flumebase.plan.FlowSpecification;
@@ -61,6 +62,7 @@ import com.odiago.flumebase.thrift.ClientConsole;
 import com.odiago.flumebase.thrift.RemoteServer;
 import com.odiago.flumebase.thrift.TFlowId;
 import com.odiago.flumebase.thrift.TFlowInfo;
+import com.odiago.flumebase.thrift.TFlowMetrics;
 
 import com.odiago.flumebase.util.NetUtils;
 
@@ -232,6 +234,22 @@ public class ThriftClientEnvironment extends ExecEnvironment {
     }
   }
 
+  @Override
+  public Map<FlowId, FlowMetrics> getFlowMetrics() throws IOException {
+    try {
+      Map<TFlowId, TFlowMetrics> metrics = mClient.getFlowMetrics();
+      Map<FlowId, FlowMetrics> out = new TreeMap<FlowId, FlowMetrics>();
+
+      for (Map.Entry<TFlowId, TFlowMetrics> entry : metrics.entrySet()) {
+        out.put(FlowId.fromThrift(entry.getKey()), FlowMetrics.fromThrift(entry.getValue()));
+      }
+
+      return out;
+    } catch (TException te) {
+      throw new IOException(te);
+    }
+  }
+
   @Override
   public void joinFlow(FlowId id) throws IOException {
     try {
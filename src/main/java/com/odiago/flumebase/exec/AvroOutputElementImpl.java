@@ -17,19 +17,18 @@
 
 package com.odiago.flumebase.exec;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 
+import java.util.List;
+
 import org.apache.avro.Schema;
 
 import org.apache.avro.generic.GenericData;
-import org.apache.avro.generic.GenericDatumWriter;
-import org.apache.avro.generic.GenericRecord;
 
-import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.util.Utf8;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,25 +40,55 @@ import com.odiago.flumebase.lang.PreciseType;
 import com.odiago.flumebase.lang.Type;
 
 /**
- * Abstract class that allows nodes to emit output records which
- * are serialized in avro format.
+ * Abstract class that allows nodes to emit output records in avro format.
+ * Records are passed to downstream elements in memory; they are only
+ * serialized when they leave the flow.
  */
 public abstract class AvroOutputElementImpl extends FlowElementImpl {
   private static final Logger LOG = LoggerFactory.getLogger(
       AvroOutputElementImpl.class.getName());
 
-  // Avro encoder components reused in our internal workflow.
-  private BinaryEncoder mEncoder;
-  private GenericDatumWriter<GenericRecord> mDatumWriter;
-  private ByteArrayOutputStream mOutputBytes;
+  /** Body of every output event; the record itself is passed in memory. */
+  protected static final byte[] EMPTY_BODY = new byte[0];
+
   private Schema mOutputSchema;
 
+  /** For each field of mOutputSchema, true if the field may hold a null value. */
+  private boolean[] mNullableFields;
+
+  /** For each field of mOutputSchema, true if a non-null value must be a string. */
+  private boolean[] mStringFields;
+
   public AvroOutputElementImpl(FlowElementContext ctxt, Schema outputSchema) {
     super(ctxt);
-    mDatumWriter = new GenericDatumWriter<GenericRecord>(outputSchema);
-    mOutputBytes = new ByteArrayOutputStream();
-    mEncoder = new BinaryEncoder(mOutputBytes);
     mOutputSchema = outputSchema;
+
+    List<Schema.Field> fields = outputSchema.getFields();
+    mNullableFields = new boolean[fields.size()];
+    mStringFields = new boolean[fields.size()];
+    for (int i = 0; i < fields.size(); i++) {
+      Schema fieldSchema = fields.get(i).schema();
+      mNullableFields[i] = schemaAllows(fieldSchema, Schema.Type.NULL);
+      mStringFields[i] = schemaAllows(fieldSchema, Schema.Type.STRING);
+    }
+  }
+
+  /**
+   * @return true if the schema is of the specified type, or is a union
+   * with a branch of the specified type.
+   */
+  private static boolean schemaAllows(Schema schema, Schema.Type type) {
+    if (schema.getType().equals(type)) {
+      return true;
+    } else if (schema.getType().equals(Schema.Type.UNION)) {
+      for (Schema branch : schema.getTypes()) {
+        if (branch.getType().equals(type)) {
+          return true;
+        }
+      }
+    }
+
+    return false;
   }
 
   /**
@@ -79,41 +108,35 @@ public abstract class AvroOutputElementImpl extends FlowElementImpl {
     emitAvroRecord(record, inEvent, inEvent.getTimestamp(), getContext());
   }
 
+  /**
+   * Emit the record to the specified context. The record is passed downstream
+   * as-is, rather than being serialized; the caller must not modify it after
+   * this call.
+   */
   protected void emitAvroRecord(GenericData.Record record, Event inEvent, long timestamp,
       FlowElementContext context) throws IOException, InterruptedException {
-    // TODO: BAOS.toByteArray() creates a new byte array, as does the
-    // creation of the event. That's at least one more array copy than
-    // necessary.
-    mOutputBytes.reset();
-    try {
-      LOG.debug("Emitting record");
-      for (Schema.Field f : record.getSchema().getFields()) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("  " + f.name() + " => " + record.get(f.name()));
-        sb.append(" (");
-        Object out = record.get(f.name());
-        if (null == out) {
-          sb.append("Null");
-        } else {
-          sb.append(out.getClass().getName());
+    // Apply the same checks and conversions that encoding the record with
+    // Avro would, so that downstream elements see the same values.
+    for (int i = 0; i < mNullableFields.length; i++) {
+      Object val = record.get(i);
+      if (null == val) {
+        if (!mNullableFields[i]) {
+          // Schema error - the user tried to put a null in a field declared non-null.
+          // We silently elide the entire record.
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Omitting record with NULL value in non-null field: "
+                + mOutputSchema.getFields().get(i).name());
+          }
+          return;
         }
-
-        sb.append(")");
-        LOG.debug(sb.toString());
-        
+      } else if (mStringFields[i] && !(val instanceof Utf8)) {
+        record.put(i, new Utf8(val.toString()));
       }
-      mDatumWriter.write(record, mEncoder);
-    } catch (NullPointerException npe) {
-      // Schema error - the user tried to put a null in a field declared non-null.
-      // We silently elide the entire record.
-      LOG.debug("Omitting record with NULL value in non-null field: " + npe.toString());
-      return;
     }
-    Event out = new EventImpl(mOutputBytes.toByteArray(),
+
+    Event out = new EventImpl(EMPTY_BODY,
         timestamp, inEvent.getPriority(), inEvent.getNanos(), inEvent.getHost()); 
-    AvroEventWrapper outWrapper = new AvroEventWrapper(mOutputSchema);
-    outWrapper.reset(out);
-    emit(outWrapper, context);
+    emit(new RecordEventWrapper(record, out), context);
   }
 
   protected Schema getOutputSchema() {
@@ -17,17 +17,18 @@
 
 package com.odiago.flumebase.exec;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
 
 import org.apache.avro.Schema;
 
@@ -38,9 +39,11 @@ import org.apache.hadoop.conf.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.cloudera.util.Pair;
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
 
 import com.odiago.flumebase.exec.local.TimerFlowElemContext;
+import com.odiago.flumebase.exec.local.TimerWheel;
 
 import com.odiago.flumebase.lang.TimeSpan;
 
@@ -53,8 +56,11 @@ import com.odiago.flumebase.parser.WindowSpec;
 import com.odiago.flumebase.plan.AggregateNode;
 import com.odiago.flumebase.plan.PlanNode;
 
+import com.odiago.flumebase.util.GroupKeyMap;
 import com.odiago.flumebase.util.IterableIterator;
-import com.odiago.flumebase.util.PairLeftRightComparator;
+import com.odiago.flumebase.util.StateBudget;
+import com.odiago.flumebase.util.StateStore;
+import com.odiago.flumebase.util.ValueSerializer;
 
 import com.odiago.flumebase.util.concurrent.SelectableQueue;
 
@@ -63,7 +69,8 @@ import com.odiago.flumebase.util.concurrent.SelectableQueue;
  * Perform aggregation functions over time series data divided into
  * a fixed number of buckets over the aggregation time interval.
  */
-public class BucketedAggregationElement extends AvroOutputElementImpl {
+public class BucketedAggregationElement extends AvroOutputElementImpl
+    implements Checkpointable {
   private static final Logger LOG = LoggerFactory.getLogger(
       BucketedAggregationElement.class.getName());
 
@@ -97,6 +104,12 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
       "flumebase.aggregation.max.prior.interval";
   private static final long DEFAULT_MAX_PRIOR_EMIT_INTERVAL = 5000;
 
+  /** Estimated heap used by a Bucket and its state. */
+  private static final long BUCKET_SIZE = 64;
+
+  /** Estimated heap used by the array holding the Buckets of a timestamp. */
+  private static final long BUCKET_ARRAY_OVERHEAD = 16;
+
   /** The number of buckets that subdivide the aggregation time interval. */
   private final int mNumBuckets;
 
@@ -106,7 +119,8 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
   /** How far into the past we will look for windows to close when catching up to the present. */
   private final long mMaxPriorEmitInterval;
 
-  private final List<TypedField> mGroupByFields;
+  /** The fields whose values identify the group of an event. */
+  private final TypedField[] mGroupByFields;
 
   /** The window specification over which we're aggregating. */
   private final WindowSpec mWindowSpec;
@@ -133,22 +147,63 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
    */
   private final List<AliasedExpr> mAggregateExprs;
 
-  private final List<TypedField> mPropagateFields;
+  private final TypedField[] mPropagateFields;
+
+  /** The aggregate function calls in mAggregateExprs, in the same order. */
+  private final FnCallExpr[] mFnCalls;
+
+  /**
+   * Element i is true if mFnCalls[i] maintains a running window state that
+   * buckets are added to and subtracted from as the window slides.
+   */
+  private final boolean[] mInvertible;
+
+  /** True if any element of mInvertible is true. */
+  private final boolean mHasInvertible;
+
+  /**
+   * Map from the values of the group-by fields of an event to the buckets and
+   * window state for that group.
+   */
+  private GroupKeyMap<GroupState> mGroups;
+
+  /** Holds the group-by field values of each event while its group is looked up. */
+  private final Object[] mKeyScratch;
+
+  /**
+   * Index from a bucket timestamp to the groups which hold a bucket with
+   * that timestamp. Closing a window only visits the groups listed here for
+   * the window's range, rather than every group in mGroups.
+   */
+  private TreeMap<Long, List<GroupState>> mGroupsByTime;
+
+  /** Number of timestamps for which some group holds buckets; our window state size. */
+  private long mNumLiveBuckets;
 
   /**
-   * Map that returns a set of Bucket objects. Each bucket object
-   * contains the state associated with a single aggregation function.
-   * The key is a pair consisting of the timestamp (as a Long) and a HashedEvent:
-   * an object that implements equals() and hashCode() based on a subset of the
-   * fields of an EventWrapper.
+   * Holds the Buckets of each group. Created when this element is bound to
+   * its flow, from the flow's StateBudget.
    */
-  private Map<Pair<Long, HashedEvent>, List<Bucket>> mBucketMap;
+  private StateStore<Bucket<?>[]> mBucketStore;
+
+  /** The budget shared by the state of the flow. */
+  private StateBudget mBudget;
+
+  /** Estimated heap used by the Buckets of all groups; counted against mBudget. */
+  private long mStateBytes;
 
   /**
-   * The same set of buckets as mBucketMap, organized as time-ordered lists
-   * arranged by the group-by columns.
+   * The store's handles on the Buckets spilled for each bucket timestamp.
+   * Every timestamp up to and including mSpilledThrough has been spilled.
    */
-  private Map<HashedEvent, List<Pair<Long, List<Bucket>>>> mBucketsByGroup;
+  private TreeMap<Long, Object> mSpills;
+  private long mSpilledThrough = Long.MIN_VALUE;
+
+  /** Set if spilling failed; all Buckets are then kept on the heap. */
+  private boolean mSpillDisabled;
+
+  /** Counts the events we drop because their windows have already closed. */
+  private StripedCounter mLateEvents;
 
   /**
    * Timestamp associated with the newest buckets in the pipeline.
@@ -166,12 +221,36 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
   private long mLastEnqueuedWakeup = 0;
 
   /**
-   * SelectableQueue for the downstream timer element, which our eviction thread
-   * enqueues into.
+   * Queue for the downstream timer element, which our wakeup tasks enqueue
+   * into. This is the RingBufferSelectableQueue created by the timer context,
+   * with room for LocalEnvironment.QUEUE_CAPACITY_KEY events.
    */
   private SelectableQueue<Object> mTimerQueue = null;
 
-  private EvictionThread mEvictionThread;
+  /** The timer wheel in which wakeup tasks are scheduled. */
+  private TimerWheel mTimerWheel = null;
+
+  /**
+   * Wakeup calls for buckets older than this have been made redundant by newer
+   * events, and are discarded when they expire. Read by the timer thread.
+   */
+  private volatile long mDiscardWakeupsBefore = Long.MIN_VALUE;
+
+  /** Set to true when this element closes; pending wakeup calls are discarded. */
+  private volatile boolean mWakeupsCancelled = false;
+
+  /**
+   * Set to true when the upstream elements provide watermarks. Windows are
+   * then closed when the watermark passes them, rather than by the arrival of
+   * newer events or the passage of local time; no wakeups are scheduled.
+   */
+  private volatile boolean mEventTimeWindows = false;
+
+  /** The most recent watermark forwarded downstream. */
+  private long mOutputWatermark = Long.MIN_VALUE;
+
+  /** Set to true when our buckets were restored from a checkpoint. */
+  private boolean mRestored = false;
 
   public BucketedAggregationElement(FlowElementContext ctxt, AggregateNode aggregateNode) {
     super(ctxt, (Schema) aggregateNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR));
@@ -194,14 +273,16 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
 
     List<TypedField> groupByFields = aggregateNode.getGroupByFields();
     if (null == groupByFields) {
-      mGroupByFields = Collections.emptyList();
+      mGroupByFields = new TypedField[0];
     } else {
-      mGroupByFields = groupByFields;
+      mGroupByFields = groupByFields.toArray(new TypedField[groupByFields.size()]);
     }
+    mKeyScratch = new Object[mGroupByFields.length];
 
     mAggregateExprs = aggregateNode.getAggregateExprs();
     assert mAggregateExprs != null;
-    mPropagateFields = aggregateNode.getPropagateFields();
+    List<TypedField> propagateFields = aggregateNode.getPropagateFields();
+    mPropagateFields = propagateFields.toArray(new TypedField[propagateFields.size()]);
 
     Expr windowExpr = aggregateNode.getWindowExpr();
     assert windowExpr.isConstant();
@@ -216,8 +297,21 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
       throw new RuntimeException(ioe);
     }
 
-    mBucketMap = new HashMap<Pair<Long, HashedEvent>, List<Bucket>>(mNumBuckets);
-    mBucketsByGroup = new HashMap<HashedEvent, List<Pair<Long, List<Bucket>>>>();
+    mFnCalls = new FnCallExpr[mAggregateExprs.size()];
+    mInvertible = new boolean[mAggregateExprs.size()];
+    boolean hasInvertible = false;
+    for (int i = 0; i < mAggregateExprs.size(); i++) {
+      Expr expr = mAggregateExprs.get(i).getExpr();
+      assert expr instanceof FnCallExpr;
+      mFnCalls[i] = (FnCallExpr) expr;
+      mInvertible[i] = mFnCalls[i].isInvertibleAggregate();
+      hasInvertible |= mInvertible[i];
+    }
+    mHasInvertible = hasInvertible;
+
+    mGroups = new GroupKeyMap<GroupState>();
+    mGroupsByTime = new TreeMap<Long, List<GroupState>>();
+    mSpills = new TreeMap<Long, Object>();
 
     // Calculate the width of each bucket.
     mTimeModulus = mTimeSpan.getWidth() / mNumBuckets;
@@ -227,16 +321,33 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
     }
   }
 
+  /**
+   * Create the store for our Buckets from the flow's StateBudget. Called
+   * before any state is restored or any event arrives.
+   */
+  private void initBucketStore() {
+    if (null == mBucketStore) {
+      mBudget = getContext().getStateBudget();
+      mBucketStore = mBudget.newStore(new BucketSerializer(), "flumebase-aggregate-");
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
   public void open() throws IOException, InterruptedException {
+    initBucketStore();
     TimerFlowElemContext timerContext = (TimerFlowElemContext) getContext();
-    // Start the auto-closing thread. Initialize the reference to the queue it populates
-    // from our timer context.
+    // Initialize the references to the timer which drives the auto-closing of
+    // windows, and the queue its wakeup tasks populate, from our timer context.
     mTimerQueue = timerContext.getTimerQueue();
-    mEvictionThread = new EvictionThread();
-    mEvictionThread.start();
+    mTimerWheel = timerContext.getTimerWheel();
+    mLateEvents = timerContext.getMetrics().getCounter(MetricsRegistry.LATE_EVENTS_DROPPED);
     super.open();
+
+    if (mRestored && !mEventTimeWindows && !mGroups.isEmpty()) {
+      // Make sure the restored windows close even if no new events arrive.
+      enqueueWakeup(mHeadBucketTime);
+    }
   }
 
   /** {@inheritDoc} */
@@ -245,152 +356,604 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
     // We've got no new elements coming in; expire all buckets immediately.
     LOG.debug("Immediately expiring all buckets to mHeadBucketTime=" + mHeadBucketTime);
     closeUntil(mHeadBucketTime, mHeadBucketTime, getContext());
-    mEvictionThread.finish();
-    mEvictionThread = null;
+    mWakeupsCancelled = true;
+    if (null != mBucketStore) {
+      releaseSpills(Long.MAX_VALUE);
+      addStateBytes(-mStateBytes);
+    }
     super.close();
   }
 
   /**
-   * Initialize the list of Bucket entries that are associated with a new
-   * timestamp -&gt; bucket mapping. This is typically done just before inserting
-   * a value in a new bucket at the head of a new time window.
-   * @return the list of initialized Bucket objects for this time subrange.
+   * The buckets held for a single group, in a ring ordered by timestamp.
+   * Along with the buckets, holds the running window state of each invertible
+   * aggregation function over the buckets which have entered the window.
+   *
+   * <p>The group is identified by the values of its group-by fields, which are
+   * copied out of the first event in the group, rather than by retaining
+   * that event.</p>
    */
-  private List<Bucket> initBuckets(Pair<Long, HashedEvent> bucketKey) {
-    List<Bucket> newBuckets = new ArrayList<Bucket>(mAggregateExprs.size());
-    for (int i = 0; i < mAggregateExprs.size(); i++) {
-      // Put in a new bucket instance for each aggregation funtion we're going to run.
-      newBuckets.add(new Bucket());
+  private static class GroupState {
+    private static final int INITIAL_RING_SIZE = 4;
+
+    /** The values of the group-by fields identifying this group. */
+    private final Object[] mKey;
+
+    /** The hash code of mKey. */
+    private final int mKeyHash;
+
+    /** The values of the fields to propagate into output records. */
+    private final Object[] mPropagateValues;
+
+    /** The header of the first event in the group, with an empty body. */
+    private final Event mHeaderEvent;
+
+    /** The number of aggregation functions; the number of Buckets per timestamp. */
+    private final int mNumAggregates;
+
+    /** Ring of bucket timestamps, in order; length is a power of two. */
+    private long[] mTimes;
+
+    /**
+     * mSlots[i] holds the Buckets of the timestamp at mTimes[i], one per
+     * aggregation function: either a Bucket array, or a reference to the
+     * spilled array in the element's StateStore. The Buckets of vacated
+     * entries are cleared and reused.
+     */
+    private Object[] mSlots;
+
+    /** Offset of the oldest timestamp in mTimes. */
+    private int mHead;
+
+    /** Number of timestamps in the ring. */
+    private int mSize;
+
+    /**
+     * Buckets with timestamps up to and including this one have been added
+     * to mWindowStates.
+     */
+    private long mAddedThrough;
+
+    /** Running window state for each invertible aggregation function, or null. */
+    private final Object[] mWindowStates;
+
+    /** Close time of the last window calculated for this group. */
+    private long mLastCloseTime;
+
+    public GroupState(Object[] key, int keyHash, Object[] propagateValues,
+        Event headerEvent, int numAggregates, Object[] windowStates) {
+      mKey = key;
+      mKeyHash = keyHash;
+      mPropagateValues = propagateValues;
+      mHeaderEvent = headerEvent;
+      mNumAggregates = numAggregates;
+      mTimes = new long[INITIAL_RING_SIZE];
+      mSlots = new Object[INITIAL_RING_SIZE];
+      mAddedThrough = Long.MIN_VALUE;
+      mWindowStates = windowStates;
+      mLastCloseTime = Long.MIN_VALUE;
+    }
+
+    public int size() {
+      return mSize;
+    }
+
+    /** @return the offset into mTimes of the i'th oldest timestamp. */
+    private int slot(int i) {
+      return (mHead + i) & (mTimes.length - 1);
+    }
+
+    /** @return the i'th oldest bucket timestamp. */
+    public long getTime(int i) {
+      return mTimes[slot(i)];
+    }
+
+    /** @return the slot holding the Buckets of the i'th oldest timestamp. */
+    public Object getSlot(int i) {
+      return mSlots[slot(i)];
+    }
+
+    public void setSlot(int i, Object buckets) {
+      mSlots[slot(i)] = buckets;
+    }
+
+    /**
+     * @return the index of the buckets with the specified timestamp, or -1 if
+     * there are none. Searches from the newest buckets, where most events land.
+     */
+    public int find(long time) {
+      for (int i = mSize - 1; i >= 0; i--) {
+        long t = getTime(i);
+        if (t == time) {
+          return i;
+        } else if (t < time) {
+          break;
+        }
+      }
+
+      return -1;
+    }
+
+    /**
+     * Insert empty buckets for a new timestamp, in timestamp order.
+     * @return the index of the new buckets.
+     */
+    public int insert(long time) {
+      if (mSize == mTimes.length) {
+        grow();
+      }
+
+      // Swap the vacant entry backward until it is in timestamp order. It
+      // carries its (cleared) Buckets along with it.
+      int pos = mSize;
+      while (pos > 0 && getTime(pos - 1) > time) {
+        swap(slot(pos - 1), slot(pos));
+        pos--;
+      }
+
+      int slot = slot(pos);
+      mTimes[slot] = time;
+      if (!(mSlots[slot] instanceof Bucket<?>[])) {
+        Bucket<?>[] buckets = new Bucket<?>[mNumAggregates];
+        for (int fn = 0; fn < mNumAggregates; fn++) {
+          buckets[fn] = new Bucket<Object>();
+        }
+        mSlots[slot] = buckets;
+      }
+      mSize++;
+      return pos;
     }
 
-    assert null == mBucketMap.get(bucketKey);
-    mBucketMap.put(bucketKey, newBuckets);
+    private void swap(int slotA, int slotB) {
+      long time = mTimes[slotA];
+      mTimes[slotA] = mTimes[slotB];
+      mTimes[slotB] = time;
+
+      Object buckets = mSlots[slotA];
+      mSlots[slotA] = mSlots[slotB];
+      mSlots[slotB] = buckets;
+    }
 
-    // Put this into the map organized by group, as well.
-    // Get the set of (time, bucketlist) pairs for the group.
-    List<Pair<Long, List<Bucket>>> bucketsByTime = mBucketsByGroup.get(bucketKey.getRight());
-    if (null == bucketsByTime) {
-      bucketsByTime = new LinkedList<Pair<Long, List<Bucket>>>();
-      mBucketsByGroup.put(bucketKey.getRight(), bucketsByTime);
+    private void grow() {
+      long[] newTimes = new long[mTimes.length * 2];
+      Object[] newSlots = new Object[newTimes.length];
+      for (int i = 0; i < mSize; i++) {
+        int slot = slot(i);
+        newTimes[i] = mTimes[slot];
+        newSlots[i] = mSlots[slot];
+      }
+      mTimes = newTimes;
+      mSlots = newSlots;
+      mHead = 0;
     }
-    bucketsByTime.add(new Pair<Long, List<Bucket>>(bucketKey.getLeft(), newBuckets));
 
-    // Return the initialized set of Bucket objects back to the caller.
-    return newBuckets;
+    /** Remove the oldest buckets, clearing them for reuse if they are on the heap. */
+    public void removeFirst() {
+      assert mSize > 0;
+      if (mSlots[mHead] instanceof Bucket<?>[]) {
+        for (Bucket<?> bucket : (Bucket<?>[]) mSlots[mHead]) {
+          bucket.setState(null);
+        }
+      } else {
+        mSlots[mHead] = null;
+      }
+      mHead = (mHead + 1) & (mTimes.length - 1);
+      mSize--;
+    }
   }
 
   /**
-   * @return a key into our group-by map that is composed of the bucket
-   * timestamp for the event, and a HashedEvent that reads the fields
-   * of the event necessary to group by those fields. If we are not grouping
-   * by any fields, this component of the pair is null.
+   * Writes the Buckets of a group for one timestamp to a StateStore, using
+   * the writeBucketState() and readBucketState() methods of each aggregation
+   * function, as checkpoints do.
    */
-  private Pair<Long, HashedEvent> getEventKey(EventWrapper e) {
-    long eventTime = e.getEvent().getTimestamp();
-    long remainder = eventTime % mTimeModulus;
-    Long bucketTime;
+  private class BucketSerializer implements ValueSerializer<Bucket<?>[]> {
+    @Override
+    public long estimateSize(Bucket<?>[] buckets) {
+      return BUCKET_ARRAY_OVERHEAD + buckets.length * BUCKET_SIZE;
+    }
 
-    // If we're on an interval boundary (e.g., t=100) we go into that bucket.
-    // If we're off-boundary (e.g., t=103), we go into the closest "previous" bucket (t=100).
-    bucketTime = Long.valueOf(eventTime - remainder);
-    HashedEvent hashedEvent = new HashedEvent(e, mGroupByFields);
-    return new Pair<Long, HashedEvent>(bucketTime, hashedEvent);
+    @Override
+    public boolean write(Bucket<?>[] buckets, DataOutput out) throws IOException {
+      for (int fn = 0; fn < mFnCalls.length; fn++) {
+        mFnCalls[fn].writeBucketState(buckets[fn], out);
+      }
+      return true;
+    }
+
+    @Override
+    public Bucket<?>[] read(DataInput in) throws IOException {
+      Bucket<?>[] buckets = new Bucket<?>[mFnCalls.length];
+      for (int fn = 0; fn < mFnCalls.length; fn++) {
+        Bucket<Object> bucket = new Bucket<Object>();
+        mFnCalls[fn].readBucketState(bucket, in);
+        buckets[fn] = bucket;
+      }
+      return buckets;
+    }
   }
 
   /**
-   * Given a set of time buckets associated with a given group,
-   * iterate over the time buckets for a specific time interval,
-   * for a particular aggregation function.
+   * @return the Buckets of the i'th oldest timestamp of a group, one per
+   * aggregation function, reading them back from the store if they were spilled.
    */
-  private static class BucketIterator<T> implements Iterator<Bucket<T>> {
-    /**
-     * Offset of the true Bucket object in the final List<Buckets> that
-     * specifies buckest for each aggregation function we operate.
-     */
-    private final int mFunctionId;
+  private Bucket<?>[] getBuckets(GroupState groupState, int i) {
+    return mBucketStore.get(groupState.getSlot(i));
+  }
+
+  /**
+   * @return the Bucket of aggregation function 'fn' for the i'th oldest
+   * timestamp of a group. Its state type is the one used by mFnCalls[fn].
+   */
+  @SuppressWarnings("unchecked")
+  private <T> Bucket<T> getBucket(GroupState groupState, int i, int fn) {
+    return (Bucket<T>) getBuckets(groupState, i)[fn];
+  }
+
+  /**
+   * @return the Buckets of the i'th oldest timestamp of a group, to be
+   * modified. Spilled Buckets are read back onto the heap.
+   */
+  private Bucket<?>[] getWritableBuckets(GroupState groupState, int i) {
+    Object slot = groupState.getSlot(i);
+    if (!mBucketStore.isSpilled(slot)) {
+      return (Bucket<?>[]) slot;
+    }
+
+    Bucket<?>[] buckets = mBucketStore.get(slot);
+    groupState.setSlot(i, buckets);
+    addStateBytes(mBucketStore.sizeOf(buckets) - mBucketStore.sizeOf(slot));
+    return buckets;
+  }
 
-    /** Lowest timestamped bucket we return. */
-    private final long mLoTime;
+  /** Record a change in the estimated heap used by our Buckets. */
+  private void addStateBytes(long bytes) {
+    mStateBytes += bytes;
+    mBudget.add(bytes);
+  }
 
-    /** Highest timestamped bucket we return. */
-    private final long mHiTime;
+  /**
+   * Spill the Buckets of the oldest timestamps until the state of the flow
+   * fits within its budget. The Buckets of the newest timestamp, which
+   * receive most events, always stay on the heap.
+   */
+  private void spill() {
+    while (mBudget.isExceeded()) {
+      Long time = mGroupsByTime.higherKey(mSpilledThrough);
+      if (null == time || time.longValue() >= mHeadBucketTime) {
+        return;
+      }
 
-    /**
-     * Iterator over the outer list. We require this iterator
-     * to return values in order.
-     */ 
-    private final Iterator<Pair<Long, List<Bucket>>> mIterator;
+      try {
+        spillBuckets(time);
+      } catch (IOException ioe) {
+        // Keep going without spilling, rather than fail the flow.
+        LOG.warn("Could not spill aggregation state; keeping it on the heap: " + ioe);
+        mSpillDisabled = true;
+        return;
+      }
+      mSpilledThrough = time.longValue();
+    }
+  }
+
+  /** Spill the Buckets held on the heap for the specified timestamp. */
+  private void spillBuckets(Long time) throws IOException {
+    List<GroupState> groupsAtTime = mGroupsByTime.get(time);
+    GroupState[] groups = new GroupState[groupsAtTime.size()];
+    int[] indices = new int[groups.length];
+    Object[] slots = new Object[groups.length];
+    int count = 0;
+    for (GroupState groupState : groupsAtTime) {
+      int index = groupState.find(time.longValue());
+      if (-1 != index && !mBucketStore.isSpilled(groupState.getSlot(index))) {
+        groups[count] = groupState;
+        indices[count] = index;
+        slots[count] = groupState.getSlot(index);
+        count++;
+      }
+    }
+
+    Object spill = mBucketStore.spill(slots, count);
+    if (null == spill) {
+      return;
+    }
+    mSpills.put(time, spill);
+    for (int i = 0; i < count; i++) {
+      if (mBucketStore.isSpilled(slots[i])) {
+        addStateBytes(mBucketStore.sizeOf(slots[i])
+            - mBucketStore.sizeOf(groups[i].getSlot(indices[i])));
+        groups[i].setSlot(indices[i], slots[i]);
+      }
+    }
+  }
+
+  /** Release the spilled Buckets of timestamps at or before 'loTime'. */
+  private void releaseSpills(long loTime) {
+    NavigableMap<Long, Object> expired = mSpills.headMap(loTime, true);
+    for (Object spill : expired.values()) {
+      mBucketStore.release(spill);
+    }
+    expired.clear();
+  }
 
-    /** The next value we return. */
-    private Bucket<T> mNextBucket;
+  /**
+   * Iterates over the oldest buckets of a group for a particular aggregation function.
+   */
+  private class BucketIterator<T> implements Iterator<Bucket<T>> {
+    private final GroupState mGroupState;
 
-    /** Set to true if prepBucket() has been called, but not next(). */
-    private boolean mIsReady;
+    /** The aggregation function whose Buckets we return. */
+    private final int mFunctionId;
 
-    /** The number of buckets in the time interval that were returned by this iterator. */
-    private int mYieldCount;
+    /** Number of buckets, from the oldest, to return. */
+    private final int mCount;
 
-    public BucketIterator(int functionId, long loTime, long hiTime,
-        List<Pair<Long, List<Bucket>>> inputList) {
+    private int mPos;
+
+    public BucketIterator(GroupState groupState, int functionId, int count) {
+      mGroupState = groupState;
       mFunctionId = functionId;
-      mLoTime = loTime;
-      mHiTime = hiTime;
-      mIterator = inputList.iterator();
-      mYieldCount = 0;
+      mCount = count;
     }
 
-    /**
-     * Scan ahead in the underlying iterator til we find the next element.
-     * Set mNextBucket to the next value that next() should return, or null
-     * if we cannot yield any more values.
-     * Sets mIsReady to true.
-     */
-    private void prepBucket() {
-      assert !mIsReady; // This should not be called twice in a row.
-
-      mIsReady = true;
-      mNextBucket = null;
-
-      while (mIterator.hasNext()) {
-        Pair<Long, List<Bucket>> nextPair = mIterator.next();
-        long timestamp = nextPair.getLeft();
-        if (timestamp > mLoTime && timestamp <= mHiTime) {
-          // We found the next one to return.
-          mNextBucket = nextPair.getRight().get(mFunctionId);
-          return;
+    public boolean hasNext() {
+      return mPos < mCount;
+    }
+
+    public Bucket<T> next() {
+      if (mPos >= mCount) {
+        throw new NoSuchElementException();
+      }
+      return BucketedAggregationElement.this.<T>getBucket(mGroupState, mPos++, mFunctionId);
+    }
+
+    public void remove() {
+      throw new RuntimeException("Not implemented.");
+    }
+  }
+
+  /**
+   * @return the running window states for a new group; null entries are
+   * used for functions that are not invertible.
+   */
+  private Object[] createWindowStates() throws IOException {
+    if (!mHasInvertible) {
+      return null;
+    }
+
+    Object[] windowStates = new Object[mFnCalls.length];
+    for (int i = 0; i < mFnCalls.length; i++) {
+      if (mInvertible[i]) {
+        windowStates[i] = mFnCalls[i].createWindowState();
+      }
+    }
+    return windowStates;
+  }
+
+  /** Add the buckets at index i of a group to its running window state. */
+  private void addToWindow(GroupState groupState, int i) throws IOException {
+    Bucket<?>[] buckets = getBuckets(groupState, i);
+    for (int fn = 0; fn < mFnCalls.length; fn++) {
+      if (mInvertible[fn]) {
+        mFnCalls[fn].addToWindow(groupState.mWindowStates[fn], buckets[fn]);
+      }
+    }
+  }
+
+  /** Subtract the buckets at index i of a group from its running window state. */
+  private void removeFromWindow(GroupState groupState, int i) throws IOException {
+    Bucket<?>[] buckets = getBuckets(groupState, i);
+    for (int fn = 0; fn < mFnCalls.length; fn++) {
+      if (mInvertible[fn]) {
+        mFnCalls[fn].removeFromWindow(groupState.mWindowStates[fn], buckets[fn]);
+      }
+    }
+  }
+
+  /**
+   * Create the state for a new group, whose first event is 'e'.
+   * @param key the values of the group-by fields of 'e'; retained by the group.
+   */
+  private GroupState initGroup(EventWrapper e, Object[] key, int keyHash) throws IOException {
+    Object[] propagateValues = new Object[mPropagateFields.length];
+    for (int i = 0; i < mPropagateFields.length; i++) {
+      propagateValues[i] = e.getField(mPropagateFields[i]);
+    }
+
+    Event event = e.getEvent();
+    Event headerEvent = new EventImpl(EMPTY_BODY, event.getTimestamp(), event.getPriority(),
+        event.getNanos(), event.getHost());
+    return new GroupState(key, keyHash, propagateValues, headerEvent, mFnCalls.length,
+        createWindowStates());
+  }
+
+  /**
+   * Initialize the Bucket entries for a group at a new timestamp. This is
+   * typically done just before inserting a value in a new bucket at the head
+   * of a new time window.
+   * @return the index of the initialized Bucket objects within the group.
+   */
+  private int initBuckets(GroupState groupState, long bucketTime) {
+    int index = groupState.insert(bucketTime);
+    getStats().setStateSize(++mNumLiveBuckets);
+    addStateBytes(mBucketStore.sizeOf(groupState.getSlot(index)));
+
+    // Record that this group must be visited when closing windows that include bucketTime.
+    Long bucketKey = Long.valueOf(bucketTime);
+    List<GroupState> groupsAtTime = mGroupsByTime.get(bucketKey);
+    if (null == groupsAtTime) {
+      groupsAtTime = new ArrayList<GroupState>();
+      mGroupsByTime.put(bucketKey, groupsAtTime);
+    }
+    groupsAtTime.add(groupState);
+
+    return index;
+  }
+
+  /**
+   * {@inheritDoc}
+   * Writes the buckets of each group. The running window states are not
+   * written; they are rebuilt from the buckets when each group's next window
+   * is calculated.
+   */
+  @Override
+  public void saveState(DataOutput out) throws IOException {
+    out.writeLong(mHeadBucketTime);
+    out.writeLong(mTailBucketTime);
+    out.writeBoolean(mEventTimeWindows);
+    out.writeLong(mOutputWatermark);
+
+    // Each group is listed in mGroupsByTime under every bucket it holds.
+    Map<GroupState, Boolean> groups = new IdentityHashMap<GroupState, Boolean>();
+    for (List<GroupState> groupsAtTime : mGroupsByTime.values()) {
+      for (GroupState groupState : groupsAtTime) {
+        if (groupState.size() > 0) {
+          groups.put(groupState, Boolean.TRUE);
         }
       }
     }
 
-    public Bucket<T> next() {
-      if (!mIsReady) {
-        prepBucket();
+    out.writeInt(groups.size());
+    for (GroupState groupState : groups.keySet()) {
+      for (Object val : groupState.mKey) {
+        ValueCodec.write(val, out);
       }
+      for (Object val : groupState.mPropagateValues) {
+        ValueCodec.write(val, out);
+      }
+      Event header = groupState.mHeaderEvent;
+      out.writeLong(header.getTimestamp());
+      out.writeInt(header.getPriority().ordinal());
+      out.writeLong(header.getNanos());
+      ValueCodec.writeString(header.getHost(), out);
+      out.writeLong(groupState.mLastCloseTime);
+
+      out.writeInt(groupState.size());
+      for (int i = 0; i < groupState.size(); i++) {
+        out.writeLong(groupState.getTime(i));
+        Bucket<?>[] buckets = getBuckets(groupState, i);
+        for (int fn = 0; fn < mFnCalls.length; fn++) {
+          mFnCalls[fn].writeBucketState(buckets[fn], out);
+        }
+      }
+    }
+  }
 
-      assert mIsReady;
-      mIsReady = false;
-      if (mNextBucket != null) {
-        mYieldCount++;
+  /** {@inheritDoc} */
+  @Override
+  public void restoreState(DataInput in) throws IOException {
+    initBucketStore();
+    mHeadBucketTime = in.readLong();
+    mTailBucketTime = in.readLong();
+    mEventTimeWindows = in.readBoolean();
+    mOutputWatermark = in.readLong();
+
+    Event.Priority[] priorities = Event.Priority.values();
+    int numGroups = in.readInt();
+    for (int g = 0; g < numGroups; g++) {
+      Object[] key = new Object[mGroupByFields.length];
+      for (int i = 0; i < key.length; i++) {
+        key[i] = ValueCodec.read(in);
+      }
+      Object[] propagateValues = new Object[mPropagateFields.length];
+      for (int i = 0; i < propagateValues.length; i++) {
+        propagateValues[i] = ValueCodec.read(in);
+      }
+      long timestamp = in.readLong();
+      Event.Priority priority = priorities[in.readInt()];
+      long nanos = in.readLong();
+      String host = ValueCodec.readString(in);
+      Event headerEvent = new EventImpl(EMPTY_BODY, timestamp, priority, nanos, host);
+
+      int keyHash = GroupKeyMap.hash(key);
+      GroupState groupState = new GroupState(key, keyHash, propagateValues, headerEvent,
+          mFnCalls.length, createWindowStates());
+      groupState.mLastCloseTime = in.readLong();
+      mGroups.put(key, keyHash, groupState);
+
+      int numBuckets = in.readInt();
+      for (int i = 0; i < numBuckets; i++) {
+        int bucketIdx = initBuckets(groupState, in.readLong());
+        Bucket<?>[] buckets = getWritableBuckets(groupState, bucketIdx);
+        for (int fn = 0; fn < mFnCalls.length; fn++) {
+          mFnCalls[fn].readBucketState(buckets[fn], in);
+        }
       }
-      return mNextBucket;
     }
 
-    public boolean hasNext() {
-      if (!mIsReady) {
-        prepBucket();
+    mRestored = true;
+  }
+
+  /**
+   * Remove the buckets of a group with timestamps at or before loTime; they will
+   * not contribute to any subsequent windows.
+   */
+  private void evictBuckets(GroupState groupState, long loTime) throws IOException {
+    while (groupState.size() > 0 && groupState.getTime(0) <= loTime) {
+      if (groupState.getTime(0) <= groupState.mAddedThrough) {
+        removeFromWindow(groupState, 0);
       }
+      addStateBytes(-mBucketStore.sizeOf(groupState.getSlot(0)));
+      groupState.removeFirst();
+      mNumLiveBuckets--;
+    }
+    getStats().setStateSize(mNumLiveBuckets);
+  }
+
+  /**
+   * Calculate the aggregate values of a group over the window (loTime, closeTime],
+   * and emit them as an output record.
+   */
+  private void closeGroupWindow(GroupState groupState, long loTime, long closeTime,
+      FlowElementContext context) throws IOException, InterruptedException {
+    groupState.mLastCloseTime = closeTime;
+    evictBuckets(groupState, loTime);
+
+    if (mHasInvertible && closeTime > groupState.mAddedThrough) {
+      // Add the buckets which entered the window since it was last calculated.
+      int pos = groupState.size();
+      while (pos > 0 && groupState.getTime(pos - 1) > groupState.mAddedThrough) {
+        pos--;
+      }
+      for (; pos < groupState.size() && groupState.getTime(pos) <= closeTime; pos++) {
+        addToWindow(groupState, pos);
+      }
+      groupState.mAddedThrough = closeTime;
+    }
 
-      assert mIsReady;
-      return mNextBucket != null;
+    // All remaining buckets are newer than loTime; count those within the window.
+    int numBucketsInRange = 0;
+    while (numBucketsInRange < groupState.size()
+        && groupState.getTime(numBucketsInRange) <= closeTime) {
+      numBucketsInRange++;
     }
 
-    public void remove() {
-      throw new RuntimeException("Not implemented.");
+    // If there are no buckets for this group in our time range,
+    // we should not emit anything for this group. Just silently continue.
+    if (0 == numBucketsInRange || 0 == mFnCalls.length) {
+      return;
     }
 
-    int getYieldCount() {
-      return mYieldCount;
+    GenericData.Record record = new GenericData.Record(getOutputSchema());
+    for (int i = 0; i < mFnCalls.length; i++) {
+      Object result;
+      if (mInvertible[i]) {
+        result = mFnCalls[i].getWindowResult(groupState.mWindowStates[i]);
+      } else {
+        result = mFnCalls[i].finishWindow(new IterableIterator<Bucket<Object>>(
+            new BucketIterator<Object>(groupState, i, numBucketsInRange)));
+      }
+      record.put(mAggregateExprs.get(i).getAvroLabel(), result);
     }
+
+    // Copy the specified fields to propagate from the record used to define
+    // the group, into the output record.
+    for (int i = 0; i < mPropagateFields.length; i++) {
+      record.put(mPropagateFields[i].getAvroName(), groupState.mPropagateValues[i]);
+    }
+
+    // Emit this as an output event!
+    emitAvroRecord(record, groupState.mHeaderEvent, closeTime, context);
   }
 
   /**
@@ -401,83 +964,56 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
   private void closeWindow(long closeTime, FlowElementContext context)
       throws IOException, InterruptedException {
     long loTime = closeTime - mTimeSpan.getWidth();
-    Long closeBucketTimestamp = Long.valueOf(closeTime);
-
-    LOG.debug("Closing window for range: " + loTime + " -> " + closeTime);
-
-    // For each group, emit an output record containing the aggregate values over
-    // the whole time window.
-    for (Map.Entry<HashedEvent, List<Pair<Long, List<Bucket>>>> entry :
-        mBucketsByGroup.entrySet()) {
-      HashedEvent group = entry.getKey();
-
-      // In non-continuous (demand-only) mode, check whether there's a bucket associated
-      // with this window's closing time for this group.
-      if (!mContinuousOutput &&
-          mBucketMap.get(new Pair<Long, HashedEvent>(closeBucketTimestamp, group)) == null) {
-        continue; // Nothing to do.
-      }
-
-      GenericData.Record record = new GenericData.Record(getOutputSchema());
-      List<Pair<Long, List<Bucket>>> bucketsByTime = entry.getValue();
-
-      int numBucketsInRangeForGroup = 0;
-      // Execute each aggregation function over the applicable subset of buckets
-      // in bucketsByTime.
-      for (int i = 0; i < mAggregateExprs.size(); i++) {
-        BucketIterator aggIterator = new BucketIterator(i, loTime, closeTime, bucketsByTime);
-        AliasedExpr aliasExpr = mAggregateExprs.get(i);
-        FnCallExpr fnCall = (FnCallExpr) aliasExpr.getExpr();
-        Object result = fnCall.finishWindow(new IterableIterator(aggIterator));
-        numBucketsInRangeForGroup += aggIterator.getYieldCount();
-        record.put(aliasExpr.getAvroLabel(), result);
-      }
-
-      // If there are no buckets in bucketsByTime that are in our time range,
-      // we should not emit anything for this group. Just silently continue.
-      if (0 == numBucketsInRangeForGroup) {
-        // Discard this output; we didn't actually calculate anything.
-        continue;
-      }
-
-      // Copy the specified fields to propagate from the record used to define
-      // the group, into the output record.
-      EventWrapper groupWrapper = group.getEventWrapper();
-      for (TypedField propagateField : mPropagateFields) {
-        record.put(propagateField.getAvroName(), groupWrapper.getField(propagateField));
-      }
-
-      // Emit this as an output event!
-      emitAvroRecord(record, groupWrapper.getEvent(), closeTime, context);
-    }
-
-    // Remove any buckets that are too old to be useful to any subsequent windows.
-    // TODO(aaron): This is O(groups * num_buckets). We should actually use a TreeMap
-    // instad of a list internally, so we can quickly cull the herd. That would be
-    // O(groups * log(num_buckets)).
-    Iterator<Map.Entry<HashedEvent, List<Pair<Long, List<Bucket>>>>> bucketsByGrpIter =
-        mBucketsByGroup.entrySet().iterator();
-    while (bucketsByGrpIter.hasNext()) {
-      Map.Entry<HashedEvent, List<Pair<Long, List<Bucket>>>> entry = bucketsByGrpIter.next();
-      HashedEvent group = entry.getKey();
-      List<Pair<Long, List<Bucket>>> bucketsByTime = entry.getValue();
-      Iterator<Pair<Long, List<Bucket>>> bucketsByTimeIter = bucketsByTime.iterator();
-      while (bucketsByTimeIter.hasNext()) {
-        Pair<Long, List<Bucket>> timedBucket = bucketsByTimeIter.next();
-        Long timestamp = timedBucket.getLeft();
-        if (timestamp.longValue() < loTime) {
-          bucketsByTimeIter.remove(); // Remove from bucketsByTime list.
-          Pair<HashedEvent, Long> key = new Pair<HashedEvent, Long>(group, timestamp);
-          mBucketMap.remove(key); // Remove from mBucketMap.
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Closing window for range: " + loTime + " -> " + closeTime);
+    }
+
+    // For each group with a bucket in the window, emit an output record containing
+    // the aggregate values over the whole time window.
+    if (mContinuousOutput) {
+      for (List<GroupState> groupsAtTime
+          : mGroupsByTime.subMap(loTime, false, closeTime, true).values()) {
+        for (GroupState groupState : groupsAtTime) {
+          if (groupState.mLastCloseTime != closeTime) {
+            closeGroupWindow(groupState, loTime, closeTime, context);
+          }
+        }
+      }
+    } else {
+      // In non-continuous (demand-only) mode, only groups with a bucket associated
+      // with this window's closing time are emitted.
+      List<GroupState> groupsAtTime = mGroupsByTime.get(Long.valueOf(closeTime));
+      if (null != groupsAtTime) {
+        for (GroupState groupState : groupsAtTime) {
+          if (groupState.mLastCloseTime != closeTime) {
+            closeGroupWindow(groupState, loTime, closeTime, context);
+          }
         }
       }
+    }
+
+    evictGroups(loTime);
+  }
 
-      if (bucketsByTime.size() == 0) {
-        // We've removed the last time bucket for a given group from mBucketsByGroup.
-        // Remove the group from that map.
-        bucketsByGrpIter.remove();
+  /**
+   * Remove any buckets with timestamps at or before loTime; they are too old
+   * to be useful to any subsequent windows. Only the groups which created such
+   * buckets need to be visited.
+   */
+  private void evictGroups(long loTime) throws IOException {
+    NavigableMap<Long, List<GroupState>> expiredTimes = mGroupsByTime.headMap(loTime, true);
+    for (List<GroupState> groupsAtTime : expiredTimes.values()) {
+      for (GroupState groupState : groupsAtTime) {
+        evictBuckets(groupState, loTime);
+        if (groupState.size() == 0) {
+          // We've removed the last time bucket for this group; remove the group.
+          mGroups.remove(groupState.mKey, groupState.mKeyHash, groupState);
+        }
       }
     }
+    expiredTimes.clear();
+    releaseSpills(loTime);
   }
 
   /**
@@ -487,9 +1023,11 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
   private void closeUntil(long curBucketTime, long lastWindow, FlowElementContext context)
       throws IOException, InterruptedException {
 
-    LOG.debug("Close until: cur=" + curBucketTime + ", lastWindow=" + lastWindow
-        + ", mTailBucketTime=" + mTailBucketTime + ", mTimeMod=" + mTimeModulus
-        + ", mMaxPrior=" + mMaxPriorEmitInterval);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Close until: cur=" + curBucketTime + ", lastWindow=" + lastWindow
+          + ", mTailBucketTime=" + mTailBucketTime + ", mTimeMod=" + mTimeModulus
+          + ", mMaxPrior=" + mMaxPriorEmitInterval);
+    }
     if (lastWindow <= mTailBucketTime) {
       return; // We've already closed this window.
     }
@@ -499,64 +1037,184 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
     // mMaxPriorEmitInterval.
     for (long closeTime = Math.max(mTailBucketTime, curBucketTime - mMaxPriorEmitInterval);
         closeTime <= lastWindow; closeTime += mTimeModulus) {
-      LOG.debug("Close window: closeTime=" + closeTime);
       closeWindow(closeTime, context);
     }
 
     mTailBucketTime = lastWindow + mTimeModulus;
   }
 
+  /**
+   * Close every window up to and including the window that ends with the
+   * bucket for time 'lastWindow'. Unlike closeUntil(), no windows are skipped
+   * however far behind they are, but windows which hold no buckets are
+   * passed over without visiting each bucket interval.
+   */
+  private void closeWindowsThrough(long lastWindow, FlowElementContext context)
+      throws IOException, InterruptedException {
+    if (lastWindow < mTailBucketTime) {
+      return; // We've already closed this window.
+    }
+
+    long closeTime = mTailBucketTime;
+    while (closeTime <= lastWindow) {
+      // Find the next window which contains a bucket. In continuous mode, this
+      // is any window holding a bucket; otherwise, output is only emitted for
+      // windows that end with a bucket.
+      Long nextBucket = mGroupsByTime.ceilingKey(mContinuousOutput
+          ? closeTime - mTimeSpan.getWidth() + 1 : closeTime);
+      if (null == nextBucket) {
+        break;
+      }
+
+      closeTime = Math.max(closeTime, nextBucket.longValue());
+      if (closeTime > lastWindow) {
+        break;
+      }
+
+      closeWindow(closeTime, context);
+      closeTime += mTimeModulus;
+    }
+
+    evictGroups(lastWindow - mTimeSpan.getWidth());
+    mTailBucketTime = lastWindow + mTimeModulus;
+  }
+
+  /**
+   * {@inheritDoc}
+   * Closes each window once the watermark passes the end of its last bucket,
+   * and forwards a watermark no later than the next window to be closed.
+   */
+  @Override
+  protected void advanceWatermark(long watermark) throws IOException, InterruptedException {
+    if (Watermark.END_OF_STREAM == watermark) {
+      // No more events will arrive; close all the windows that close() would.
+      if (mEventTimeWindows) {
+        closeWindowsThrough(mHeadBucketTime, getContext());
+      } else {
+        closeUntil(mHeadBucketTime, mHeadBucketTime, getContext());
+      }
+    } else {
+      if (!mEventTimeWindows) {
+        LOG.debug("Upstream elements provide watermarks; closing windows in event time");
+        mEventTimeWindows = true;
+      }
+
+      if (Long.MIN_VALUE != watermark) {
+        // The window ending with bucket t is complete at time t + mTimeModulus.
+        long lastWindow = watermark - mTimeModulus;
+        lastWindow -= lastWindow % mTimeModulus;
+        closeWindowsThrough(lastWindow, getContext());
+      }
+    }
+
+    // Windows emitted from now on close at or after mTailBucketTime.
+    long outputWatermark = Watermark.END_OF_STREAM == watermark
+        ? watermark : Math.min(watermark, mTailBucketTime);
+    if (outputWatermark > mOutputWatermark || Long.MIN_VALUE == outputWatermark) {
+      mOutputWatermark = outputWatermark;
+      super.advanceWatermark(outputWatermark);
+    }
+  }
+
   @Override
   public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
-    Pair<Long, HashedEvent> bucketKey = getEventKey(e);
+    // If we're on an interval boundary (e.g., t=100) we go into that bucket.
+    // If we're off-boundary (e.g., t=103), we go into the closest "previous" bucket (t=100).
+    long eventTime = e.getEvent().getTimestamp();
+    long curBucketTime = eventTime - eventTime % mTimeModulus;
 
-    long curBucketTime = bucketKey.getLeft();
-    LOG.debug("Handling event time=" + curBucketTime);
-    if (curBucketTime > mHeadBucketTime) {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Handling event time=" + curBucketTime);
+    }
+    if (mEventTimeWindows) {
+      if (curBucketTime <= mTailBucketTime - mTimeSpan.getWidth()) {
+        // The watermark has already passed the last window holding this
+        // event's bucket; every window it belongs to is closed. An event
+        // behind the watermark, but whose bucket is still inside later open
+        // windows, is added to those windows below.
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Dropping event behind the watermark; mTailBucketTime="
+              + mTailBucketTime + " and event is for bucket " + curBucketTime);
+        }
+        mLateEvents.increment();
+        return;
+      }
+      mHeadBucketTime = Math.max(mHeadBucketTime, curBucketTime);
+    } else if (curBucketTime > mHeadBucketTime) {
       // We've just received an event that is newer than any others we've yet
       // received. This advances the sliding window to match this event's timestamp.
       // Emit any output groups that are older than this one by at least the
       // slack time interval.
-      LOG.debug("New bucket: cur=" + curBucketTime + "; mHeadBucketTime=" + mHeadBucketTime);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("New bucket: cur=" + curBucketTime + "; mHeadBucketTime=" + mHeadBucketTime);
+      }
       closeUntil(curBucketTime, curBucketTime - mSlackTime - mTimeModulus, getContext());
       // Since we've already handled these, remove their wake-up calls..
-      mEvictionThread.discardUntil(mHeadBucketTime - mSlackTime);
+      mDiscardWakeupsBefore = mHeadBucketTime - mSlackTime;
       mHeadBucketTime = curBucketTime; // This insert advances our head bucket.
     } else if (curBucketTime < mHeadBucketTime - mMaxPriorEmitInterval) {
       // This event is too old -- ignore it.
       // TODO: Should this be mHeadBucketTiem - mSlackTime?
-      LOG.debug("Dropping late event arriving at aggregator; HeadBucketTime=" + mHeadBucketTime
-          + " and event is for bucket " + curBucketTime);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Dropping late event arriving at aggregator; HeadBucketTime="
+            + mHeadBucketTime + " and event is for bucket " + curBucketTime);
+      }
+      mLateEvents.increment();
       return;
     }
 
-    // Get the bucket for the (timestamp, group-by-fields) of this event.
-    // Actually returns a list of Bucket objects, one per AggregateFunc to
-    // execute.
-    List<Bucket> buckets = mBucketMap.get(bucketKey);
-    if (null == buckets) {
+    // Get the state for the group-by fields of this event. If we are not
+    // grouping by any fields, all events share one group. The key is only
+    // copied out of the scratch array when it starts a new group.
+    Object[] key = mKeyScratch;
+    for (int i = 0; i < mGroupByFields.length; i++) {
+      key[i] = e.getField(mGroupByFields[i]);
+    }
+    int keyHash = GroupKeyMap.hash(key);
+    GroupState groupState = mGroups.get(key, keyHash);
+    if (null == groupState) {
+      Object[] groupKey = key.clone();
+      groupState = initGroup(e, groupKey, keyHash);
+      mGroups.put(groupKey, keyHash, groupState);
+    }
+
+    // Get the buckets for the timestamp of this event; one Bucket object per
+    // AggregateFunc to execute.
+    int bucketIdx = groupState.find(curBucketTime);
+    if (-1 == bucketIdx) {
       // We're putting the first event into a new bucket.
-      buckets = initBuckets(bucketKey);
+      bucketIdx = initBuckets(groupState, curBucketTime);
+      if (!mSpillDisabled && mBudget.isExceeded()) {
+        spill();
+      }
+    }
+
+    // A late event may land in a bucket already added to the running window
+    // state; take the bucket's old contents out, and put the new contents back.
+    boolean inWindowState = mHasInvertible && curBucketTime <= groupState.mAddedThrough;
+    if (inWindowState) {
+      removeFromWindow(groupState, bucketIdx);
     }
 
     // For each aggregation function we're performing, insert this event into
     // the bucket for the aggregate function.
-    assert buckets.size() == mAggregateExprs.size();
-    for (int i = 0; i < mAggregateExprs.size(); i++ ) {
-      AliasedExpr aliasExpr = mAggregateExprs.get(i);
-      Expr expr = aliasExpr.getExpr();
-      assert expr instanceof FnCallExpr;
-      FnCallExpr fnCall = (FnCallExpr) expr;
-      Bucket bucket = buckets.get(i);
-      fnCall.insertAggregate(e, bucket);
+    Bucket<?>[] buckets = getWritableBuckets(groupState, bucketIdx);
+    for (int i = 0; i < mFnCalls.length; i++) {
+      mFnCalls[i].insertAggregate(e, buckets[i]);
+    }
+
+    if (inWindowState) {
+      addToWindow(groupState, bucketIdx);
     }
 
-    // Insert a callback into a queue to allow time to expire these windows.
-    enqueueWakeup(curBucketTime);
+    if (!mEventTimeWindows) {
+      // Insert a callback into a queue to allow time to expire these windows.
+      enqueueWakeup(curBucketTime);
+    }
   }
 
   /**
-   * Enqueue a wakeup in the EvictionThread that closes the bucket with the
+   * Schedule a wakeup in the timer wheel that closes the bucket with the
    * specified bucket timestamp.
    */
   private void enqueueWakeup(long bucketTime) {
@@ -565,176 +1223,37 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
       return;
     }
 
-    long curTime = System.currentTimeMillis();
     long offset = mTimeModulus + mSlackTime;
-    long closeTime = curTime + offset; // local time to close the bucket.
-    LOG.debug("Insert wakeup call: " + bucketTime + " at time offset=" + offset);
-    mEvictionThread.insert(new Pair<Long, Long>(closeTime, bucketTime));
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Insert wakeup call: " + bucketTime + " at time offset=" + offset);
+    }
+    mTimerWheel.schedule(offset, new WakeupTask(bucketTime));
     mLastEnqueuedWakeup = bucketTime;
   }
 
   /**
-   * Thread that sends notices to our coprocessor FlowElement when it is time to
-   * close old windows based on elapsed local time.
+   * Task run by the timer wheel when it is time to close old windows based
+   * on elapsed local time; sends a notice to our coprocessor FlowElement.
    */
-  private class EvictionThread extends Thread {
-    private final Logger LOG = LoggerFactory.getLogger(
-        EvictionThread.class.getName());
-
-    /**
-     * Set to true when it's time for the thread to go home. The thread
-     * actually exits after this flag is set to true and the incoming queue
-     * is empty.
-     */
-    private boolean mIsFinished;
-
-    /**
-     * Priority queue (heap) of times when we should insert expiry-times in
-     * the coprocessor FlowElement's input queue.
-     *
-     * <p>The queue holds tuples of two long values. The first is a local
-     * time when this thread should wake up; this is what the queue is
-     * ordered on. The latter is the window time that should be expired.</p>
-     */
-    private PriorityBlockingQueue<Pair<Long, Long>> mQueue;
-
-    // Maximum queue length == number of open windows + the newly-opening window
-    //     + the currently-closing window.
-    final long mMaxQueueLen = 2 + (mSlackTime / mTimeModulus);
-
-    public EvictionThread() {
-      super("AggregatorEvictionThread");
-
-      mQueue = new PriorityBlockingQueue<Pair<Long, Long>>((int) mMaxQueueLen,
-          new PairLeftRightComparator<Long, Long>());
-    }
-
-    /**
-     * Add a wake-up call to the queue.
-     */
-    public void insert(Pair<Long, Long> wakeUpCall) {
-      synchronized (this) {
-        assert mQueue.size() < mMaxQueueLen; // This operation should never block.
-        mQueue.put(wakeUpCall);
-        this.notify();
-      }
-
-      // Interrupt any wait that's going on, in case we are asleep and should
-      // actually immediately service this wake-up call.
-      this.interrupt();
-    }
-
-    /**
-     * Discard all wakeup calls up to time 'minTime'.
-     * minTime is a 'bucket time', not a 'local time'.
-     */
-    public void discardUntil(long minTime) {
-      synchronized (this) {
-        LOG.debug("discardUntil: " + minTime);
-        Iterator<Pair<Long, Long>> iterator = mQueue.iterator();
-        while (iterator.hasNext()) {
-          Pair<Long, Long> wakeUpCall = iterator.next();
-          if (wakeUpCall.getRight() < minTime) {
-            LOG.debug("discard@ " + wakeUpCall); 
-            iterator.remove();
-          }
-        }
+  private class WakeupTask implements TimerWheel.Task {
+    /** The bucket time whose window should be closed. */
+    private final long mBucketTime;
 
-        this.notify();
-      }
+    public WakeupTask(long bucketTime) {
+      mBucketTime = bucketTime;
     }
 
-    /**
-     * Set the finished flag to true; try to get the thread to stop as
-     * quickly as possible.
-     */
-    public void finish() {
-      synchronized (this) {
-        this.mIsFinished = true;
-        this.notify();
+    public boolean expire() {
+      if (mWakeupsCancelled || mEventTimeWindows || mBucketTime < mDiscardWakeupsBefore) {
+        // The window was already closed by the arrival of newer events, or
+        // will be closed by a watermark.
+        return true;
       }
-      this.interrupt(); // Interrupt any current sleep.
-    }
-
-    /**
-     * Main loop of the thread.
-     * Continually sleeps until the next timer event is ready to occur.
-     */
-    public void run() {
-      while (true) {
-        Pair<Long, Long> wakeUpCall = null;
-        long curTime;
-        long nextWakeUp;
-
-        synchronized (this) {
-          while (mQueue.size() == 0) {
-            try {
-              if (this.mIsFinished) {
-                // Parent is finished and we have drained our input queue. Go home.
-                return;
-              }
-              this.wait();
-            } catch (InterruptedException ie) {
-              // Interrupted while waiting for another wake-up call to enter our queue.
-              // Try again, if we're not already finished.
-              continue;
-            }
-          }
-
-          assert mQueue.size() > 0;
-          wakeUpCall = mQueue.peek();
-        }
 
-        if (null == wakeUpCall) {
-          continue;
-        }
-
-        curTime = System.currentTimeMillis();
-        nextWakeUp = wakeUpCall.getLeft();
-        if (nextWakeUp <= curTime) {
-          // TODO(aaron): This section probably bears further deadlock analysis.
-          // The put() into the timer queue can block (it has fixed length
-          // LocalEnvironment.MAX_QUEUE_LEN) until the timer FE services its
-          // existing list.
-          // If we are interrupted doing this, it is because the main thread
-          // has just inserted another wakeup call while we were blocking.
-          // This thread's input queue must not block when being filled from
-          // the main aggregation FE. I believe mMaxQueueLen should be sufficient
-          // to guarantee this is the case, because before we call enqueueWakeup(),
-          // we will have had to call closeUntil() in BucketedAggElem.takeEvent()
-          // on enough windows to free up the slots in this queue.
-          try {
-            LOG.debug("Timer evicting at " + curTime + ": " + wakeUpCall);
-            // Service this by injecting the getRight() into our outbound queue.
-            mTimerQueue.put(new TimeoutEventWrapper(wakeUpCall.getRight()));
-          } catch (InterruptedException ie) {
-            // Not a problem. If we were interrupted doing the put into mTimerQueue,
-            // then we'll service this again on the next go-around of the loop.
-            // Just make sure we don't mark this as 'complete.'
-            continue;
-          }
-
-          synchronized (this) {
-            // Now actually remove this from the input queue.
-            if (mQueue.peek() == wakeUpCall) {
-              // O(1) fast path; no intervening push.
-              mQueue.remove();
-            } else {
-              // intervening push of an earlier wakeup (?). Slow path.
-              mQueue.remove(wakeUpCall);
-            }
-          }
-        } else {
-          // If we're down here, we need to sleep until it is the next wake-up time.
-          long napTime = nextWakeUp - curTime;
-          try {
-            Thread.sleep(napTime);
-          } catch (InterruptedException ie) {
-            // We were awoken early... this is expected (there may have been a
-            // new enqueue, etc).
-          }
-        }
-      }
+      // Service this by injecting the bucket time into the timer element's
+      // ring buffer. offer() never blocks the timer thread; if the ring is
+      // full, the timer wheel retries on its next tick.
+      return mTimerQueue.offer(new TimeoutEventWrapper(mBucketTime));
     }
   }
 
@@ -754,7 +1273,7 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
   }
 
   /**
-   * Separate FlowElement that handles notifications from the EvictionThread; this
+   * Separate FlowElement that handles notifications from the timer wheel; this
    * operates in the main thread, closing windows that cannot receive new events
    * because they are past the slack time interval.
    */
@@ -768,8 +1287,13 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
 
     public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
       assert e instanceof TimeoutEventWrapper;
+      if (mEventTimeWindows) {
+        return; // Scheduled before watermarks arrived; they now close the windows.
+      }
       Long expireTime = (Long) e.getField(null); // TimeoutEventWrapper returns a single Long val
-      LOG.debug("Handling in eviction element - timeout to: " + expireTime);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Handling in eviction element - timeout to: " + expireTime);
+      }
       closeUntil(expireTime, expireTime, getContext());
     }
   }
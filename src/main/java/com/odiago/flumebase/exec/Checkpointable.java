@@ -0,0 +1,41 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A FlowElement whose state can be saved in a checkpoint of its flow, and
+ * restored when the flow is restarted from that checkpoint.
+ */
+public interface Checkpointable {
+
+  /**
+   * Write the state of this element to 'out'. Called by the thread which
+   * executes the element, between the events it processes.
+   */
+  void saveState(DataOutput out) throws IOException;
+
+  /**
+   * Restore the state written by saveState(). Called before the element is
+   * opened.
+   */
+  void restoreState(DataInput in) throws IOException;
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import com.odiago.flumebase.lang.Type;
+
+/**
+ * An expression compiled by the ExprCompiler into a tree of evaluators that
+ * are specialized for their operand types. All type dispatch and coercion is
+ * resolved when the expression is compiled, and numeric and boolean values
+ * are passed between evaluators as primitives.
+ *
+ * <p>A compiled expression is evaluated against a TypedRow whose layout its
+ * identifiers were bound to by BindSlotsVisitor. The primitive eval methods
+ * report a null result through TypedRow.wasNull(); their return value is
+ * undefined in that case.</p>
+ */
+public abstract class CompiledExpr {
+
+  /** The type of the value this expression returns. */
+  private final Type mType;
+
+  protected CompiledExpr(Type type) {
+    mType = type;
+  }
+
+  public Type getType() {
+    return mType;
+  }
+
+  /** @return how the value of this expression is represented. */
+  public RowLayout.Storage getStorage() {
+    return RowLayout.storageFor(mType);
+  }
+
+  /**
+   * @return the value of this expression as the same object Expr.eval()
+   * would return, or null.
+   */
+  public abstract Object evalObject(TypedRow row) throws IOException;
+
+  /**
+   * @return the value of a BOOLEAN, INT or BIGINT expression. Booleans are
+   * returned as 0 or 1.
+   */
+  public long evalLong(TypedRow row) throws IOException {
+    Object val = evalObject(row);
+    row.setWasNull(null == val);
+    if (null == val) {
+      return 0;
+    } else if (val instanceof Boolean) {
+      return ((Boolean) val).booleanValue() ? 1 : 0;
+    } else {
+      return ((Number) val).longValue();
+    }
+  }
+
+  /** @return the value of a numeric expression. */
+  public double evalDouble(TypedRow row) throws IOException {
+    Object val = evalObject(row);
+    row.setWasNull(null == val);
+    if (null == val) {
+      return 0.0;
+    } else {
+      return ((Number) val).doubleValue();
+    }
+  }
+
+  /** @return the value of a BOOLEAN expression. */
+  public boolean evalBoolean(TypedRow row) throws IOException {
+    return evalLong(row) != 0;
+  }
+
+  /** @return true if this expression evaluates to null. */
+  public boolean evalIsNull(TypedRow row) throws IOException {
+    return null == evalObject(row);
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.math.BigDecimal;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.Schema;
+
+import org.apache.avro.generic.GenericRecord;
+
+import com.odiago.flumebase.exec.builtins.bin2str;
+
+import com.odiago.flumebase.lang.Timestamp;
+import com.odiago.flumebase.lang.TimestampBase;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.util.StringUtils;
+
+/**
+ * Encoding of the output rows of a flow that are sent to client consoles.
+ *
+ * <p>Each row is an Avro record whose first field holds the event timestamp,
+ * followed by one field per output column. Fields are named positionally
+ * (c0, c1, ...) since display names need not be valid Avro identifiers; the
+ * console prints a header with the display names when it subscribes.</p>
+ */
+public final class ConsoleRows {
+
+  /** Name of the field holding the timestamp of each row. */
+  public static final String TIMESTAMP_FIELD = "timestamp";
+
+  /** Name of the Avro record type for console rows. */
+  private static final String RECORD_NAME = "ConsoleRow";
+
+  private static final bin2str BIN2STR_FN = new bin2str(); // Used for stringifying ByteBuffers.
+
+  private ConsoleRows() {
+  }
+
+  /** @return the name of the record field holding the i'th output column. */
+  public static String getFieldName(int i) {
+    return "c" + i;
+  }
+
+  /**
+   * @return the schema of the console rows carrying the specified output fields.
+   * Every column is nullable, so that a row never fails to encode due to a null
+   * value in a field that was typed NOT NULL.
+   */
+  public static Schema createSchema(List<TypedField> fields) {
+    List<Schema.Field> avroFields = new ArrayList<Schema.Field>();
+    avroFields.add(new Schema.Field(TIMESTAMP_FIELD, Schema.create(Schema.Type.LONG),
+        null, null));
+    for (int i = 0; i < fields.size(); i++) {
+      Schema fieldSchema = fields.get(i).getType().getAvroSchema();
+      if (!fieldSchema.getType().equals(Schema.Type.UNION)
+          && !fieldSchema.getType().equals(Schema.Type.NULL)) {
+        List<Schema> unionTypes = new ArrayList<Schema>();
+        unionTypes.add(fieldSchema);
+        unionTypes.add(Schema.create(Schema.Type.NULL));
+        fieldSchema = Schema.createUnion(unionTypes);
+      }
+      avroFields.add(new Schema.Field(getFieldName(i), fieldSchema, null, null));
+    }
+
+    Schema schema = Schema.createRecord(RECORD_NAME, null, null, false);
+    schema.setFields(avroFields);
+    return schema;
+  }
+
+  /**
+   * @return the representation of the internal value 'val' within a console
+   * row record.
+   */
+  public static Object toAvro(Object val) {
+    if (val instanceof BigDecimal) {
+      // PRECISE values are carried as strings.
+      return val.toString();
+    }
+    return val;
+  }
+
+  /**
+   * Format a console row record as a tab-delimited line of text.
+   */
+  public static String formatRecord(GenericRecord record) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(record.get(0));
+    int numFields = record.getSchema().getFields().size();
+    for (int i = 1; i < numFields; i++) {
+      sb.append('\t');
+      formatValue(sb, record.get(i));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Append a human-readable representation of a field value to sb.
+   */
+  public static void formatValue(StringBuilder sb, Object fieldVal) {
+    // If we get any GenericRecord types, convert them to our own specific types
+    // if we can figure out which to use. This makes toString'ing prettier.
+    if (fieldVal instanceof GenericRecord) {
+      GenericRecord record = (GenericRecord) fieldVal;
+      if (record.getSchema().equals(TimestampBase.SCHEMA$)) {
+        fieldVal = new Timestamp((Long) record.get("milliseconds"),
+            (Long) record.get("nanos"));
+      }
+    }
+
+    if (null == fieldVal) {
+      sb.append("null");
+    } else if (fieldVal instanceof ByteBuffer) {
+      sb.append("B[");
+      sb.append(BIN2STR_FN.eval(null, fieldVal));
+      sb.append("]");
+    } else if (fieldVal instanceof List<?>) {
+      sb.append("[");
+      StringUtils.formatList(sb, (List<?>) fieldVal);
+      sb.append("]");
+    } else {
+      sb.append(fieldVal);
+    }
+  }
+}
@@ -75,6 +75,12 @@ public class DummyExecEnv extends ExecEnvironment {
     return new HashMap<FlowId, FlowInfo>();
   }
 
+  @Override
+  public Map<FlowId, FlowMetrics> getFlowMetrics() {
+    LOG.error("Not connected");
+    return new HashMap<FlowId, FlowMetrics>();
+  }
+
   @Override
   public void joinFlow(FlowId id) {
     LOG.error("Not connected");
@@ -0,0 +1,209 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+/**
+ * Running statistics about the events processed by one FlowElement: how many
+ * it receives and emits, how long it spends processing them, and how many
+ * wait in its input queue. Windowed elements also report the size of the
+ * state they retain.
+ *
+ * <p>The statistics are updated only by the thread executing the element,
+ * in plain fields. Every PUBLISH_INTERVAL updates, and whenever that thread
+ * calls publish() (e.g., when the element has drained its input queue, or
+ * is closed), they are copied into an immutable snapshot which other
+ * threads read. Readers therefore see consistent, but slightly stale,
+ * values.</p>
+ *
+ * <p>Processing time is measured on one in every SAMPLE_INTERVAL deliveries
+ * to the element, and scaled to the number of events received.</p>
+ */
+public class ElementStats {
+
+  /** The statistics are published to readers after this many updates. */
+  static final int PUBLISH_INTERVAL = 64;
+
+  /** One in this many deliveries to an element has its processing time measured. */
+  static final int SAMPLE_INTERVAL = 64;
+
+  /** The statistics as of the latest publish(). */
+  private static class Snapshot {
+    private final long mEventsIn;
+    private final long mEventsOut;
+    private final long mDeliveries;
+    private final long mSampledEvents;
+    private final long mSampledNanos;
+    private final int mQueueDepth;
+    private final int mMaxQueueDepth;
+    private final long mStateSize;
+
+    private Snapshot(ElementStats stats) {
+      mEventsIn = stats.mEventsIn;
+      mEventsOut = stats.mEventsOut;
+      mDeliveries = stats.mDeliveries;
+      mSampledEvents = stats.mSampledEvents;
+      mSampledNanos = stats.mSampledNanos;
+      mQueueDepth = stats.mQueueDepth;
+      mMaxQueueDepth = stats.mMaxQueueDepth;
+      mStateSize = stats.mStateSize;
+    }
+  }
+
+  /** Number of events delivered to the element. */
+  private long mEventsIn;
+
+  /** Number of events emitted by the element. */
+  private long mEventsOut;
+
+  /** Number of deliveries (single events or batches) to the element. */
+  private long mDeliveries;
+
+  /** Number of events in the deliveries whose processing was timed. */
+  private long mSampledEvents;
+
+  /**
+   * Time (ns) spent processing the timed deliveries, excluding the time spent
+   * in downstream elements to which the element emitted events directly.
+   */
+  private long mSampledNanos;
+
+  /** The length of the element's input queue at the latest delivery from it. */
+  private int mQueueDepth;
+
+  /** The greatest length of the element's input queue seen at a delivery. */
+  private int mMaxQueueDepth;
+
+  /** Number of entries (events, or buckets of aggregates) held in window state. */
+  private long mStateSize;
+
+  /** Updates made since the latest publish(). */
+  private int mUnpublished;
+
+  private volatile Snapshot mPublished = new Snapshot(this);
+
+  /** Record the delivery of one or more events. */
+  public void recordInput(int numEvents) {
+    mEventsIn += numEvents;
+    mDeliveries++;
+    updated();
+  }
+
+  /** Record that a delivery of numEvents events took 'nanos' ns to process. */
+  public void recordProcessingTime(int numEvents, long nanos) {
+    mSampledEvents += numEvents;
+    mSampledNanos += nanos;
+  }
+
+  /** Record the emission of one or more events. */
+  public void recordOutput(int numEvents) {
+    mEventsOut += numEvents;
+    updated();
+  }
+
+  /**
+   * Record the number of items waiting in the element's input queue when
+   * an item is taken from it.
+   */
+  public void recordQueueDepth(int depth) {
+    mQueueDepth = depth;
+    if (depth > mMaxQueueDepth) {
+      mMaxQueueDepth = depth;
+    }
+  }
+
+  /** Record the number of entries the element holds in its window state. */
+  public void setStateSize(long stateSize) {
+    mStateSize = stateSize;
+  }
+
+  private void updated() {
+    if (++mUnpublished >= PUBLISH_INTERVAL) {
+      publish();
+    }
+  }
+
+  /**
+   * Make the statistics recorded so far visible to other threads. Called by
+   * the thread executing the element.
+   */
+  public void publish() {
+    mUnpublished = 0;
+    mPublished = new Snapshot(this);
+  }
+
+  public long getEventsIn() {
+    return mPublished.mEventsIn;
+  }
+
+  public long getEventsOut() {
+    return mPublished.mEventsOut;
+  }
+
+  public long getDeliveries() {
+    return mPublished.mDeliveries;
+  }
+
+  /** @return the estimated time (ns) spent processing all the events received. */
+  public long getProcessingNanos() {
+    return (long) (getNanosPerEvent() * mPublished.mEventsIn);
+  }
+
+  public int getQueueDepth() {
+    return mPublished.mQueueDepth;
+  }
+
+  public int getMaxQueueDepth() {
+    return mPublished.mMaxQueueDepth;
+  }
+
+  public long getStateSize() {
+    return mPublished.mStateSize;
+  }
+
+  /**
+   * @return the ratio of events emitted to events received, or 1.0 if no
+   * events have been received. Elements that generate events, such as
+   * sources, have no selectivity to speak of.
+   */
+  public double getSelectivity() {
+    Snapshot snapshot = mPublished;
+    if (0 == snapshot.mEventsIn) {
+      return 1.0;
+    }
+    return (double) snapshot.mEventsOut / snapshot.mEventsIn;
+  }
+
+  /** @return the average time (ns) spent processing each event in a timed delivery. */
+  public double getNanosPerEvent() {
+    Snapshot snapshot = mPublished;
+    if (0 == snapshot.mSampledEvents) {
+      return 0.0;
+    }
+    return (double) snapshot.mSampledNanos / snapshot.mSampledEvents;
+  }
+
+  @Override
+  public String toString() {
+    Snapshot snapshot = mPublished;
+    return "in=" + snapshot.mEventsIn + ", out=" + snapshot.mEventsOut
+        + ", selectivity=" + String.format("%.3f", getSelectivity())
+        + ", ns/event=" + String.format("%.1f", getNanosPerEvent())
+        + ", queue=" + snapshot.mQueueDepth + " (max " + snapshot.mMaxQueueDepth + ")"
+        + ", state=" + snapshot.mStateSize;
+  }
+}
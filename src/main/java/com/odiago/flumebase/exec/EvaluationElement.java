@@ -21,12 +21,15 @@ import java.io.IOException;
 
 import java.math.BigDecimal;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.avro.Schema;
 
 import org.apache.avro.generic.GenericData;
 
+import com.odiago.flumebase.lang.BindSlotsVisitor;
+
 import com.odiago.flumebase.parser.AliasedExpr;
 import com.odiago.flumebase.parser.Expr;
 import com.odiago.flumebase.parser.TypedField;
@@ -42,31 +45,54 @@ public class EvaluationElement extends AvroOutputElementImpl {
   /** Additional fields to propagate forward. */
   private List<TypedField> mPropagateFields;
 
+  /** mExprs, compiled to evaluate against mRow. */
+  private CompiledExpr[] mCompiledExprs;
+
+  /** Row holding the fields of the current event that mExprs reference. */
+  private TypedRow mRow;
+
   public EvaluationElement(FlowElementContext ctxt, List<AliasedExpr> exprs,
       List<TypedField> propagateFields, Schema outputSchema) {
     super(ctxt, outputSchema);
     mExprs = exprs;
     mPropagateFields = propagateFields;
+
+    List<Expr> rawExprs = new ArrayList<Expr>(exprs.size());
+    for (AliasedExpr aliasedExpr : exprs) {
+      rawExprs.add(aliasedExpr.getExpr());
+    }
+    mRow = new TypedRow(BindSlotsVisitor.bind(rawExprs));
+
+    mCompiledExprs = new CompiledExpr[rawExprs.size()];
+    for (int i = 0; i < mCompiledExprs.length; i++) {
+      mCompiledExprs[i] = ExprCompiler.compile(rawExprs.get(i));
+    }
   }
 
   @Override
   public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
     GenericData.Record record = new GenericData.Record(getOutputSchema());
 
-    // Evaluate all our input expressions, left-to-right, and emit
-    // their results into the output record.
-    for (AliasedExpr aliasedExpr : mExprs) {
-      Expr expr = aliasedExpr.getExpr();
-      Object result = nativeToAvro(expr.eval(e), expr.getResolvedType());
-      String fieldName = aliasedExpr.getAvroLabel();
-      record.put(fieldName, result);
-    }
+    mRow.wrap(e);
+    try {
+      // Evaluate all our input expressions, left-to-right, and emit
+      // their results into the output record.
+      for (int i = 0; i < mCompiledExprs.length; i++) {
+        AliasedExpr aliasedExpr = mExprs.get(i);
+        Object result = nativeToAvro(mCompiledExprs[i].evalObject(mRow),
+            aliasedExpr.getExpr().getResolvedType());
+        String fieldName = aliasedExpr.getAvroLabel();
+        record.put(fieldName, result);
+      }
 
-    // Now add to our output record, any fields that we can pull in directly from
-    // the propagation layer.
-    for (TypedField field : mPropagateFields) {
-      String fieldName = field.getAvroName();
-      record.put(fieldName, e.getField(field));
+      // Now add to our output record, any fields that we can pull in directly from
+      // the propagation layer.
+      for (TypedField field : mPropagateFields) {
+        String fieldName = field.getAvroName();
+        record.put(fieldName, mRow.getField(field));
+      }
+    } finally {
+      mRow.wrap(null);
     }
 
     emitAvroRecord(record, e.getEvent());
@@ -0,0 +1,80 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.exec;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An ordered group of events moved between FlowElements in a single handoff.
+ * A batch is owned by one thread at a time; once it has been emitted, the
+ * producer must not modify it further.
+ */
+public class EventBatch implements Iterable<EventWrapper> {
+  private final List<EventWrapper> mEvents;
+
+  /**
+   * Local time (from System.nanoTime()) at which the oldest event of the
+   * batch entered the flow, or 0 if it is not known.
+   */
+  private long mIngestNanos;
+
+  public EventBatch(int capacity) {
+    mEvents = new ArrayList<EventWrapper>(capacity);
+  }
+
+  public void add(EventWrapper e) {
+    mEvents.add(e);
+  }
+
+  public EventWrapper get(int i) {
+    return mEvents.get(i);
+  }
+
+  public int size() {
+    return mEvents.size();
+  }
+
+  public boolean isEmpty() {
+    return mEvents.isEmpty();
+  }
+
+  /**
+   * @return the local time (from System.nanoTime()) at which the oldest
+   * event of the batch entered the flow, or 0 if it is not known.
+   */
+  public long getIngestNanos() {
+    return mIngestNanos;
+  }
+
+  public void setIngestNanos(long ingestNanos) {
+    mIngestNanos = ingestNanos;
+  }
+
+  @Override
+  public Iterator<EventWrapper> iterator() {
+    return mEvents.iterator();
+  }
+
+  @Override
+  public String toString() {
+    return "EventBatch[size=" + mEvents.size() + "]";
+  }
+}
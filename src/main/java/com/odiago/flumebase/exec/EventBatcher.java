@@ -0,0 +1,292 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Accumulates the events generated by a source FlowElement into EventBatch
+ * instances, and emits each batch to a FlowElementContext when it reaches the
+ * context's maximum batch size, or when its oldest event has waited longer
+ * than the context's linger time.
+ *
+ * <p>The linger time is only checked as events are added. Sources whose input
+ * may pause indefinitely should call startLingerThread() so that a partial
+ * batch is still delivered on time.</p>
+ *
+ * <p>The batcher stamps each batch (or unbatched event) with the local time
+ * at which its oldest event was added; latency through the flow is measured
+ * from this ingest time.</p>
+ *
+ * <p>Sources whose event timestamps are meaningful may call enableWatermarks().
+ * The batcher then follows each batch with a watermark trailing the greatest
+ * timestamp seen so far by the context's maximum event lateness.</p>
+ */
+public class EventBatcher {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      EventBatcher.class.getName());
+
+  /** Time (ms) to wait for the linger thread to finish an emit in progress. */
+  private static final long LINGER_JOIN_TIMEOUT = 1000;
+
+  /** Minimum time (ms) between the watermarks emitted while the input is idle. */
+  private static final long IDLE_WATERMARK_INTERVAL = 100;
+
+  private final FlowElementContext mContext;
+
+  /** Max number of events per batch. If 1, events are emitted individually. */
+  private final int mMaxBatchSize;
+
+  /** Max time (ms) an event may wait in a partial batch. */
+  private final long mLingerMillis;
+
+  /** The batch being filled; null if no events are pending. */
+  private EventBatch mBatch;
+
+  /** Time at which the first event of mBatch was added. */
+  private long mBatchStartTime;
+
+  private LingerThread mLingerThread;
+
+  /** True if watermarks are generated from the timestamps of the events. */
+  private boolean mGenerateWatermarks;
+
+  /**
+   * True if the watermark advances with local time while no events arrive,
+   * for sources whose timestamps follow the local clock.
+   */
+  private boolean mAdvanceWhenIdle;
+
+  /** Max amount of time (ms) by which the event timestamps may be out of order. */
+  private long mMaxLateness;
+
+  /** The greatest timestamp of any event added so far. */
+  private long mMaxTimestamp = Long.MIN_VALUE;
+
+  /** Local time at which the most recent event was added. */
+  private long mLastEventMillis;
+
+  /** The most recent watermark emitted. */
+  private long mWatermark = Long.MIN_VALUE;
+
+  /** Local time at which the most recent watermark was emitted. */
+  private long mWatermarkMillis;
+
+  /** Statistics of the source element, which count the events emitted; may be null. */
+  private ElementStats mStats;
+
+  /** Counts the batches we allocate, in the metrics of our flow. */
+  private final StripedCounter mBatchesAllocated;
+
+  /** Thread which periodically flushes a batch that has lingered too long. */
+  private class LingerThread extends Thread {
+    private volatile boolean mIsFinished;
+
+    public LingerThread() {
+      super("EventBatcher-linger");
+      setDaemon(true);
+    }
+
+    public void finish() {
+      mIsFinished = true;
+    }
+
+    public void run() {
+      while (!mIsFinished) {
+        try {
+          Thread.sleep(mLingerMillis);
+          flushIfLingered();
+          advanceIdleWatermark();
+        } catch (InterruptedException ie) {
+          LOG.debug("Linger thread interrupted");
+          break;
+        } catch (IOException ioe) {
+          LOG.error("IOException emitting lingering batch: " + ioe);
+        }
+      }
+    }
+  }
+
+  public EventBatcher(FlowElementContext context) {
+    mContext = context;
+    mMaxBatchSize = Math.max(1, context.getMaxBatchSize());
+    mLingerMillis = Math.max(1L, context.getBatchLingerMillis());
+    mBatchesAllocated = context.getMetrics().getCounter(MetricsRegistry.BATCHES_ALLOCATED);
+  }
+
+  /**
+   * Count the events emitted by this batcher in the statistics of the source
+   * element it emits events for.
+   */
+  public synchronized void setStats(ElementStats stats) {
+    mStats = stats;
+  }
+
+  /**
+   * Generate watermarks from the timestamps of the events added to this
+   * batcher. An initial watermark is emitted immediately, to notify
+   * downstream elements that watermarks will follow.
+   * @param advanceWhenIdle if true, the watermark continues to advance with
+   * local time while no events are added.
+   */
+  public synchronized void enableWatermarks(boolean advanceWhenIdle)
+      throws IOException, InterruptedException {
+    mGenerateWatermarks = true;
+    mAdvanceWhenIdle = advanceWhenIdle;
+    mMaxLateness = Math.max(0, mContext.getMaxEventLateness());
+    mWatermarkMillis = System.currentTimeMillis();
+    mContext.emitWatermark(mWatermark);
+  }
+
+  /**
+   * Add an event to the current batch, emitting the batch if it is full or
+   * has lingered too long.
+   */
+  public synchronized void add(EventWrapper e) throws IOException, InterruptedException {
+    if (mGenerateWatermarks) {
+      mMaxTimestamp = Math.max(mMaxTimestamp, e.getEvent().getTimestamp());
+      mLastEventMillis = System.currentTimeMillis();
+    }
+
+    if (mMaxBatchSize == 1) {
+      e.setIngestNanos(System.nanoTime());
+      if (null != mStats) {
+        mStats.recordOutput(1);
+      }
+      mContext.emit(e);
+      if (mGenerateWatermarks && mLastEventMillis - mWatermarkMillis >= mLingerMillis) {
+        // Without batches to follow, emit watermarks at the linger interval.
+        emitWatermark(mMaxTimestamp - mMaxLateness, mLastEventMillis);
+      }
+      return;
+    }
+
+    if (null == mBatch) {
+      mBatch = new EventBatch(mMaxBatchSize);
+      mBatchesAllocated.increment();
+      mBatchStartTime = System.currentTimeMillis();
+      mBatch.setIngestNanos(System.nanoTime());
+    }
+
+    mBatch.add(e);
+    if (mBatch.size() >= mMaxBatchSize
+        || System.currentTimeMillis() - mBatchStartTime >= mLingerMillis) {
+      flush();
+    }
+  }
+
+  /** @return the number of events added which have not yet been emitted. */
+  public synchronized int getNumPending() {
+    return null == mBatch ? 0 : mBatch.size();
+  }
+
+  /**
+   * Emit any pending events immediately.
+   */
+  public synchronized void flush() throws IOException, InterruptedException {
+    if (null == mBatch) {
+      return;
+    }
+
+    EventBatch batch = mBatch;
+    mBatch = null;
+    if (null != mStats) {
+      mStats.recordOutput(batch.size());
+      mStats.publish();
+    }
+    mContext.emitBatch(batch);
+    if (mGenerateWatermarks) {
+      emitWatermark(mMaxTimestamp - mMaxLateness, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Emit a watermark if it is greater than the last one emitted.
+   */
+  private void emitWatermark(long watermark, long now)
+      throws IOException, InterruptedException {
+    if (mMaxTimestamp == Long.MIN_VALUE || watermark <= mWatermark) {
+      return;
+    }
+
+    mWatermark = watermark;
+    mWatermarkMillis = now;
+    mContext.emitWatermark(watermark);
+  }
+
+  /**
+   * If no events are pending, and the watermark advances while idle, advance
+   * the watermark by the local time elapsed since the last event arrived.
+   */
+  synchronized void advanceIdleWatermark() throws IOException, InterruptedException {
+    if (!mAdvanceWhenIdle || null != mBatch) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    if (now - mWatermarkMillis >= IDLE_WATERMARK_INTERVAL) {
+      emitWatermark(mMaxTimestamp + (now - mLastEventMillis) - mMaxLateness, now);
+    }
+  }
+
+  /**
+   * Emit the pending events if the oldest of them has waited for at least
+   * the linger time.
+   */
+  synchronized void flushIfLingered() throws IOException, InterruptedException {
+    if (null != mBatch && System.currentTimeMillis() - mBatchStartTime >= mLingerMillis) {
+      flush();
+    }
+  }
+
+  /**
+   * Start a background thread that delivers partial batches once they exceed
+   * the linger time, even if no further events are added. If the watermark
+   * advances while idle, the thread also emits idle watermarks.
+   */
+  public void startLingerThread() {
+    if ((mMaxBatchSize == 1 && !mAdvanceWhenIdle) || null != mLingerThread) {
+      return;
+    }
+
+    mLingerThread = new LingerThread();
+    mLingerThread.start();
+  }
+
+  /**
+   * Stop the linger thread (if any) and emit any pending events.
+   */
+  public void close() throws IOException, InterruptedException {
+    if (null != mLingerThread) {
+      mLingerThread.finish();
+      mLingerThread.join(LINGER_JOIN_TIMEOUT);
+      if (mLingerThread.isAlive()) {
+        // Blocked emitting a batch downstream; give up on it.
+        mLingerThread.interrupt();
+        mLingerThread.join();
+      }
+      mLingerThread = null;
+    }
+
+    flush();
+  }
+}
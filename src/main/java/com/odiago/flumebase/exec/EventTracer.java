@@ -0,0 +1,110 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sampled tracing of the events flowing between the elements of a flow.
+ *
+ * <p>Per-event logging is too expensive to leave in the data path of a flow,
+ * even at a disabled level, since the log message is built before the logger
+ * discards it. Instead, each flow has an EventTracer that selects one in
+ * every N events emitted by its elements; only those events are described
+ * in the log. The sample interval N is set by the flow's
+ * <tt>flumebase.exec.trace.interval</tt> property. Tracing is also subject to
+ * the level of this class' logger, which must be TRACE for sampled events to
+ * be logged; this is checked once per sample, so changing the logger level
+ * toggles tracing of running flows.</p>
+ *
+ * <p>When tracing is disabled, isSampled() costs a single field read per
+ * event. The sample counter is not synchronized; elements of the same flow
+ * running in different threads may perturb the sampling rate slightly.</p>
+ */
+public class EventTracer {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      EventTracer.class.getName());
+
+  /**
+   * Flow property specifying the interval at which emitted events are traced:
+   * one in every N events is logged. 0 disables tracing.
+   */
+  public static final String TRACE_INTERVAL_KEY = "flumebase.exec.trace.interval";
+  public static final int DEFAULT_TRACE_INTERVAL = 0;
+
+  /** An EventTracer which never samples events. */
+  public static final EventTracer DISABLED = new EventTracer(null, 0);
+
+  /** Name of the flow whose events are traced, used in log messages. */
+  private final String mFlowName;
+
+  /** Sample interval; 0 if tracing is disabled. */
+  private final int mInterval;
+
+  /** Number of events seen since the last sample. */
+  private int mCount;
+
+  public EventTracer(FlowId flowId, int interval) {
+    mFlowName = String.valueOf(flowId);
+    mInterval = Math.max(0, interval);
+  }
+
+  /** @return the sample interval, or 0 if tracing is disabled. */
+  public int getInterval() {
+    return mInterval;
+  }
+
+  /**
+   * @return true if the current event should be traced. Called once per
+   * event emitted.
+   */
+  public boolean isSampled() {
+    if (0 == mInterval) {
+      return false;
+    } else if (++mCount < mInterval) {
+      return false;
+    }
+
+    mCount = 0;
+    return LOG.isTraceEnabled();
+  }
+
+  /**
+   * Log a sampled event emitted by a FlowElement.
+   */
+  public void trace(FlowElement element, EventWrapper e) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Flow ");
+    sb.append(mFlowName);
+    sb.append(": ");
+    sb.append(element);
+    sb.append(" emitted event at ");
+    sb.append(e.getEvent().getTimestamp());
+    sb.append(": ");
+    try {
+      sb.append(e.getEventText());
+    } catch (RuntimeException re) {
+      // Describing the event should never fail the flow.
+      sb.append("(could not format event: ");
+      sb.append(re);
+      sb.append(")");
+    }
+    LOG.trace(sb.toString());
+  }
+}
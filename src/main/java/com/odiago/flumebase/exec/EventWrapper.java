@@ -35,7 +35,13 @@ import com.odiago.flumebase.parser.TypedField;
  * wrapper should not be modified.
  */
 public abstract class EventWrapper {
-  
+
+  /**
+   * Local time (from System.nanoTime()) at which the event entered the flow,
+   * or 0 if it is not known.
+   */
+  private long mIngestNanos;
+
   /**
    * Resets the EventWrapper's internal state and wraps around the specified
    * event 'e'.
@@ -62,4 +68,21 @@ public abstract class EventWrapper {
    * or null if it is unset.
    */
   public abstract String getAttr(String attrName);
+
+  /**
+   * @return the local time (from System.nanoTime()) at which the event
+   * entered the flow, or 0 if it is not known.
+   */
+  public long getIngestNanos() {
+    return mIngestNanos;
+  }
+
+  /**
+   * Record the local time (from System.nanoTime()) at which the event
+   * entered the flow. Set by the source, and by each element that emits a
+   * new event on behalf of the event it is processing.
+   */
+  public void setIngestNanos(long ingestNanos) {
+    mIngestNanos = ingestNanos;
+  }
 }
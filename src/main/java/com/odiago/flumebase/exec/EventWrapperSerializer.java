@@ -0,0 +1,228 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.generic.GenericData;
+
+import org.apache.avro.util.Utf8;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.util.ValueSerializer;
+
+/**
+ * Serializes the events held in a join window, so that they can be spilled
+ * out of the heap. An event is written as its metadata, its attributes, and
+ * the values of a fixed list of fields; the raw event body is not kept.
+ * Events are read back as EventWrappers which return the saved values.
+ */
+public class EventWrapperSerializer implements ValueSerializer<EventWrapper> {
+
+  /** Estimated heap used by an event and its wrapper, apart from the body. */
+  private static final long EVENT_OVERHEAD = 256;
+
+  /** Estimated heap used by an in-memory record, apart from its field values. */
+  private static final long RECORD_OVERHEAD = 48;
+
+  /** Estimated heap used by a reference to a value, in a record or list. */
+  private static final long REFERENCE_SIZE = 8;
+
+  /** Estimated heap used by a string, list or buffer, apart from its contents. */
+  private static final long CONTAINER_OVERHEAD = 48;
+
+  /** Estimated heap used by any other value, such as a boxed number. */
+  private static final long SCALAR_SIZE = 24;
+
+  private static final byte[] EMPTY_BODY = new byte[0];
+
+  /** The fields whose values are saved. */
+  private final RowLayout mLayout;
+
+  /** Holds the values of the event being written. */
+  private final Object[] mValues;
+
+  /**
+   * @param fields the fields of the events which may be read after they
+   * are spilled.
+   */
+  public EventWrapperSerializer(List<TypedField> fields) {
+    mLayout = new RowLayout(fields);
+    mValues = new Object[mLayout.size()];
+  }
+
+  /**
+   * {@inheritDoc}
+   * The fields of an event parsed from a text body take about as much
+   * space again as the body itself. A record passed between elements in
+   * memory has an empty body; its size is estimated from its field values.
+   */
+  @Override
+  public long estimateSize(EventWrapper value) {
+    if (value instanceof RecordEventWrapper) {
+      GenericData.Record record = ((RecordEventWrapper) value).getRecord();
+      int numFields = record.getSchema().getFields().size();
+      long size = EVENT_OVERHEAD + RECORD_OVERHEAD;
+      for (int i = 0; i < numFields; i++) {
+        size += REFERENCE_SIZE + estimateValueSize(record.get(i));
+      }
+      return size;
+    }
+
+    Event event = value.getEvent();
+    if (null == event || null == event.getBody()) {
+      return EVENT_OVERHEAD;
+    }
+    return EVENT_OVERHEAD + 2L * event.getBody().length;
+  }
+
+  /** @return an estimate of the heap used by a field value, apart from references to it. */
+  static long estimateValueSize(Object val) {
+    if (null == val) {
+      return 0;
+    } else if (val instanceof Utf8) {
+      return CONTAINER_OVERHEAD + ((Utf8) val).getByteLength();
+    } else if (val instanceof CharSequence) {
+      return CONTAINER_OVERHEAD + 2L * ((CharSequence) val).length();
+    } else if (val instanceof ByteBuffer) {
+      return CONTAINER_OVERHEAD + ((ByteBuffer) val).capacity();
+    } else if (val instanceof List<?>) {
+      long size = CONTAINER_OVERHEAD;
+      for (Object elem : (List<?>) val) {
+        size += REFERENCE_SIZE + estimateValueSize(elem);
+      }
+      return size;
+    } else {
+      return SCALAR_SIZE;
+    }
+  }
+
+  @Override
+  public boolean write(EventWrapper value, DataOutput out) throws IOException {
+    Event event = value.getEvent();
+    if (null == event) {
+      return false; // Composite events have no metadata of their own.
+    }
+
+    for (int i = 0; i < mValues.length; i++) {
+      Object val = value.getField(mLayout.getField(i));
+      if (!ValueCodec.canWrite(val)) {
+        return false;
+      }
+      mValues[i] = val;
+    }
+
+    out.writeLong(event.getTimestamp());
+    out.writeLong(event.getNanos());
+    out.writeByte(event.getPriority().ordinal());
+    ValueCodec.writeString(event.getHost(), out);
+
+    Map<String, byte[]> attrs = event.getAttrs();
+    out.writeInt(attrs.size());
+    for (Map.Entry<String, byte[]> attr : attrs.entrySet()) {
+      out.writeUTF(attr.getKey());
+      ValueCodec.writeBytes(attr.getValue(), out);
+    }
+
+    for (int i = 0; i < mValues.length; i++) {
+      ValueCodec.write(mValues[i], out);
+      mValues[i] = null;
+    }
+    return true;
+  }
+
+  @Override
+  public EventWrapper read(DataInput in) throws IOException {
+    long timestamp = in.readLong();
+    long nanos = in.readLong();
+    Event.Priority priority = Event.Priority.values()[in.readByte()];
+    String host = ValueCodec.readString(in);
+    Event event = new EventImpl(EMPTY_BODY, timestamp, priority, nanos, host);
+
+    int numAttrs = in.readInt();
+    for (int i = 0; i < numAttrs; i++) {
+      String name = in.readUTF();
+      event.set(name, ValueCodec.readBytes(in));
+    }
+
+    Object[] values = new Object[mLayout.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = ValueCodec.read(in);
+    }
+    return new SpilledEventWrapper(mLayout, event, values);
+  }
+
+  /** An event read back from a spill file, with the saved values of its fields. */
+  private static class SpilledEventWrapper extends EventWrapperImpl {
+    private final RowLayout mLayout;
+    private final Event mEvent;
+    private final Object[] mValues;
+
+    SpilledEventWrapper(RowLayout layout, Event event, Object[] values) {
+      mLayout = layout;
+      mEvent = event;
+      mValues = values;
+    }
+
+    /**
+     * Spilled events are bound at construction; they cannot be reset to an
+     * arbitrary Event.
+     */
+    @Override
+    public void reset(Event e) {
+      throw new UnsupportedOperationException("SpilledEventWrapper cannot be reset");
+    }
+
+    @Override
+    public Object getField(TypedField field) {
+      int slot = mLayout.getSlot(field.getAvroName());
+      if (slot < 0) {
+        return null;
+      }
+      return mValues[slot];
+    }
+
+    @Override
+    public Event getEvent() {
+      return mEvent;
+    }
+
+    @Override
+    public String getEventText() {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < mValues.length; i++) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        sb.append(mValues[i]);
+      }
+      return sb.toString();
+    }
+  }
+}
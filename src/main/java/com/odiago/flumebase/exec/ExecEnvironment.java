@@ -82,6 +82,13 @@ public abstract class ExecEnvironment {
    */
   public abstract Map<FlowId, FlowInfo> listFlows() throws InterruptedException, IOException;
 
+  /**
+   * Return a snapshot of the runtime metrics of all active flows in the
+   * execution environment, keyed by FlowId.
+   */
+  public abstract Map<FlowId, FlowMetrics> getFlowMetrics()
+      throws InterruptedException, IOException;
+
   /**
    * Waits for the specified flow to complete.
    */
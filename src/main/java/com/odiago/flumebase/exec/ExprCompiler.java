@@ -0,0 +1,918 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.List;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.BinExpr;
+import com.odiago.flumebase.parser.BinOp;
+import com.odiago.flumebase.parser.ConstExpr;
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.FnCallExpr;
+import com.odiago.flumebase.parser.IdentifierExpr;
+import com.odiago.flumebase.parser.UnaryExpr;
+
+/**
+ * Compiles type-checked expressions into CompiledExpr trees.
+ *
+ * <p>Where the operands of an operator are integers, booleans, or floating
+ * point numbers, the operator is compiled into an evaluator for that operand
+ * type and operator alone, which passes primitive values and coerces its
+ * operands without any per-event type checks. Other operators, such as
+ * string concatenation or comparisons between strings, compile to
+ * evaluators that call back into the Expr for the operation itself, but
+ * whose operands are still compiled. Expressions this class does not
+ * recognize are evaluated with Expr.eval().</p>
+ *
+ * <p>Expressions must be type checked, and their identifiers bound to
+ * slots with BindSlotsVisitor, before they are compiled.</p>
+ */
+public final class ExprCompiler {
+
+  private ExprCompiler() {
+  }
+
+  /**
+   * @return an evaluator for the specified expression.
+   */
+  public static CompiledExpr compile(Expr expr) {
+    if (expr instanceof ConstExpr) {
+      return compileConst((ConstExpr) expr);
+    } else if (expr instanceof IdentifierExpr) {
+      return compileIdentifier((IdentifierExpr) expr);
+    } else if (expr instanceof BinExpr) {
+      return compileBinary((BinExpr) expr);
+    } else if (expr instanceof UnaryExpr) {
+      return compileUnary((UnaryExpr) expr);
+    } else if (expr instanceof FnCallExpr) {
+      return compileFnCall((FnCallExpr) expr);
+    } else {
+      return new Interpreted(expr);
+    }
+  }
+
+  private static Type.TypeName getTypeName(Type type) {
+    return null == type ? null : type.getPrimitiveTypeName();
+  }
+
+  private static boolean isIntegral(Type.TypeName typeName) {
+    return Type.TypeName.INT.equals(typeName) || Type.TypeName.BIGINT.equals(typeName);
+  }
+
+  private static boolean isFloatingPoint(Type.TypeName typeName) {
+    return Type.TypeName.FLOAT.equals(typeName) || Type.TypeName.DOUBLE.equals(typeName);
+  }
+
+  private static CompiledExpr compileConst(ConstExpr e) {
+    Type type = e.getResolvedType();
+    Object val = e.getValue();
+    if (null != val) {
+      switch (RowLayout.storageFor(type)) {
+      case LONG:
+        if (val instanceof Boolean) {
+          return new LongConst(type, ((Boolean) val).booleanValue() ? 1 : 0, val);
+        } else if (val instanceof Number) {
+          return new LongConst(type, ((Number) val).longValue(), val);
+        }
+        break;
+      case DOUBLE:
+        if (val instanceof Number) {
+          return new DoubleConst(type, ((Number) val).doubleValue(), val);
+        }
+        break;
+      default:
+        break;
+      }
+    }
+
+    return new ObjectConst(type, val);
+  }
+
+  private static CompiledExpr compileIdentifier(IdentifierExpr e) {
+    RowLayout layout = e.getLayout();
+    if (!IdentifierExpr.AccessType.FIELD.equals(e.getAccessType()) || null == layout) {
+      return new Interpreted(e);
+    }
+
+    int slot = e.getSlot();
+    switch (layout.getStorage(slot)) {
+    case LONG:
+      return new LongSlot(e.getResolvedType(), slot);
+    case DOUBLE:
+      return new DoubleSlot(e.getResolvedType(), slot);
+    default:
+      return new ObjectSlot(e.getResolvedType(), slot);
+    }
+  }
+
+  private static CompiledExpr compileBinary(BinExpr e) {
+    CompiledExpr lhs = compile(e.getLeftExpr());
+    CompiledExpr rhs = compile(e.getRightExpr());
+    Type type = e.getResolvedType();
+    Type.TypeName argTypeName = getTypeName(e.getArgType());
+
+    switch (e.getOp()) {
+    case Times:
+    case Div:
+    case Mod:
+    case Add:
+    case Subtract:
+      if (isIntegral(argTypeName)) {
+        return longArithmetic(e.getOp(), type, Type.TypeName.INT.equals(argTypeName), lhs, rhs);
+      } else if (isFloatingPoint(argTypeName)) {
+        return doubleArithmetic(e.getOp(), type, Type.TypeName.FLOAT.equals(argTypeName),
+            toFloatingPoint(lhs, argTypeName), toFloatingPoint(rhs, argTypeName));
+      }
+      break;
+    case Greater:
+    case GreaterEq:
+    case Less:
+    case LessEq:
+    case Eq:
+    case NotEq:
+      if (isIntegral(argTypeName) || Type.TypeName.BOOLEAN.equals(argTypeName)) {
+        return longComparison(e.getOp(), type, lhs, rhs);
+      } else if (isFloatingPoint(argTypeName)) {
+        return doubleComparison(e.getOp(), type,
+            toFloatingPoint(lhs, argTypeName), toFloatingPoint(rhs, argTypeName));
+      }
+      break;
+    case And:
+      if (Type.TypeName.BOOLEAN.equals(argTypeName)) {
+        return new LongBinary(type, false, lhs, rhs) {
+          @Override
+          long apply(long left, long right) {
+            return (left != 0 && right != 0) ? 1 : 0;
+          }
+        };
+      }
+      break;
+    case Or:
+      if (Type.TypeName.BOOLEAN.equals(argTypeName)) {
+        return new LongBinary(type, false, lhs, rhs) {
+          @Override
+          long apply(long left, long right) {
+            return (left != 0 || right != 0) ? 1 : 0;
+          }
+        };
+      }
+      break;
+    default:
+      break;
+    }
+
+    return new ObjectBinary(e, lhs, rhs);
+  }
+
+  /**
+   * @return an evaluator for 'e' coerced to the floating point type argTypeName.
+   */
+  private static CompiledExpr toFloatingPoint(CompiledExpr e, Type.TypeName argTypeName) {
+    if (Type.TypeName.FLOAT.equals(argTypeName)
+        && RowLayout.Storage.LONG.equals(e.getStorage())) {
+      // Integers must be rounded to single precision, as Number.floatValue() does.
+      return new LongToFloat(Type.getNullable(Type.TypeName.FLOAT), e);
+    }
+
+    // Widening integers or floats to double is exact.
+    return e;
+  }
+
+  private static CompiledExpr longArithmetic(BinOp op, Type type, boolean isInt,
+      CompiledExpr lhs, CompiledExpr rhs) {
+    switch (op) {
+    case Times:
+      return new LongBinary(type, isInt, lhs, rhs) {
+        @Override
+        long apply(long left, long right) {
+          return left * right;
+        }
+      };
+    case Div:
+      return new LongBinary(type, isInt, lhs, rhs) {
+        @Override
+        long apply(long left, long right) {
+          return left / right;
+        }
+      };
+    case Mod:
+      return new LongBinary(type, isInt, lhs, rhs) {
+        @Override
+        long apply(long left, long right) {
+          return left % right;
+        }
+      };
+    case Add:
+      return new LongBinary(type, isInt, lhs, rhs) {
+        @Override
+        long apply(long left, long right) {
+          return left + right;
+        }
+      };
+    case Subtract:
+      return new LongBinary(type, isInt, lhs, rhs) {
+        @Override
+        long apply(long left, long right) {
+          return left - right;
+        }
+      };
+    default:
+      throw new RuntimeException("Not an arithmetic operator: " + op);
+    }
+  }
+
+  private static CompiledExpr doubleArithmetic(BinOp op, Type type, boolean isFloat,
+      CompiledExpr lhs, CompiledExpr rhs) {
+    switch (op) {
+    case Times:
+      return new DoubleBinary(type, isFloat, lhs, rhs) {
+        @Override
+        double apply(double left, double right) {
+          return left * right;
+        }
+      };
+    case Div:
+      return new DoubleBinary(type, isFloat, lhs, rhs) {
+        @Override
+        double apply(double left, double right) {
+          return left / right;
+        }
+      };
+    case Mod:
+      return new DoubleBinary(type, isFloat, lhs, rhs) {
+        @Override
+        double apply(double left, double right) {
+          return left % right;
+        }
+      };
+    case Add:
+      return new DoubleBinary(type, isFloat, lhs, rhs) {
+        @Override
+        double apply(double left, double right) {
+          return left + right;
+        }
+      };
+    case Subtract:
+      return new DoubleBinary(type, isFloat, lhs, rhs) {
+        @Override
+        double apply(double left, double right) {
+          return left - right;
+        }
+      };
+    default:
+      throw new RuntimeException("Not an arithmetic operator: " + op);
+    }
+  }
+
+  private static CompiledExpr longComparison(BinOp op, Type type,
+      CompiledExpr lhs, CompiledExpr rhs) {
+    switch (op) {
+    case Greater:
+      return new LongBinary(type, false, lhs, rhs) {
+        @Override
+        long apply(long left, long right) {
+          return left > right ? 1 : 0;
+        }
+      };
+    case GreaterEq:
+      return new LongBinary(type, false, lhs, rhs) {
+        @Override
+        long apply(long left, long right) {
+          return left >= right ? 1 : 0;
+        }
+      };
+    case Less:
+      return new LongBinary(type, false, lhs, rhs) {
+        @Override
+        long apply(long left, long right) {
+          return left < right ? 1 : 0;
+        }
+      };
+    case LessEq:
+      return new LongBinary(type, false, lhs, rhs) {
+        @Override
+        long apply(long left, long right) {
+          return left <= right ? 1 : 0;
+        }
+      };
+    case Eq:
+      return new LongBinary(type, false, lhs, rhs) {
+        @Override
+        long apply(long left, long right) {
+          return left == right ? 1 : 0;
+        }
+      };
+    case NotEq:
+      return new LongBinary(type, false, lhs, rhs) {
+        @Override
+        long apply(long left, long right) {
+          return left != right ? 1 : 0;
+        }
+      };
+    default:
+      throw new RuntimeException("Not a comparison operator: " + op);
+    }
+  }
+
+  /**
+   * Comparisons between floating point values use Double.compare(), to
+   * match the compareTo() and equals() methods of the boxed values.
+   */
+  private static CompiledExpr doubleComparison(BinOp op, Type type,
+      CompiledExpr lhs, CompiledExpr rhs) {
+    switch (op) {
+    case Greater:
+      return new DoubleCompare(type, lhs, rhs) {
+        @Override
+        boolean test(int cmp) {
+          return cmp > 0;
+        }
+      };
+    case GreaterEq:
+      return new DoubleCompare(type, lhs, rhs) {
+        @Override
+        boolean test(int cmp) {
+          return cmp >= 0;
+        }
+      };
+    case Less:
+      return new DoubleCompare(type, lhs, rhs) {
+        @Override
+        boolean test(int cmp) {
+          return cmp < 0;
+        }
+      };
+    case LessEq:
+      return new DoubleCompare(type, lhs, rhs) {
+        @Override
+        boolean test(int cmp) {
+          return cmp <= 0;
+        }
+      };
+    case Eq:
+      return new DoubleCompare(type, lhs, rhs) {
+        @Override
+        boolean test(int cmp) {
+          return cmp == 0;
+        }
+      };
+    case NotEq:
+      return new DoubleCompare(type, lhs, rhs) {
+        @Override
+        boolean test(int cmp) {
+          return cmp != 0;
+        }
+      };
+    default:
+      throw new RuntimeException("Not a comparison operator: " + op);
+    }
+  }
+
+  private static CompiledExpr compileUnary(UnaryExpr e) {
+    CompiledExpr child = compile(e.getSubExpr());
+    Type childType = e.getSubExpr().getResolvedType();
+    Type.TypeName childTypeName = getTypeName(childType);
+
+    switch (e.getOp()) {
+    case Plus:
+      return child;
+    case Minus:
+      if (isIntegral(childTypeName)) {
+        final boolean isInt = Type.TypeName.INT.equals(childTypeName);
+        return new LongUnary(childType, child) {
+          @Override
+          long apply(long val) {
+            return isInt ? (int) -val : -val;
+          }
+        };
+      } else if (isFloatingPoint(childTypeName)) {
+        return new DoubleUnary(childType, child) {
+          @Override
+          double apply(double val) {
+            return -val;
+          }
+        };
+      }
+      break;
+    case Not:
+      if (Type.TypeName.BOOLEAN.equals(childTypeName)) {
+        return new LongUnary(Type.getNullable(Type.TypeName.BOOLEAN), child) {
+          @Override
+          long apply(long val) {
+            return val == 0 ? 1 : 0;
+          }
+        };
+      }
+      break;
+    case IsNull:
+      return new NullTest(child, true);
+    case IsNotNull:
+      return new NullTest(child, false);
+    default:
+      break;
+    }
+
+    return new ObjectUnary(e, child);
+  }
+
+  private static CompiledExpr compileFnCall(FnCallExpr e) {
+    if (!e.isScalar()) {
+      return new Interpreted(e);
+    }
+
+    List<Expr> argExprs = e.getArgExpressions();
+    CompiledExpr[] args = new CompiledExpr[argExprs.size()];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = compile(argExprs.get(i));
+    }
+
+    return new FnCall(e, args);
+  }
+
+  /** An expression whose value uses LONG storage. */
+  private abstract static class LongExpr extends CompiledExpr {
+    /** The type the value is boxed as by evalObject(). */
+    private final Type.TypeName mBoxTypeName;
+
+    LongExpr(Type type) {
+      super(type);
+      mBoxTypeName = getTypeName(type);
+    }
+
+    @Override
+    public abstract long evalLong(TypedRow row) throws IOException;
+
+    @Override
+    public double evalDouble(TypedRow row) throws IOException {
+      return evalLong(row);
+    }
+
+    @Override
+    public boolean evalIsNull(TypedRow row) throws IOException {
+      evalLong(row);
+      return row.wasNull();
+    }
+
+    @Override
+    public Object evalObject(TypedRow row) throws IOException {
+      long val = evalLong(row);
+      if (row.wasNull()) {
+        return null;
+      } else if (Type.TypeName.BOOLEAN.equals(mBoxTypeName)) {
+        return Boolean.valueOf(val != 0);
+      } else if (Type.TypeName.INT.equals(mBoxTypeName)) {
+        return Integer.valueOf((int) val);
+      } else {
+        return Long.valueOf(val);
+      }
+    }
+  }
+
+  /** An expression whose value uses DOUBLE storage. */
+  private abstract static class DoubleExpr extends CompiledExpr {
+    /** True if the value is boxed as a Float by evalObject(). */
+    private final boolean mIsFloat;
+
+    DoubleExpr(Type type) {
+      super(type);
+      mIsFloat = Type.TypeName.FLOAT.equals(getTypeName(type));
+    }
+
+    @Override
+    public abstract double evalDouble(TypedRow row) throws IOException;
+
+    @Override
+    public boolean evalIsNull(TypedRow row) throws IOException {
+      evalDouble(row);
+      return row.wasNull();
+    }
+
+    @Override
+    public Object evalObject(TypedRow row) throws IOException {
+      double val = evalDouble(row);
+      if (row.wasNull()) {
+        return null;
+      } else if (mIsFloat) {
+        return Float.valueOf((float) val);
+      } else {
+        return Double.valueOf(val);
+      }
+    }
+  }
+
+  private static class LongConst extends LongExpr {
+    private final long mValue;
+    private final Object mBoxedValue;
+
+    LongConst(Type type, long value, Object boxedValue) {
+      super(type);
+      mValue = value;
+      mBoxedValue = boxedValue;
+    }
+
+    @Override
+    public long evalLong(TypedRow row) {
+      row.setWasNull(false);
+      return mValue;
+    }
+
+    @Override
+    public Object evalObject(TypedRow row) {
+      return mBoxedValue;
+    }
+  }
+
+  private static class DoubleConst extends DoubleExpr {
+    private final double mValue;
+    private final Object mBoxedValue;
+
+    DoubleConst(Type type, double value, Object boxedValue) {
+      super(type);
+      mValue = value;
+      mBoxedValue = boxedValue;
+    }
+
+    @Override
+    public double evalDouble(TypedRow row) {
+      row.setWasNull(false);
+      return mValue;
+    }
+
+    @Override
+    public Object evalObject(TypedRow row) {
+      return mBoxedValue;
+    }
+  }
+
+  private static class ObjectConst extends CompiledExpr {
+    private final Object mValue;
+
+    ObjectConst(Type type, Object value) {
+      super(type);
+      mValue = value;
+    }
+
+    @Override
+    public Object evalObject(TypedRow row) {
+      return mValue;
+    }
+  }
+
+  /** Reads a field from a LONG-storage slot of the row. */
+  private static class LongSlot extends LongExpr {
+    private final int mSlot;
+
+    LongSlot(Type type, int slot) {
+      super(type);
+      mSlot = slot;
+    }
+
+    @Override
+    public long evalLong(TypedRow row) throws IOException {
+      long val = row.getLong(mSlot);
+      row.setWasNull(row.isNull(mSlot));
+      return val;
+    }
+
+    @Override
+    public boolean evalIsNull(TypedRow row) throws IOException {
+      return row.isNull(mSlot);
+    }
+
+    @Override
+    public Object evalObject(TypedRow row) throws IOException {
+      return row.getObject(mSlot);
+    }
+  }
+
+  /** Reads a field from a DOUBLE-storage slot of the row. */
+  private static class DoubleSlot extends DoubleExpr {
+    private final int mSlot;
+
+    DoubleSlot(Type type, int slot) {
+      super(type);
+      mSlot = slot;
+    }
+
+    @Override
+    public double evalDouble(TypedRow row) throws IOException {
+      double val = row.getDouble(mSlot);
+      row.setWasNull(row.isNull(mSlot));
+      return val;
+    }
+
+    @Override
+    public boolean evalIsNull(TypedRow row) throws IOException {
+      return row.isNull(mSlot);
+    }
+
+    @Override
+    public Object evalObject(TypedRow row) throws IOException {
+      return row.getObject(mSlot);
+    }
+  }
+
+  /** Reads a field from an OBJECT-storage slot of the row. */
+  private static class ObjectSlot extends CompiledExpr {
+    private final int mSlot;
+
+    ObjectSlot(Type type, int slot) {
+      super(type);
+      mSlot = slot;
+    }
+
+    @Override
+    public boolean evalIsNull(TypedRow row) throws IOException {
+      return row.isNull(mSlot);
+    }
+
+    @Override
+    public Object evalObject(TypedRow row) throws IOException {
+      return row.getObject(mSlot);
+    }
+  }
+
+  /**
+   * A binary operator over LONG-storage operands. A null operand makes
+   * the result null.
+   */
+  private abstract static class LongBinary extends LongExpr {
+    private final CompiledExpr mLeft;
+    private final CompiledExpr mRight;
+
+    /** True if the result is truncated to an INT. */
+    private final boolean mIsInt;
+
+    LongBinary(Type type, boolean isInt, CompiledExpr left, CompiledExpr right) {
+      super(type);
+      mIsInt = isInt;
+      mLeft = left;
+      mRight = right;
+    }
+
+    abstract long apply(long left, long right);
+
+    @Override
+    public long evalLong(TypedRow row) throws IOException {
+      long left = mLeft.evalLong(row);
+      if (row.wasNull()) {
+        return 0;
+      }
+
+      long right = mRight.evalLong(row);
+      if (row.wasNull()) {
+        return 0;
+      }
+
+      long val = apply(left, right);
+      return mIsInt ? (int) val : val;
+    }
+  }
+
+  /**
+   * An arithmetic operator over floating point operands. A null operand makes
+   * the result null.
+   */
+  private abstract static class DoubleBinary extends DoubleExpr {
+    private final CompiledExpr mLeft;
+    private final CompiledExpr mRight;
+
+    /** True if the result is rounded to a FLOAT. */
+    private final boolean mIsFloat;
+
+    DoubleBinary(Type type, boolean isFloat, CompiledExpr left, CompiledExpr right) {
+      super(type);
+      mIsFloat = isFloat;
+      mLeft = left;
+      mRight = right;
+    }
+
+    abstract double apply(double left, double right);
+
+    @Override
+    public double evalDouble(TypedRow row) throws IOException {
+      double left = mLeft.evalDouble(row);
+      if (row.wasNull()) {
+        return 0.0;
+      }
+
+      double right = mRight.evalDouble(row);
+      if (row.wasNull()) {
+        return 0.0;
+      }
+
+      double val = apply(left, right);
+      return mIsFloat ? (float) val : val;
+    }
+  }
+
+  /**
+   * A comparison between floating point operands, returning a BOOLEAN.
+   */
+  private abstract static class DoubleCompare extends LongExpr {
+    private final CompiledExpr mLeft;
+    private final CompiledExpr mRight;
+
+    DoubleCompare(Type type, CompiledExpr left, CompiledExpr right) {
+      super(type);
+      mLeft = left;
+      mRight = right;
+    }
+
+    /** @return true if the result of Double.compare(left, right) satisfies the operator. */
+    abstract boolean test(int cmp);
+
+    @Override
+    public long evalLong(TypedRow row) throws IOException {
+      double left = mLeft.evalDouble(row);
+      if (row.wasNull()) {
+        return 0;
+      }
+
+      double right = mRight.evalDouble(row);
+      if (row.wasNull()) {
+        return 0;
+      }
+
+      return test(Double.compare(left, right)) ? 1 : 0;
+    }
+  }
+
+  /** A unary operator over a LONG-storage operand. */
+  private abstract static class LongUnary extends LongExpr {
+    private final CompiledExpr mChild;
+
+    LongUnary(Type type, CompiledExpr child) {
+      super(type);
+      mChild = child;
+    }
+
+    abstract long apply(long val);
+
+    @Override
+    public long evalLong(TypedRow row) throws IOException {
+      long val = mChild.evalLong(row);
+      if (row.wasNull()) {
+        return 0;
+      }
+
+      return apply(val);
+    }
+  }
+
+  /** A unary operator over a floating point operand. */
+  private abstract static class DoubleUnary extends DoubleExpr {
+    private final CompiledExpr mChild;
+
+    DoubleUnary(Type type, CompiledExpr child) {
+      super(type);
+      mChild = child;
+    }
+
+    abstract double apply(double val);
+
+    @Override
+    public double evalDouble(TypedRow row) throws IOException {
+      double val = mChild.evalDouble(row);
+      if (row.wasNull()) {
+        return 0.0;
+      }
+
+      return apply(val);
+    }
+  }
+
+  /** Rounds an integer operand to single precision. */
+  private static class LongToFloat extends DoubleExpr {
+    private final CompiledExpr mChild;
+
+    LongToFloat(Type type, CompiledExpr child) {
+      super(type);
+      mChild = child;
+    }
+
+    @Override
+    public double evalDouble(TypedRow row) throws IOException {
+      return (float) mChild.evalLong(row);
+    }
+  }
+
+  /** IS NULL and IS NOT NULL. */
+  private static class NullTest extends LongExpr {
+    private final CompiledExpr mChild;
+
+    /** True for IS NULL; false for IS NOT NULL. */
+    private final boolean mIsNull;
+
+    NullTest(CompiledExpr child, boolean isNull) {
+      super(Type.getPrimitive(Type.TypeName.BOOLEAN));
+      mChild = child;
+      mIsNull = isNull;
+    }
+
+    @Override
+    public long evalLong(TypedRow row) throws IOException {
+      boolean childIsNull = mChild.evalIsNull(row);
+      row.setWasNull(false);
+      return childIsNull == mIsNull ? 1 : 0;
+    }
+  }
+
+  /** A binary operator over operands that are passed as objects. */
+  private static class ObjectBinary extends CompiledExpr {
+    private final BinExpr mExpr;
+    private final CompiledExpr mLeft;
+    private final CompiledExpr mRight;
+
+    ObjectBinary(BinExpr expr, CompiledExpr left, CompiledExpr right) {
+      super(expr.getResolvedType());
+      mExpr = expr;
+      mLeft = left;
+      mRight = right;
+    }
+
+    @Override
+    public Object evalObject(TypedRow row) throws IOException {
+      Object left = mLeft.evalObject(row);
+      Object right = mRight.evalObject(row);
+      return mExpr.evalOp(left, right);
+    }
+  }
+
+  /** A unary operator over an operand that is passed as an object. */
+  private static class ObjectUnary extends CompiledExpr {
+    private final UnaryExpr mExpr;
+    private final CompiledExpr mChild;
+
+    ObjectUnary(UnaryExpr expr, CompiledExpr child) {
+      super(expr.getResolvedType());
+      mExpr = expr;
+      mChild = child;
+    }
+
+    @Override
+    public Object evalObject(TypedRow row) throws IOException {
+      return mExpr.evalOp(mChild.evalObject(row));
+    }
+  }
+
+  /** A call to a scalar function whose arguments are compiled. */
+  private static class FnCall extends CompiledExpr {
+    private final FnCallExpr mExpr;
+    private final CompiledExpr[] mArgs;
+
+    /** Reused to pass the argument values to the function. */
+    private final Object[] mArgValues;
+
+    FnCall(FnCallExpr expr, CompiledExpr[] args) {
+      super(expr.getResolvedType());
+      mExpr = expr;
+      mArgs = args;
+      mArgValues = expr.createArgValues();
+    }
+
+    @Override
+    public Object evalObject(TypedRow row) throws IOException {
+      for (int i = 0; i < mArgs.length; i++) {
+        mArgValues[i] = mArgs[i].evalObject(row);
+      }
+
+      return mExpr.evalWithArgs(row, mArgValues);
+    }
+  }
+
+  /** Evaluates an expression that could not be compiled with Expr.eval(). */
+  private static class Interpreted extends CompiledExpr {
+    private final Expr mExpr;
+
+    Interpreted(Expr expr) {
+      super(expr.getResolvedType());
+      mExpr = expr;
+    }
+
+    @Override
+    public Object evalObject(TypedRow row) throws IOException {
+      return mExpr.eval(row);
+    }
+  }
+}
@@ -18,10 +18,12 @@
 package com.odiago.flumebase.exec;
 
 import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStreamReader;
 
-import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
@@ -38,6 +40,7 @@ import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FlowElementContext;
 import com.odiago.flumebase.exec.FlowElementImpl;
 import com.odiago.flumebase.exec.ParsingEventWrapper;
+import com.odiago.flumebase.exec.RowLayout;
 import com.odiago.flumebase.exec.StreamSymbol;
 
 import com.odiago.flumebase.lang.Timestamp;
@@ -51,8 +54,11 @@ import com.odiago.flumebase.parser.TypedField;
  * (long integer in base 10 str encoding) \t (string) \n
  *
  * The integer on each line specifies the timestamp of the event.
+ *
+ * <p>Checkpoints record the number of lines whose events have been emitted
+ * into the flow; a restored source skips that many lines of the file.</p>
  */
-public class FileSourceElement extends FlowElementImpl {
+public class FileSourceElement extends FlowElementImpl implements Checkpointable {
   private static final Logger LOG = LoggerFactory.getLogger(
       FileSourceElement.class.getName());
 
@@ -72,11 +78,20 @@ public class FileSourceElement extends FlowElementImpl {
   /** List of all typed fields defined in the stream, with their avro-name mappings, etc. */
   private List<TypedField> mFields;
 
-  /** List of all avro names of the fields in the stream, in the same order as mFields. */
-  private List<String> mFieldNames;
+  /** Slots of all fields in the stream, in the same order as mFields. */
+  private RowLayout mLayout;
+
+  /** Columns read by the flow, or null if any column may be read. */
+  private BitSet mRequiredColumns;
 
   private StreamSymbol mStream;
 
+  /** Number of lines of the file whose events have been emitted into the flow. */
+  private volatile long mLinesEmitted;
+
+  /** Number of lines to skip at the start of the file, when restored from a checkpoint. */
+  private long mSkipLines;
+
   /** Private extension of EventImpl that allows us to call setTimestamp(). */
   private static class FileSourceEvent extends EventImpl {
     public FileSourceEvent(byte[] body) {
@@ -123,7 +138,16 @@ public class FileSourceElement extends FlowElementImpl {
         }
       }
 
+      BitSet requiredColumns = mRequiredColumns;
+      if (null != requiredColumns && null != timestampField) {
+        // We read the timestamp column ourselves.
+        requiredColumns = (BitSet) requiredColumns.clone();
+        requiredColumns.set(mLayout.getSlot(timestampField.getAvroName()));
+      }
+
       BufferedReader reader = null;
+      EventBatcher batcher = new EventBatcher(getContext());
+      batcher.setStats(getStats());
       try {
         // TODO: Inherit from a global configuration.
         Configuration conf = new Configuration();
@@ -135,6 +159,16 @@ public class FileSourceElement extends FlowElementImpl {
         }
 
         reader = new BufferedReader(new InputStreamReader(fs.open(new Path(mFilename))));
+        long linesRead = 0;
+        while (linesRead < mSkipLines && null != reader.readLine()) {
+          linesRead++;
+        }
+        mLinesEmitted = linesRead;
+        if (null != timestampField) {
+          // The events carry their own timestamps; let downstream elements
+          // close windows based on them, as fast as we can read the file.
+          batcher.enableWatermarks(false);
+        }
         while (true) {
           if (mIsFinished) {
             LOG.info("Closing EventGenThread; mIsFinished set to true");
@@ -146,12 +180,13 @@ public class FileSourceElement extends FlowElementImpl {
             LOG.info("Closing EventGenThread; file is complete");
             break;
           }
+          linesRead++;
 
           try {
             FileSourceEvent event = new FileSourceEvent(line.getBytes());
             event.set(STREAM_NAME_ATTR, mStream.getName().getBytes());
-            ParsingEventWrapper wrapper = new ParsingEventWrapper(mStream.getEventParser(),
-                mFieldNames);
+            ParsingEventWrapper wrapper = new ParsingEventWrapper(
+                mStream.getEventParser(requiredColumns), mLayout);
             wrapper.reset(event);
 
             if (timestampField == null) {
@@ -164,11 +199,14 @@ public class FileSourceElement extends FlowElementImpl {
                 event.setTimestamp(timestamp.milliseconds);
               }
             }
-            emit(wrapper);
+            batcher.add(wrapper);
           } catch (NumberFormatException nfe) {
             LOG.warn("Could not parse timestamp: " + nfe);
           }
+          mLinesEmitted = linesRead - batcher.getNumPending();
         }
+
+        batcher.flush();
       } catch (InterruptedException ie) {
         LOG.error("Interruption during EventGenThread (suspending): " + ie);
       } catch (IOException ioe) {
@@ -193,17 +231,21 @@ public class FileSourceElement extends FlowElementImpl {
     }
   }
 
+  /**
+   * Create a source reading the events of streamSym from the specified file.
+   * @param fields all fields of the stream.
+   * @param requiredFields the fields read by downstream elements, or null
+   * if they may read any field.
+   */
   public FileSourceElement(FlowElementContext context, String fileName, boolean local,
-      List<TypedField> fields, StreamSymbol streamSym) {
+      List<TypedField> fields, List<TypedField> requiredFields, StreamSymbol streamSym) {
     super(context);
     mFilename = fileName;
     mLocal = local;
     mFields = fields;
-    mFieldNames = new ArrayList<String>();
+    mLayout = new RowLayout(fields);
+    mRequiredColumns = mLayout.getSlots(requiredFields);
     mStream = streamSym;
-    for (TypedField field : fields) {
-      mFieldNames.add(field.getAvroName());
-    }
   }
 
   @Override
@@ -222,6 +264,18 @@ public class FileSourceElement extends FlowElementImpl {
     super.close();
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public void saveState(DataOutput out) throws IOException {
+    out.writeLong(mLinesEmitted);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void restoreState(DataInput in) throws IOException {
+    mSkipLines = in.readLong();
+  }
+
   @Override
   public void takeEvent(EventWrapper e) {
     // We generate our own events; nothing should be upstream from us.
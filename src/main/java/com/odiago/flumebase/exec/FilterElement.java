@@ -19,31 +19,235 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.lang.BindSlotsVisitor;
+
 import com.odiago.flumebase.parser.Expr;
 
 /**
- * FlowElement that advances events whose fields when applied to the embedded
- * match expression, cause the match expr to evaluate to true.
- * TODO(aaron): Rewrite this to take expr opcodes, not an ast element.
+ * FlowElement that advances events whose fields, when applied to each of the
+ * embedded match expressions, cause all of them to evaluate to true. The
+ * expressions are evaluated in order, and evaluation stops at the first one
+ * that is false or null.
+ *
+ * <p>The planner orders the expressions by their estimated cost and
+ * selectivity. As the filter runs, it measures both: one in every
+ * SAMPLE_INTERVAL events is tested against every expression, timing each.
+ * After every REORDER_INTERVAL samples, the expressions are reordered by
+ * their measured cost per event rejected, so that the order follows the
+ * data as its distribution changes. Older samples are given half the weight
+ * of newer ones at each reordering.</p>
  */
 public class FilterElement extends FlowElementImpl {
-  private Expr mFilterExpr;
+  private static final Logger LOG = LoggerFactory.getLogger(
+      FilterElement.class.getName());
+
+  /** One in this many events is tested against every conjunct, to measure them. */
+  static final int SAMPLE_INTERVAL = 64;
+
+  /** The conjuncts are reordered after this many sampled events. */
+  static final int REORDER_INTERVAL = 32;
+
+  /** A conjunct of the filter, and its measured cost and selectivity. */
+  private static class Conjunct {
+    private final Expr mExpr;
+
+    /** mExpr, compiled to evaluate against the filter's row. */
+    private final CompiledExpr mCompiled;
+
+    /** Weighted number of sampled events this conjunct was tested against. */
+    private double mSamples;
+
+    /** Weighted number of sampled events which satisfied this conjunct. */
+    private double mPassed;
+
+    /** Weighted time (ns) spent testing sampled events. */
+    private double mNanos;
+
+    /** Rank computed at the latest reordering. */
+    private double mRank;
+
+    Conjunct(Expr expr) {
+      mExpr = expr;
+      mCompiled = ExprCompiler.compile(expr);
+    }
+
+    boolean matches(TypedRow row) throws IOException {
+      return mCompiled.evalBoolean(row) && !row.wasNull();
+    }
+
+    void record(boolean passed, long nanos) {
+      mSamples++;
+      mNanos += nanos;
+      if (passed) {
+        mPassed++;
+      }
+    }
+
+    /**
+     * Compute the measured cost per event rejected, and halve the weight
+     * of the samples seen so far.
+     */
+    void updateRank() {
+      double rejected = (mSamples - mPassed) / mSamples;
+      if (rejected <= 0.0) {
+        mRank = Double.POSITIVE_INFINITY;
+      } else {
+        mRank = Math.max(1.0, mNanos / mSamples) / rejected;
+      }
+
+      mSamples /= 2;
+      mPassed /= 2;
+      mNanos /= 2;
+    }
+  }
+
+  /** Orders conjuncts by increasing rank. */
+  private static final Comparator<Conjunct> RANK_ORDER = new Comparator<Conjunct>() {
+    @Override
+    public int compare(Conjunct a, Conjunct b) {
+      return Double.compare(a.mRank, b.mRank);
+    }
+  };
+
+  /** The conjuncts, in the order they are evaluated. */
+  private Conjunct[] mConjuncts;
+
+  /** Row holding the fields of the current event that mConjuncts reference. */
+  private TypedRow mRow;
+
+  /** Number of events until the next sampled event. */
+  private int mUntilSample;
+
+  /** Number of events sampled since the conjuncts were last reordered. */
+  private int mNumSampled;
 
-  public FilterElement(FlowElementContext ctxt, Expr filterExpr) {
+  /** Counts the output batches we allocate, in the metrics of our flow. */
+  private StripedCounter mBatchesAllocated;
+
+  public FilterElement(FlowElementContext ctxt, List<Expr> conjuncts) {
     super(ctxt);
-    mFilterExpr = filterExpr;
+    mRow = new TypedRow(BindSlotsVisitor.bind(conjuncts));
+    mConjuncts = new Conjunct[conjuncts.size()];
+    for (int i = 0; i < mConjuncts.length; i++) {
+      mConjuncts[i] = new Conjunct(conjuncts.get(i));
+    }
+    mUntilSample = SAMPLE_INTERVAL;
+    mBatchesAllocated = ctxt.getMetrics().getCounter(MetricsRegistry.BATCHES_ALLOCATED);
+  }
+
+  @Override
+  public void open() throws IOException, InterruptedException {
+    // Our context is bound to the metrics of its flow by now.
+    mBatchesAllocated = getContext().getMetrics().getCounter(
+        MetricsRegistry.BATCHES_ALLOCATED);
+    super.open();
+  }
+
+  /** @return the conjuncts of the filter, in the order they are currently evaluated. */
+  public List<Expr> getConjuncts() {
+    List<Expr> out = new ArrayList<Expr>(mConjuncts.length);
+    for (Conjunct conjunct : mConjuncts) {
+      out.add(conjunct.mExpr);
+    }
+    return out;
   }
 
+  /** @return true if the event satisfies every filter expression. */
+  private boolean matches(EventWrapper e) throws IOException {
+    mRow.wrap(e);
+    try {
+      if (mConjuncts.length > 1 && --mUntilSample == 0) {
+        mUntilSample = SAMPLE_INTERVAL;
+        return sample();
+      }
+
+      for (Conjunct conjunct : mConjuncts) {
+        if (!conjunct.matches(mRow)) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      mRow.wrap(null);
+    }
+  }
+
+  /**
+   * Test the current row against every conjunct, recording the result and
+   * time taken by each.
+   * @return true if the row satisfies every conjunct.
+   */
+  private boolean sample() throws IOException {
+    boolean result = true;
+    for (Conjunct conjunct : mConjuncts) {
+      long start = System.nanoTime();
+      boolean passed = conjunct.matches(mRow);
+      conjunct.record(passed, System.nanoTime() - start);
+      result = result && passed;
+    }
+
+    if (++mNumSampled == REORDER_INTERVAL) {
+      mNumSampled = 0;
+      reorder();
+    }
+    return result;
+  }
+
+  /** Sort the conjuncts by their measured rank. */
+  private void reorder() {
+    for (Conjunct conjunct : mConjuncts) {
+      conjunct.updateRank();
+    }
+
+    // Arrays.sort() is stable; conjuncts of equal rank keep their order.
+    Conjunct[] sorted = mConjuncts.clone();
+    Arrays.sort(sorted, RANK_ORDER);
+    if (!Arrays.equals(sorted, mConjuncts)) {
+      mConjuncts = sorted;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Reordered filter conjuncts: " + getConjuncts());
+      }
+    }
+  }
 
   @Override
   public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
-    if (Boolean.TRUE.equals(mFilterExpr.eval(e))) {
+    if (matches(e)) {
       emit(e);
     }
   }
 
+  /**
+   * Filter the whole batch, and pass the matching events on together.
+   */
+  @Override
+  public void takeEvents(EventBatch batch) throws IOException, InterruptedException {
+    EventBatch out = null;
+    for (EventWrapper e : batch) {
+      if (matches(e)) {
+        if (null == out) {
+          out = new EventBatch(batch.size());
+          mBatchesAllocated.increment();
+        }
+        out.add(e);
+      }
+    }
+
+    if (null != out) {
+      emitBatch(out);
+    }
+  }
+
   @Override
   public String toString() {
-    return "Filter[filterExpr=\"" + mFilterExpr + "\"]";
+    return "Filter[conjuncts=\"" + getConjuncts() + "\"]";
   }
 }
@@ -70,6 +70,51 @@ public abstract class FlowElement {
    */
   public abstract void takeEvent(EventWrapper e) throws IOException, InterruptedException;
 
+  /**
+   * Process a batch of input events, in order. The default implementation
+   * calls takeEvent() on each event; elements which can process a batch more
+   * efficiently should override this.
+   */
+  public void takeEvents(EventBatch batch) throws IOException, InterruptedException {
+    for (EventWrapper e : batch) {
+      takeEvent(e);
+    }
+  }
+
+  /**
+   * Deliver an event to this FlowElement. Contexts and flow workers deliver
+   * events through this method, rather than calling takeEvent() directly, so
+   * that the element may account for them in its statistics. The default
+   * implementation calls takeEvent().
+   */
+  public void deliverEvent(EventWrapper e) throws IOException, InterruptedException {
+    takeEvent(e);
+  }
+
+  /**
+   * Deliver a batch of events to this FlowElement; see deliverEvent().
+   * The default implementation calls takeEvents().
+   */
+  public void deliverEvents(EventBatch batch) throws IOException, InterruptedException {
+    takeEvents(batch);
+  }
+
+  /**
+   * @return statistics about the events processed by this FlowElement, or
+   * null if it does not record them.
+   */
+  public ElementStats getStats() {
+    return null;
+  }
+
+  /**
+   * Receive a watermark from one of the upstream elements of this FlowElement.
+   * No further events with timestamps earlier than the watermark will arrive
+   * from that element.
+   */
+  public abstract void takeWatermark(Watermark watermark)
+      throws IOException, InterruptedException;
+
   /**
    * @return the FlowElementContext that the element is bound to.
    */
@@ -19,6 +19,8 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
+import com.odiago.flumebase.util.StateBudget;
+
 /**
  * Context for a FlowElement that specifies how this FlowElement
  * connects to all its upstream and downstream neighbors.
@@ -30,6 +32,87 @@ public abstract class FlowElementContext {
    */
   public abstract void emit(EventWrapper e) throws IOException, InterruptedException;
 
+  /**
+   * Emit a batch of events to the next downstream FlowElement(s). The
+   * default implementation emits each event individually.
+   */
+  public void emitBatch(EventBatch batch) throws IOException, InterruptedException {
+    for (EventWrapper e : batch) {
+      emit(e);
+    }
+  }
+
+  /**
+   * Notify downstream FlowElement(s) that this element will not emit any
+   * further events with timestamps earlier than 'watermark'. The default
+   * implementation discards the watermark.
+   */
+  public void emitWatermark(long watermark) throws IOException, InterruptedException {
+  }
+
+  /**
+   * @return the maximum amount of time (ms) by which the timestamps of the
+   * events emitted by a source may be out of order. Sources which generate
+   * watermarks hold them back by this amount.
+   */
+  public long getMaxEventLateness() {
+    return 0;
+  }
+
+  /**
+   * @return the maximum number of events a source should group into a
+   * single EventBatch before emitting it. Default: 1 (no batching).
+   */
+  public int getMaxBatchSize() {
+    return 1;
+  }
+
+  /**
+   * @return the maximum time (ms) an event may wait in a partially-filled
+   * EventBatch before the batch is emitted.
+   */
+  public long getBatchLingerMillis() {
+    return 0;
+  }
+
+  /**
+   * @return the EventTracer which samples the events emitted through this
+   * context. Default: a tracer which never samples events.
+   */
+  public EventTracer getTracer() {
+    return EventTracer.DISABLED;
+  }
+
+  /**
+   * @return the registry of the metrics of the flow this context is deployed
+   * in. Default: a registry whose metrics are never reported.
+   */
+  public MetricsRegistry getMetrics() {
+    return MetricsRegistry.UNREPORTED;
+  }
+
+  /**
+   * @return the memory budget shared by the state of the stateful elements of
+   * the flow this context is deployed in. Default: an unlimited budget.
+   */
+  public StateBudget getStateBudget() {
+    return StateBudget.UNLIMITED;
+  }
+
+  /**
+   * Record the latency of an event delivered to the element using this
+   * context, if that element is the end of its flow. Default: do nothing.
+   */
+  public void recordLatency(EventWrapper e) {
+  }
+
+  /**
+   * Record the latency of a batch of events delivered to the element using
+   * this context, if that element is the end of its flow. Default: do nothing.
+   */
+  public void recordLatency(EventBatch batch) {
+  }
+
   /**
    * Notify downstream FlowElement(s) that this element will not be
    * providing future events. Downstream FlowElements should themselves
@@ -19,6 +19,9 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,16 +44,123 @@ public abstract class FlowElementImpl extends FlowElement {
 
   private int mNumOpenUpstream;
 
+  /** Number of upstream elements registered, including those since closed. */
+  private int mNumUpstream;
+
+  /** The latest watermark delivered by each upstream connection. */
+  private Map<Object, Long> mUpstreamWatermarks;
+
+  /** True if every upstream element has delivered a watermark. */
+  private boolean mHasWatermark;
+
+  /** The least of the upstream watermarks; valid if mHasWatermark is true. */
+  private long mWatermark;
+
+  /** Statistics about the events delivered to and emitted by this element. */
+  private final ElementStats mStats;
+
+  /**
+   * Ingest time of the events in the delivery being processed, or 0 if unknown.
+   * New events emitted while processing it inherit this ingest time.
+   */
+  private long mIngestNanos;
+
+  /** Deliveries remaining until the next one whose processing time is measured. */
+  private int mUntilSample;
+
+  /** True while this element processes a delivery whose processing time is measured. */
+  private boolean mTimingDelivery;
+
+  /**
+   * Time (ns) spent emitting events downstream during the timed delivery.
+   * This is excluded from the processing time of this element, as directly
+   * coupled downstream elements process the events within emit().
+   */
+  private long mEmitNanos;
+
   public FlowElementImpl(FlowElementContext ctxt) {
     mContext = ctxt;
     mIsClosed = false;
     mNumOpenUpstream = 0;
+    mStats = new ElementStats();
+    mUntilSample = 1; // Time the first delivery.
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void deliverEvent(EventWrapper e) throws IOException, InterruptedException {
+    mContext.recordLatency(e);
+    mStats.recordInput(1);
+    mIngestNanos = e.getIngestNanos();
+    if (--mUntilSample > 0) {
+      takeEvent(e);
+    } else {
+      long start = startTiming();
+      try {
+        takeEvent(e);
+      } finally {
+        finishTiming(1, start);
+      }
+    }
+    mIngestNanos = 0;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void deliverEvents(EventBatch batch) throws IOException, InterruptedException {
+    mContext.recordLatency(batch);
+    mStats.recordInput(batch.size());
+    mIngestNanos = batch.getIngestNanos();
+    if (--mUntilSample > 0) {
+      takeEvents(batch);
+    } else {
+      long start = startTiming();
+      try {
+        takeEvents(batch);
+      } finally {
+        finishTiming(batch.size(), start);
+      }
+    }
+    mIngestNanos = 0;
+  }
+
+  /**
+   * @return the ingest time of the events in the delivery being processed,
+   * or 0 if it is unknown or no delivery is being processed.
+   */
+  protected long getIngestNanos() {
+    return mIngestNanos;
+  }
+
+  /**
+   * Begin measuring the processing time of a delivery. One in every
+   * ElementStats.SAMPLE_INTERVAL deliveries is measured.
+   * @return the time at which the delivery started.
+   */
+  private long startTiming() {
+    mUntilSample = ElementStats.SAMPLE_INTERVAL;
+    mTimingDelivery = true;
+    mEmitNanos = 0;
+    return System.nanoTime();
+  }
+
+  private void finishTiming(int numEvents, long start) {
+    long nanos = System.nanoTime() - start - mEmitNanos;
+    mStats.recordProcessingTime(numEvents, Math.max(0, nanos));
+    mTimingDelivery = false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ElementStats getStats() {
+    return mStats;
   }
 
   /** {@inheritDoc} */
   @Override
   public void registerUpstream() {
     mNumOpenUpstream++;
+    mNumUpstream++;
   }
 
   @Override
@@ -61,6 +171,70 @@ public abstract class FlowElementImpl extends FlowElement {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * Once every upstream element has delivered a watermark, calls
+   * advanceWatermark() each time the least of them increases.
+   */
+  @Override
+  public void takeWatermark(Watermark watermark) throws IOException, InterruptedException {
+    if (isClosed()) {
+      return;
+    }
+
+    if (null == mUpstreamWatermarks) {
+      mUpstreamWatermarks = new IdentityHashMap<Object, Long>();
+    }
+
+    Long prev = mUpstreamWatermarks.get(watermark.getSource());
+    if (null == prev || watermark.getTime() > prev.longValue()) {
+      mUpstreamWatermarks.put(watermark.getSource(), Long.valueOf(watermark.getTime()));
+    }
+
+    if (mUpstreamWatermarks.size() < mNumUpstream) {
+      // Some upstream element does not (yet) provide watermarks; we can't
+      // promise anything about the timestamps of the events it may send.
+      return;
+    }
+
+    long watermarkTime = Long.MAX_VALUE;
+    for (Long upstreamTime : mUpstreamWatermarks.values()) {
+      watermarkTime = Math.min(watermarkTime, upstreamTime.longValue());
+    }
+
+    if (!mHasWatermark || watermarkTime > mWatermark) {
+      mHasWatermark = true;
+      mWatermark = watermarkTime;
+      advanceWatermark(watermarkTime);
+    }
+  }
+
+  /**
+   * Called when the watermark of this element advances; no more events with
+   * timestamps before 'watermark' will arrive from any upstream element.
+   * The default implementation forwards the watermark downstream. Elements
+   * which emit events with timestamps earlier than those of their inputs
+   * must forward a correspondingly earlier watermark.
+   */
+  protected void advanceWatermark(long watermark) throws IOException, InterruptedException {
+    mContext.emitWatermark(watermark);
+  }
+
+  /**
+   * @return true if every upstream element of this element provides
+   * watermarks, in which case getWatermark() is valid.
+   */
+  protected boolean hasWatermark() {
+    return mHasWatermark;
+  }
+
+  /**
+   * @return the least of the watermarks delivered by the upstream elements.
+   */
+  protected long getWatermark() {
+    return mWatermark;
+  }
+
   /**
    * Emit an event to the next stage in the processing pipeline.
    */
@@ -75,7 +249,42 @@ public abstract class FlowElementImpl extends FlowElement {
    */
   protected void emit(EventWrapper e, FlowElementContext context)
       throws IOException, InterruptedException {
-    context.emit(e);
+    if (0 == e.getIngestNanos()) {
+      e.setIngestNanos(mIngestNanos);
+    }
+    EventTracer tracer = context.getTracer();
+    if (tracer.isSampled()) {
+      tracer.trace(this, e);
+    }
+    mStats.recordOutput(1);
+    if (mTimingDelivery) {
+      long start = System.nanoTime();
+      context.emit(e);
+      mEmitNanos += System.nanoTime() - start;
+    } else {
+      context.emit(e);
+    }
+  }
+
+  /**
+   * Emit a batch of events to the next stage in the processing pipeline.
+   */
+  protected void emitBatch(EventBatch batch) throws IOException, InterruptedException {
+    if (0 == batch.getIngestNanos()) {
+      batch.setIngestNanos(mIngestNanos);
+    }
+    EventTracer tracer = mContext.getTracer();
+    if (tracer.isSampled() && !batch.isEmpty()) {
+      tracer.trace(this, batch.get(0));
+    }
+    mStats.recordOutput(batch.size());
+    if (mTimingDelivery) {
+      long start = System.nanoTime();
+      mContext.emitBatch(batch);
+      mEmitNanos += System.nanoTime() - start;
+    } else {
+      mContext.emitBatch(batch);
+    }
   }
 
   /** {@inheritDoc} */
@@ -91,6 +300,7 @@ public abstract class FlowElementImpl extends FlowElement {
     // Notify downstream elements that we're complete.
     LOG.debug("Closing element class " + getClass().getName());
     mIsClosed = true;
+    mStats.publish();
     mContext.notifyCompletion();
   }
   
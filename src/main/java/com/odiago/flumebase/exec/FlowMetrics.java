@@ -0,0 +1,254 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.odiago.flumebase.thrift.TElementMetrics;
+import com.odiago.flumebase.thrift.TFlowMetrics;
+
+/**
+ * A snapshot of the runtime metrics of a flow, to report back to the client.
+ */
+public class FlowMetrics {
+
+  /** Metrics of a single FlowElement within the flow. */
+  public static class Element {
+    /** Describes the element, and its partition if it is replicated. */
+    public final String name;
+
+    public final long eventsIn;
+    public final long eventsOut;
+
+    /** Average time (ns) spent processing each event. */
+    public final double nanosPerEvent;
+
+    /** Items (events or batches) waiting in the element's input queue(s). */
+    public final long queueDepth;
+
+    /** Greatest length of the element's input queue seen at a delivery. */
+    public final long maxQueueDepth;
+
+    /** Entries held in the element's window state. */
+    public final long stateSize;
+
+    public Element(String name, long eventsIn, long eventsOut, double nanosPerEvent,
+        long queueDepth, long maxQueueDepth, long stateSize) {
+      this.name = name;
+      this.eventsIn = eventsIn;
+      this.eventsOut = eventsOut;
+      this.nanosPerEvent = nanosPerEvent;
+      this.queueDepth = queueDepth;
+      this.maxQueueDepth = maxQueueDepth;
+      this.stateSize = stateSize;
+    }
+
+    public TElementMetrics toThrift() {
+      return new TElementMetrics(name, eventsIn, eventsOut, nanosPerEvent, queueDepth,
+          maxQueueDepth, stateSize);
+    }
+
+    public static Element fromThrift(TElementMetrics other) {
+      return new Element(other.name, other.eventsIn, other.eventsOut, other.nanosPerEvent,
+          other.queueDepth, other.maxQueueDepth, other.stateSize);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-40s %10d %10d %10.1f %8d %8d %10d", name, eventsIn, eventsOut,
+          nanosPerEvent, queueDepth, maxQueueDepth, stateSize);
+    }
+
+    /** @return the columns associated with our toString() output. */
+    public static String getHeader() {
+      return String.format("%-40s %10s %10s %10s %8s %8s %10s", "Element", "In", "Out",
+          "ns/event", "Queue", "MaxQueue", "State");
+    }
+  }
+
+  /** FlowId of this flow. */
+  public final FlowId flowId;
+
+  /** Time (ms) since the flow was deployed. */
+  public final long uptimeMillis;
+
+  /** Events read by the sources of the flow. */
+  public final long eventsIn;
+
+  /** Events which reached the end of the flow. */
+  public final long eventsOut;
+
+  /**
+   * Latency (us) of the events reaching the end of the flow, measured from
+   * when they entered it: median, 99th percentile, and maximum.
+   */
+  public final long latencyP50;
+  public final long latencyP99;
+  public final long latencyMax;
+
+  /**
+   * Lag (ms) of the events reaching the end of the flow behind their own
+   * timestamps: median, 99th percentile, and maximum.
+   */
+  public final long eventLagP50;
+  public final long eventLagP99;
+  public final long eventLagMax;
+
+  /** Items waiting in the queues between the elements of the flow. */
+  public final long queueBacklog;
+
+  /** Entries held in the window state of the flow's elements. */
+  public final long windowStateSize;
+
+  /** Events dropped because they arrived after their windows closed. */
+  public final long lateEventsDropped;
+
+  /** EventBatch instances allocated by the flow. */
+  public final long batchesAllocated;
+
+  /** Collections by the server's JVM as a whole, and the time (ms) spent in them. */
+  public final long gcCount;
+  public final long gcMillis;
+
+  /** Metrics of each element of the flow. */
+  public final List<Element> elements;
+
+  public FlowMetrics(FlowId id, long uptimeMillis, long eventsIn, long eventsOut,
+      long latencyP50, long latencyP99, long latencyMax, long eventLagP50,
+      long eventLagP99, long eventLagMax, long queueBacklog, long windowStateSize,
+      long lateEventsDropped, long batchesAllocated, long gcCount, long gcMillis,
+      List<Element> elements) {
+    this.flowId = id;
+    this.uptimeMillis = uptimeMillis;
+    this.eventsIn = eventsIn;
+    this.eventsOut = eventsOut;
+    this.latencyP50 = latencyP50;
+    this.latencyP99 = latencyP99;
+    this.latencyMax = latencyMax;
+    this.eventLagP50 = eventLagP50;
+    this.eventLagP99 = eventLagP99;
+    this.eventLagMax = eventLagMax;
+    this.queueBacklog = queueBacklog;
+    this.windowStateSize = windowStateSize;
+    this.lateEventsDropped = lateEventsDropped;
+    this.batchesAllocated = batchesAllocated;
+    this.gcCount = gcCount;
+    this.gcMillis = gcMillis;
+    this.elements = Collections.unmodifiableList(new ArrayList<Element>(elements));
+  }
+
+  /** @return the average rate (events/sec) at which the flow read events. */
+  public double getInputRate() {
+    return getRate(eventsIn);
+  }
+
+  /** @return the average rate (events/sec) at which events reached the end of the flow. */
+  public double getOutputRate() {
+    return getRate(eventsOut);
+  }
+
+  private double getRate(long numEvents) {
+    if (uptimeMillis <= 0) {
+      return 0.0;
+    }
+    return numEvents * 1000.0 / uptimeMillis;
+  }
+
+  /** @return a one-line summary, whose columns are named by getHeader(). */
+  @Override
+  public String toString() {
+    return String.format("%d\t%d\t%.1f\t%d\t%.1f\t%d\t%d\t%d\t%d\t%d\t%d\t%d",
+        flowId.getId(), eventsIn, getInputRate(), eventsOut, getOutputRate(),
+        latencyP50, latencyP99, eventLagP99, queueBacklog, windowStateSize, lateEventsDropped,
+        batchesAllocated);
+  }
+
+  /** @return the columns associated with our toString() output. */
+  public static String getHeader() {
+    return "FlowId\tIn\tIn/s\tOut\tOut/s\tp50(us)\tp99(us)\tLag(ms)\tBacklog\tState\tLate"
+        + "\tBatches";
+  }
+
+  /** @return a multi-line description of the flow and each of its elements. */
+  public String toDetailString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Flow ").append(flowId.getId()).append(", up ").append(uptimeMillis / 1000)
+        .append(" s\n");
+    sb.append(String.format("  events in:  %d (%.1f/s)\n", eventsIn, getInputRate()));
+    sb.append(String.format("  events out: %d (%.1f/s)\n", eventsOut, getOutputRate()));
+    sb.append(String.format("  latency (us): p50=%d p99=%d max=%d\n", latencyP50, latencyP99,
+        latencyMax));
+    sb.append(String.format("  event-time lag (ms): p50=%d p99=%d max=%d\n", eventLagP50,
+        eventLagP99, eventLagMax));
+    sb.append("  queue backlog: ").append(queueBacklog).append("\n");
+    sb.append("  window state: ").append(windowStateSize).append(" entries\n");
+    sb.append("  late events dropped: ").append(lateEventsDropped).append("\n");
+    sb.append("  batches allocated: ").append(batchesAllocated).append("\n");
+    sb.append("  server GC: ").append(gcCount).append(" collections, ").append(gcMillis)
+        .append(" ms\n");
+    sb.append(Element.getHeader()).append("\n");
+    for (Element element : elements) {
+      sb.append(element).append("\n");
+    }
+    return sb.toString();
+  }
+
+  public TFlowMetrics toThrift() {
+    List<TElementMetrics> thriftElements = new ArrayList<TElementMetrics>(elements.size());
+    for (Element element : elements) {
+      thriftElements.add(element.toThrift());
+    }
+
+    TFlowMetrics out = new TFlowMetrics();
+    out.setFlowId(flowId.toThrift());
+    out.setUptimeMillis(uptimeMillis);
+    out.setEventsIn(eventsIn);
+    out.setEventsOut(eventsOut);
+    out.setLatencyP50(latencyP50);
+    out.setLatencyP99(latencyP99);
+    out.setLatencyMax(latencyMax);
+    out.setEventLagP50(eventLagP50);
+    out.setEventLagP99(eventLagP99);
+    out.setEventLagMax(eventLagMax);
+    out.setQueueBacklog(queueBacklog);
+    out.setWindowStateSize(windowStateSize);
+    out.setLateEventsDropped(lateEventsDropped);
+    out.setBatchesAllocated(batchesAllocated);
+    out.setGcCount(gcCount);
+    out.setGcMillis(gcMillis);
+    out.setElements(thriftElements);
+    return out;
+  }
+
+  public static FlowMetrics fromThrift(TFlowMetrics other) {
+    List<Element> elements = new ArrayList<Element>();
+    if (null != other.elements) {
+      for (TElementMetrics element : other.elements) {
+        elements.add(Element.fromThrift(element));
+      }
+    }
+
+    return new FlowMetrics(FlowId.fromThrift(other.flowId), other.uptimeMillis,
+        other.eventsIn, other.eventsOut, other.latencyP50, other.latencyP99, other.latencyMax,
+        other.eventLagP50, other.eventLagP99, other.eventLagMax, other.queueBacklog,
+        other.windowStateSize, other.lateEventsDropped, other.batchesAllocated, other.gcCount,
+        other.gcMillis, elements);
+  }
+}
@@ -61,6 +61,9 @@ public class FlumeNodeElement extends FlowElementImpl {
   /** The fields of each record emitted by this node, and their types. */ 
   private List<TypedField> mFieldTypes;
 
+  /** The fields read by the flow, or null if any field may be read. */
+  private List<TypedField> mRequiredFields;
+
   /** Symbol of the stream we are reading from. */
   private StreamSymbol mStreamSym;
 
@@ -71,7 +74,8 @@ public class FlumeNodeElement extends FlowElementImpl {
 
   public FlumeNodeElement(FlowElementContext context, String flowSourceId,
       EmbeddedFlumeConfig flumeConfig, String upstreamSource, Schema outputSchema,
-      List<TypedField> fieldTypes, StreamSymbol streamSym) {
+      List<TypedField> fieldTypes, List<TypedField> requiredFields,
+      StreamSymbol streamSym) {
     super(context);
 
     mFlowSourceId = flowSourceId;
@@ -79,6 +83,7 @@ public class FlumeNodeElement extends FlowElementImpl {
     mUpstreamNode = upstreamSource;
     mOutputSchema = outputSchema;
     mFieldTypes = fieldTypes;
+    mRequiredFields = requiredFields;
     mStreamSym = streamSym;
   }
 
@@ -87,13 +92,15 @@ public class FlumeNodeElement extends FlowElementImpl {
     super.open();
     LOG.debug("Opening Flume node element; binding sink context id=" + mFlowSourceId);
     SinkContextBindings.get().bindContext(mFlowSourceId,
-        new SinkContext(getContext(), mOutputSchema, mFieldTypes, mStreamSym));
+        new SinkContext(getContext(), mOutputSchema, mFieldTypes, mRequiredFields,
+            mStreamSym, getStats()));
     mFlumeConfig.addFlowToForeignNode(mUpstreamNode, mFlowSourceId);
   }
 
   @Override
   public void close() throws IOException, InterruptedException {
     mFlumeConfig.cancelForeignConn(mUpstreamNode, mFlowSourceId);
+    SinkContextBindings.get().dropContext(mFlowSourceId);
     super.close();
   }
 
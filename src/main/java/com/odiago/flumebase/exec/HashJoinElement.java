@@ -17,8 +17,11 @@
 
 package com.odiago.flumebase.exec;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -31,6 +34,9 @@ import org.slf4j.LoggerFactory;
 
 import com.cloudera.flume.core.Event;
 
+import com.odiago.flumebase.exec.local.TimerFlowElemContext;
+import com.odiago.flumebase.exec.local.TimerWheel;
+
 import com.odiago.flumebase.lang.TimeSpan;
 
 import com.odiago.flumebase.parser.TypedField;
@@ -38,27 +44,50 @@ import com.odiago.flumebase.parser.WindowSpec;
 
 import com.odiago.flumebase.plan.HashJoinNode;
 
-import com.odiago.flumebase.util.WindowedHashMap;
+import com.odiago.flumebase.util.StateBudget;
+import com.odiago.flumebase.util.WindowedJoinIndex;
+
+import com.odiago.flumebase.util.concurrent.SelectableQueue;
 
 /**
  * FlowElement that performs a hash join between two input streams
  * based on equality of a specific input key.
  */
-public class HashJoinElement extends FlowElementImpl {
+public class HashJoinElement extends FlowElementImpl implements Checkpointable {
   private static final Logger LOG = LoggerFactory.getLogger(
       HashJoinElement.class.getName());
 
   /**
-   * HashMap containing enqueued elements of the left stream within the
-   * current window.
+   * Configuration key for the number of segments that subdivide the join
+   * window. Enqueued events are expired a segment at a time.
+   */
+  public static final String NUM_SEGMENTS_KEY = "flumebase.join.segments";
+  public static final int DEFAULT_NUM_SEGMENTS = 8;
+
+  /** Width of the segments of the join indices, in milliseconds. */
+  private final long mSegmentWidth;
+
+  /**
+   * Index containing enqueued elements of the left stream within the
+   * current window. The indices are created when the element is bound to
+   * its flow, and count against the flow's StateBudget.
    */
-  private WindowedHashMap<Object, EventWrapper, Long> mLeftMap;
+  private WindowedJoinIndex<Object, EventWrapper> mLeftMap;
 
   /**
-   * HashMap containing enqueued elements of the right stream within the
+   * Index containing enqueued elements of the right stream within the
    * current window.
    */
-  private WindowedHashMap<Object, EventWrapper, Long> mRightMap;
+  private WindowedJoinIndex<Object, EventWrapper> mRightMap;
+
+  /** Serializes the events of the left stream into checkpoints and spill files. */
+  private EventWrapperSerializer mLeftSerializer;
+
+  /** Serializes the events of the right stream into checkpoints and spill files. */
+  private EventWrapperSerializer mRightSerializer;
+
+  /** Reused to hold the join candidates for each event. */
+  private List<EventWrapper> mJoinEvents;
 
   /** Name of the left-side stream. */
   private String mLeftName; 
@@ -95,6 +124,33 @@ public class HashJoinElement extends FlowElementImpl {
    */
   private int mSlackTime;
 
+  /**
+   * The timer wheel used to release the state of idle streams, or null if
+   * this element has no timer context.
+   */
+  private TimerWheel mTimerWheel;
+
+  /** SelectableQueue for the downstream timer element, which our idle checks enqueue into. */
+  private SelectableQueue<Object> mTimerQueue;
+
+  /** Set to true when this element closes; a pending idle check is discarded. */
+  private volatile boolean mIdleCheckCancelled;
+
+  /** True if an idle check is scheduled or enqueued. */
+  private boolean mIdleCheckPending;
+
+  /** Number of events received by this element. */
+  private long mNumEvents;
+
+  /** The value of mNumEvents when the pending idle check was scheduled. */
+  private long mNumEventsAtIdleCheck;
+
+  /**
+   * Newest event timestamp received. While the input is idle, this is advanced
+   * as each idle check expires old entries.
+   */
+  private long mLastEventTime = Long.MIN_VALUE;
+
   public HashJoinElement(FlowElementContext ctxt, String leftName, String rightName,
       TypedField leftKey, TypedField rightKey, WindowSpec windowWidth, String outName,
       List<TypedField> leftFieldNames, List<TypedField> rightFieldNames, Configuration conf) {
@@ -106,9 +162,6 @@ public class HashJoinElement extends FlowElementImpl {
       mSlackTime = BucketedAggregationElement.DEFAULT_SLACK_INTERVAL;
     }
 
-    mLeftMap = new WindowedHashMap<Object, EventWrapper, Long>();
-    mRightMap = new WindowedHashMap<Object, EventWrapper, Long>();
-
     mLeftName = leftName;
     mRightName = rightName;
     mLeftKey = leftKey;
@@ -123,6 +176,19 @@ public class HashJoinElement extends FlowElementImpl {
     }
     mOutName = outName;
 
+    int numSegments = conf.getInt(NUM_SEGMENTS_KEY, DEFAULT_NUM_SEGMENTS);
+    if (numSegments <= 0) {
+      numSegments = DEFAULT_NUM_SEGMENTS;
+    }
+    long segmentWidth = 1;
+    if (null != mTimeSpan) {
+      segmentWidth = Math.max(1, mTimeSpan.getWidth() / numSegments);
+    }
+    mSegmentWidth = segmentWidth;
+    mLeftSerializer = new EventWrapperSerializer(leftFieldNames);
+    mRightSerializer = new EventWrapperSerializer(rightFieldNames);
+    mJoinEvents = new ArrayList<EventWrapper>();
+
     initFieldMap(leftFieldNames, rightFieldNames);
   }
 
@@ -156,9 +222,179 @@ public class HashJoinElement extends FlowElementImpl {
     mFieldMap = Collections.unmodifiableMap(mFieldMap);
   }
 
+  /**
+   * Create the join indices, in the StateStores of the flow's StateBudget.
+   * Called before any state is restored or any event arrives.
+   */
+  private void initIndices() {
+    if (null != mLeftMap) {
+      return;
+    }
+
+    StateBudget budget = getContext().getStateBudget();
+    mLeftMap = new WindowedJoinIndex<Object, EventWrapper>(mSegmentWidth,
+        budget.newStore(mLeftSerializer, "flumebase-join-"), budget);
+    mRightMap = new WindowedJoinIndex<Object, EventWrapper>(mSegmentWidth,
+        budget.newStore(mRightSerializer, "flumebase-join-"), budget);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void open() throws IOException, InterruptedException {
+    initIndices();
+    FlowElementContext context = getContext();
+    if (context instanceof TimerFlowElemContext
+        && null != ((TimerFlowElemContext) context).getTimerElement()) {
+      TimerFlowElemContext timerContext = (TimerFlowElemContext) context;
+      mTimerWheel = timerContext.getTimerWheel();
+      mTimerQueue = timerContext.getTimerQueue();
+    }
+    super.open();
+
+    if (null != mTimerWheel && (!mLeftMap.isEmpty() || !mRightMap.isEmpty())) {
+      // Entries restored from a checkpoint must expire even if no new events arrive.
+      scheduleIdleCheck();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void saveState(DataOutput out) throws IOException {
+    out.writeLong(mLastEventTime);
+    saveIndex(mLeftMap, mLeftSerializer, out);
+    saveIndex(mRightMap, mRightSerializer, out);
+  }
+
+  private void saveIndex(WindowedJoinIndex<Object, EventWrapper> index,
+      final EventWrapperSerializer serializer, final DataOutput out) throws IOException {
+    out.writeInt(index.size());
+    index.visitEntries(new WindowedJoinIndex.EntryVisitor<Object, EventWrapper>() {
+      public void visit(Object key, EventWrapper value, long timestamp) throws IOException {
+        ValueCodec.write(key, out);
+        out.writeLong(timestamp);
+        if (!serializer.write(value, out)) {
+          throw new IOException("Cannot checkpoint join entry with key " + key);
+        }
+      }
+    });
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void restoreState(DataInput in) throws IOException {
+    initIndices();
+    mLastEventTime = in.readLong();
+    restoreIndex(mLeftMap, mLeftSerializer, in);
+    restoreIndex(mRightMap, mRightSerializer, in);
+    updateStateSize();
+  }
+
+  private void restoreIndex(WindowedJoinIndex<Object, EventWrapper> index,
+      EventWrapperSerializer serializer, DataInput in) throws IOException {
+    int numEntries = in.readInt();
+    for (int i = 0; i < numEntries; i++) {
+      Object key = ValueCodec.read(in);
+      long timestamp = in.readLong();
+      index.put(key, serializer.read(in), timestamp);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException, InterruptedException {
+    mIdleCheckCancelled = true;
+    if (null != mLeftMap) {
+      // Release the windows, deleting any spill files.
+      mLeftMap.clear();
+      mRightMap.clear();
+      updateStateSize();
+    }
+    super.close();
+  }
+
+  /** Report the number of events held in the windows of both streams. */
+  private void updateStateSize() {
+    getStats().setStateSize(mLeftMap.size() + mRightMap.size());
+  }
+
+  /**
+   * @return the span of event time after an entry is inserted during which it
+   * may still join with events from the other stream.
+   */
+  private long getJoinExtent() {
+    return Math.max(1, Math.max(Math.abs(mTimeSpan.lo), Math.abs(mTimeSpan.hi)));
+  }
+
+  /**
+   * Schedule a check, after the join extent and slack time have passed in
+   * local time, for whether any events arrived in the meantime.
+   */
+  private void scheduleIdleCheck() {
+    mIdleCheckPending = true;
+    mNumEventsAtIdleCheck = mNumEvents;
+    mTimerWheel.schedule(getJoinExtent() + mSlackTime, new TimerWheel.Task() {
+      public boolean expire() {
+        if (mIdleCheckCancelled) {
+          return true;
+        }
+
+        // If the queue is full, the timer wheel retries on its next tick.
+        return mTimerQueue.offer(new EmptyEventWrapper());
+      }
+    });
+  }
+
+  /**
+   * Called in the main thread by the timeout element when an idle check
+   * expires. Entries are normally expired by the arrival of newer events;
+   * if no events have arrived since the check was scheduled, we assume event
+   * time has advanced by the join extent and expire entries as the arrival
+   * of an event at that time on either stream would. This releases the state
+   * held for streams that have gone idle.
+   */
+  private void checkIdle() {
+    mIdleCheckPending = false;
+    if (hasWatermark()) {
+      return; // Watermarks now determine when entries expire.
+    }
+    if (mNumEvents == mNumEventsAtIdleCheck && mLastEventTime != Long.MIN_VALUE) {
+      mLastEventTime += getJoinExtent();
+      mRightMap.removeOlderThan(mLastEventTime + mTimeSpan.lo - mSlackTime);
+      mLeftMap.removeOlderThan(mLastEventTime - mTimeSpan.hi - mSlackTime);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Inputs idle; expired join state as of time " + mLastEventTime);
+      }
+      updateStateSize();
+    }
+
+    if (!mLeftMap.isEmpty() || !mRightMap.isEmpty()) {
+      scheduleIdleCheck();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * Expires the entries which no event at or after the watermark can join with.
+   */
+  @Override
+  protected void advanceWatermark(long watermark) throws IOException, InterruptedException {
+    if (Long.MIN_VALUE != watermark && Watermark.END_OF_STREAM != watermark) {
+      // A left event at time t >= watermark joins right entries from t + lo onward;
+      // a right event joins left entries from t - hi onward.
+      mRightMap.removeOlderThan(watermark + mTimeSpan.lo);
+      mLeftMap.removeOlderThan(watermark - mTimeSpan.hi);
+      updateStateSize();
+    }
+
+    // Output events take the timestamps of the input events which trigger them.
+    super.advanceWatermark(watermark);
+  }
+
   @Override
   public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
     Event event = e.getEvent();
+    mNumEvents++;
+    mLastEventTime = Math.max(mLastEventTime, event.getTimestamp());
 
     // Determine which stream the event is from; this determines which map we
     // place the event in, and which map we check for candidate join matches.
@@ -169,8 +405,8 @@ public class HashJoinElement extends FlowElementImpl {
       return;
     }
 
-    WindowedHashMap<Object, EventWrapper, Long> insertMap; // Map where we insert this event.
-    WindowedHashMap<Object, EventWrapper, Long> joinMap; // Map we pull join candidates from.
+    WindowedJoinIndex<Object, EventWrapper> insertMap; // Map where we insert this event.
+    WindowedJoinIndex<Object, EventWrapper> joinMap; // Map we pull join candidates from.
     TypedField keyField; // The field to grab from the event wrapper.
     boolean isLeft;
 
@@ -199,8 +435,8 @@ public class HashJoinElement extends FlowElementImpl {
 
     assert mTimeSpan.isRelative;
     long curTime = event.getTimestamp();
-    Long lo;
-    Long hi;
+    long lo;
+    long hi;
 
     if (isLeft) {
       // If this event is from the left stream, calculate the relative time interval normally. 
@@ -214,11 +450,15 @@ public class HashJoinElement extends FlowElementImpl {
       hi = curTime - mTimeSpan.lo;
     }
 
-    LOG.debug("Working on key: " + key + ", isLeft=" + isLeft);
-    LOG.debug("Timestamp=" + curTime + ", interval=" + lo + ", " + hi);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Working on key: " + key + ", isLeft=" + isLeft);
+      LOG.debug("Timestamp=" + curTime + ", interval=" + lo + ", " + hi);
+    }
 
     // Join with all the events in the window.
-    List<EventWrapper> joinEvents = joinMap.getRange(key, lo, hi, isLeft, !isLeft);
+    List<EventWrapper> joinEvents = mJoinEvents;
+    joinEvents.clear();
+    joinMap.getRange(key, lo, hi, isLeft, !isLeft, joinEvents);
     for (EventWrapper joinWrapper : joinEvents) {
       CompositeEvent outEvent = new CompositeEvent(mFieldMap,
           event.getPriority(), event.getTimestamp(), event.getNanos(), event.getHost());
@@ -236,10 +476,17 @@ public class HashJoinElement extends FlowElementImpl {
       outWrapper.reset(outEvent);
       emit(outWrapper);
     }
+    joinEvents.clear(); // Don't retain the candidates until the next event.
 
     // Save the event for joining with other events that arrive in the future.
     insertMap.put(key, e, curTime);
 
+    if (hasWatermark()) {
+      // Entries are expired as the watermark advances.
+      updateStateSize();
+      return;
+    }
+
     // Remove entries from the join target map that are behind the current
     // window, to keep the window maps from overfilling.
     // Anything behind the 'lo' value can be removed.
@@ -251,16 +498,44 @@ public class HashJoinElement extends FlowElementImpl {
     // the other map, remove obsolete values from insertMap. Calculating based
     // on the oldest entry in the other map ensures that we are not discarding
     // values that we cannot process yet because one stream is delayed.
-    Long oldestInOtherMap = joinMap.oldestTimestamp();
-    if (null != oldestInOtherMap) {
-      Long otherMapLo;
+    if (!joinMap.isEmpty()) {
+      long oldestInOtherMap = joinMap.oldestTimestamp();
+      long otherMapLo;
       if (isLeft) {
         otherMapLo = oldestInOtherMap - mTimeSpan.hi;
       } else {
         otherMapLo = oldestInOtherMap + mTimeSpan.lo;
       }
-      LOG.debug("otherMapLo=" + otherMapLo);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("otherMapLo=" + otherMapLo);
+      }
       insertMap.removeOlderThan(otherMapLo - mSlackTime);
     }
+    updateStateSize();
+
+    if (null != mTimerWheel && !mIdleCheckPending) {
+      scheduleIdleCheck();
+    }
+  }
+
+  /**
+   * Separate FlowElement that handles notifications from the timer wheel; this
+   * operates in the main thread, releasing the state held for idle streams.
+   */
+  public class TimeoutEvictionElement extends FlowElementImpl {
+    private TimeoutEvictionElement(FlowElementContext ctxt) {
+      super(ctxt);
+    }
+
+    public void takeEvent(EventWrapper e) {
+      checkIdle();
+    }
+  }
+
+  /**
+   * Create a TimeoutEvictionElement coupled to this HashJoinElement.
+   */
+  public TimeoutEvictionElement getTimeoutElement(FlowElementContext timeoutContext) {
+    return this.new TimeoutEvictionElement(timeoutContext);
   }
 }
@@ -17,11 +17,14 @@
 
 package com.odiago.flumebase.exec;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 
 /**
  * HashMap-backed (transient) symbol table.
+ * Lookups and modifications are synchronized, since the root symbol table
+ * is shared between the client thread and the execution worker threads.
  */
 public class HashSymbolTable extends SymbolTable {
   /** The actual lookup table for symbols in our scope. */
@@ -55,27 +58,32 @@ public class HashSymbolTable extends SymbolTable {
   }
 
   @Override
-  public Symbol resolveLocal(String symName) {
+  public synchronized Symbol resolveLocal(String symName) {
     return mTable.get(symName);
   }
 
   @Override
-  public void addSymbol(Symbol sym) {
+  public synchronized void addSymbol(Symbol sym) {
     mTable.put(sym.getName(), sym);
   }
 
   @Override
-  public void remove(String name) {
+  public synchronized void remove(String name) {
     mTable.remove(name);
   }
 
   @Override
   public Iterator<Symbol> iterator() {
-    return new LinkedIterator(mTable.values().iterator());
+    return new LinkedIterator(levelIterator());
   }
 
+  /**
+   * {@inheritDoc}
+   * Iterates over a copy of this level's symbols taken under the lock, so that
+   * other threads may add or remove symbols while the caller iterates.
+   */
   @Override
-  public Iterator<Symbol> levelIterator() {
-    return mTable.values().iterator();
+  public synchronized Iterator<Symbol> levelIterator() {
+    return new ArrayList<Symbol>(mTable.values()).iterator();
   }
 }
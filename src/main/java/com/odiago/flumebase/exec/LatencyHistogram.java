@@ -0,0 +1,132 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative long values, such as latencies, which may be
+ * recorded by many threads at once.
+ *
+ * <p>Like an HdrHistogram, values are counted in log-linear buckets: values
+ * below 2<sup>SUB_BUCKET_BITS</sup> are counted exactly, and larger values
+ * fall into one of 2<sup>SUB_BUCKET_BITS</sup> equal buckets between
+ * consecutive powers of two. Every value up to Long.MAX_VALUE is counted
+ * with a relative error of at most 1 / 2<sup>SUB_BUCKET_BITS</sup>, in a
+ * fixed amount of memory. Recording a value costs a few shifts and a
+ * single atomic increment, and never allocates.</p>
+ */
+public class LatencyHistogram {
+
+  /** log2 of the number of buckets between consecutive powers of two. */
+  private static final int SUB_BUCKET_BITS = 5;
+
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  /** Number of buckets needed to hold values up to Long.MAX_VALUE. */
+  private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  /** The number of values recorded in each bucket. */
+  private final AtomicLongArray mCounts;
+
+  public LatencyHistogram() {
+    mCounts = new AtomicLongArray(NUM_BUCKETS);
+  }
+
+  /** @return the index of the bucket that counts 'value', which must be >= 0. */
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+
+    // The highest SUB_BUCKET_BITS + 1 bits of the value select the bucket.
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /** @return the greatest value counted in the specified bucket. */
+  static long highestValueInBucket(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+
+    int shift = index / SUB_BUCKET_COUNT - 1;
+    long lowest = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  /** Record a value. Negative values are recorded as zero. */
+  public void record(long value) {
+    mCounts.incrementAndGet(bucketIndex(Math.max(0, value)));
+  }
+
+  /** @return the number of values recorded. */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      count += mCounts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * @return the value at the specified percentile (0 to 100) of the values
+   * recorded: the least value such that at least 'percentile' percent of the
+   * recorded values are equal to it or smaller, to within the precision of the
+   * histogram. Returns 0 if no values have been recorded.
+   */
+  public long getValueAtPercentile(double percentile) {
+    // Copy the counts first, so values recorded concurrently cannot
+    // push the target count past the total.
+    long[] counts = new long[NUM_BUCKETS];
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts[i] = mCounts.get(i);
+      total += counts[i];
+    }
+
+    if (0 == total) {
+      return 0;
+    }
+
+    double fraction = Math.min(100.0, Math.max(0.0, percentile)) / 100.0;
+    long target = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return highestValueInBucket(i);
+      }
+    }
+
+    return highestValueInBucket(NUM_BUCKETS - 1); // Unreachable.
+  }
+
+  /** @return the greatest value recorded, to within the histogram's precision. */
+  public long getMax() {
+    for (int i = NUM_BUCKETS - 1; i >= 0; i--) {
+      if (mCounts.get(i) > 0) {
+        return highestValueInBucket(i);
+      }
+    }
+
+    return 0;
+  }
+}
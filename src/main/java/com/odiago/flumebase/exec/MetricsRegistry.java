@@ -0,0 +1,119 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The counters and histograms of a single flow, keyed by name.
+ *
+ * <p>Each flow has its own registry, which its elements reach through
+ * FlowElementContext.getMetrics(). Looking a metric up by name costs a hash
+ * lookup; elements that update a metric for every event or batch should look
+ * it up once and keep a reference to it. Metrics may be updated from any
+ * thread, and are read when a client requests the flow's metrics.</p>
+ */
+public class MetricsRegistry {
+
+  /**
+   * Histogram of the local time (us) from when each event entered the flow
+   * until it reaches the end of the flow.
+   */
+  public static final String LATENCY_US = "latency.us";
+
+  /**
+   * Histogram of the time (ms) from each event's timestamp until it reaches
+   * the end of the flow. This includes any time spent upstream of the flow.
+   */
+  public static final String EVENT_LAG_MS = "event.lag.ms";
+
+  /** Counter of events dropped because they arrived after their window closed. */
+  public static final String LATE_EVENTS_DROPPED = "events.late.dropped";
+
+  /**
+   * Counter of events dropped because the buffer of a flow subscribing to a
+   * live stream or shared sub-plan was full.
+   */
+  public static final String SUBSCRIBER_EVENTS_DROPPED = "events.subscriber.dropped";
+
+  /** Counter of EventBatch instances allocated by the elements of the flow. */
+  public static final String BATCHES_ALLOCATED = "batches.allocated";
+
+  /**
+   * A registry for elements which are not deployed in a flow. The metrics
+   * recorded in it are never reported.
+   */
+  public static final MetricsRegistry UNREPORTED = new MetricsRegistry();
+
+  private final ConcurrentMap<String, StripedCounter> mCounters;
+
+  private final ConcurrentMap<String, LatencyHistogram> mHistograms;
+
+  /** Time (ms since the epoch) at which the registry was created. */
+  private final long mStartTime;
+
+  public MetricsRegistry() {
+    mCounters = new ConcurrentHashMap<String, StripedCounter>();
+    mHistograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    mStartTime = System.currentTimeMillis();
+  }
+
+  /** @return the counter with the specified name, creating it if necessary. */
+  public StripedCounter getCounter(String name) {
+    StripedCounter counter = mCounters.get(name);
+    if (null == counter) {
+      StripedCounter newCounter = new StripedCounter();
+      counter = mCounters.putIfAbsent(name, newCounter);
+      if (null == counter) {
+        counter = newCounter;
+      }
+    }
+    return counter;
+  }
+
+  /** @return the histogram with the specified name, creating it if necessary. */
+  public LatencyHistogram getHistogram(String name) {
+    LatencyHistogram histogram = mHistograms.get(name);
+    if (null == histogram) {
+      LatencyHistogram newHistogram = new LatencyHistogram();
+      histogram = mHistograms.putIfAbsent(name, newHistogram);
+      if (null == histogram) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
+  }
+
+  /** @return the current value of every counter, sorted by name. */
+  public Map<String, Long> getCounterValues() {
+    Map<String, Long> values = new TreeMap<String, Long>();
+    for (Map.Entry<String, StripedCounter> entry : mCounters.entrySet()) {
+      values.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+    }
+    return values;
+  }
+
+  /** @return the time (ms since the epoch) at which the registry was created. */
+  public long getStartTime() {
+    return mStartTime;
+  }
+}
@@ -20,10 +20,7 @@ package com.odiago.flumebase.exec;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
-import java.nio.ByteBuffer;
-
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 import java.util.concurrent.ArrayBlockingQueue;
@@ -46,8 +43,7 @@ import org.slf4j.LoggerFactory;
 import com.cloudera.flume.core.Event;
 import com.cloudera.flume.core.EventImpl;
 
-import com.odiago.flumebase.exec.builtins.bin2str;
-
+import com.odiago.flumebase.exec.local.ActiveFlowData;
 import com.odiago.flumebase.exec.local.LocalContext;
 
 import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
@@ -57,8 +53,6 @@ import com.odiago.flumebase.flume.SourceContextBindings;
 import com.odiago.flumebase.io.AvroEventParser;
 
 import com.odiago.flumebase.lang.StreamType;
-import com.odiago.flumebase.lang.Timestamp;
-import com.odiago.flumebase.lang.TimestampBase;
 import com.odiago.flumebase.lang.Type;
 
 import com.odiago.flumebase.parser.FormatSpec;
@@ -85,11 +79,6 @@ public class OutputElement extends FlowElementImpl {
   /** Max queue length we deliver to Flume before blocking. */
   private static final int MAX_QUEUE_LEN = 512;
 
-  private static bin2str BIN2STR_FN; // Used for stringifying ByteBuffers.
-  static {
-    BIN2STR_FN = new bin2str();
-  }
-
   /** Input fields being delivered to this node. */
   private List<TypedField> mInputFields;
 
@@ -125,6 +114,11 @@ public class OutputElement extends FlowElementImpl {
   private GenericDatumWriter<GenericRecord> mDatumWriter;
   private ByteArrayOutputStream mOutputBytes;
 
+  /** Schema of the records sent to the consoles of subscribers, and its JSON form. */
+  private Schema mConsoleSchema;
+  private String mConsoleSchemaJson;
+  private GenericDatumWriter<GenericRecord> mConsoleDatumWriter;
+
   public OutputElement(FlowElementContext context, Schema inputSchema,
       List<TypedField> fields, EmbeddedFlumeConfig flumeConfig, String flumeNodeName,
       Schema outputSchema, List<TypedField> outputFields, SymbolTable rootSymbolTable) {
@@ -145,6 +139,10 @@ public class OutputElement extends FlowElementImpl {
     mDatumWriter = new GenericDatumWriter<GenericRecord>(outputSchema);
     mOutputBytes = new ByteArrayOutputStream();
     mEncoder = new BinaryEncoder(mOutputBytes);
+
+    mConsoleSchema = ConsoleRows.createSchema(mInputFields);
+    mConsoleSchemaJson = mConsoleSchema.toString();
+    mConsoleDatumWriter = new GenericDatumWriter<GenericRecord>(mConsoleSchema);
   }
 
   private StringBuilder formatHeader() {
@@ -166,8 +164,11 @@ public class OutputElement extends FlowElementImpl {
   @Override
   public void open() throws IOException {
     if (null != mFlumeNodeName) {
-      if (!mFlumeConfig.isRunning()) {
-        mFlumeConfig.start();
+      synchronized (mFlumeConfig) {
+        // Other flows on other worker threads may start Flume concurrently.
+        if (!mFlumeConfig.isRunning()) {
+          mFlumeConfig.start();
+        }
       }
 
       // Open a Flume logical node to host the results of this query.
@@ -294,7 +295,9 @@ public class OutputElement extends FlowElementImpl {
       mDatumWriter.write(record, mEncoder);
     } catch (NullPointerException npe) {
       // Schema error -- null output value in non-null field. Drop the record.
-      LOG.debug("Dropping output record with NULL value in non-null field: " + npe);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Dropping output record with NULL value in non-null field: " + npe);
+      }
       return;
     }
 
@@ -302,63 +305,53 @@ public class OutputElement extends FlowElementImpl {
     mOutputQueue.put(out);
   }
 
+  /**
+   * Encode the internal event as an Avro record of the console schema.
+   * @return the encoded record, or null if it could not be encoded.
+   */
+  private byte[] encodeConsoleRow(EventWrapper e) throws IOException {
+    GenericData.Record record = new GenericData.Record(mConsoleSchema);
+    record.put(0, Long.valueOf(e.getEvent().getTimestamp()));
+    for (int i = 0; i < mInputFields.size(); i++) {
+      record.put(i + 1, ConsoleRows.toAvro(e.getField(mInputFields.get(i))));
+    }
+
+    mOutputBytes.reset();
+    try {
+      mConsoleDatumWriter.write(record, mEncoder);
+    } catch (RuntimeException re) {
+      // A value that does not match the type of its column. Drop the record.
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Dropping console record that does not match its schema: " + re);
+      }
+      return null;
+    }
+    return mOutputBytes.toByteArray();
+  }
+
   @Override
   public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
-    LocalContext context = (LocalContext) getContext();
-    List<UserSession> subscribers = new LinkedList<UserSession>(
-        context.getFlowData().getSubscribers());
-
     if (mOutputQueue != null) {
       emitToFlume(e);
     }
 
-    if (subscribers.size() == 0) {
-      // Nobody is listening on a console; don't waste time formatting it as a string.
+    ActiveFlowData flowData = ((LocalContext) getContext()).getFlowData();
+    List<UserSession> subscribers = flowData.getSubscribers();
+    if (subscribers.isEmpty()) {
+      // Nobody is listening on a console; don't waste time encoding the record.
       return;
     }
 
-    StringBuilder sb = new StringBuilder();
-    long ts = e.getEvent().getTimestamp();
-    sb.append(ts);
-
-    // Extract the Avro record from the event.
-    for (TypedField field : mInputFields) {
-      sb.append('\t');
-      Object fieldVal = e.getField(field);
-      if (null != fieldVal) {
-        LOG.debug("Printing val of class " + fieldVal.getClass().getName());
-      }
-
-      // If we get any GenericRecord types, convert them to our own specific types
-      // if we can figure out which to use. This makes toString'ing prettier.
-      if (fieldVal instanceof GenericRecord) {
-        GenericRecord record = (GenericRecord) fieldVal;
-        if (record.getSchema().equals(TimestampBase.SCHEMA$)) {
-          fieldVal = new Timestamp((Long) record.get("milliseconds"),
-              (Long) record.get("nanos"));
-        }
-      }
-
-      if (null == fieldVal) {
-        sb.append("null");
-      } else if (fieldVal instanceof ByteBuffer) {
-        sb.append("B[");
-        String toStr = (String) BIN2STR_FN.eval(null, fieldVal);
-        sb.append(toStr);
-        sb.append("]");
-      } else if (fieldVal instanceof List<?>) {
-        sb.append("[");
-        StringUtils.formatList(sb, (List<?>) fieldVal);
-        sb.append("]");
-      } else {
-        sb.append(fieldVal);
-      }
+    // Encode the record once; each subscriber's session buffers it and sends
+    // it to the client in a block with other records, on its own thread.
+    byte[] row = encodeConsoleRow(e);
+    if (null == row) {
+      return;
     }
 
-    // Notify all subscribers of our output.
-    String output = sb.toString();
+    FlowId flowId = flowData.getFlowId();
     for (UserSession session : subscribers) {
-      session.sendInfo(output);
+      session.sendRow(flowId, mConsoleSchemaJson, row);
     }
   }
 
@@ -19,7 +19,6 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -46,12 +45,20 @@ public class ParsingEventWrapper extends EventWrapperImpl {
   private EventParser mParser;
   private Event mEvent;
 
-  /** An ordered list of field names. */
-  private List<String> mFieldNames;
+  /** The fields of the stream; each field's slot is its column index. */
+  private RowLayout mLayout;
 
   public ParsingEventWrapper(EventParser parser, List<String> fieldNames) {
+    this(parser, RowLayout.forNames(fieldNames));
+  }
+
+  /**
+   * Create a wrapper whose fields are laid out as in the specified layout.
+   * Sources should create a single layout and share it between all events.
+   */
+  public ParsingEventWrapper(EventParser parser, RowLayout layout) {
     mParser = parser;
-    mFieldNames = new ArrayList<String>(fieldNames);
+    mLayout = layout;
   }
 
   @Override
@@ -62,7 +69,7 @@ public class ParsingEventWrapper extends EventWrapperImpl {
 
   @Override
   public Object getField(TypedField field) throws IOException {
-    int pos = mFieldNames.indexOf(field.getAvroName());
+    int pos = mLayout.getSlot(field.getAvroName());
     // The field name should have an index, or else there was an error during
     // the logical planning phase.
     assert pos != -1;
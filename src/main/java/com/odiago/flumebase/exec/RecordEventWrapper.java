@@ -0,0 +1,75 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import org.apache.avro.generic.GenericData;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * An EventWrapper around an in-memory Avro record produced by an upstream
+ * FlowElement. Unlike AvroEventWrapper, the record is never encoded to
+ * bytes; fields are read directly out of the record object. The wrapped
+ * Event carries only the metadata (timestamp, priority, host, etc.) of the
+ * event, and has an empty body.
+ */
+public class RecordEventWrapper extends EventWrapperImpl {
+  private Event mEvent;
+  private GenericData.Record mRecord;
+
+  public RecordEventWrapper(GenericData.Record record, Event event) {
+    mRecord = record;
+    mEvent = event;
+  }
+
+  /**
+   * Records are bound at construction; a RecordEventWrapper cannot be reset
+   * to an arbitrary Event.
+   */
+  @Override
+  public void reset(Event e) {
+    throw new UnsupportedOperationException("RecordEventWrapper cannot be reset");
+  }
+
+  @Override
+  public Object getField(TypedField field) throws IOException {
+    return mRecord.get(field.getAvroName());
+  }
+
+  @Override
+  public Event getEvent() {
+    return mEvent;
+  }
+
+  /**
+   * @return the avro record.
+   */
+  public GenericData.Record getRecord() {
+    return mRecord;
+  }
+
+  @Override
+  public String getEventText() {
+    return mRecord.toString();
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.exec;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * Assigns each of an ordered set of fields a fixed slot in a TypedRow,
+ * along with the primitive storage used for values of that field.
+ * Layouts are built once when a flow is planned, so that expressions can
+ * address fields by slot rather than by name for every event.
+ */
+public class RowLayout {
+
+  /** How the values of a slot are stored in a TypedRow. */
+  public enum Storage {
+    LONG,   // BOOLEAN, INT, and BIGINT values.
+    DOUBLE, // FLOAT and DOUBLE values.
+    OBJECT, // Everything else.
+  }
+
+  private final List<TypedField> mFields;
+  private final Map<String, Integer> mSlots;
+  private final Type.TypeName[] mTypeNames;
+  private final Storage[] mStorage;
+
+  public RowLayout(List<TypedField> fields) {
+    mFields = Collections.unmodifiableList(new ArrayList<TypedField>(fields));
+    mSlots = new HashMap<String, Integer>();
+    mTypeNames = new Type.TypeName[fields.size()];
+    mStorage = new Storage[fields.size()];
+
+    for (int i = 0; i < mFields.size(); i++) {
+      TypedField field = mFields.get(i);
+      mSlots.put(field.getAvroName(), Integer.valueOf(i));
+      Type.TypeName typeName = field.getType().getPrimitiveTypeName();
+      mTypeNames[i] = typeName;
+      mStorage[i] = getStorage(typeName);
+    }
+  }
+
+  /**
+   * @return a layout for fields that are only known by name. All slots use
+   * OBJECT storage.
+   */
+  public static RowLayout forNames(List<String> names) {
+    List<TypedField> fields = new ArrayList<TypedField>(names.size());
+    for (String name : names) {
+      fields.add(new TypedField(name, Type.getNullable(Type.TypeName.TYPECLASS_ANY)));
+    }
+    return new RowLayout(fields);
+  }
+
+  /** @return the storage used for values of the specified type. */
+  public static Storage storageFor(Type type) {
+    return getStorage(null == type ? null : type.getPrimitiveTypeName());
+  }
+
+  private static Storage getStorage(Type.TypeName typeName) {
+    if (null == typeName) {
+      return Storage.OBJECT;
+    }
+
+    switch (typeName) {
+    case BOOLEAN:
+    case INT:
+    case BIGINT:
+      return Storage.LONG;
+    case FLOAT:
+    case DOUBLE:
+      return Storage.DOUBLE;
+    default:
+      return Storage.OBJECT;
+    }
+  }
+
+  /** @return the number of slots in the layout. */
+  public int size() {
+    return mFields.size();
+  }
+
+  /** @return the slot holding the field with the specified avro name, or -1. */
+  public int getSlot(String avroName) {
+    Integer slot = mSlots.get(avroName);
+    if (null == slot) {
+      return -1;
+    }
+    return slot.intValue();
+  }
+
+  /**
+   * @return the set of slots holding the specified fields, or null if
+   * 'fields' is null. Fields that are not in this layout are ignored.
+   */
+  public BitSet getSlots(List<TypedField> fields) {
+    if (null == fields) {
+      return null;
+    }
+
+    BitSet slots = new BitSet(mFields.size());
+    for (TypedField field : fields) {
+      int slot = getSlot(field.getAvroName());
+      if (slot != -1) {
+        slots.set(slot);
+      }
+    }
+    return slots;
+  }
+
+  /** @return the field held in the specified slot. */
+  public TypedField getField(int slot) {
+    return mFields.get(slot);
+  }
+
+  /** @return all fields in the layout, in slot order. */
+  public List<TypedField> getFields() {
+    return mFields;
+  }
+
+  /** @return the primitive type name of the field in the specified slot. */
+  public Type.TypeName getTypeName(int slot) {
+    return mTypeNames[slot];
+  }
+
+  /** @return how values of the specified slot are stored. */
+  public Storage getStorage(int slot) {
+    return mStorage[slot];
+  }
+
+  @Override
+  public String toString() {
+    return "RowLayout" + mFields;
+  }
+}
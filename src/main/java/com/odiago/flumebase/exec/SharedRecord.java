@@ -0,0 +1,112 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.BitSet;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.io.EventParser;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * The columns of an input event, parsed once on behalf of every flow reading
+ * the event's stream. A SharedRecord is never modified after it is created,
+ * so a single instance may be delivered to (and read by) many flows at once.
+ * Each flow reads the record through its own SharedRecordEventWrapper.
+ */
+public final class SharedRecord {
+  /** The event the record was parsed from. */
+  private final Event mEvent;
+
+  /** Parsed column values, indexed by column; null if absent or unparsed. */
+  private final Object[] mValues;
+
+  /** The columns which were parsed, or null if all columns were parsed. */
+  private final BitSet mColumns;
+
+  private SharedRecord(Event event, Object[] values, BitSet columns) {
+    mEvent = event;
+    mValues = values;
+    mColumns = columns;
+  }
+
+  /**
+   * Parse the specified columns of an event.
+   * @param e the event to parse; it must not be modified afterward.
+   * @param parser a parser for the event's stream, which is used only for this event.
+   * @param layout the columns of the stream.
+   * @param columns the columns to parse, or null to parse every column.
+   */
+  public static SharedRecord parse(Event e, EventParser parser, RowLayout layout,
+      BitSet columns) throws IOException {
+    ParsingEventWrapper wrapper = new ParsingEventWrapper(parser, layout);
+    wrapper.reset(e);
+
+    int numColumns = layout.size();
+    Object[] values = new Object[numColumns];
+    for (int i = 0; i < numColumns; i++) {
+      if (null == columns || columns.get(i)) {
+        TypedField field = layout.getField(i);
+        values[i] = wrapper.getField(i, field.getType());
+      }
+    }
+
+    return new SharedRecord(e, values, columns);
+  }
+
+  /**
+   * Copy the specified columns out of an event which has already been
+   * (or may yet be lazily) parsed by a single flow, so that the event can
+   * be read by other flows too.
+   * @param e the event to copy; its fields must be laid out by 'layout'.
+   * @param layout the columns of the event's stream.
+   * @param columns the columns to copy, or null to copy every column.
+   */
+  public static SharedRecord copy(EventWrapper e, RowLayout layout, BitSet columns)
+      throws IOException {
+    int numColumns = layout.size();
+    Object[] values = new Object[numColumns];
+    for (int i = 0; i < numColumns; i++) {
+      if (null == columns || columns.get(i)) {
+        values[i] = e.getField(layout.getField(i));
+      }
+    }
+
+    return new SharedRecord(e.getEvent(), values, columns);
+  }
+
+  /** @return the event the record was parsed from. */
+  public Event getEvent() {
+    return mEvent;
+  }
+
+  /** @return true if the specified column was parsed into this record. */
+  public boolean hasColumn(int col) {
+    return col >= 0 && col < mValues.length && (null == mColumns || mColumns.get(col));
+  }
+
+  /** @return the value of the specified column, which must have been parsed. */
+  public Object getColumn(int col) {
+    assert hasColumn(col);
+    return mValues[col];
+  }
+}
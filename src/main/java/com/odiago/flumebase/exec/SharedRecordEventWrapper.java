@@ -0,0 +1,65 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * An EventWrapper through which a single flow reads a SharedRecord. Flows
+ * reading the same stream may give its fields different internal names; the
+ * flow's RowLayout translates them into the record's column indices.
+ */
+public class SharedRecordEventWrapper extends EventWrapperImpl {
+  private final SharedRecord mRecord;
+
+  /** The fields of the stream, as named by this flow. */
+  private final RowLayout mLayout;
+
+  public SharedRecordEventWrapper(SharedRecord record, RowLayout layout) {
+    mRecord = record;
+    mLayout = layout;
+  }
+
+  /**
+   * SharedRecordEventWrappers are immutable views of a SharedRecord.
+   */
+  @Override
+  public void reset(Event e) {
+    throw new UnsupportedOperationException("SharedRecordEventWrapper cannot be reset");
+  }
+
+  @Override
+  public Object getField(TypedField field) throws IOException {
+    int col = mLayout.getSlot(field.getAvroName());
+    if (!mRecord.hasColumn(col)) {
+      // The subscribing flow declared which columns it reads; it should not
+      // ask for any others.
+      throw new IOException("Field " + field.getAvroName() + " was not parsed");
+    }
+    return mRecord.getColumn(col);
+  }
+
+  @Override
+  public Event getEvent() {
+    return mRecord.getEvent();
+  }
+}
@@ -18,6 +18,7 @@
 package com.odiago.flumebase.exec;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 
@@ -118,6 +119,15 @@ public class StreamSymbol extends Symbol {
     return mFormatSpec.getEventParser();
   }
 
+  /**
+   * @return an EventParser for events coming from this stream, which need
+   * only return the columns whose indices are set in requiredColumns. If
+   * requiredColumns is null, all columns may be read.
+   */
+  public EventParser getEventParser(BitSet requiredColumns) {
+    return mFormatSpec.getEventParser(requiredColumns);
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
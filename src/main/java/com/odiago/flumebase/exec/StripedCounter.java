@@ -0,0 +1,90 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which may be incremented by many threads at once.
+ *
+ * <p>A single AtomicLong incremented by every thread which processes the
+ * events of a flow (its worker, partition threads, and source threads)
+ * would bounce its cache line between processors on every event. Instead,
+ * the count is spread over several cells; each thread adds to the cell
+ * chosen by its thread id, and cells are padded so that no two share a
+ * cache line. Reading the counter sums the cells, and is comparatively
+ * expensive; counters are meant to be written often and read rarely.</p>
+ */
+public final class StripedCounter {
+
+  /** Number of cells. Must be a power of two. */
+  private static final int NUM_STRIPES;
+
+  /** Distance between cells, in longs; 8 longs fill a 64-byte cache line. */
+  private static final int PADDING = 8;
+
+  static {
+    int stripes = 1;
+    int target = Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+    while (stripes < target) {
+      stripes <<= 1;
+    }
+    NUM_STRIPES = stripes;
+  }
+
+  /** The cells of the counter; cell i is held at index i * PADDING. */
+  private final AtomicLongArray mCells;
+
+  public StripedCounter() {
+    mCells = new AtomicLongArray(NUM_STRIPES * PADDING);
+  }
+
+  /** @return the index of the cell the current thread adds to. */
+  private static int cellIndex() {
+    long id = Thread.currentThread().getId();
+    int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return ((hash >>> 16) & (NUM_STRIPES - 1)) * PADDING;
+  }
+
+  /** Add 'delta' to the counter. */
+  public void add(long delta) {
+    mCells.addAndGet(cellIndex(), delta);
+  }
+
+  /** Add one to the counter. */
+  public void increment() {
+    mCells.incrementAndGet(cellIndex());
+  }
+
+  /**
+   * @return the value of the counter. Additions made concurrently with
+   * this call may or may not be included.
+   */
+  public long get() {
+    long sum = 0;
+    for (int i = 0; i < NUM_STRIPES; i++) {
+      sum += mCells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(get());
+  }
+}
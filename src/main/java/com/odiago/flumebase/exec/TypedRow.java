@@ -0,0 +1,318 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * A row of field values laid out in fixed slots by a RowLayout. Numeric and
+ * boolean values are held in primitive arrays and can be read without
+ * boxing; nulls are tracked in a bitmap.
+ *
+ * <p>A TypedRow may wrap another EventWrapper, in which case each slot is
+ * loaded from it the first time it is read. Fields which are not in the
+ * layout, along with the event itself and its attributes, are always read
+ * from the wrapped event. A single TypedRow is reused for successive events
+ * by calling wrap(); it is not safe for use by multiple threads.</p>
+ */
+public class TypedRow extends EventWrapperImpl {
+  private final RowLayout mLayout;
+
+  /** The wrapped event slot values are loaded from; may be null. */
+  private EventWrapper mSource;
+
+  /** Values of LONG-storage slots. Booleans are stored as 0 or 1. */
+  private final long[] mLongs;
+
+  /** Values of DOUBLE-storage slots. */
+  private final double[] mDoubles;
+
+  /**
+   * Values of OBJECT-storage slots. For other slots, holds the boxed value
+   * read from the wrapped event (if any) so it need not be boxed again.
+   */
+  private final Object[] mRefs;
+
+  /** Bitmap of slots whose values are present in this row. */
+  private final long[] mLoaded;
+
+  /** Bitmap of slots whose values are null. */
+  private final long[] mNulls;
+
+  /**
+   * Set by the primitive eval methods of a CompiledExpr to report whether the
+   * value just returned was null.
+   */
+  private boolean mWasNull;
+
+  public TypedRow(RowLayout layout) {
+    mLayout = layout;
+    int numSlots = layout.size();
+    mLongs = new long[numSlots];
+    mDoubles = new double[numSlots];
+    mRefs = new Object[numSlots];
+    mLoaded = new long[(numSlots + 63) >>> 6];
+    mNulls = new long[(numSlots + 63) >>> 6];
+  }
+
+  public RowLayout getLayout() {
+    return mLayout;
+  }
+
+  /**
+   * Clear all slots, and read any subsequently-requested slots from the
+   * specified event.
+   */
+  public void wrap(EventWrapper source) {
+    mSource = source;
+    Arrays.fill(mLoaded, 0L);
+    Arrays.fill(mNulls, 0L);
+    Arrays.fill(mRefs, null);
+  }
+
+  /**
+   * @return true if the value most recently returned by a primitive eval
+   * method of a CompiledExpr over this row was null.
+   */
+  public boolean wasNull() {
+    return mWasNull;
+  }
+
+  public void setWasNull(boolean wasNull) {
+    mWasNull = wasNull;
+  }
+
+  /**
+   * TypedRows are populated by wrap() or by the set methods, not from a raw event.
+   */
+  @Override
+  public void reset(Event e) {
+    throw new UnsupportedOperationException("TypedRow cannot be reset to an Event");
+  }
+
+  private static boolean isSet(long[] bitmap, int slot) {
+    return (bitmap[slot >>> 6] & (1L << slot)) != 0;
+  }
+
+  private static void set(long[] bitmap, int slot) {
+    bitmap[slot >>> 6] |= 1L << slot;
+  }
+
+  private static void clear(long[] bitmap, int slot) {
+    bitmap[slot >>> 6] &= ~(1L << slot);
+  }
+
+  /**
+   * Ensure the specified slot is populated, loading it from the wrapped event if necessary.
+   */
+  private void load(int slot) throws IOException {
+    if (isSet(mLoaded, slot)) {
+      return;
+    }
+
+    Object val = null;
+    if (null != mSource) {
+      val = mSource.getField(mLayout.getField(slot));
+    }
+
+    set(mLoaded, slot);
+    mRefs[slot] = val;
+    if (null == val) {
+      set(mNulls, slot);
+      return;
+    }
+
+    switch (mLayout.getStorage(slot)) {
+    case LONG:
+      if (val instanceof Boolean) {
+        mLongs[slot] = ((Boolean) val).booleanValue() ? 1L : 0L;
+      } else if (val instanceof Number) {
+        mLongs[slot] = ((Number) val).longValue();
+      }
+      break;
+    case DOUBLE:
+      if (val instanceof Number) {
+        mDoubles[slot] = ((Number) val).doubleValue();
+      }
+      break;
+    default:
+      break;
+    }
+  }
+
+  /** @return true if the value in the specified slot is null. */
+  public boolean isNull(int slot) throws IOException {
+    load(slot);
+    return isSet(mNulls, slot);
+  }
+
+  /** @return the value of a BOOLEAN slot. Undefined if the slot is null. */
+  public boolean getBoolean(int slot) throws IOException {
+    load(slot);
+    return mLongs[slot] != 0;
+  }
+
+  /** @return the value of an INT slot. Undefined if the slot is null. */
+  public int getInt(int slot) throws IOException {
+    load(slot);
+    return (int) mLongs[slot];
+  }
+
+  /** @return the value of an INT or BIGINT slot. Undefined if the slot is null. */
+  public long getLong(int slot) throws IOException {
+    load(slot);
+    return mLongs[slot];
+  }
+
+  /** @return the value of a FLOAT or DOUBLE slot. Undefined if the slot is null. */
+  public double getDouble(int slot) throws IOException {
+    load(slot);
+    return mDoubles[slot];
+  }
+
+  /**
+   * @return the value of the specified slot as an object of the type
+   * EventWrapper.getField() would return, or null.
+   */
+  public Object getObject(int slot) throws IOException {
+    load(slot);
+    if (isSet(mNulls, slot)) {
+      return null;
+    } else if (null != mRefs[slot]) {
+      return mRefs[slot];
+    }
+
+    // Set through a primitive setter; box the value now.
+    Type.TypeName typeName = mLayout.getTypeName(slot);
+    if (null == typeName) {
+      return null;
+    }
+
+    Object val;
+    switch (typeName) {
+    case BOOLEAN:
+      val = Boolean.valueOf(mLongs[slot] != 0);
+      break;
+    case INT:
+      val = Integer.valueOf((int) mLongs[slot]);
+      break;
+    case BIGINT:
+      val = Long.valueOf(mLongs[slot]);
+      break;
+    case FLOAT:
+      val = Float.valueOf((float) mDoubles[slot]);
+      break;
+    case DOUBLE:
+      val = Double.valueOf(mDoubles[slot]);
+      break;
+    default:
+      val = null;
+      break;
+    }
+
+    mRefs[slot] = val;
+    return val;
+  }
+
+  private void markSet(int slot) {
+    set(mLoaded, slot);
+    clear(mNulls, slot);
+    mRefs[slot] = null;
+  }
+
+  public void setBoolean(int slot, boolean val) {
+    markSet(slot);
+    mLongs[slot] = val ? 1L : 0L;
+  }
+
+  public void setInt(int slot, int val) {
+    markSet(slot);
+    mLongs[slot] = val;
+  }
+
+  public void setLong(int slot, long val) {
+    markSet(slot);
+    mLongs[slot] = val;
+  }
+
+  public void setDouble(int slot, double val) {
+    markSet(slot);
+    mDoubles[slot] = val;
+  }
+
+  /** Set the value of an OBJECT-storage slot. */
+  public void setObject(int slot, Object val) {
+    if (null == val) {
+      setNull(slot);
+    } else {
+      markSet(slot);
+      mRefs[slot] = val;
+    }
+  }
+
+  public void setNull(int slot) {
+    set(mLoaded, slot);
+    set(mNulls, slot);
+    mRefs[slot] = null;
+  }
+
+  @Override
+  public Object getField(TypedField field) throws IOException {
+    int slot = mLayout.getSlot(field.getAvroName());
+    if (slot >= 0) {
+      return getObject(slot);
+    } else if (null != mSource) {
+      return mSource.getField(field);
+    } else {
+      return null;
+    }
+  }
+
+  @Override
+  public Event getEvent() {
+    if (null == mSource) {
+      return null;
+    }
+    return mSource.getEvent();
+  }
+
+  @Override
+  public String getAttr(String attrName) {
+    if (null == mSource) {
+      return null;
+    }
+    return mSource.getAttr(attrName);
+  }
+
+  @Override
+  public String getEventText() {
+    if (null == mSource) {
+      return "(empty)";
+    }
+    return mSource.getEventText();
+  }
+}
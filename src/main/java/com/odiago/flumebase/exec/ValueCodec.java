@@ -0,0 +1,196 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.math.BigDecimal;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.util.Utf8;
+
+import com.odiago.flumebase.lang.Timestamp;
+
+/**
+ * Writes the values of event fields, and of the intermediate state built
+ * from them, in a compact tagged binary form; and reads them back.
+ */
+public final class ValueCodec {
+  // Tags identifying the type of each serialized field value.
+  private static final byte NULL_TAG = 0;
+  private static final byte BOOLEAN_TAG = 1;
+  private static final byte INT_TAG = 2;
+  private static final byte LONG_TAG = 3;
+  private static final byte FLOAT_TAG = 4;
+  private static final byte DOUBLE_TAG = 5;
+  private static final byte UTF8_TAG = 6;
+  private static final byte STRING_TAG = 7;
+  private static final byte TIMESTAMP_TAG = 8;
+  private static final byte BINARY_TAG = 9;
+  private static final byte PRECISE_TAG = 10;
+  private static final byte LIST_TAG = 11;
+
+  private ValueCodec() {
+  }
+
+  /** @return true if the specified value can be written by write(). */
+  public static boolean canWrite(Object val) {
+    if (val instanceof List<?>) {
+      for (Object elem : (List<?>) val) {
+        if (!canWrite(elem)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return null == val || val instanceof Boolean || val instanceof Integer
+        || val instanceof Long || val instanceof Float || val instanceof Double
+        || val instanceof CharSequence || val instanceof Timestamp
+        || val instanceof ByteBuffer || val instanceof BigDecimal;
+  }
+
+  /** Write a string, which may be null. */
+  public static void writeString(String str, DataOutput out) throws IOException {
+    out.writeBoolean(null != str);
+    if (null != str) {
+      out.writeUTF(str);
+    }
+  }
+
+  /** Read a string written by writeString(). */
+  public static String readString(DataInput in) throws IOException {
+    if (in.readBoolean()) {
+      return in.readUTF();
+    }
+    return null;
+  }
+
+  /** Write a length-prefixed byte array. */
+  public static void writeBytes(byte[] bytes, DataOutput out) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /** Read a byte array written by writeBytes(). */
+  public static byte[] readBytes(DataInput in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * Write a value, which may be null.
+   * @throws IOException if the value is not of a type accepted by canWrite().
+   */
+  public static void write(Object val, DataOutput out) throws IOException {
+    if (null == val) {
+      out.writeByte(NULL_TAG);
+    } else if (val instanceof Boolean) {
+      out.writeByte(BOOLEAN_TAG);
+      out.writeBoolean(((Boolean) val).booleanValue());
+    } else if (val instanceof Integer) {
+      out.writeByte(INT_TAG);
+      out.writeInt(((Integer) val).intValue());
+    } else if (val instanceof Long) {
+      out.writeByte(LONG_TAG);
+      out.writeLong(((Long) val).longValue());
+    } else if (val instanceof Float) {
+      out.writeByte(FLOAT_TAG);
+      out.writeFloat(((Float) val).floatValue());
+    } else if (val instanceof Double) {
+      out.writeByte(DOUBLE_TAG);
+      out.writeDouble(((Double) val).doubleValue());
+    } else if (val instanceof Utf8) {
+      Utf8 utf8 = (Utf8) val;
+      out.writeByte(UTF8_TAG);
+      out.writeInt(utf8.getByteLength());
+      out.write(utf8.getBytes(), 0, utf8.getByteLength());
+    } else if (val instanceof CharSequence) {
+      out.writeByte(STRING_TAG);
+      writeBytes(val.toString().getBytes("UTF-8"), out);
+    } else if (val instanceof Timestamp) {
+      Timestamp ts = (Timestamp) val;
+      out.writeByte(TIMESTAMP_TAG);
+      out.writeLong(ts.milliseconds);
+      out.writeLong(ts.nanos);
+    } else if (val instanceof ByteBuffer) {
+      ByteBuffer buf = ((ByteBuffer) val).duplicate();
+      byte[] bytes = new byte[buf.remaining()];
+      buf.get(bytes);
+      out.writeByte(BINARY_TAG);
+      writeBytes(bytes, out);
+    } else if (val instanceof BigDecimal) {
+      out.writeByte(PRECISE_TAG);
+      out.writeUTF(val.toString());
+    } else if (val instanceof List<?>) {
+      List<?> list = (List<?>) val;
+      out.writeByte(LIST_TAG);
+      out.writeInt(list.size());
+      for (Object elem : list) {
+        write(elem, out);
+      }
+    } else {
+      throw new IOException("Cannot serialize value of " + val.getClass());
+    }
+  }
+
+  /** Read a value written by write(). */
+  public static Object read(DataInput in) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+    case NULL_TAG:
+      return null;
+    case BOOLEAN_TAG:
+      return Boolean.valueOf(in.readBoolean());
+    case INT_TAG:
+      return Integer.valueOf(in.readInt());
+    case LONG_TAG:
+      return Long.valueOf(in.readLong());
+    case FLOAT_TAG:
+      return Float.valueOf(in.readFloat());
+    case DOUBLE_TAG:
+      return Double.valueOf(in.readDouble());
+    case UTF8_TAG:
+      return new Utf8(readBytes(in));
+    case STRING_TAG:
+      return new String(readBytes(in), "UTF-8");
+    case TIMESTAMP_TAG:
+      long millis = in.readLong();
+      return new Timestamp(millis, in.readLong());
+    case BINARY_TAG:
+      return ByteBuffer.wrap(readBytes(in));
+    case PRECISE_TAG:
+      return new BigDecimal(in.readUTF());
+    case LIST_TAG:
+      int size = in.readInt();
+      List<Object> list = new ArrayList<Object>(size);
+      for (int i = 0; i < size; i++) {
+        list.add(read(in));
+      }
+      return list;
+    default:
+      throw new IOException("Unknown value tag: " + tag);
+    }
+  }
+}
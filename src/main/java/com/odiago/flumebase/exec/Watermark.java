@@ -0,0 +1,60 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+/**
+ * A promise from an upstream FlowElement that it will not emit any further
+ * events with timestamps earlier than getTime(). Watermarks travel through
+ * the flow alongside events, and let windowed elements close windows and
+ * discard state based on event time, rather than waiting for an interval of
+ * local time to pass.
+ *
+ * <p>A FlowElement with several upstream elements tracks the watermark of
+ * each; its own watermark is the least of these.</p>
+ */
+public class Watermark {
+  /**
+   * Watermark delivered when an upstream element completes; it will never
+   * emit another event.
+   */
+  public static final long END_OF_STREAM = Long.MAX_VALUE;
+
+  /** Events with timestamps before this time will no longer be emitted. */
+  private final long mTime;
+
+  /** Identifies the upstream connection which delivered the watermark. */
+  private final Object mSource;
+
+  public Watermark(long time, Object source) {
+    mTime = time;
+    mSource = source;
+  }
+
+  public long getTime() {
+    return mTime;
+  }
+
+  public Object getSource() {
+    return mSource;
+  }
+
+  @Override
+  public String toString() {
+    return "Watermark[" + mTime + "]";
+  }
+}
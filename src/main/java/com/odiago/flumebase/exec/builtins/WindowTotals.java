@@ -0,0 +1,33 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.builtins;
+
+/**
+ * Running window state for the invertible count(), sum(), and avg()
+ * aggregate functions.
+ */
+class WindowTotals {
+  /** Running total of the bucket values in the window. */
+  long mSum;
+
+  /** Running count of the items in the window. */
+  long mCount;
+
+  /** Number of buckets in the window with a non-null state. */
+  int mNonNullBuckets;
+}
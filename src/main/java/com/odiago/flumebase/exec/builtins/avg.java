@@ -17,12 +17,17 @@
 
 package com.odiago.flumebase.exec.builtins;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import java.math.BigDecimal;
 
 import java.util.Collections;
 import java.util.List;
 
 import com.odiago.flumebase.exec.Bucket;
+import com.odiago.flumebase.exec.ValueCodec;
 
 import com.odiago.flumebase.lang.AggregateFunc;
 import com.odiago.flumebase.lang.EvalException;
@@ -179,6 +184,74 @@ public class avg extends AggregateFunc<AvgState> {
     }
   }
 
+  /**
+   * Integer averages can be maintained incrementally. Floating-point and precise
+   * averages are recomputed over the whole window, since subtraction does not
+   * exactly undo their rounding (or scale, for PRECISE values).
+   */
+  @Override
+  public boolean isInvertible(Type type) {
+    return type.getPrimitiveTypeName().equals(Type.TypeName.INT)
+        || type.getPrimitiveTypeName().equals(Type.TypeName.BIGINT);
+  }
+
+  @Override
+  public Object createWindowState(Type type) {
+    return new WindowTotals();
+  }
+
+  @Override
+  public void addToWindow(Object windowState, Bucket<AvgState> bucket, Type type) {
+    AvgState state = bucket.getState();
+    if (null != state) {
+      WindowTotals totals = (WindowTotals) windowState;
+      totals.mSum += state.mSum.longValue();
+      totals.mCount += state.mCount;
+      totals.mNonNullBuckets++;
+    }
+  }
+
+  @Override
+  public void removeFromWindow(Object windowState, Bucket<AvgState> bucket, Type type) {
+    AvgState state = bucket.getState();
+    if (null != state) {
+      WindowTotals totals = (WindowTotals) windowState;
+      totals.mSum -= state.mSum.longValue();
+      totals.mCount -= state.mCount;
+      totals.mNonNullBuckets--;
+    }
+  }
+
+  @Override
+  public Object getWindowResult(Object windowState, Type type) {
+    WindowTotals totals = (WindowTotals) windowState;
+    if (0 == totals.mNonNullBuckets) {
+      return null; // Only null values in buckets.
+    } else if (type.getPrimitiveTypeName().equals(Type.TypeName.INT)) {
+      return Integer.valueOf((int) totals.mSum / (int) totals.mCount);
+    } else {
+      return Long.valueOf(totals.mSum / totals.mCount);
+    }
+  }
+
+  @Override
+  public void writeBucketState(AvgState state, DataOutput out) throws IOException {
+    out.writeBoolean(null != state);
+    if (null != state) {
+      out.writeInt(state.mCount);
+      ValueCodec.write(state.mSum, out);
+    }
+  }
+
+  @Override
+  public AvgState readBucketState(DataInput in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    int count = in.readInt();
+    return new AvgState(count, (Number) ValueCodec.read(in));
+  }
+
   @Override
   public Type getReturnType() {
     // Return type is same as the input argument.
@@ -76,6 +76,37 @@ public class count extends AggregateFunc<Integer> {
     return Integer.valueOf(total);
   }
 
+  @Override
+  public boolean isInvertible(Type type) {
+    return true;
+  }
+
+  @Override
+  public Object createWindowState(Type type) {
+    return new WindowTotals();
+  }
+
+  @Override
+  public void addToWindow(Object windowState, Bucket<Integer> bucket, Type type) {
+    Integer state = bucket.getState();
+    if (null != state) {
+      ((WindowTotals) windowState).mSum += state.intValue();
+    }
+  }
+
+  @Override
+  public void removeFromWindow(Object windowState, Bucket<Integer> bucket, Type type) {
+    Integer state = bucket.getState();
+    if (null != state) {
+      ((WindowTotals) windowState).mSum -= state.intValue();
+    }
+  }
+
+  @Override
+  public Object getWindowResult(Object windowState, Type type) {
+    return Integer.valueOf((int) ((WindowTotals) windowState).mSum);
+  }
+
   @Override
   public Type getReturnType() {
     return Type.getPrimitive(Type.TypeName.INT);
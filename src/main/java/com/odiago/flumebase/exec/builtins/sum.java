@@ -162,6 +162,54 @@ public class sum extends AggregateFunc<Number> {
     }
   }
 
+  /**
+   * Integer sums can be maintained incrementally. Floating-point and precise
+   * sums are recomputed over the whole window, since subtraction does not
+   * exactly undo their rounding (or scale, for PRECISE values).
+   */
+  @Override
+  public boolean isInvertible(Type type) {
+    return type.getPrimitiveTypeName().equals(Type.TypeName.INT)
+        || type.getPrimitiveTypeName().equals(Type.TypeName.BIGINT);
+  }
+
+  @Override
+  public Object createWindowState(Type type) {
+    return new WindowTotals();
+  }
+
+  @Override
+  public void addToWindow(Object windowState, Bucket<Number> bucket, Type type) {
+    Number state = bucket.getState();
+    if (null != state) {
+      WindowTotals totals = (WindowTotals) windowState;
+      totals.mSum += state.longValue();
+      totals.mNonNullBuckets++;
+    }
+  }
+
+  @Override
+  public void removeFromWindow(Object windowState, Bucket<Number> bucket, Type type) {
+    Number state = bucket.getState();
+    if (null != state) {
+      WindowTotals totals = (WindowTotals) windowState;
+      totals.mSum -= state.longValue();
+      totals.mNonNullBuckets--;
+    }
+  }
+
+  @Override
+  public Object getWindowResult(Object windowState, Type type) {
+    WindowTotals totals = (WindowTotals) windowState;
+    if (0 == totals.mNonNullBuckets) {
+      return null; // Only null values in buckets.
+    } else if (type.getPrimitiveTypeName().equals(Type.TypeName.INT)) {
+      return Integer.valueOf((int) totals.mSum);
+    } else {
+      return Long.valueOf(totals.mSum);
+    }
+  }
+
   @Override
   public Type getReturnType() {
     // Return type is same as the input argument.
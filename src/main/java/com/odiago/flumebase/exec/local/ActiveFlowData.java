@@ -17,13 +17,30 @@
 
 package com.odiago.flumebase.exec.local;
 
+import java.io.File;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.hadoop.conf.Configuration;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.odiago.flumebase.exec.ElementStats;
+import com.odiago.flumebase.exec.EventTracer;
+import com.odiago.flumebase.exec.FlowElement;
 import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.FlowMetrics;
+import com.odiago.flumebase.exec.LatencyHistogram;
+import com.odiago.flumebase.exec.MetricsRegistry;
 
 import com.odiago.flumebase.server.UserSession;
 
@@ -31,6 +48,9 @@ import com.odiago.flumebase.util.CloseHandler;
 import com.odiago.flumebase.util.DAG;
 import com.odiago.flumebase.util.DAGOperatorException;
 import com.odiago.flumebase.util.Ref;
+import com.odiago.flumebase.util.StateBudget;
+
+import com.odiago.flumebase.util.concurrent.SelectableQueue;
 
 /**
  * Container for information maintained by the local environment
@@ -50,22 +70,65 @@ public class ActiveFlowData implements CloseHandler<UserSession> {
    */
   private final List<Ref<Boolean>> mJoinTargets;
 
+  /**
+   * Sessions watching the output of this flow. Read for every output event,
+   * and modified rarely (possibly from other threads, as sessions close).
+   */
   private final List<UserSession> mWatchingSessions;
 
   /** Stream name associated with the output of this flow. */
   private String mStreamName;
 
+  /** Samples the events emitted by the elements of this flow for tracing. */
+  private final EventTracer mTracer;
+
+  /** Counters and histograms updated by the elements of this flow. */
+  private final MetricsRegistry mMetrics;
+
+  /** The memory budget shared by the state of the elements of this flow. */
+  private final StateBudget mStateBudget;
+
   public ActiveFlowData(LocalFlow flow) {
     mLocalFlow = flow;
     mJoinTargets = new ArrayList<Ref<Boolean>>();
-    mWatchingSessions = new ArrayList<UserSession>();
+    mWatchingSessions = new CopyOnWriteArrayList<UserSession>();
     mStreamName = null;
+
+    Configuration conf = flow.getConf();
+    int traceInterval = EventTracer.DEFAULT_TRACE_INTERVAL;
+    int stateBudgetMb = LocalEnvironment.DEFAULT_STATE_MEMORY_BUDGET;
+    String spillDirName = null;
+    if (null != conf) {
+      traceInterval = conf.getInt(EventTracer.TRACE_INTERVAL_KEY, traceInterval);
+      stateBudgetMb = conf.getInt(LocalEnvironment.STATE_MEMORY_BUDGET_KEY, stateBudgetMb);
+      spillDirName = conf.get(LocalEnvironment.STATE_SPILL_DIR_KEY);
+    }
+    mTracer = new EventTracer(flow.getId(), traceInterval);
+    mMetrics = new MetricsRegistry();
+    if (stateBudgetMb > 0) {
+      mStateBudget = new StateBudget(stateBudgetMb * 1024L * 1024L,
+          null == spillDirName ? null : new File(spillDirName));
+    } else {
+      mStateBudget = StateBudget.UNLIMITED;
+    }
   }
 
   public LocalFlow getFlow() {
     return mLocalFlow;
   }
 
+  public EventTracer getTracer() {
+    return mTracer;
+  }
+
+  public MetricsRegistry getMetrics() {
+    return mMetrics;
+  }
+
+  public StateBudget getStateBudget() {
+    return mStateBudget;
+  }
+
   public FlowId getFlowId() {
     return mLocalFlow.getId();
   }
@@ -96,8 +159,9 @@ public class ActiveFlowData implements CloseHandler<UserSession> {
   /** This session now watches the output of the flow. */
   public void addSession(final UserSession session) {
     if (!mWatchingSessions.contains(session)) {
-      mWatchingSessions.add(session);
-      // Perform onSubscribe actions for any FEs that need them.
+      // Perform onSubscribe actions for any FEs that need them. These run
+      // before the session is added, so that a header printed by onConnect
+      // precedes the output rows queued for the session.
       try {
         mLocalFlow.bfs(new DAG.Operator<FlowElementNode>() {
           public void process(FlowElementNode node) {
@@ -108,8 +172,9 @@ public class ActiveFlowData implements CloseHandler<UserSession> {
         // None to be thrown here..?
         LOG.error("Unexpected DAG operator exception: " + doe);
       }
-      
+
       // Actually subscribe to the flow.
+      mWatchingSessions.add(session);
       session.subscribeToClose(this);
     }
   }
@@ -125,6 +190,102 @@ public class ActiveFlowData implements CloseHandler<UserSession> {
     return mWatchingSessions;
   }
 
+  /**
+   * @return a snapshot of the metrics of this flow and each of its elements.
+   * Must be called by the thread which deployed the flow, as it traverses the
+   * flow's DAG. The statistics of elements run by other (partition) threads
+   * are read as of some recent point.
+   */
+  public FlowMetrics getFlowMetrics() {
+    final List<FlowElementNode> nodes = new ArrayList<FlowElementNode>();
+    try {
+      mLocalFlow.bfs(new DAG.Operator<FlowElementNode>() {
+        public void process(FlowElementNode node) {
+          nodes.add(node);
+        }
+      });
+    } catch (DAGOperatorException doe) {
+      // Shouldn't get here with this operator.
+      LOG.error("Unexpected DAG operator exception: " + doe);
+    }
+
+    // Count the items waiting in the queue(s) into each element.
+    Map<FlowElement, Long> queueDepths = new IdentityHashMap<FlowElement, Long>();
+    long queueBacklog = 0;
+    for (FlowElementNode node : nodes) {
+      LocalContext context = (LocalContext) node.getFlowElement().getContext();
+      List<SelectableQueue<Object>> queues = context.getDownstreamQueues();
+      if (null == queues) {
+        continue;
+      }
+      List<FlowElement> downstreams = context.getDownstream();
+      for (int i = 0; i < queues.size(); i++) {
+        SelectableQueue<Object> queue = queues.get(i);
+        if (null != queue) {
+          FlowElement downstream = downstreams.get(i);
+          Long depth = queueDepths.get(downstream);
+          long newDepth = (null == depth ? 0 : depth.longValue()) + queue.size();
+          queueDepths.put(downstream, Long.valueOf(newDepth));
+          queueBacklog += queue.size();
+        }
+      }
+    }
+
+    // Events enter the flow at its sources, and leave it at its sinks.
+    long eventsIn = 0;
+    long eventsOut = 0;
+    long windowStateSize = 0;
+    List<FlowMetrics.Element> elements = new ArrayList<FlowMetrics.Element>();
+    for (FlowElementNode node : nodes) {
+      FlowElement flowElem = node.getFlowElement();
+      ElementStats stats = flowElem.getStats();
+      if (null == stats) {
+        continue;
+      }
+
+      if (!node.isRoot() && node.getPartition() == FlowElementNode.UNPARTITIONED) {
+        // This thread executes the element; make its latest statistics visible.
+        stats.publish();
+      }
+
+      if (node.isRoot()) {
+        eventsIn += stats.getEventsOut();
+      }
+      if (node.getChildren().isEmpty()) {
+        eventsOut += stats.getEventsIn();
+      }
+      windowStateSize += stats.getStateSize();
+
+      String name = flowElem.getClass().getSimpleName();
+      if (node.getPartition() != FlowElementNode.UNPARTITIONED) {
+        name = name + "[" + node.getPartition() + "]";
+      }
+      Long queueDepth = queueDepths.get(flowElem);
+      elements.add(new FlowMetrics.Element(name, stats.getEventsIn(), stats.getEventsOut(),
+          stats.getNanosPerEvent(), null == queueDepth ? 0 : queueDepth.longValue(),
+          stats.getMaxQueueDepth(), stats.getStateSize()));
+    }
+
+    // GC activity can only be measured for the JVM as a whole.
+    long gcCount = 0;
+    long gcMillis = 0;
+    for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcCount += Math.max(0, gcBean.getCollectionCount());
+      gcMillis += Math.max(0, gcBean.getCollectionTime());
+    }
+
+    LatencyHistogram latency = mMetrics.getHistogram(MetricsRegistry.LATENCY_US);
+    LatencyHistogram eventLag = mMetrics.getHistogram(MetricsRegistry.EVENT_LAG_MS);
+    return new FlowMetrics(getFlowId(),
+        System.currentTimeMillis() - mMetrics.getStartTime(), eventsIn, eventsOut,
+        latency.getValueAtPercentile(50.0), latency.getValueAtPercentile(99.0),
+        latency.getMax(), eventLag.getValueAtPercentile(50.0),
+        eventLag.getValueAtPercentile(99.0), eventLag.getMax(), queueBacklog, windowStateSize,
+        mMetrics.getCounter(MetricsRegistry.LATE_EVENTS_DROPPED).get(),
+        mMetrics.getCounter(MetricsRegistry.BATCHES_ALLOCATED).get(),
+        gcCount, gcMillis, elements);
+  }
+
   @Override
   public void handleClose(UserSession session) {
     // The specified session is notifying us that it has closed; we no longer watch its output.
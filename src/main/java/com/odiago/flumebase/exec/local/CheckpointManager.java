@@ -0,0 +1,354 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.ValueCodec;
+
+import com.odiago.flumebase.util.StringUtils;
+
+/**
+ * Writes checkpoints of the state of running flows to files in a local
+ * directory, and reads them back when the environment restarts.
+ *
+ * <p>Each flow has one checkpoint file, which is replaced by each newer
+ * checkpoint of the flow. The state of the flow's elements is captured by
+ * the worker thread that executes them; the files are written by a
+ * background thread, so that event processing does not wait on the disk.
+ * A new file is written next to the old one and then renamed over it, so
+ * an interrupted write never destroys the previous checkpoint.</p>
+ */
+public class CheckpointManager {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      CheckpointManager.class.getName());
+
+  /**
+   * Config key specifying the directory where checkpoints are written. If
+   * unset, flows are not checkpointed.
+   */
+  public static final String CHECKPOINT_DIR_KEY = "flumebase.checkpoint.dir";
+
+  /** Config key specifying the interval (ms) between checkpoints of each flow. */
+  public static final String CHECKPOINT_INTERVAL_KEY = "flumebase.checkpoint.interval.ms";
+  public static final long DEFAULT_CHECKPOINT_INTERVAL = 60000;
+
+  /** Magic number at the start of each checkpoint file. */
+  private static final int MAGIC = 0x46424350; // "FBCP"
+
+  /** Version of the checkpoint file format. */
+  private static final int VERSION = 1;
+
+  private static final String FILE_PREFIX = "flow-";
+  private static final String FILE_SUFFIX = ".ckpt";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** The saved state of one FlowElement of a flow. */
+  static class ElementState {
+    /** Position of the element in a breadth-first traversal of the flow. */
+    final int mIndex;
+
+    /** Class of the element; checked against the element being restored. */
+    final String mClassName;
+
+    final byte[] mState;
+
+    ElementState(int index, String className, byte[] state) {
+      mIndex = index;
+      mClassName = className;
+      mState = state;
+    }
+  }
+
+  /** A checkpoint of a flow: the query that defines it, and the state of its elements. */
+  static class FlowState {
+    final FlowId mFlowId;
+    final String mQuery;
+
+    /** The name of the output stream of the flow, or null. */
+    final String mStreamName;
+
+    /** Configuration settings of the flow which differ from those of the environment. */
+    final Map<String, String> mConfOverrides;
+
+    final List<ElementState> mElements;
+
+    FlowState(FlowId flowId, String query, String streamName,
+        Map<String, String> confOverrides, List<ElementState> elements) {
+      mFlowId = flowId;
+      mQuery = query;
+      mStreamName = streamName;
+      mConfOverrides = confOverrides;
+      mElements = elements;
+    }
+  }
+
+  /** Queue item asking the writer to delete the checkpoint of a flow. */
+  private static class DeleteRequest {
+    private final FlowId mFlowId;
+
+    DeleteRequest(FlowId flowId) {
+      mFlowId = flowId;
+    }
+  }
+
+  /** Queue item asking the writer to stop. */
+  private static final Object STOP = new Object();
+
+  /** The checkpoint directory, or null if checkpoints are disabled. */
+  private final File mDir;
+
+  private final long mInterval;
+
+  /** FlowStates to write and DeleteRequests, in the order they were made. */
+  private final BlockingQueue<Object> mQueue;
+
+  private WriterThread mWriter;
+
+  public CheckpointManager(Configuration conf) {
+    String dirName = conf.get(CHECKPOINT_DIR_KEY);
+    mDir = null == dirName ? null : new File(dirName);
+    long interval = conf.getLong(CHECKPOINT_INTERVAL_KEY, DEFAULT_CHECKPOINT_INTERVAL);
+    if (interval <= 0) {
+      interval = DEFAULT_CHECKPOINT_INTERVAL;
+    }
+    mInterval = interval;
+    mQueue = new LinkedBlockingQueue<Object>();
+  }
+
+  /** @return true if flows should be checkpointed. */
+  public boolean isEnabled() {
+    return null != mDir;
+  }
+
+  /** @return the interval (ms) between checkpoints. */
+  public long getInterval() {
+    return mInterval;
+  }
+
+  /** Start the thread which writes checkpoint files. */
+  public void start() throws IOException {
+    if (!mDir.isDirectory() && !mDir.mkdirs()) {
+      throw new IOException("Could not create checkpoint directory " + mDir);
+    }
+    mWriter = new WriterThread();
+    mWriter.start();
+  }
+
+  /**
+   * Write all pending checkpoints, and stop the writer thread.
+   */
+  public void stop() throws InterruptedException {
+    if (null == mWriter) {
+      return;
+    }
+
+    mQueue.put(STOP);
+    mWriter.join();
+    mWriter = null;
+  }
+
+  /** Write a checkpoint of a flow, replacing its previous checkpoint. Does not block. */
+  void write(FlowState state) {
+    mQueue.add(state);
+  }
+
+  /** Delete the checkpoint of a flow which is no longer running. Does not block. */
+  void delete(FlowId flowId) {
+    mQueue.add(new DeleteRequest(flowId));
+  }
+
+  private File getFile(FlowId flowId) {
+    return new File(mDir, FILE_PREFIX + flowId.getId() + FILE_SUFFIX);
+  }
+
+  /**
+   * Read the checkpoints of all flows in the checkpoint directory, ordered
+   * by flow id. Files which cannot be read are skipped.
+   */
+  List<FlowState> readAll() {
+    List<FlowState> states = new ArrayList<FlowState>();
+    File[] files = mDir.listFiles();
+    if (null == files) {
+      return states;
+    }
+
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) {
+        continue;
+      }
+
+      try {
+        states.add(read(file));
+      } catch (IOException ioe) {
+        LOG.warn("Could not read checkpoint " + file + ": " + ioe);
+      }
+    }
+
+    Collections.sort(states, new Comparator<FlowState>() {
+      public int compare(FlowState a, FlowState b) {
+        return a.mFlowId.compareTo(b.mFlowId);
+      }
+    });
+    return states;
+  }
+
+  private FlowState read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a checkpoint file");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported checkpoint version " + version);
+      }
+
+      FlowId flowId = new FlowId(in.readLong());
+      String query = new String(ValueCodec.readBytes(in), "UTF-8");
+      String streamName = ValueCodec.readString(in);
+      int numOverrides = in.readInt();
+      Map<String, String> confOverrides = new HashMap<String, String>();
+      for (int i = 0; i < numOverrides; i++) {
+        String key = in.readUTF();
+        confOverrides.put(key, in.readUTF());
+      }
+
+      int numElements = in.readInt();
+      List<ElementState> elements = new ArrayList<ElementState>(numElements);
+      for (int i = 0; i < numElements; i++) {
+        int index = in.readInt();
+        String className = in.readUTF();
+        elements.add(new ElementState(index, className, ValueCodec.readBytes(in)));
+      }
+
+      return new FlowState(flowId, query, streamName, confOverrides, elements);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void writeFile(FlowState state) throws IOException {
+    File file = getFile(state.mFlowId);
+    File tmpFile = new File(mDir, file.getName() + TEMP_SUFFIX);
+    FileOutputStream fileOut = new FileOutputStream(tmpFile);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    boolean success = false;
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(state.mFlowId.getId());
+      ValueCodec.writeBytes(state.mQuery.getBytes("UTF-8"), out);
+      ValueCodec.writeString(state.mStreamName, out);
+      out.writeInt(state.mConfOverrides.size());
+      for (Map.Entry<String, String> entry : state.mConfOverrides.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeUTF(entry.getValue());
+      }
+
+      out.writeInt(state.mElements.size());
+      for (ElementState elem : state.mElements) {
+        out.writeInt(elem.mIndex);
+        out.writeUTF(elem.mClassName);
+        ValueCodec.writeBytes(elem.mState, out);
+      }
+
+      out.flush();
+      fileOut.getFD().sync();
+      success = true;
+    } finally {
+      out.close();
+      if (!success) {
+        tmpFile.delete();
+      }
+    }
+
+    // Remove the old checkpoint first; File.renameTo() does not replace
+    // existing files on all platforms.
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Could not replace checkpoint " + file);
+    }
+    if (!tmpFile.renameTo(file)) {
+      throw new IOException("Could not rename " + tmpFile + " to " + file);
+    }
+  }
+
+  /** Thread which writes and deletes checkpoint files. */
+  private class WriterThread extends Thread {
+    public WriterThread() {
+      super("CheckpointWriter");
+      setDaemon(true);
+    }
+
+    public void run() {
+      while (true) {
+        Object next;
+        try {
+          next = mQueue.take();
+        } catch (InterruptedException ie) {
+          continue;
+        }
+
+        if (STOP == next) {
+          break;
+        } else if (next instanceof DeleteRequest) {
+          File file = getFile(((DeleteRequest) next).mFlowId);
+          if (file.exists() && !file.delete()) {
+            LOG.warn("Could not delete checkpoint " + file);
+          }
+        } else {
+          FlowState state = (FlowState) next;
+          try {
+            writeFile(state);
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Wrote checkpoint of " + state.mFlowId);
+            }
+          } catch (IOException ioe) {
+            LOG.error("Could not write checkpoint of " + state.mFlowId + ": "
+                + StringUtils.stringifyException(ioe));
+          }
+        }
+      }
+    }
+  }
+}
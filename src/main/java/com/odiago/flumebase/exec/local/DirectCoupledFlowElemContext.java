@@ -22,8 +22,10 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
+import com.odiago.flumebase.exec.EventBatch;
 import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.Watermark;
 
 /**
  * Context for a FlowElement which has a single downstream FE on the
@@ -44,7 +46,23 @@ public class DirectCoupledFlowElemContext extends LocalContext {
    */
   @Override
   public void emit(EventWrapper e) throws IOException, InterruptedException {
-    mDownstream.takeEvent(e);
+    mDownstream.deliverEvent(e);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void emitBatch(EventBatch batch) throws IOException, InterruptedException {
+    mDownstream.deliverEvents(batch);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void emitWatermark(long watermark) throws IOException, InterruptedException {
+    mDownstream.takeWatermark(new Watermark(watermark, this));
   }
 
   /**
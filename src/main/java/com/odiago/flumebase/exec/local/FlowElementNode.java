@@ -25,17 +25,35 @@ import com.odiago.flumebase.util.DAGNode;
  * A DAGNode that holds a FlowElement in a local flow.
  */
 public class FlowElementNode extends DAGNode<FlowElementNode> {
+  /** Partition id for elements executed by the flow's own thread. */
+  public static final int UNPARTITIONED = -1;
+
   private FlowElement mElem;
 
+  /**
+   * If this element is one replica of a data-parallel operator, the index of
+   * the partition it serves; otherwise UNPARTITIONED.
+   */
+  private int mPartition;
+
   public FlowElementNode(FlowElement fe) {
     super(0); // don't worry about node ids in this graph.
     mElem = fe;
+    mPartition = UNPARTITIONED;
   }
 
   public FlowElement getFlowElement() {
     return mElem;
   }
 
+  public int getPartition() {
+    return mPartition;
+  }
+
+  void setPartition(int partition) {
+    mPartition = partition;
+  }
+
   @Override
   protected void formatParams(StringBuilder sb) {
     sb.append(mElem.toString());
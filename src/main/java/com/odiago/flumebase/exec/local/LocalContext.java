@@ -19,13 +19,23 @@ package com.odiago.flumebase.exec.local;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.apache.hadoop.conf.Configuration;
+
+import com.odiago.flumebase.exec.BucketedAggregationElement;
+import com.odiago.flumebase.exec.EventTracer;
 import com.odiago.flumebase.exec.FlowElement;
 import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.MetricsRegistry;
+
+import com.odiago.flumebase.util.StateBudget;
 
+import com.odiago.flumebase.util.concurrent.RingBufferSelectableQueue;
 import com.odiago.flumebase.util.concurrent.SelectableQueue;
+import com.odiago.flumebase.util.concurrent.WaitStrategy;
 
 /**
  * Parent class of all FlowElementContext implementations which are used
@@ -36,6 +46,12 @@ public abstract class LocalContext extends FlowElementContext {
   /** The control operations queue used by the LocalEnvironment. */
   private SelectableQueue<Object> mControlQueue;
 
+  /**
+   * Control queues of other threads which consume some of our downstream
+   * queues, and must also be notified when this element completes.
+   */
+  private List<SelectableQueue<Object>> mRemoteControlQueues;
+
   /** Set to true after notifyCompletion() was called once. */
   private boolean mNotifiedCompletion;
 
@@ -44,6 +60,7 @@ public abstract class LocalContext extends FlowElementContext {
 
   public LocalContext() {
     mNotifiedCompletion = false;
+    mRemoteControlQueues = new ArrayList<SelectableQueue<Object>>();
   }
 
   /**
@@ -54,11 +71,24 @@ public abstract class LocalContext extends FlowElementContext {
     mControlQueue = opQueue;
   }
 
+  /**
+   * Called by the LocalEnvironment when one of our downstream queues is
+   * consumed by a thread other than the one that owns this context; that
+   * thread's control queue is also notified on completion.
+   */
+  void addRemoteControlQueue(SelectableQueue<Object> opQueue) {
+    if (opQueue != mControlQueue && !mRemoteControlQueues.contains(opQueue)) {
+      mRemoteControlQueues.add(opQueue);
+    }
+  }
+
   /**
    * {@inheritDoc}
+   * Synchronized, since the source of a live stream may be completed by the
+   * thread delivering its events as well as by the thread executing it.
    */
   @Override
-  public void notifyCompletion() throws IOException, InterruptedException {
+  public synchronized void notifyCompletion() throws IOException, InterruptedException {
     if (mNotifiedCompletion) {
       return; // Already did this.
     }
@@ -67,9 +97,24 @@ public abstract class LocalContext extends FlowElementContext {
     mControlQueue.put(new LocalEnvironment.ControlOp(
         LocalEnvironment.ControlOp.Code.ElementComplete,
         new LocalCompletionEvent(this)));
+    for (SelectableQueue<Object> remoteQueue : mRemoteControlQueues) {
+      remoteQueue.put(new LocalEnvironment.ControlOp(
+          LocalEnvironment.ControlOp.Code.ElementComplete,
+          new LocalCompletionEvent(this)));
+    }
     mNotifiedCompletion = true;
   }
 
+  /**
+   * Called from a thread other than the one executing this context's
+   * FlowElement, to have that thread call notifyCompletion(). Does not
+   * block: the queue of completion events of a worker thread is unbounded.
+   */
+  void postCompletion() throws InterruptedException {
+    mControlQueue.put(new LocalEnvironment.ControlOp(
+        LocalEnvironment.ControlOp.Code.NotifyComplete, this));
+  }
+
   void setFlowData(ActiveFlowData flowData) {
     mFlowData = flowData;
   }
@@ -78,6 +123,119 @@ public abstract class LocalContext extends FlowElementContext {
     return mFlowData;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public EventTracer getTracer() {
+    if (null == mFlowData) {
+      return EventTracer.DISABLED;
+    }
+
+    return mFlowData.getTracer();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public MetricsRegistry getMetrics() {
+    if (null == mFlowData) {
+      return MetricsRegistry.UNREPORTED;
+    }
+
+    return mFlowData.getMetrics();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public StateBudget getStateBudget() {
+    if (null == mFlowData) {
+      return StateBudget.UNLIMITED;
+    }
+
+    return mFlowData.getStateBudget();
+  }
+
+  /**
+   * @return the configuration of the flow this context is deployed in, or null
+   * if it has not been deployed yet.
+   */
+  protected Configuration getConf() {
+    if (null == mFlowData) {
+      return null;
+    }
+
+    return mFlowData.getFlow().getConf();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getMaxBatchSize() {
+    Configuration conf = getConf();
+    if (null == conf) {
+      return LocalEnvironment.DEFAULT_MAX_BATCH_SIZE;
+    }
+
+    return conf.getInt(LocalEnvironment.MAX_BATCH_SIZE_KEY,
+        LocalEnvironment.DEFAULT_MAX_BATCH_SIZE);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getBatchLingerMillis() {
+    Configuration conf = getConf();
+    if (null == conf) {
+      return LocalEnvironment.DEFAULT_BATCH_LINGER;
+    }
+
+    return conf.getLong(LocalEnvironment.BATCH_LINGER_KEY,
+        LocalEnvironment.DEFAULT_BATCH_LINGER);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getMaxEventLateness() {
+    Configuration conf = getConf();
+    if (null == conf) {
+      return BucketedAggregationElement.DEFAULT_SLACK_INTERVAL;
+    }
+
+    long lateness = conf.getLong(LocalEnvironment.MAX_EVENT_LATENESS_KEY,
+        conf.getInt(BucketedAggregationElement.SLACK_INTERVAL_KEY,
+        BucketedAggregationElement.DEFAULT_SLACK_INTERVAL));
+    return Math.max(0, lateness);
+  }
+
+  /**
+   * Create a queue that buffers events for a FlowElement running in another
+   * thread. The capacity and wait strategy are taken from the flow's configuration.
+   */
+  protected SelectableQueue<Object> createEventQueue() {
+    int capacity = LocalEnvironment.DEFAULT_QUEUE_CAPACITY;
+    String strategyName = LocalEnvironment.DEFAULT_QUEUE_WAIT_STRATEGY;
+    Configuration conf = getConf();
+    if (null != conf) {
+      capacity = conf.getInt(LocalEnvironment.QUEUE_CAPACITY_KEY, capacity);
+      strategyName = conf.get(LocalEnvironment.QUEUE_WAIT_STRATEGY_KEY, strategyName);
+    }
+
+    if (capacity <= 0) {
+      capacity = LocalEnvironment.DEFAULT_QUEUE_CAPACITY;
+    }
+
+    return new RingBufferSelectableQueue<Object>(capacity,
+        WaitStrategy.fromString(strategyName, WaitStrategy.PARK));
+  }
+
   /**
    * Create any necessary downstream communication queues. Default: don't create any queues.
    */
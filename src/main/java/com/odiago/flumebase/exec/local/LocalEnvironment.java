@@ -17,19 +17,31 @@
 
 package com.odiago.flumebase.exec.local;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.antlr.runtime.RecognitionException;
 
 import org.apache.hadoop.conf.Configuration;
@@ -42,15 +54,21 @@ import com.cloudera.util.Pair;
 import com.odiago.flumebase.client.ClientConsoleImpl;
 
 import com.odiago.flumebase.exec.BuiltInSymbolTable;
+import com.odiago.flumebase.exec.Checkpointable;
+import com.odiago.flumebase.exec.ElementStats;
+import com.odiago.flumebase.exec.EventBatch;
 import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.ExecEnvironment;
 import com.odiago.flumebase.exec.FlowElement;
 import com.odiago.flumebase.exec.FlowId;
 import com.odiago.flumebase.exec.FlowInfo;
+import com.odiago.flumebase.exec.FlowMetrics;
 import com.odiago.flumebase.exec.HashSymbolTable;
 import com.odiago.flumebase.exec.OutputElement;
 import com.odiago.flumebase.exec.QuerySubmitResponse;
+import com.odiago.flumebase.exec.StreamSymbol;
 import com.odiago.flumebase.exec.SymbolTable;
+import com.odiago.flumebase.exec.Watermark;
 
 import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
 
@@ -64,10 +82,15 @@ import com.odiago.flumebase.lang.TypeChecker;
 import com.odiago.flumebase.lang.VisitException;
 
 import com.odiago.flumebase.parser.ASTGenerator;
+import com.odiago.flumebase.parser.EntityTarget;
 import com.odiago.flumebase.parser.SQLStatement;
 
+import com.odiago.flumebase.plan.CreateStreamNode;
+import com.odiago.flumebase.plan.DropNode;
 import com.odiago.flumebase.plan.FlowSpecification;
+import com.odiago.flumebase.plan.OptimizeFilters;
 import com.odiago.flumebase.plan.PlanContext;
+import com.odiago.flumebase.plan.PlanNode;
 import com.odiago.flumebase.plan.PropagateSchemas;
 
 import com.odiago.flumebase.server.SessionId;
@@ -99,6 +122,86 @@ public class LocalEnvironment extends ExecEnvironment {
   /** Config key specifying the session id of the submitting user for a query. */
   public static final String SUBMITTER_SESSION_ID_KEY = "flumebase.query.submitter.session.id";
 
+  /**
+   * Config key specifying the number of worker threads that execute flows.
+   * Each flow is bound to a single worker for its lifetime; independent flows
+   * bound to different workers execute in parallel. If unset or non-positive,
+   * one worker is started per available processor.
+   */
+  public static final String NUM_WORKER_THREADS_KEY = "flumebase.exec.worker.threads";
+
+  /**
+   * Config key specifying the capacity of the buffers between FlowElements
+   * that execute in different threads. Rounded up to a power of two.
+   */
+  public static final String QUEUE_CAPACITY_KEY = "flumebase.exec.queue.capacity";
+  public static final int DEFAULT_QUEUE_CAPACITY = 128;
+
+  /**
+   * Config key specifying how a thread waits on a full or empty buffer
+   * between FlowElements: one of "spin", "yield", or "park".
+   */
+  public static final String QUEUE_WAIT_STRATEGY_KEY = "flumebase.exec.queue.wait.strategy";
+  public static final String DEFAULT_QUEUE_WAIT_STRATEGY = "park";
+
+  /**
+   * Config key specifying the capacity of the buffer into which a live stream
+   * or a shared sub-plan delivers events for each flow reading it. The
+   * publisher never waits for a subscriber; when this buffer is full, the
+   * SUBSCRIBER_OVERFLOW_POLICY_KEY applies. Rounded up to a power of two.
+   */
+  public static final String SUBSCRIBER_QUEUE_CAPACITY_KEY =
+      "flumebase.exec.subscriber.queue.capacity";
+  public static final int DEFAULT_SUBSCRIBER_QUEUE_CAPACITY = 4096;
+
+  /**
+   * Config key specifying what happens when the buffer of a subscriber to a
+   * live stream or shared sub-plan is full: "drop" discards and counts the
+   * events that do not fit; "disconnect" stops delivering to the subscriber
+   * and completes its flow.
+   */
+  public static final String SUBSCRIBER_OVERFLOW_POLICY_KEY =
+      "flumebase.exec.subscriber.overflow.policy";
+  public static final String DEFAULT_SUBSCRIBER_OVERFLOW_POLICY = "drop";
+
+  /**
+   * Config key specifying the maximum number of events that a source groups
+   * into a single batch before passing them downstream. 1 disables batching.
+   */
+  public static final String MAX_BATCH_SIZE_KEY = "flumebase.exec.batch.size";
+  public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+  /**
+   * Config key specifying the maximum time (ms) that an event may wait in a
+   * partially-filled batch before the batch is passed downstream.
+   */
+  public static final String BATCH_LINGER_KEY = "flumebase.exec.batch.linger.ms";
+  public static final long DEFAULT_BATCH_LINGER = 10;
+
+  /**
+   * Config key specifying the maximum amount of time (ms) by which the
+   * timestamps of the events of a source may be out of order. Sources which
+   * generate watermarks hold them back by this amount; events arriving later
+   * than this are dropped by windowed operators. Defaults to the slack time
+   * interval.
+   */
+  public static final String MAX_EVENT_LATENESS_KEY = "flumebase.watermark.lateness.ms";
+
+  /**
+   * Config key specifying the memory budget, in megabytes, shared by the
+   * state of all the joins and aggregations of a flow. Once the budget is
+   * exceeded, the operator whose state is growing spills its oldest state to
+   * disk. 0 keeps all state on the heap.
+   */
+  public static final String STATE_MEMORY_BUDGET_KEY = "flumebase.flow.state.memory.mb";
+  public static final int DEFAULT_STATE_MEMORY_BUDGET = 0;
+
+  /**
+   * Config key specifying the directory where the state of a flow is
+   * spilled. Defaults to the JVM's temporary directory.
+   */
+  public static final String STATE_SPILL_DIR_KEY = "flumebase.flow.state.spill.dir";
+
   static class ControlOp {
     enum Code {
       AddFlow,         // A new flow shold be deployed.
@@ -107,13 +210,16 @@ public class LocalEnvironment extends ExecEnvironment {
       ShutdownThread,  // Stop processing anything else, immediately.
       Noop,            // Do no control action; just service data events.
       ElementComplete, // A flow element is complete and should be freed.
+      NotifyComplete,  // A flow element was told by another thread that it is complete.
       Join,            // Add an object to the list of objects to be notified when a
                        // flow is canceled.
       ListFlows,       // Enumerate the running flows.
+      GetMetrics,      // Gather the metrics of the running flows.
       WatchFlow,       // Subscribe to a flow's output.
       UnwatchFlow,     // Unsubscribe from a flow's output.
       GetWatchList,    // Get a list of flows being watched by a session.
       SetFlowName,     // Set the name of the output stream for a flow.
+      Checkpoint,      // Checkpoint the state of all flows.
     };
 
     /** What operation should be performed by the worker thread? */
@@ -152,13 +258,27 @@ public class LocalEnvironment extends ExecEnvironment {
   }
 
   /**
-   * The thread where the active flows in the local environment actually operate.
+   * A worker thread where a subset of the active flows in the local environment
+   * actually operate. Every FlowElement in a given flow is serviced by the same
+   * worker, so elements never see concurrent takeEvent() calls.
    */
   private class LocalEnvThread extends Thread {
 
-    /** The set of running flows. */
+    /** The set of running flows bound to this worker. */
     private Map<FlowId, ActiveFlowData> mActiveFlows;
 
+    /**
+     * Queue of control events passed from client threads to this worker
+     * (e.g., "deploy stream", "cancel stream", etc.)
+     */
+    private SelectableQueue<Object> mControlQueue; // Actually full of ControlOp instances
+
+    /**
+     * Number of flows assigned to this worker, including flows whose AddFlow
+     * operation has not yet been processed. Used to balance new flows across workers.
+     */
+    private AtomicInteger mNumAssignedFlows;
+
     /** Mapping from an input queue to the FlowElement it is feeding values to. */
     private Map<SelectableQueue<Object>, FlowElement> mInputQueues;
 
@@ -169,20 +289,60 @@ public class LocalEnvironment extends ExecEnvironment {
     private SelectableQueue<Object> mCompletionEventQueue;
 
     /**
-     * Set of queues which should be watched for emptiness; when they transition
-     * to empty, notify the associated downstream element of the upstream element's
-     * closure.
+     * Queues which should be watched for emptiness, mapped to the context of
+     * their completed upstream element; when they transition to empty, notify
+     * the associated downstream element of the upstream element's closure.
      */
-    private Set<SelectableQueue<Object>> mCloseQueues;
+    private Map<SelectableQueue<Object>, LocalContext> mCloseQueues;
 
-    public LocalEnvThread() {
+    /**
+     * Threads executing the partitions of data-parallel operators in the flows
+     * owned by this worker. These threads are private to their flow, and are
+     * stopped when the flow is canceled.
+     */
+    private Map<FlowId, List<LocalEnvThread>> mPartitionThreads;
+
+    public LocalEnvThread(int workerId) {
+      this("LocalEnvWorker-" + workerId);
+    }
+
+    private LocalEnvThread(String threadName) {
       mActiveFlows = new HashMap<FlowId, ActiveFlowData>();
+      mControlQueue = new ArrayBoundedSelectableQueue<Object>(MAX_QUEUE_LEN);
+      mNumAssignedFlows = new AtomicInteger(0);
       mSelect = new Select<Object>();
       mCompletionEventQueue = new SyncSelectableQueue<Object>();
       mInputQueues = new HashMap<SelectableQueue<Object>, FlowElement>();
-      mCloseQueues = new HashSet<SelectableQueue<Object>>();
+      mCloseQueues = new HashMap<SelectableQueue<Object>, LocalContext>();
+      mPartitionThreads = new HashMap<FlowId, List<LocalEnvThread>>();
+
+      setName(threadName);
+    }
 
-      setName("LocalEnvWorker");
+    /** Enqueue a control operation for this worker to process. */
+    void putControlOp(ControlOp op) throws InterruptedException {
+      mControlQueue.put(op);
+    }
+
+    /** @return the number of flows currently bound to this worker. */
+    int getNumAssignedFlows() {
+      return mNumAssignedFlows.get();
+    }
+
+    /**
+     * Bind a flow to this worker. Called by the client thread before the
+     * AddFlow operation is enqueued.
+     */
+    void assignFlow(FlowId id) {
+      mNumAssignedFlows.incrementAndGet();
+      mFlowWorkers.put(id, this);
+    }
+
+    /** Release a flow previously bound to this worker by assignFlow(). */
+    private void releaseFlow(FlowId id) {
+      if (mFlowWorkers.remove(id) != null) {
+        mNumAssignedFlows.decrementAndGet();
+      }
     }
 
     private void deployFlow(LocalFlow newFlow) throws IOException, InterruptedException {
@@ -203,37 +363,76 @@ public class LocalEnvironment extends ExecEnvironment {
       }
 
       // If we haven't yet started Flume, and the flow requires Flume-based sources,
-      // start Flume.
-      if (newFlow.requiresFlume() && !mFlumeConfig.isRunning()) {
-        mFlumeConfig.start();
+      // start Flume. Several workers may race to do this.
+      if (newFlow.requiresFlume()) {
+        synchronized (mFlumeConfig) {
+          if (!mFlumeConfig.isRunning()) {
+            mFlumeConfig.start();
+          }
+        }
+      }
+
+      // Replicas of partitioned operators are executed by threads dedicated to
+      // this flow. Determine which thread executes each FlowElement.
+      final List<LocalEnvThread> partitionThreads = new ArrayList<LocalEnvThread>();
+      for (int i = 0; i < newFlow.getNumPartitions(); i++) {
+        partitionThreads.add(new LocalEnvThread(
+            getName() + "-flow" + newFlow.getId().getId() + "-p" + i));
+      }
+      // Each element is also bound to the flow's data before any state is
+      // restored into it, since that state counts against the flow's budget.
+      final Map<FlowElement, LocalEnvThread> elemThreads =
+          new HashMap<FlowElement, LocalEnvThread>();
+      try {
+        newFlow.bfs(new DAG.Operator<FlowElementNode>() {
+          public void process(FlowElementNode elemNode) {
+            FlowElement flowElem = elemNode.getFlowElement();
+            ((LocalContext) flowElem.getContext()).setFlowData(activeFlowData);
+            int partition = elemNode.getPartition();
+            if (partition != FlowElementNode.UNPARTITIONED) {
+              elemThreads.put(flowElem, partitionThreads.get(partition));
+            }
+          }
+        });
+      } catch (DAGOperatorException doe) {
+        // Shouldn't get here with this operator.
+        LOG.error("Unexpected dag op exn: " + doe);
+      }
+      if (null != newFlow.getRestoreStates()) {
+        restoreFlow(newFlow);
       }
 
       // Open all FlowElements in the flow, in reverse bfs order
       // (so sinks are always ready before sources). Add the output
       // queue(s) from the FlowElement to the set of output queues
-      // we monitor for further event processing.
+      // monitored by the thread executing the downstream element.
       try {
         newFlow.reverseBfs(new DAG.Operator<FlowElementNode>() {
           public void process(FlowElementNode elemNode) throws DAGOperatorException {
             FlowElement flowElem = elemNode.getFlowElement();
+            LocalEnvThread elemThread = getThreadForElement(flowElem, elemThreads);
 
             // All FlowElements that we see will have LocalContext subclass contexts.
             // Get the output queue from this.
             LocalContext elemContext = (LocalContext) flowElem.getContext();
-            elemContext.initControlQueue(mCompletionEventQueue);
-            elemContext.setFlowData(activeFlowData);
+            elemContext.initControlQueue(elemThread.mCompletionEventQueue);
 
             elemContext.createDownstreamQueues();
             List<SelectableQueue<Object>> elemBuffers = elemContext.getDownstreamQueues();
             if (null != elemBuffers) {
               List<FlowElement> downstreams = elemContext.getDownstream();
-              // Bind each queue to its downstream element.
+              // Bind each queue to its downstream element. Partition threads
+              // are not yet running, so their select sets can be modified here.
               for (int i = 0; i < elemBuffers.size(); i++) {
                 SelectableQueue<Object> elemBuffer = elemBuffers.get(i);
                 if (null != elemBuffer) {
                   FlowElement downstream = downstreams.get(i);
-                  mInputQueues.put(elemBuffer, downstream);
-                  mSelect.add(elemBuffer); // And watch this queue for updates.
+                  LocalEnvThread consumer = getThreadForElement(downstream, elemThreads);
+                  consumer.mInputQueues.put(elemBuffer, downstream);
+                  consumer.mSelect.add(elemBuffer); // And watch this queue for updates.
+                  if (consumer != elemThread) {
+                    elemContext.addRemoteControlQueue(consumer.mCompletionEventQueue);
+                  }
                 }
               }
             }
@@ -264,12 +463,228 @@ public class LocalEnvironment extends ExecEnvironment {
       }
 
       mActiveFlows.put(newFlow.getId(), activeFlowData);
+      if (!newFlow.isShared()) {
+        // Shared flows are recreated as needed by the flows which read them.
+        mMetastore.addFlow(newFlow.getId(), newFlow.getQuery(), getConfOverrides(flowConf));
+      }
+
+      if (partitionThreads.size() > 0) {
+        LOG.info("Starting " + partitionThreads.size() + " partition threads for flow "
+            + newFlow.getId());
+        for (LocalEnvThread partitionThread : partitionThreads) {
+          partitionThread.start();
+        }
+        mPartitionThreads.put(newFlow.getId(), partitionThreads);
+      }
+    }
+
+    /**
+     * Release the references to shared sub-plans held by the sources of a
+     * flow which could not be deployed.
+     */
+    private void releaseSharedSources(LocalFlow flow) {
+      for (FlowElementNode root : flow.getRootSet()) {
+        FlowElement flowElem = root.getFlowElement();
+        if (flowElem instanceof SharedSourceElement) {
+          ((SharedSourceElement) flowElem).release();
+        }
+      }
+    }
+
+    /**
+     * Restore the state of the elements of a flow from a checkpoint, before
+     * the elements are opened.
+     */
+    private void restoreFlow(LocalFlow flow) throws IOException {
+      List<FlowElement> elements = getFlowElements(flow);
+      for (CheckpointManager.ElementState elemState : flow.getRestoreStates()) {
+        FlowElement flowElem = elemState.mIndex < elements.size()
+            ? elements.get(elemState.mIndex) : null;
+        if (null == flowElem || !(flowElem instanceof Checkpointable)
+            || !flowElem.getClass().getName().equals(elemState.mClassName)) {
+          throw new IOException("Checkpoint of " + flow.getId()
+              + " does not match the plan of its query");
+        }
+
+        ((Checkpointable) flowElem).restoreState(new DataInputStream(
+            new ByteArrayInputStream(elemState.mState)));
+      }
+      LOG.info("Restored " + flow.getId() + " from checkpoint");
+    }
+
+    /** @return the FlowElements of a flow, in breadth-first order. */
+    private List<FlowElement> getFlowElements(LocalFlow flow) {
+      final List<FlowElement> elements = new ArrayList<FlowElement>();
+      try {
+        flow.bfs(new DAG.Operator<FlowElementNode>() {
+          public void process(FlowElementNode elemNode) {
+            elements.add(elemNode.getFlowElement());
+          }
+        });
+      } catch (DAGOperatorException doe) {
+        // Shouldn't get here with this operator.
+        LOG.error("Unexpected dag op exn: " + doe);
+      }
+      return elements;
+    }
+
+    /**
+     * Checkpoint the state of each flow bound to this worker. Flows with
+     * partitioned operators, whose state is spread across several threads,
+     * are not checkpointed.
+     */
+    private void checkpointFlows() {
+      for (ActiveFlowData flowData : new ArrayList<ActiveFlowData>(mActiveFlows.values())) {
+        if (flowData.getFlow().getNumPartitions() == 0) {
+          try {
+            checkpointFlow(flowData);
+          } catch (IOException ioe) {
+            LOG.warn("Could not checkpoint " + flowData.getFlowId() + ": " + ioe);
+          }
+        }
+      }
+    }
+
+    /**
+     * Capture the state of the elements of a flow, and hand it to the
+     * checkpoint writer. Sources record how much of their input they have
+     * emitted into the flow; events they emit afterward are replayed when
+     * the flow is restored. The state of the sources is therefore captured
+     * first, then the events already emitted are processed, and then the
+     * state of the remaining elements is captured.
+     */
+    private void checkpointFlow(ActiveFlowData flowData) throws IOException {
+      LocalFlow flow = flowData.getFlow();
+      List<FlowElement> elements = getFlowElements(flow);
+      Map<FlowElement, Boolean> sources = new IdentityHashMap<FlowElement, Boolean>();
+      for (FlowElementNode root : flow.getRootSet()) {
+        sources.put(root.getFlowElement(), Boolean.TRUE);
+      }
+
+      byte[][] states = new byte[elements.size()][];
+      for (int i = 0; i < elements.size(); i++) {
+        if (sources.containsKey(elements.get(i))) {
+          states[i] = saveState(elements.get(i));
+        }
+      }
+
+      drainFlow(elements);
+
+      List<CheckpointManager.ElementState> elemStates =
+          new ArrayList<CheckpointManager.ElementState>();
+      for (int i = 0; i < elements.size(); i++) {
+        FlowElement flowElem = elements.get(i);
+        if (!sources.containsKey(flowElem)) {
+          states[i] = saveState(flowElem);
+        }
+        if (null != states[i]) {
+          elemStates.add(new CheckpointManager.ElementState(i,
+              flowElem.getClass().getName(), states[i]));
+        }
+      }
+
+      mCheckpointManager.write(new CheckpointManager.FlowState(flow.getId(), flow.getQuery(),
+          flowData.getStreamName(), getConfOverrides(flow.getConf()), elemStates));
+    }
+
+    /** @return the saved state of a FlowElement, or null if it has no state to save. */
+    private byte[] saveState(FlowElement flowElem) throws IOException {
+      if (!(flowElem instanceof Checkpointable) || flowElem.isClosed()) {
+        return null;
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      ((Checkpointable) flowElem).saveState(out);
+      out.close();
+      return bytes.toByteArray();
+    }
+
+    /**
+     * Process the events already waiting in the input queues of a flow's
+     * elements, in breadth-first order, so that the elements' state reflects
+     * them. Events which arrive while doing so may also be processed.
+     */
+    private void drainFlow(List<FlowElement> elements) {
+      for (FlowElement flowElem : elements) {
+        List<SelectableQueue<Object>> queues =
+            ((LocalContext) flowElem.getContext()).getDownstreamQueues();
+        if (null == queues) {
+          continue;
+        }
+
+        for (SelectableQueue<Object> queue : queues) {
+          if (null == queue) {
+            continue;
+          }
+
+          for (int n = queue.size(); n > 0 && mInputQueues.containsKey(queue); n--) {
+            Object item = null;
+            synchronized (queue) {
+              if (queue.canRead()) {
+                try {
+                  item = queue.read();
+                } catch (InterruptedException ie) {
+                  // Leave the rest of the queue to the main loop.
+                }
+              }
+            }
+
+            if (null == item) {
+              break;
+            }
+            processItem(queue, item);
+          }
+        }
+      }
+    }
+
+    /**
+     * @return the thread which executes the specified FlowElement: either one
+     * of the flow's partition threads, or this worker.
+     */
+    private LocalEnvThread getThreadForElement(FlowElement flowElem,
+        Map<FlowElement, LocalEnvThread> elemThreads) {
+      LocalEnvThread thread = elemThreads.get(flowElem);
+      if (null == thread) {
+        return this;
+      }
+      return thread;
+    }
+
+    /**
+     * Stop the partition threads of a flow. Called before the flow's elements
+     * are closed, so that no other thread is using them.
+     */
+    private void stopPartitionThreads(FlowId id) {
+      List<LocalEnvThread> partitionThreads = mPartitionThreads.remove(id);
+      if (null == partitionThreads) {
+        return;
+      }
+
+      try {
+        for (LocalEnvThread partitionThread : partitionThreads) {
+          partitionThread.putControlOp(new ControlOp(ControlOp.Code.ShutdownThread, null));
+        }
+        for (LocalEnvThread partitionThread : partitionThreads) {
+          while (partitionThread.isAlive()) {
+            // The thread may be blocked on a full queue that this thread
+            // no longer drains; interrupt it until it sees the shutdown request.
+            partitionThread.interrupt();
+            partitionThread.join(PARTITION_JOIN_INTERVAL);
+          }
+        }
+      } catch (InterruptedException ie) {
+        LOG.error("Interrupted while stopping partition threads of flow " + id);
+        Thread.currentThread().interrupt();
+      }
     }
 
     private void cancelFlowInner(ActiveFlowData flowData) {
       // Close all FlowElements in the flow, and remove their output queues
       // from the set of queues we track.
       LocalFlow flow = flowData.getFlow();
+      stopPartitionThreads(flow.getId());
       try {
         flow.rankTraversal(new DAG.Operator<FlowElementNode>() {
           public void process(FlowElementNode elemNode) {
@@ -317,6 +732,16 @@ public class LocalEnvironment extends ExecEnvironment {
       }
       cancelFlowInner(flowData);
       mActiveFlows.remove(id);
+      releaseFlow(id);
+      if (flowData.getFlow().isShared()) {
+        return; // Never recorded.
+      }
+      // The flow is finished; it should not be redeployed.
+      mMetastore.removeFlow(id);
+      if (mCheckpointManager.isEnabled()) {
+        // The flow is finished; it should not be restored.
+        mCheckpointManager.delete(id);
+      }
     }
 
     /** @return true if 'id' refers to an active flow. */
@@ -329,12 +754,18 @@ public class LocalEnvironment extends ExecEnvironment {
         return;
       }
 
+      if (mCheckpointManager.isEnabled()) {
+        // The environment is shutting down; save the flows to restore when it restarts.
+        checkpointFlows();
+      }
+
       LOG.info("Closing all flows");
       Set<Map.Entry<FlowId, ActiveFlowData>> flowSet = mActiveFlows.entrySet();
       Iterator<Map.Entry<FlowId, ActiveFlowData>> flowIter = flowSet.iterator();
       while (flowIter.hasNext()) {
         Map.Entry<FlowId, ActiveFlowData> entry = flowIter.next();
         cancelFlowInner(entry.getValue());
+        releaseFlow(entry.getKey());
       }
 
       mActiveFlows.clear();
@@ -352,6 +783,9 @@ public class LocalEnvironment extends ExecEnvironment {
         for (Map.Entry<FlowId, ActiveFlowData> entry : mActiveFlows.entrySet()) {
           FlowId id = entry.getKey();
           ActiveFlowData activeData = entry.getValue();
+          if (activeData.getFlow().isShared()) {
+            continue; // Hidden from the user.
+          }
           outMap.put(id, new FlowInfo(id, activeData.getFlow().getQuery(),
               activeData.getStreamName()));
         }
@@ -361,6 +795,26 @@ public class LocalEnvironment extends ExecEnvironment {
       }
     }
 
+    /**
+     * Populate the provided map with the metrics of all running flows. As
+     * with listFlows(), the map is synchronized on and notified when ready.
+     */
+    private void getFlowMetrics(Map<FlowId, FlowMetrics> outMap) {
+      assert outMap != null;
+      synchronized (outMap) {
+        for (Map.Entry<FlowId, ActiveFlowData> entry : mActiveFlows.entrySet()) {
+          ActiveFlowData activeData = entry.getValue();
+          if (activeData.getFlow().isShared()) {
+            continue; // Hidden from the user.
+          }
+          outMap.put(entry.getKey(), activeData.getFlowMetrics());
+        }
+
+        // Notify the calling thread when we're done.
+        outMap.notify();
+      }
+    }
+
     /**
      * Sign up the specified session to watch a given flow.
      */
@@ -415,14 +869,25 @@ public class LocalEnvironment extends ExecEnvironment {
      * the downstream element of this closure, and remove the queue from the
      * set of things we track.
      */
-    private void closeQueue(SelectableQueue<Object> queue, FlowElement flowElem)
-        throws IOException, InterruptedException {
-      flowElem.closeUpstream();
+    private void closeQueue(SelectableQueue<Object> queue, FlowElement flowElem,
+        LocalContext upstreamContext) throws IOException, InterruptedException {
+      closeUpstream(flowElem, upstreamContext);
       mSelect.remove(queue);
       mInputQueues.remove(queue);
       mCloseQueues.remove(queue);
     }
 
+    /**
+     * Notify a FlowElement that one of its upstream elements has completed.
+     * It first receives the final watermark of that element, which will not
+     * emit any more events.
+     */
+    private void closeUpstream(FlowElement flowElem, LocalContext upstreamContext)
+        throws IOException, InterruptedException {
+      flowElem.takeWatermark(new Watermark(Watermark.END_OF_STREAM, upstreamContext));
+      flowElem.closeUpstream();
+    }
+
     /**
      * Update the OutputElement of a flow to use a different output stream
      * name for the output.
@@ -454,6 +919,58 @@ public class LocalEnvironment extends ExecEnvironment {
         });
       } catch (DAGOperatorException doe) {
         LOG.error("Error setting output stream name: " + doe);
+        return;
+      }
+      mMetastore.setFlowName(flowId, name);
+    }
+
+    /**
+     * Process an event, batch, or watermark read from the input queue of a
+     * FlowElement executed by this thread.
+     */
+    private void processItem(SelectableQueue<Object> queue, Object item) {
+      // Process this event (or batch, or watermark) with its associated FlowElement.
+      // Look up the correct FlowElement based on the queue->FE map.
+      FlowElement processor = mInputQueues.get(queue);
+      if (null == processor) {
+        LOG.error("No FlowElement for input queue " + queue);
+      } else {
+        ElementStats stats = processor.getStats();
+        if (null != stats) {
+          stats.recordQueueDepth(queue.size());
+        }
+        try {
+          if (item instanceof EventBatch) {
+            processor.deliverEvents((EventBatch) item);
+          } else if (item instanceof Watermark) {
+            processor.takeWatermark((Watermark) item);
+          } else {
+            processor.deliverEvent((EventWrapper) item);
+          }
+        } catch (IOException ioe) {
+          // TODO(aaron): Encountering an exception mid-flow should cancel the flow.
+          LOG.error("Flow element encountered IOException: " + ioe);
+        } catch (InterruptedException ie) {
+          LOG.error("Flow element encountered InterruptedException: " + ie);
+        }
+
+        if (null != stats && queue.size() == 0) {
+          // The element has caught up with its input; publish its statistics,
+          // which are otherwise only published periodically.
+          stats.publish();
+        }
+      }
+
+      if (queue.size() == 0 && mCloseQueues.containsKey(queue)) {
+        // We just transitioned this FE's input queue to empty, and it was closed
+        // upstream. Notify the downstream element of this closure.
+        try {
+          closeQueue(queue, processor, mCloseQueues.get(queue));
+        } catch (IOException ioe) {
+          LOG.error("IOException closing flow element: " + ioe);
+        } catch (InterruptedException ie) {
+          LOG.error("InterruptedException closing flow element: " + ie);
+        }
       }
     }
 
@@ -500,6 +1017,11 @@ public class LocalEnvironment extends ExecEnvironment {
               } catch (Exception e) {
                 LOG.error("Exception deploying flow: " + StringUtils.stringifyException(e));
               } finally {
+                if (!isActive(newFlow.getId())) {
+                  // Deployment failed; this worker does not own the flow after all.
+                  releaseFlow(newFlow.getId());
+                  releaseSharedSources(newFlow);
+                }
                 // Client waited on this object to know when deployment is done.
                 synchronized (newFlow) {
                   newFlow.setDeployed(true);
@@ -530,6 +1052,19 @@ public class LocalEnvironment extends ExecEnvironment {
                   (Pair<SessionId, List<FlowId>>) nextOp.getDatum();
               getWatchList(getReq.getLeft(), getReq.getRight());
               break;
+            case NotifyComplete:
+              // Complete the element from this thread, which executes it.
+              LocalContext completeContext = (LocalContext) nextOp.getDatum();
+              if (isActive(completeContext.getFlowData().getFlowId())) {
+                try {
+                  completeContext.notifyCompletion();
+                } catch (IOException ioe) {
+                  LOG.error("IOException notifying completion: " + ioe);
+                } catch (InterruptedException ie) {
+                  LOG.error("Interruption notifying completion: " + ie);
+                }
+              }
+              break;
             case SetFlowName:
               Pair<FlowId, String> flowNameData =
                   (Pair<FlowId, String>) nextOp.getDatum();
@@ -563,7 +1098,7 @@ public class LocalEnvironment extends ExecEnvironment {
                   // Has elements, but no queues. Notify the downstream
                   // FlowElement(s) to close too.
                   for (FlowElement downstream : downstreamElements) {
-                    downstream.closeUpstream();
+                    closeUpstream(downstream, context);
                   }
                 } else {
                   // May have downstream queues. For each downstream element, close it
@@ -573,15 +1108,19 @@ public class LocalEnvironment extends ExecEnvironment {
                   for (int i = 0; i < downstreamElements.size(); i++) {
                     SelectableQueue<Object> downstreamQueue = downstreamQueues.get(i);
                     FlowElement downstreamElement = downstreamElements.get(i);
-                    if (downstreamQueue == null) {
+                    if (downstreamQueue != null && !mInputQueues.containsKey(downstreamQueue)) {
+                      // This queue is consumed by another thread, which was
+                      // notified of this completion separately.
+                      continue;
+                    } else if (downstreamQueue == null) {
                       // Close directly.
-                      downstreamElement.closeUpstream();
+                      closeUpstream(downstreamElement, context);
                     } else if (downstreamQueue.size() == 0) {
                       // Queue's dry, close it down.
-                      closeQueue(downstreamQueue, downstreamElement);
+                      closeQueue(downstreamQueue, downstreamElement, context);
                     } else {
                       // Watch this queue for completion.
-                      mCloseQueues.add(downstreamQueue);
+                      mCloseQueues.put(downstreamQueue, context);
                     }
 
                   }
@@ -612,50 +1151,32 @@ public class LocalEnvironment extends ExecEnvironment {
               Map<FlowId, FlowInfo> resultMap = (Map<FlowId, FlowInfo>) nextOp.getDatum();
               listFlows(resultMap);
               break;
+            case GetMetrics:
+              Map<FlowId, FlowMetrics> metricsMap =
+                  (Map<FlowId, FlowMetrics>) nextOp.getDatum();
+              getFlowMetrics(metricsMap);
+              break;
+            case Checkpoint:
+              checkpointFlows();
+              break;
             }
 
             if (isFinished) {
               // Stop immediately; ignore any further event processing or control work.
               break;
             }
-          } else if (nextAction instanceof EventWrapper) {
-            // Process this event with its associated FlowElement.
-            // Look up the correct FlowElement based on the queue->FE map.
-            FlowElement processor = mInputQueues.get(nextQueue);
-            if (null == processor) {
-              LOG.error("No FlowElement for input queue " + nextQueue);
-            } else {
-              try {
-                processor.takeEvent((EventWrapper) nextAction);
-              } catch (IOException ioe) {
-                // TODO(aaron): Encountering an exception mid-flow should cancel the flow.
-                LOG.error("Flow element encountered IOException: " + ioe);
-              } catch (InterruptedException ie) {
-                LOG.error("Flow element encountered InterruptedException: " + ie);
-              }
-            }
-
-            if (((SelectableQueue<Object>) nextQueue).size() == 0
-                && mCloseQueues.contains(nextQueue)) {
-              // We just transitioned this FE's input queue to empty, and it was closed
-              // upstream. Notify the downstream element of this closure.
-              try {
-                closeQueue((SelectableQueue<Object>) nextQueue, processor);
-              } catch (IOException ioe) {
-                LOG.error("IOException closing flow element: " + ioe);
-              } catch (InterruptedException ie) {
-                LOG.error("InterruptedException closing flow element: " + ie);
-              }
-            }
+          } else if (nextAction instanceof EventWrapper || nextAction instanceof EventBatch
+              || nextAction instanceof Watermark) {
+            processItem((SelectableQueue<Object>) nextQueue, nextAction);
           } else {
             LOG.error("Do not know what to do with queue element " + nextAction
                 + " of class " + nextAction.getClass().getName());
           }
         }
       } finally {
-        // Shut down the embedded Flume instance before we exit the thread.
-        if (mFlumeConfig.isRunning()) {
-          mFlumeConfig.stop();
+        // Any flows still bound to this worker are gone with it.
+        for (FlowId id : mActiveFlows.keySet()) {
+          releaseFlow(id);
         }
       }
     }
@@ -691,21 +1212,49 @@ public class LocalEnvironment extends ExecEnvironment {
    */
   private EmbeddedFlumeConfig mFlumeConfig;
 
-  /** The thread that does the actual flow execution. */
-  private LocalEnvThread mLocalThread;
+  /** The threads that do the actual flow execution. */
+  private List<LocalEnvThread> mWorkers;
 
-  /** set to true after connect(). */
-  private boolean mConnected;
+  /**
+   * Mapping from each live flow to the worker thread that executes it.
+   * Entries are added by the client thread when a flow is submitted, and
+   * removed by the worker when the flow is canceled or completes.
+   */
+  private Map<FlowId, LocalEnvThread> mFlowWorkers;
+
+  /**
+   * Timer shared by all flows, which drives the timeouts of windowed
+   * FlowElements. Created and started by connect().
+   */
+  private TimerWheel mTimerWheel;
+
+  /** Writes and reads the checkpoints of flows. Created by connect(). */
+  private CheckpointManager mCheckpointManager;
+
+  /** Records the streams and flows to recreate on restart. Created by connect(). */
+  private Metastore mMetastore;
+
+  /** Tracks the sub-plans computed by hidden flows, and shared by user flows. */
+  private SharedSubplans mSharedSubplans;
 
   /**
-   * Queue of control events passed from the console thread to the worker thread
-   * (e.g., "deploy stream", "cancel stream", etc.)
+   * Next id to assign to a hidden shared flow. Shared flows are numbered
+   * downward from -1, so that they do not consume the ids of user flows.
    */
-  private SelectableQueue<Object> mControlQueue; // Actually full of ControlOp instances
+  private long mNextSharedFlowId;
 
-  /** Max len for mControlQueue, or any FlowElement's input queue. */
+  /** Set to true when checkpoints should no longer be scheduled. */
+  private volatile boolean mCheckpointsStopped;
+
+  /** set to true after connect(). */
+  private boolean mConnected;
+
+  /** Max len for a worker's control queue, or any FlowElement's input queue. */
   static final int MAX_QUEUE_LEN = 100;
 
+  /** Interval (ms) at which a stopping partition thread is interrupted. */
+  private static final long PARTITION_JOIN_INTERVAL = 100;
+
   /**
    * The root symbol table where streams, etc are defined. Used in the
    * user thread for AST and plan walking.
@@ -735,9 +1284,31 @@ public class LocalEnvironment extends ExecEnvironment {
 
     mGenerator = new ASTGenerator();
     mNextFlowId = 0;
-    mControlQueue = new ArrayBoundedSelectableQueue<Object>(MAX_QUEUE_LEN);
     mFlumeConfig = flumeConfig;
-    mLocalThread = this.new LocalEnvThread();
+    mFlowWorkers = new ConcurrentHashMap<FlowId, LocalEnvThread>();
+    mWorkers = new ArrayList<LocalEnvThread>();
+    mSharedSubplans = new SharedSubplans(new SharedSubplans.Listener() {
+      public void cancelSharedFlow(FlowId flowId) {
+        // Called from the worker closing the last subscriber; it must not
+        // wait on the control queue of another worker (or its own).
+        mTimerWheel.schedule(0, new CancelSharedFlowTask(flowId));
+      }
+    });
+    mNextSharedFlowId = -1;
+  }
+
+  /**
+   * @return the worker thread with the fewest flows bound to it, where a new
+   * flow should be deployed.
+   */
+  private LocalEnvThread getLeastLoadedWorker() {
+    LocalEnvThread best = null;
+    for (LocalEnvThread worker : mWorkers) {
+      if (null == best || worker.getNumAssignedFlows() < best.getNumAssignedFlows()) {
+        best = worker;
+      }
+    }
+    return best;
   }
 
   /** Given a Configuration that has SUBMITTER_SESSION_ID_KEY set, return the
@@ -752,11 +1323,284 @@ public class LocalEnvironment extends ExecEnvironment {
   @Override
   public SessionId connect() throws IOException {
     Runtime.getRuntime().addShutdownHook(new ShutdownThread());
-    mLocalThread.start();
+
+    // The worker pool is sized here rather than in the c'tor so that the
+    // configuration may be adjusted up until the environment is used.
+    int numWorkers = mConf.getInt(NUM_WORKER_THREADS_KEY, 0);
+    if (numWorkers <= 0) {
+      numWorkers = Runtime.getRuntime().availableProcessors();
+    }
+    for (int i = 0; i < numWorkers; i++) {
+      mWorkers.add(this.new LocalEnvThread(i));
+    }
+
+    mTimerWheel = new TimerWheel(mConf);
+    mTimerWheel.start();
+
+    mCheckpointManager = new CheckpointManager(mConf);
+    if (mCheckpointManager.isEnabled()) {
+      mCheckpointManager.start();
+    }
+
+    mMetastore = new Metastore(mConf);
+    if (mMetastore.isEnabled()) {
+      mMetastore.open();
+    }
+
+    for (LocalEnvThread worker : mWorkers) {
+      worker.start();
+    }
     mConnected = true;
+
+    if (mMetastore.isEnabled() || mCheckpointManager.isEnabled()) {
+      try {
+        restoreStreams();
+        restoreFlows();
+      } catch (InterruptedException ie) {
+        throw new IOException(ie);
+      }
+    }
+
+    if (mCheckpointManager.isEnabled()) {
+      mCheckpointsStopped = false;
+      mTimerWheel.schedule(mCheckpointManager.getInterval(), new CheckpointTask());
+    }
     return new SessionId(0); // Local user is always session 0.
   }
 
+  /**
+   * @return the settings in flowConf which differ from those of the
+   * environment, so that a flow's plan can be built again when it is restored.
+   */
+  private Map<String, String> getConfOverrides(Configuration flowConf) {
+    Map<String, String> confOverrides = new HashMap<String, String>();
+    for (Map.Entry<String, String> entry : flowConf) {
+      String key = entry.getKey();
+      if (!key.equals(SUBMITTER_SESSION_ID_KEY)
+          && !entry.getValue().equals(mConf.getRaw(key))) {
+        confOverrides.put(key, entry.getValue());
+      }
+    }
+    return confOverrides;
+  }
+
+  /**
+   * Define the streams recorded in the metastore, by planning their CREATE
+   * STREAM statements again.
+   */
+  private void restoreStreams() {
+    for (String query : mMetastore.getStreamQueries()) {
+      StringBuilder msgBuilder = new StringBuilder();
+      try {
+        FlowSpecification spec = planQuery(query, new Configuration(mConf), msgBuilder,
+            new Ref<Boolean>());
+        if (null != spec) {
+          spec.bfs(new DAG.Operator<PlanNode>() {
+            public void process(PlanNode node) {
+              if (node instanceof CreateStreamNode) {
+                mRootSymbolTable.addSymbol(new StreamSymbol((CreateStreamNode) node));
+              }
+            }
+          });
+          continue;
+        }
+      } catch (VisitException ve) {
+        msgBuilder.append("Error processing command: " + ve.getMessage());
+      } catch (RecognitionException re) {
+        msgBuilder.append("Error parsing command: " + re.getMessage());
+      } catch (DAGOperatorException doe) {
+        msgBuilder.append("Error processing plan: " + doe.getMessage());
+      }
+      LOG.warn("Could not restore stream (" + query + "): " + msgBuilder);
+    }
+  }
+
+  /** A flow to redeploy, and the checkpointed state of its elements (if any). */
+  private static class RestoreRequest {
+    private final FlowId mFlowId;
+    private final String mQuery;
+    private final Map<String, String> mConfOverrides;
+    private final String mStreamName;
+    private List<CheckpointManager.ElementState> mElements;
+
+    RestoreRequest(FlowId flowId, String query, Map<String, String> confOverrides,
+        String streamName) {
+      mFlowId = flowId;
+      mQuery = query;
+      mConfOverrides = confOverrides;
+      mStreamName = streamName;
+    }
+  }
+
+  /**
+   * Redeploy the flows recorded in the metastore or checkpointed by a
+   * previous instance of this environment, with their saved state. Flows are
+   * planned and deployed in parallel. A flow whose query cannot be planned
+   * (e.g., because it reads the output stream of another flow) is retried
+   * after the others are deployed; if it still fails, it is skipped, and its
+   * records are retained.
+   */
+  private void restoreFlows() throws InterruptedException {
+    Map<FlowId, RestoreRequest> requests = new TreeMap<FlowId, RestoreRequest>();
+    if (mMetastore.isEnabled()) {
+      for (Metastore.FlowRecord flow : mMetastore.getFlows()) {
+        requests.put(flow.mFlowId, new RestoreRequest(flow.mFlowId, flow.mQuery,
+            flow.mConfOverrides, flow.mStreamName));
+      }
+    }
+
+    if (mCheckpointManager.isEnabled()) {
+      for (CheckpointManager.FlowState flowState : mCheckpointManager.readAll()) {
+        RestoreRequest request = requests.get(flowState.mFlowId);
+        if (null == request) {
+          request = new RestoreRequest(flowState.mFlowId, flowState.mQuery,
+              flowState.mConfOverrides, flowState.mStreamName);
+          requests.put(flowState.mFlowId, request);
+        }
+        request.mElements = flowState.mElements;
+      }
+    }
+
+    for (FlowId flowId : requests.keySet()) {
+      // Flow ids of the restored flows stay in use.
+      mNextFlowId = Math.max(mNextFlowId, flowId.getId() + 1);
+    }
+
+    List<RestoreRequest> pending = new ArrayList<RestoreRequest>(requests.values());
+    if (pending.size() == 0) {
+      return;
+    }
+
+    LOG.info("Restoring " + pending.size() + " flows");
+    long startTime = System.currentTimeMillis();
+    ExecutorService pool = Executors.newFixedThreadPool(
+        Math.min(mWorkers.size(), pending.size()));
+    try {
+      while (pending.size() > 0) {
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (final RestoreRequest request : pending) {
+          results.add(pool.submit(new Callable<Boolean>() {
+            public Boolean call() throws InterruptedException {
+              return Boolean.valueOf(restoreFlow(request, false));
+            }
+          }));
+        }
+
+        List<RestoreRequest> failed = new ArrayList<RestoreRequest>();
+        for (int i = 0; i < pending.size(); i++) {
+          try {
+            if (!results.get(i).get().booleanValue()) {
+              failed.add(pending.get(i));
+            }
+          } catch (ExecutionException ee) {
+            LOG.error("Exception restoring " + pending.get(i).mFlowId + ": "
+                + StringUtils.stringifyException(ee.getCause()));
+          }
+        }
+
+        if (failed.size() == pending.size()) {
+          // No progress; report the errors.
+          for (RestoreRequest request : failed) {
+            restoreFlow(request, true);
+          }
+          break;
+        }
+        pending = failed;
+      }
+    } finally {
+      pool.shutdown();
+    }
+    LOG.info("Restored flows in " + (System.currentTimeMillis() - startTime) + " ms");
+  }
+
+  /**
+   * Plan and deploy a flow being restored.
+   * @param logErrors if true, log the reason the flow could not be planned.
+   * @return false if the flow could not be planned.
+   */
+  private boolean restoreFlow(RestoreRequest request, boolean logErrors)
+      throws InterruptedException {
+    Configuration planConf = new Configuration(mConf);
+    for (Map.Entry<String, String> entry : request.mConfOverrides.entrySet()) {
+      planConf.set(entry.getKey(), entry.getValue());
+    }
+    planConf.setBoolean(AUTO_WATCH_FLOW_KEY, false);
+
+    StringBuilder msgBuilder = new StringBuilder();
+    FlowSpecification spec = null;
+    try {
+      spec = planQuery(request.mQuery, planConf, msgBuilder, new Ref<Boolean>());
+    } catch (VisitException ve) {
+      msgBuilder.append("Error processing command: " + ve.getMessage());
+    } catch (RecognitionException re) {
+      msgBuilder.append("Error parsing command: " + re.getMessage());
+    } catch (DAGOperatorException doe) {
+      msgBuilder.append("Error processing plan: " + doe.getMessage());
+    }
+
+    if (null == spec) {
+      if (logErrors) {
+        LOG.warn("Could not restore " + request.mFlowId + " (" + request.mQuery + "): "
+            + msgBuilder);
+      }
+      return false;
+    }
+
+    FlowId flowId = addFlow(spec, request.mFlowId, request.mElements, false);
+    if (null == flowId) {
+      LOG.warn("Could not deploy restored " + request.mFlowId + " (" + request.mQuery + ")");
+    } else if (null != request.mStreamName) {
+      setFlowName(flowId, request.mStreamName);
+    }
+    return true;
+  }
+
+  /**
+   * Timer task that periodically asks each worker to checkpoint its flows.
+   * Resumes with the next worker if a worker's control queue is full.
+   */
+  private class CheckpointTask implements TimerWheel.Task {
+    private int mNextWorker = 0;
+
+    public boolean expire() {
+      if (mCheckpointsStopped) {
+        return true;
+      }
+
+      for (; mNextWorker < mWorkers.size(); mNextWorker++) {
+        if (!mWorkers.get(mNextWorker).mControlQueue.offer(
+            new ControlOp(ControlOp.Code.Checkpoint, null))) {
+          return false; // Retry on the next tick.
+        }
+      }
+
+      mNextWorker = 0;
+      mTimerWheel.schedule(mCheckpointManager.getInterval(), this);
+      return true;
+    }
+  }
+
+  /**
+   * Timer task that cancels a shared flow whose sub-plans are no longer
+   * read by any flow. Retries if the worker's control queue is full.
+   */
+  private class CancelSharedFlowTask implements TimerWheel.Task {
+    private final FlowId mFlowId;
+
+    public CancelSharedFlowTask(FlowId flowId) {
+      mFlowId = flowId;
+    }
+
+    public boolean expire() {
+      LocalEnvThread worker = mFlowWorkers.get(mFlowId);
+      if (null == worker) {
+        return true; // Already complete.
+      }
+
+      return worker.mControlQueue.offer(new ControlOp(ControlOp.Code.CancelFlow, mFlowId));
+    }
+  }
+
   @Override
   public boolean isConnected() {
     return mConnected;
@@ -784,41 +1628,10 @@ public class LocalEnvironment extends ExecEnvironment {
     }
 
     try {
-      // Send the parser's error messages into a buffer rather than stderr.
-      ByteArrayOutputStream errBufferStream = new ByteArrayOutputStream();
-      PrintStream errStream = new PrintStream(errBufferStream);
-
-      SQLStatement stmt = mGenerator.parse(query, errStream);
-
-      errStream.close();
-      String errMsg = new String(errBufferStream.toByteArray());
-      msgBuilder.append(errMsg);
-
-      if (null == stmt) {
-        msgBuilder.append("(Could not parse command)");
-        return new QuerySubmitResponse(msgBuilder.toString(), null);
-      }
-
-      stmt.accept(new AssignFieldLabelsVisitor());
-      stmt.accept(new CountStarVisitor()); // Must be after assign labels, before TC.
-      stmt.accept(new TypeChecker(mRootSymbolTable));
-      stmt.accept(new ReplaceWindows()); // Must be after TC.
-      stmt.accept(new JoinKeyVisitor()); // Must be after TC.
-      stmt.accept(new JoinNameVisitor());
-      stmt.accept(new IdentifyAggregates()); // Must be after TC.
-      PlanContext planContext = new PlanContext();
-      planContext.setConf(planConf);
-      planContext.setSymbolTable(mRootSymbolTable);
-      PlanContext retContext = stmt.createExecPlan(planContext);
-      msgBuilder.append(retContext.getMsgBuilder().toString());
-      FlowSpecification spec = retContext.getFlowSpec();
+      Ref<Boolean> isExplain = new Ref<Boolean>();
+      FlowSpecification spec = planQuery(query, planConf, msgBuilder, isExplain);
       if (null != spec) {
-        spec.setQuery(query);
-        spec.setConf(planConf);
-        // Given a flow specification from the AST, run it through
-        // necessary post-processing and optimization phases.
-        spec.bfs(new PropagateSchemas());
-        if (retContext.isExplain()) {
+        if (isExplain.item) {
           // We just should explain this flow, but not actually add it.
           msgBuilder.append("Execution plan:\n");
           msgBuilder.append(spec.toString());
@@ -838,63 +1651,191 @@ public class LocalEnvironment extends ExecEnvironment {
     return new QuerySubmitResponse(msgBuilder.toString(), flowId);
   }
 
+  /**
+   * Parse a query and create the flow specification which executes it.
+   * Messages for the user are appended to msgBuilder.
+   * @param isExplain set to true if the query only asks to explain its plan.
+   * @return the flow specification, or null if the query creates no flow.
+   */
+  private FlowSpecification planQuery(String query, Configuration planConf,
+      StringBuilder msgBuilder, Ref<Boolean> isExplain)
+      throws VisitException, RecognitionException, DAGOperatorException {
+    // Send the parser's error messages into a buffer rather than stderr.
+    ByteArrayOutputStream errBufferStream = new ByteArrayOutputStream();
+    PrintStream errStream = new PrintStream(errBufferStream);
+
+    SQLStatement stmt = mGenerator.parse(query, errStream);
+
+    errStream.close();
+    String errMsg = new String(errBufferStream.toByteArray());
+    msgBuilder.append(errMsg);
+
+    if (null == stmt) {
+      msgBuilder.append("(Could not parse command)");
+      return null;
+    }
+
+    stmt.accept(new AssignFieldLabelsVisitor());
+    stmt.accept(new CountStarVisitor()); // Must be after assign labels, before TC.
+    stmt.accept(new TypeChecker(mRootSymbolTable));
+    stmt.accept(new ReplaceWindows()); // Must be after TC.
+    stmt.accept(new JoinKeyVisitor()); // Must be after TC.
+    stmt.accept(new JoinNameVisitor());
+    stmt.accept(new IdentifyAggregates()); // Must be after TC.
+    PlanContext planContext = new PlanContext();
+    planContext.setConf(planConf);
+    planContext.setSymbolTable(mRootSymbolTable);
+    PlanContext retContext = stmt.createExecPlan(planContext);
+    msgBuilder.append(retContext.getMsgBuilder().toString());
+    isExplain.item = retContext.isExplain();
+    FlowSpecification spec = retContext.getFlowSpec();
+    if (null != spec) {
+      spec.setQuery(query);
+      spec.setConf(planConf);
+      // Given a flow specification from the AST, run it through
+      // necessary post-processing and optimization phases.
+      spec.bfs(new PropagateSchemas());
+      if (OptimizeFilters.isEnabled(planConf)) {
+        new OptimizeFilters().apply(spec);
+      }
+    }
+    return spec;
+  }
+
   @Override
   public FlowId addFlow(FlowSpecification spec) throws InterruptedException {
-    if (null != spec) {
-      // Turn the specification into a physical plan and run it.
-      FlowId flowId = new FlowId(mNextFlowId++);
-      UserSession userSession = getSessionForConf(spec.getConf());
-      LocalFlowBuilder flowBuilder = new LocalFlowBuilder(flowId, mRootSymbolTable,
-          mFlumeConfig, mMemoryOutputMap, userSession);
-      try {
-        spec.reverseBfs(flowBuilder);
-      } catch (DAGOperatorException doe) {
-        // An exception occurred when creating the physical plan.
-        // LocalFlowBuilder put a message for the user in here; print it
-        // without a stack trace. The flow cannot be executed.
-        userSession.sendErr(doe.getMessage());
-        return null;
+    if (null == spec) {
+      return null;
+    }
+    return addFlow(spec, new FlowId(mNextFlowId++), null, false);
+  }
+
+  /**
+   * Replace the prefixes of a flow's plan which it shares with running
+   * flows by sources that read the output of shared flows, and deploy any
+   * shared flows that are not yet running. Flows restored from checkpoints
+   * are not shared, since their elements must match their plans.
+   */
+  private void shareSubplans(FlowSpecification spec) throws InterruptedException {
+    List<SharedSubplans.SharedFlow> sharedFlows =
+        mSharedSubplans.split(spec, mRootSymbolTable);
+    for (SharedSubplans.SharedFlow sharedFlow : sharedFlows) {
+      FlowId sharedId = new FlowId(mNextSharedFlowId--);
+      sharedFlow.setFlowId(sharedId);
+      LOG.info("Deploying shared flow " + sharedId + " for query: " + spec.getQuery());
+      if (null == addFlow(sharedFlow.getSpec(), sharedId, null, true)
+          || !mFlowWorkers.containsKey(sharedId)) {
+        // Could not deploy it; any flows reading it will see it as complete.
+        mSharedSubplans.retire(sharedFlow);
       }
-      LocalFlow localFlow = flowBuilder.getLocalFlow();
-      localFlow.setQuery(spec.getQuery());
-      localFlow.setConf(spec.getConf());
-      if (localFlow.getRootSet().size() == 0) {
-        // No nodes created (empty flow, or DDL-only flow, etc.)
-        return null;
+    }
+  }
+
+  /**
+   * Deploy a flow with the specified id.
+   * @param restoreStates the checkpointed states of the flow's elements to
+   * restore, or null to start the flow afresh.
+   */
+  private FlowId addFlow(FlowSpecification spec, FlowId flowId,
+      List<CheckpointManager.ElementState> restoreStates, boolean isShared)
+      throws InterruptedException {
+    if (!isShared && null == restoreStates && !mCheckpointManager.isEnabled()
+        && SharedSubplans.isEnabled(spec.getConf())) {
+      shareSubplans(spec);
+    }
+
+    // Turn the specification into a physical plan and run it.
+    UserSession userSession = getSessionForConf(spec.getConf());
+    LocalFlowBuilder flowBuilder = new LocalFlowBuilder(flowId, mRootSymbolTable,
+        mFlumeConfig, mMemoryOutputMap, userSession, mTimerWheel, mSharedSubplans);
+    try {
+      spec.reverseBfs(flowBuilder);
+    } catch (DAGOperatorException doe) {
+      mSharedSubplans.releaseAll(spec);
+      // An exception occurred when creating the physical plan.
+      // LocalFlowBuilder put a message for the user in here; print it
+      // without a stack trace. The flow cannot be executed.
+      if (null == userSession) {
+        LOG.error(doe.getMessage()); // No user to tell; e.g., a restored flow.
       } else {
-        synchronized (localFlow) {
-          mControlQueue.put(new ControlOp(ControlOp.Code.AddFlow, localFlow));
-          while (!localFlow.isDeployed()) {
-            localFlow.wait();
+        userSession.sendErr(doe.getMessage());
+      }
+      return null;
+    }
+
+    // Record the streams defined or dropped by this statement.
+    try {
+      final String query = spec.getQuery();
+      spec.bfs(new DAG.Operator<PlanNode>() {
+        public void process(PlanNode node) {
+          if (node instanceof CreateStreamNode) {
+            mMetastore.createStream(((CreateStreamNode) node).getName(), query);
+          } else if (node instanceof DropNode
+              && ((DropNode) node).getType() == EntityTarget.Stream) {
+            mMetastore.dropStream(((DropNode) node).getName());
           }
         }
-        return flowId;
-      }
-    } else {
+      });
+    } catch (DAGOperatorException doe) {
+      // Shouldn't get here with this operator.
+      LOG.error("Unexpected dag op exn: " + doe);
+    }
+    LocalFlow localFlow = flowBuilder.getLocalFlow();
+    localFlow.setQuery(spec.getQuery());
+    localFlow.setConf(spec.getConf());
+    localFlow.setRestoreStates(restoreStates);
+    localFlow.setShared(isShared);
+    if (localFlow.getRootSet().size() == 0) {
+      // No nodes created (empty flow, or DDL-only flow, etc.)
       return null;
+    } else {
+      LocalEnvThread worker = getLeastLoadedWorker();
+      worker.assignFlow(flowId);
+      synchronized (localFlow) {
+        worker.putControlOp(new ControlOp(ControlOp.Code.AddFlow, localFlow));
+        while (!localFlow.isDeployed()) {
+          localFlow.wait();
+        }
+      }
+      return flowId;
     }
   }
 
   @Override
   public void cancelFlow(FlowId id) throws InterruptedException, IOException {
-    mControlQueue.put(new ControlOp(ControlOp.Code.CancelFlow, id));
+    LocalEnvThread worker = mFlowWorkers.get(id);
+    if (null == worker) {
+      LOG.error("Cannot cancel flow: No flow available for id: " + id);
+      return;
+    }
+    worker.putControlOp(new ControlOp(ControlOp.Code.CancelFlow, id));
   }
 
   @Override
   public void joinFlow(FlowId id) throws InterruptedException {
+    LocalEnvThread worker = mFlowWorkers.get(id);
+    if (null == worker) {
+      return; // This flow id is already complete.
+    }
+
     Ref<Boolean> joinObj = new Ref<Boolean>();
     synchronized (joinObj) {
-      mControlQueue.put(new ControlOp(ControlOp.Code.Join, new FlowJoinRequest(id, joinObj)));
+      worker.putControlOp(new ControlOp(ControlOp.Code.Join, new FlowJoinRequest(id, joinObj)));
       joinObj.wait();
     }
   }
 
   @Override
   public boolean joinFlow(FlowId id, long timeout) throws InterruptedException {
+    LocalEnvThread worker = mFlowWorkers.get(id);
+    if (null == worker) {
+      return true; // This flow id is already complete.
+    }
+
     Ref<Boolean> joinObj = new Ref<Boolean>();
     joinObj.item = Boolean.FALSE;
     synchronized (joinObj) {
-      mControlQueue.put(new ControlOp(ControlOp.Code.Join, new FlowJoinRequest(id, joinObj)));
+      worker.putControlOp(new ControlOp(ControlOp.Code.Join, new FlowJoinRequest(id, joinObj)));
       joinObj.wait(timeout);
       return joinObj.item;
     }
@@ -902,22 +1843,62 @@ public class LocalEnvironment extends ExecEnvironment {
 
   @Override
   public void watchFlow(SessionId sessionId, FlowId flowId) throws InterruptedException {
-    mControlQueue.put(new ControlOp(ControlOp.Code.WatchFlow,
+    LocalEnvThread worker = mFlowWorkers.get(flowId);
+    if (null == worker) {
+      LOG.warn("Cannot watch flow from user session " + sessionId + "; no such flow");
+      return;
+    }
+    worker.putControlOp(new ControlOp(ControlOp.Code.WatchFlow,
         new WatchRequest(sessionId, flowId, true)));
   }
 
   @Override
   public void unwatchFlow(SessionId sessionId, FlowId flowId) throws InterruptedException {
-    mControlQueue.put(new ControlOp(ControlOp.Code.UnwatchFlow,
+    LocalEnvThread worker = mFlowWorkers.get(flowId);
+    if (null == worker) {
+      LOG.warn("Cannot unwatch flow from user session " + sessionId + "; no such flow");
+      return;
+    }
+    worker.putControlOp(new ControlOp(ControlOp.Code.UnwatchFlow,
         new WatchRequest(sessionId, flowId, false)));
   }
 
   @Override
   public Map<FlowId, FlowInfo> listFlows() throws InterruptedException {
+    // Each worker adds the flows it runs to the output map in turn.
     Map<FlowId, FlowInfo> outData = new TreeMap<FlowId, FlowInfo>();
-    synchronized (outData) {
-      mControlQueue.put(new ControlOp(ControlOp.Code.ListFlows, outData));
-      outData.wait();
+    for (LocalEnvThread worker : mWorkers) {
+      synchronized (outData) {
+        worker.putControlOp(new ControlOp(ControlOp.Code.ListFlows, outData));
+        outData.wait();
+      }
+    }
+    return outData;
+  }
+
+  /**
+   * @return the number of running hidden flows which compute shared
+   * sub-plans for other flows. Used by tests.
+   */
+  public int getNumSharedFlows() {
+    int numShared = 0;
+    for (FlowId id : mFlowWorkers.keySet()) {
+      if (id.getId() < 0) {
+        numShared++; // Shared flows are numbered down from -1.
+      }
+    }
+    return numShared;
+  }
+
+  @Override
+  public Map<FlowId, FlowMetrics> getFlowMetrics() throws InterruptedException {
+    // Each worker adds the metrics of the flows it runs to the output map in turn.
+    Map<FlowId, FlowMetrics> outData = new TreeMap<FlowId, FlowMetrics>();
+    for (LocalEnvThread worker : mWorkers) {
+      synchronized (outData) {
+        worker.putControlOp(new ControlOp(ControlOp.Code.GetMetrics, outData));
+        outData.wait();
+      }
     }
     return outData;
   }
@@ -926,17 +1907,24 @@ public class LocalEnvironment extends ExecEnvironment {
   public List<FlowId> listWatchedFlows(SessionId sessionId) throws InterruptedException {
     List<FlowId> outList = new ArrayList<FlowId>();
     Pair<SessionId, List<FlowId>> args = new Pair<SessionId, List<FlowId>>(sessionId, outList);
-    synchronized (outList) {
-      mControlQueue.put(new ControlOp(ControlOp.Code.GetWatchList, args));
-      outList.wait();
+    for (LocalEnvThread worker : mWorkers) {
+      synchronized (outList) {
+        worker.putControlOp(new ControlOp(ControlOp.Code.GetWatchList, args));
+        outList.wait();
+      }
     }
     return outList;
   }
 
   @Override
   public void setFlowName(FlowId flowId, String name) throws InterruptedException {
+    LocalEnvThread worker = mFlowWorkers.get(flowId);
+    if (null == worker) {
+      LOG.error("Cannot set flow name for flow id " + flowId + ": no such flow.");
+      return;
+    }
     Pair<FlowId, String> nameReq = new Pair<FlowId, String>(flowId, name);
-    mControlQueue.put(new ControlOp(ControlOp.Code.SetFlowName, nameReq));
+    worker.putControlOp(new ControlOp(ControlOp.Code.SetFlowName, nameReq));
   }
 
   /**
@@ -949,9 +1937,36 @@ public class LocalEnvironment extends ExecEnvironment {
 
   @Override
   public void shutdown() throws InterruptedException {
-    mControlQueue.put(new ControlOp(ControlOp.Code.CancelAll, null));
-    mControlQueue.put(new ControlOp(ControlOp.Code.ShutdownThread, null));
-    mLocalThread.join();
+    mCheckpointsStopped = true;
+    for (LocalEnvThread worker : mWorkers) {
+      worker.putControlOp(new ControlOp(ControlOp.Code.CancelAll, null));
+      worker.putControlOp(new ControlOp(ControlOp.Code.ShutdownThread, null));
+    }
+    for (LocalEnvThread worker : mWorkers) {
+      worker.join();
+    }
+
+    if (null != mCheckpointManager) {
+      // Finish writing the checkpoints taken as the flows were canceled.
+      mCheckpointManager.stop();
+    }
+
+    if (null != mMetastore) {
+      mMetastore.close();
+    }
+
+    if (null != mTimerWheel) {
+      mTimerWheel.stop();
+      mTimerWheel = null;
+    }
+
+    // Shut down the embedded Flume instance once no worker can use it.
+    synchronized (mFlumeConfig) {
+      if (mFlumeConfig.isRunning()) {
+        mFlumeConfig.stop();
+      }
+    }
+    mWorkers.clear();
     mConnected = false;
   }
 
@@ -17,6 +17,8 @@
 
 package com.odiago.flumebase.exec.local;
 
+import java.util.List;
+
 import org.apache.hadoop.conf.Configuration;
 
 import com.odiago.flumebase.exec.FlowId;
@@ -32,6 +34,13 @@ public class LocalFlow extends DAG<FlowElementNode> {
   private String mQuery;
   private Configuration mConf;
   private boolean mIsDeployed;
+  private int mNumPartitions;
+
+  /** True if this is a hidden flow which computes sub-plans shared by other flows. */
+  private boolean mIsShared;
+
+  /** The saved states to restore into the flow's elements before they open, or null. */
+  private List<CheckpointManager.ElementState> mRestoreStates;
 
   public LocalFlow(FlowId id) {
     mFlowId = id;
@@ -39,6 +48,7 @@ public class LocalFlow extends DAG<FlowElementNode> {
     mQuery = null;
     mConf = null;
     mIsDeployed = false;
+    mNumPartitions = 0;
   }
 
   public FlowId getId() {
@@ -71,6 +81,34 @@ public class LocalFlow extends DAG<FlowElementNode> {
     mRequiresFlume = required;
   }
 
+  /**
+   * @return the number of partitions into which the data-parallel operators
+   * of this flow are split, or 0 if all elements run in a single thread.
+   */
+  public int getNumPartitions() {
+    return mNumPartitions;
+  }
+
+  /**
+   * Called by the LocalFlowBuilder when it replicates an operator across
+   * multiple partitions.
+   */
+  void setNumPartitions(int numPartitions) {
+    mNumPartitions = Math.max(mNumPartitions, numPartitions);
+  }
+
+  /**
+   * @return true if this flow computes sub-plans on behalf of other flows,
+   * rather than a query submitted by a user.
+   */
+  public boolean isShared() {
+    return mIsShared;
+  }
+
+  void setShared(boolean shared) {
+    mIsShared = shared;
+  }
+
   /** Set the query string that this flow represents. */
   void setQuery(String query) {
     mQuery = query;
@@ -89,6 +127,16 @@ public class LocalFlow extends DAG<FlowElementNode> {
     return mConf;
   }
 
+  /** Specify the saved states to restore into the flow's elements when it is deployed. */
+  void setRestoreStates(List<CheckpointManager.ElementState> states) {
+    mRestoreStates = states;
+  }
+
+  /** @return the saved states to restore into the flow's elements, or null. */
+  List<CheckpointManager.ElementState> getRestoreStates() {
+    return mRestoreStates;
+  }
+
   @Override
   public String toString() {
     return "flow(id=" + mFlowId + ")\n" + super.toString();
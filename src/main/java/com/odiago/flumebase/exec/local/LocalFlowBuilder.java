@@ -18,11 +18,14 @@
 package com.odiago.flumebase.exec.local;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.avro.Schema;
 
+import org.apache.hadoop.conf.Configuration;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,8 +48,8 @@ import com.odiago.flumebase.exec.SymbolTable;
 import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
 
 import com.odiago.flumebase.parser.EntityTarget;
-import com.odiago.flumebase.parser.Expr;
 import com.odiago.flumebase.parser.StreamSourceType;
+import com.odiago.flumebase.parser.TypedField;
 
 import com.odiago.flumebase.plan.AggregateNode;
 import com.odiago.flumebase.plan.OutputNode;
@@ -60,6 +63,8 @@ import com.odiago.flumebase.plan.NamedSourceNode;
 import com.odiago.flumebase.plan.PlanNode;
 import com.odiago.flumebase.plan.ProjectionNode;
 import com.odiago.flumebase.plan.FilterNode;
+import com.odiago.flumebase.plan.SharedOutputNode;
+import com.odiago.flumebase.plan.SharedSourceNode;
 
 import com.odiago.flumebase.server.UserSession;
 
@@ -81,17 +86,36 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
    */
   private static final String LOCAL_FLOW_ELEM_KEY = "LocalFlowBuilder.flowElem";
 
+  /**
+   * Key in the PlanNode attribute map for the list of FlowElementNodes holding
+   * the replicas of a partitioned node. Set instead of LOCAL_FLOW_ELEM_KEY.
+   */
+  private static final String LOCAL_PARTITION_ELEMS_KEY = "LocalFlowBuilder.partitionElems";
+
+  /**
+   * Number of partitions across which a GROUP BY aggregation or a join is
+   * executed in parallel. Events are hash-partitioned by their grouping or
+   * join key, so each partition sees all events for a given key. A value
+   * of 1 executes these operators in the flow's own thread.
+   */
+  public static final String NUM_PARTITIONS_KEY = "flumebase.exec.partitions";
+  public static final int DEFAULT_NUM_PARTITIONS = 1;
+
   private FlowId mFlowId;
   private LocalFlow mLocalFlow;
   private SymbolTable mRootSymbolTable;
   private EmbeddedFlumeConfig mFlumeConfig;
   private Map<String, MemoryOutputElement> mMemOutputMap;
   private UserSession mSubmitterSession;
+  private TimerWheel mTimerWheel;
+  private SharedSubplans mSharedSubplans;
 
   public LocalFlowBuilder(FlowId flowId, SymbolTable rootSymTable,
       EmbeddedFlumeConfig flumeConfig, Map<String, MemoryOutputElement> memOutputMap,
-      UserSession submitterSession) {
+      UserSession submitterSession, TimerWheel timerWheel, SharedSubplans sharedSubplans) {
     mFlowId = flowId;
+    mTimerWheel = timerWheel;
+    mSharedSubplans = sharedSubplans;
     mMemOutputMap = memOutputMap;
     mLocalFlow = new LocalFlow(flowId);
     mRootSymbolTable = rootSymTable;
@@ -106,6 +130,14 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
   private List<FlowElementNode> getNodeElements(List<PlanNode> nodes) {
     List<FlowElementNode> out = new ArrayList<FlowElementNode>(nodes.size());
     for (PlanNode node : nodes) {
+      List<FlowElementNode> replicas =
+          (List<FlowElementNode>) node.getAttr(LOCAL_PARTITION_ELEMS_KEY);
+      if (null != replicas) {
+        // A partitioned node maps to all of its replicas.
+        out.addAll(replicas);
+        continue;
+      }
+
       FlowElementNode fen = (FlowElementNode) node.getAttr(LOCAL_FLOW_ELEM_KEY);
       assert null != fen;
       out.add(fen);
@@ -114,12 +146,85 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
     return out;
   }
 
+  /**
+   * Determine the fields used to route events from a parent node to the
+   * replicas of a partitioned node.
+   * @return the list of key fields, or null if the events emitted by parent
+   * cannot be partitioned on behalf of node.
+   */
+  private List<TypedField> getPartitionKey(PlanNode node, PlanNode parent) {
+    if (node instanceof AggregateNode) {
+      List<TypedField> groupBy = ((AggregateNode) node).getGroupByFields();
+      if (null == groupBy || groupBy.size() == 0) {
+        // All events belong to a single group.
+        return null;
+      }
+      return groupBy;
+    } else if (node instanceof HashJoinNode) {
+      // Determine which side of the join the parent feeds, based on which
+      // key field is present in its output.
+      HashJoinNode joinNode = (HashJoinNode) node;
+      Schema parentSchema = (Schema) parent.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR);
+      if (null == parentSchema) {
+        return null;
+      }
+      TypedField leftKey = joinNode.getLeftKey();
+      TypedField rightKey = joinNode.getRightKey();
+      boolean hasLeft = parentSchema.getField(leftKey.getAvroName()) != null;
+      boolean hasRight = parentSchema.getField(rightKey.getAvroName()) != null;
+      if (hasLeft && !hasRight) {
+        return Collections.singletonList(leftKey);
+      } else if (hasRight && !hasLeft) {
+        return Collections.singletonList(rightKey);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * @return the number of partitions across which the specified PlanNode
+   * should be replicated; 1 if it should not be partitioned.
+   */
+  private int getNumPartitions(PlanNode node) {
+    Configuration conf;
+    if (node instanceof AggregateNode) {
+      conf = ((AggregateNode) node).getConf();
+    } else if (node instanceof HashJoinNode) {
+      conf = ((HashJoinNode) node).getConf();
+    } else {
+      return 1;
+    }
+
+    int numPartitions = conf.getInt(NUM_PARTITIONS_KEY, DEFAULT_NUM_PARTITIONS);
+    if (numPartitions <= 1 || node.getChildren().size() != 1) {
+      // Partitioned outputs are merged into a single downstream element.
+      return 1;
+    }
+
+    for (PlanNode parent : node.getParents()) {
+      // Each parent's context is replaced by one that routes events to
+      // the replicas; this requires that the parent has no other outputs
+      // or special context of its own.
+      // A shared sub-plan must not wait on the partitions of its subscribers.
+      if (parent.getChildren().size() != 1
+          || parent instanceof AggregateNode || parent instanceof HashJoinNode
+          || parent instanceof SharedSourceNode
+          || (Boolean) parent.getAttr(PlanNode.USES_TIMER_ATTR, Boolean.FALSE) == true
+          || null == getPartitionKey(node, parent)) {
+        return 1;
+      }
+    }
+
+    return numPartitions;
+  }
+
   /**
    * @return true if the specified PlanNode will result in a multithreaded
    * FlowElement.
    */
   private boolean isMultiThreaded(PlanNode node, SymbolTable rootTable) {
-    if (node instanceof NamedSourceNode) {
+    if (node instanceof NamedSourceNode || node instanceof SharedSourceNode) {
       return true;
     } else {
       // To date, all non-source nodes are all single-threaded.
@@ -135,7 +240,16 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
     List<PlanNode> children = node.getChildren();
     List<FlowElementNode> childElements = getNodeElements(children);
     boolean isMultiThreaded = isMultiThreaded(node, rootTable);
-    if (childElements.size() == 0) {
+    if (children.size() == 1 && children.get(0).getAttr(LOCAL_PARTITION_ELEMS_KEY) != null) {
+      // Our child is replicated; route each event to the replica responsible
+      // for its key. This is safe to do from any thread.
+      List<FlowElement> replicas = new ArrayList<FlowElement>(childElements.size());
+      for (FlowElementNode childElem : childElements) {
+        childElem.getFlowElement().registerUpstream();
+        replicas.add(childElem.getFlowElement());
+      }
+      return new PartitionFlowElemContext(replicas, getPartitionKey(children.get(0), node));
+    } else if (childElements.size() == 0) {
       return new SinkFlowElemContext(mFlowId);
     } else if (childElements.size() == 1 &&
         (Boolean) node.getAttr(PlanNode.USES_TIMER_ATTR, Boolean.FALSE) == true) {
@@ -145,17 +259,23 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
       // FlowElement as well.
       FlowElement childElem = childElements.get(0).getFlowElement();
       childElem.registerUpstream();
-      return new TimerFlowElemContext(childElem);
+      return new TimerFlowElemContext(childElem, mTimerWheel);
     } else if (childElements.size() == 1 && !isMultiThreaded) {
       // Normal direct connection from node to node.
       FlowElement childElem = childElements.get(0).getFlowElement();
       childElem.registerUpstream();
       return new DirectCoupledFlowElemContext(childElem);
     } else if (childElements.size() == 1 && isMultiThreaded) {
-      // We should put a buffer between ourselves and the child node.
+      // We should put a buffer between ourselves and the child node. A live
+      // stream or a shared sub-plan publishes to all of its subscribers from a
+      // single thread, and must never wait for one of them; their buffers
+      // apply an OverflowPolicy when full instead.
       FlowElement childElem = childElements.get(0).getFlowElement();
       childElem.registerUpstream();
-      return new MTGeneratorElemContext(childElem);
+      boolean isPublished = node instanceof SharedSourceNode
+          || (node instanceof NamedSourceNode
+          && SharedSubplans.isLiveStream((NamedSourceNode) node, rootTable));
+      return new MTGeneratorElemContext(childElem, isPublished);
     } else {
       // TODO(aaron): Create a multi-output context and use here.
       LOG.error("No local context available for fan-out");
@@ -176,14 +296,99 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
     }
   }
 
-  public void process(PlanNode node) throws DAGOperatorException {
-    FlowElement newElem = null; // The newly-constructed FlowElement.
-    FlowElementContext newContext = makeContextForNode(node, mRootSymbolTable);
+  /**
+   * Replicate a GROUP BY aggregation or join across several partitions, each
+   * executed in its own thread. The outputs of all replicas are merged back
+   * into the node's single downstream element, which continues to run in the
+   * flow's own thread.
+   */
+  private void processPartitioned(PlanNode node, int numPartitions) {
+    FlowElement downstream = getNodeElements(node.getChildren()).get(0).getFlowElement();
+    List<FlowElementNode> replicaHolders = new ArrayList<FlowElementNode>(numPartitions);
+
+    for (int i = 0; i < numPartitions; i++) {
+      FlowElement replica;
+      TimerFlowElemContext replicaContext =
+          new TimerFlowElemContext(downstream, true, mTimerWheel);
+      downstream.registerUpstream();
+      if (node instanceof AggregateNode) {
+        replica = new BucketedAggregationElement(replicaContext, (AggregateNode) node);
+      } else {
+        replica = new HashJoinElement(replicaContext, (HashJoinNode) node);
+      }
+
+      FlowElementNode replicaHolder = new FlowElementNode(replica);
+      mapChildren(node, replicaHolder);
+      replicaHolder.setId(node.getId());
+      replicaHolder.setPartition(i);
+      replicaHolders.add(replicaHolder);
+
+      // The timeout element runs alongside its replica, so it must also
+      // buffer its output back to the downstream element. Like the replica's
+      // own output queue, this must never block: the flow's thread, which
+      // drains it, may be waiting for room in the replica's input queue.
+      addTimeoutElement(replica, replicaHolder, downstream,
+          new MTGeneratorElemContext(downstream, true));
+    }
 
+    node.setAttr(LOCAL_PARTITION_ELEMS_KEY, replicaHolders);
+    mLocalFlow.setNumPartitions(numPartitions);
+    LOG.debug("Partitioned node " + node.getId() + " across " + numPartitions + " threads");
+  }
+
+  /**
+   * Create the timeout coprocessor of a BucketedAggregationElement or
+   * HashJoinElement, which emits to the same downstream element as the
+   * windowed element itself.
+   */
+  private void addTimeoutElement(FlowElement windowElem,
+      FlowElementNode elemHolder, FlowElement downstream, FlowElementContext timeoutContext) {
+    FlowElement timeoutElem;
+    if (windowElem instanceof BucketedAggregationElement) {
+      timeoutElem = ((BucketedAggregationElement) windowElem).getTimeoutElement(timeoutContext);
+    } else {
+      timeoutElem = ((HashJoinElement) windowElem).getTimeoutElement(timeoutContext);
+    }
+
+    // The timeout element is now upstream to the primary downstream element of the
+    // windowed element.
+    downstream.registerUpstream();
+    timeoutElem.registerUpstream(); // The windowed el't is upstream of the timeout elem.
+
+    // Add the timeout element to the windowed element's output list.
+    // Specify it as the timerElement, since this is a special designation in the
+    // TimerFlowElemContext.
+    ((TimerFlowElemContext) windowElem.getContext()).setTimerElement(timeoutElem);
+
+    // Set up the control graph dependencies: the downstream (child) element(s) of the
+    // windowed element are also downstream of the timeout element.  The
+    // timeout element itself is virtually downstream from the windowed
+    // element too.
+    FlowElementNode timeoutHolder = new FlowElementNode(timeoutElem);
+    timeoutHolder.setPartition(elemHolder.getPartition());
+    for (FlowElementNode childNode : elemHolder.getChildren()) {
+      timeoutHolder.addChild(childNode);
+    }
+
+    timeoutHolder.addParent(elemHolder);
+  }
+
+  public void process(PlanNode node) throws DAGOperatorException {
     if (null == node) {
       LOG.warn("Null node in plan graph");
       return;
-    } else if (node instanceof OutputNode) {
+    }
+
+    int numPartitions = getNumPartitions(node);
+    if (numPartitions > 1) {
+      processPartitioned(node, numPartitions);
+      return;
+    }
+
+    FlowElement newElem = null; // The newly-constructed FlowElement.
+    FlowElementContext newContext = makeContextForNode(node, mRootSymbolTable);
+
+    if (node instanceof OutputNode) {
       OutputNode outputNode = (OutputNode) node;
       String logicalFlumeNode = outputNode.getFlumeNodeName();
       newElem = new OutputElement(newContext,
@@ -270,7 +475,7 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
       case File:
         String fileName = streamSymbol.getSource();
         newElem = new FileSourceElement(newContext, fileName, streamSymbol.isLocal(),
-            namedInput.getFields(), streamSymbol);
+            namedInput.getFields(), namedInput.getRequiredFields(), streamSymbol);
         break;
       case Source:
         if (!streamSymbol.isLocal()) {
@@ -281,7 +486,7 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
         String flowSourceId = "flumebase-flow-" + flowIdNum + "-" + streamSymbol.getName();
         newElem = new LocalFlumeSourceElement(newContext, flowSourceId,
             mFlumeConfig, flumeSource, (Schema) namedInput.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR),
-            namedInput.getFields(), streamSymbol);
+            namedInput.getFields(), namedInput.getRequiredFields(), streamSymbol);
         if (!streamSymbol.isLocal()) {
           LOG.info("Created local Flume logical node: " + flowSourceId);
           LOG.info("You may need to connect upstream Flume elements to this source.");
@@ -291,15 +496,15 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
         mLocalFlow.setFlumeRequired(true);
         break;
       case Memory:
-        newElem = new LocalInMemSourceElement(newContext,
-            namedInput.getFields(), (InMemStreamSymbol) streamSymbol);
+        newElem = new LocalInMemSourceElement(newContext, namedInput.getFields(),
+            namedInput.getRequiredFields(), (InMemStreamSymbol) streamSymbol);
         break;
       case Node:
         String nodeSourceId = "flumebase-flow-" + mFlowId.getId() + "-" + streamSymbol.getName();
         newElem = new FlumeNodeElement(newContext, nodeSourceId,
             mFlumeConfig, streamSymbol.getSource(),
             (Schema) namedInput.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR),
-            namedInput.getFields(), streamSymbol);
+            namedInput.getFields(), namedInput.getRequiredFields(), streamSymbol);
 
         LOG.info("Created local Flume receiver context: " + nodeSourceId);
         LOG.info("This will be connected to upstream Flume node: " + streamSymbol.getSource());
@@ -313,8 +518,7 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
       }
     } else if (node instanceof FilterNode) {
       FilterNode filterNode = (FilterNode) node;
-      Expr filterExpr = filterNode.getFilterExpr();
-      newElem = new FilterElement(newContext, filterExpr);
+      newElem = new FilterElement(newContext, filterNode.getConjuncts());
     } else if (node instanceof ProjectionNode) {
       ProjectionNode projNode = (ProjectionNode) node;
       Schema outSchema = (Schema) projNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR);
@@ -331,6 +535,15 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
     } else if (node instanceof HashJoinNode) {
       HashJoinNode joinNode = (HashJoinNode) node;
       newElem = new HashJoinElement(newContext, joinNode);
+    } else if (node instanceof SharedSourceNode) {
+      newElem = new SharedSourceElement(newContext, mSharedSubplans,
+          (SharedSubplans.Subplan) node.getAttr(SharedSubplans.SUBPLAN_ATTR));
+    } else if (node instanceof SharedOutputNode) {
+      SharedOutputNode outputNode = (SharedOutputNode) node;
+      newElem = new SharedOutputElement(newContext, mSharedSubplans,
+          (SharedSubplans.Subplan) outputNode.getAttr(SharedSubplans.SUBPLAN_ATTR),
+          outputNode.getChildren().size() > 0, outputNode.getSourceFields(),
+          outputNode.getRequiredFields());
     } else {
       throw new DAGOperatorException("Cannot create FlowElement for PlanNode of type: "
           + node.getClass().getName());
@@ -349,35 +562,12 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
         mLocalFlow.addRoot(elemHolder);
       }
 
-      // If we created a BucketedAggregationElement, create its timeout coprocessor.
-      if (newElem instanceof BucketedAggregationElement) {
-        BucketedAggregationElement bucketElem = (BucketedAggregationElement) newElem;
-
+      // If we created a windowed element driven by the timer, create its
+      // timeout coprocessor.
+      if (newContext instanceof TimerFlowElemContext) {
         FlowElement downstream = getNodeElements(node.getChildren()).get(0).getFlowElement();
-
-        FlowElementContext timeoutContext = new DirectCoupledFlowElemContext(downstream);
-        BucketedAggregationElement.TimeoutEvictionElement timeoutElem =
-            bucketElem.getTimeoutElement(timeoutContext);
-        // The timeout element is now upstream to the primary downstream element of the
-        // BucketedAggregationElement.
-        downstream.registerUpstream();
-        timeoutElem.registerUpstream(); // BucketedAggEl't is upstream of the timeout elem.
-
-        // Add the timeout element to the BucketedAggregationElement's output list.
-        // Specify it as the timerElement, since this is a special designation in the
-        // TimerFlowElemContext.
-        ((TimerFlowElemContext) newContext).setTimerElement(timeoutElem);
-
-        // Set up the control graph dependencies: the downstream (child) element(s) of the
-        // bucketed aggregation element are also downstream of the timeout element.  The
-        // timeout element itself is virtually downstream from the bucketed aggregation
-        // element too.
-        FlowElementNode timeoutHolder = new FlowElementNode(timeoutElem);
-        for (FlowElementNode childNode : elemHolder.getChildren()) {
-          timeoutHolder.addChild(childNode);
-        }
-
-        timeoutHolder.addParent(elemHolder);
+        addTimeoutElement(newElem, elemHolder, downstream,
+            new DirectCoupledFlowElemContext(downstream));
       }
     }
   }
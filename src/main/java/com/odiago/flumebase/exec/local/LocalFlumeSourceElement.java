@@ -32,12 +32,15 @@ import com.odiago.flumebase.exec.FlowElementImpl;
 import com.odiago.flumebase.exec.StreamSymbol;
 
 import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
-import com.odiago.flumebase.flume.EmbeddedNode;
+import com.odiago.flumebase.flume.SinkContext;
+import com.odiago.flumebase.flume.SinkContextBindings;
 
 import com.odiago.flumebase.parser.TypedField;
 
 /**
  * FlowElement providing source data from a local Flume source.
+ * All flows reading the same source share a single Flume logical node,
+ * which delivers each event to this element through an RtsqlSink.
  */
 public class LocalFlumeSourceElement extends FlowElementImpl {
   private static final Logger LOG = LoggerFactory.getLogger(
@@ -49,9 +52,6 @@ public class LocalFlumeSourceElement extends FlowElementImpl {
   /** The manager of the embedded Flume node instances. */
   private EmbeddedFlumeConfig mFlumeConfig;
 
-  /** The Flume logical node resources associated with this FlowElement. */
-  private EmbeddedNode mEmbeddedFlumeNode;
-
   /**
    * The Avro record schema for event bodies emitted by this node into our
    * internal pipeline.
@@ -61,6 +61,9 @@ public class LocalFlumeSourceElement extends FlowElementImpl {
   /** The fields of each record emitted by this node, and their types. */ 
   private List<TypedField> mFieldTypes;
 
+  /** The fields read by the flow, or null if any field may be read. */
+  private List<TypedField> mRequiredFields;
+
   /** Symbol for the stream we are reading from. */
   private StreamSymbol mStreamSym;
 
@@ -72,7 +75,8 @@ public class LocalFlumeSourceElement extends FlowElementImpl {
 
   public LocalFlumeSourceElement(FlowElementContext context, String flowSourceId,
       EmbeddedFlumeConfig flumeConfig, String dataSource, Schema outputSchema,
-      List<TypedField> fieldTypes, StreamSymbol streamSym) {
+      List<TypedField> fieldTypes, List<TypedField> requiredFields,
+      StreamSymbol streamSym) {
     super(context);
 
     mFlowSourceId = flowSourceId;
@@ -80,20 +84,24 @@ public class LocalFlumeSourceElement extends FlowElementImpl {
     mDataSource = dataSource;
     mOutputSchema = outputSchema;
     mFieldTypes = fieldTypes;
+    mRequiredFields = requiredFields;
     mStreamSym = streamSym;
   }
 
   @Override
   public void open() throws IOException, InterruptedException {
     super.open();
-    mEmbeddedFlumeNode = new EmbeddedNode(mFlowSourceId, getContext(), mFlumeConfig,
-        mDataSource, mOutputSchema, mFieldTypes, mStreamSym);
-    mEmbeddedFlumeNode.open();
+    LOG.debug("Opening Flume source element; binding sink context id=" + mFlowSourceId);
+    SinkContextBindings.get().bindContext(mFlowSourceId,
+        new SinkContext(getContext(), mOutputSchema, mFieldTypes, mRequiredFields,
+            mStreamSym, getStats()));
+    mFlumeConfig.addFlowToLocalSource(mDataSource, mFlowSourceId);
   }
 
   @Override
   public void close() throws IOException, InterruptedException {
-    mEmbeddedFlumeNode.close();
+    mFlumeConfig.removeFlowFromLocalSource(mDataSource, mFlowSourceId);
+    SinkContextBindings.get().dropContext(mFlowSourceId);
     super.close();
   }
 
@@ -21,7 +21,7 @@ import java.io.IOException;
 
 import java.lang.InterruptedException;
 
-import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 
@@ -30,11 +30,13 @@ import org.slf4j.LoggerFactory;
 
 import com.cloudera.flume.core.Event;
 
+import com.odiago.flumebase.exec.EventBatcher;
 import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FlowElementContext;
 import com.odiago.flumebase.exec.FlowElementImpl;
 import com.odiago.flumebase.exec.InMemStreamSymbol;
 import com.odiago.flumebase.exec.ParsingEventWrapper;
+import com.odiago.flumebase.exec.RowLayout;
 
 import com.odiago.flumebase.parser.TypedField;
 
@@ -49,25 +51,31 @@ public class LocalInMemSourceElement extends FlowElementImpl {
   /** The stream generating the events. */
   private InMemStreamSymbol mStreamSymbol;
 
-  /** Fields of the input event. */ 
-  private List<String> mFieldNames;
+  /** Slots of the fields of the input event. */
+  private RowLayout mLayout;
+
+  /** Columns read by the flow, or null if any column may be read. */
+  private BitSet mRequiredColumns;
 
   /** Additional thread that actually drives event generation. */
   private class EventGenThread extends Thread {
     public void run() {
       Iterator<Event> iter = mStreamSymbol.getEvents();
-      FlowElementContext context = getContext();
+      EventBatcher batcher = new EventBatcher(getContext());
+      batcher.setStats(getStats());
       try {
         // Iterate over all the input events, and wrap them in
         // a parsing EventWrapper; advance these to the output.
         while (iter.hasNext()) {
           Event rawEvent = iter.next();
           rawEvent.set(STREAM_NAME_ATTR, mStreamSymbol.getName().getBytes());
-          EventWrapper wrapper = new ParsingEventWrapper(mStreamSymbol.getEventParser(),
-              mFieldNames);
+          EventWrapper wrapper = new ParsingEventWrapper(
+              mStreamSymbol.getEventParser(mRequiredColumns), mLayout);
           wrapper.reset(rawEvent);
-          context.emit(wrapper);
+          batcher.add(wrapper);
         }
+
+        batcher.flush();
       } catch (IOException ioe) {
         LOG.error("IOException emitting event: " + ioe);
       } catch (InterruptedException ie) {
@@ -87,14 +95,13 @@ public class LocalInMemSourceElement extends FlowElementImpl {
   private EventGenThread mEventGenThread;
 
   public LocalInMemSourceElement(FlowElementContext context,
-      List<TypedField> fields, InMemStreamSymbol streamSymbol) {
+      List<TypedField> fields, List<TypedField> requiredFields,
+      InMemStreamSymbol streamSymbol) {
 
     super(context);
     mStreamSymbol = streamSymbol;
-    mFieldNames = new ArrayList<String>();
-    for (TypedField field : fields) {
-      mFieldNames.add(field.getAvroName());
-    }
+    mLayout = new RowLayout(fields);
+    mRequiredColumns = mLayout.getSlots(requiredFields);
   }
 
   @Override
@@ -22,27 +22,85 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.exec.EventBatch;
 import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.MetricsRegistry;
+import com.odiago.flumebase.exec.Watermark;
 
-import com.odiago.flumebase.util.concurrent.ArrayBoundedSelectableQueue;
+import com.odiago.flumebase.util.concurrent.RingBufferSelectableQueue;
 import com.odiago.flumebase.util.concurrent.SelectableQueue;
+import com.odiago.flumebase.util.concurrent.WaitStrategy;
 
 /**
  * Context for a FlowElement which has a single downstream FE on the
  * same physical host, but in a differen thread. An event emitted by the
  * upstream FE is pushed into a bounded buffer specific to the downstream
  * FE.
+ *
+ * <p>An upstream FE which publishes to several subscribers (a live stream,
+ * or a shared sub-plan) must never wait on any one of them. Its buffer is
+ * then sized by LocalEnvironment.SUBSCRIBER_QUEUE_CAPACITY_KEY, and when it
+ * is full, the OverflowPolicy set by SUBSCRIBER_OVERFLOW_POLICY_KEY applies
+ * instead of waiting for room.</p>
  */
 public class MTGeneratorElemContext extends LocalContext {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      MTGeneratorElemContext.class.getName());
 
   /** The downstream element where we sent events. */
   private FlowElement mDownstream;
 
   private SelectableQueue<Object> mDownstreamQueue;
 
+  /** If true, we never wait for room in the downstream queue. */
+  private final boolean mNonBlocking;
+
+  /**
+   * Capacity of the downstream queue and policy on overflow when mNonBlocking;
+   * taken from the flow's configuration if not specified.
+   */
+  private int mSubscriberCapacity;
+  private OverflowPolicy mOverflowPolicy;
+
+  /** Guards the state of the OverflowPolicy, which several publishing threads may apply. */
+  private final Object mOverflowLock = new Object();
+
+  /** Set to true when the OverflowPolicy has disconnected the downstream FE. */
+  private volatile boolean mDisconnected;
+
+  /** True while events are being dropped; cleared when one fits again. */
+  private boolean mOverflowing;
+
+  /** Number of events dropped by the OverflowPolicy. */
+  private long mNumDropped;
+
   public MTGeneratorElemContext(FlowElement downstream) {
+    this(downstream, false);
+  }
+
+  /**
+   * @param nonBlocking true if the upstream FE must never wait for room in
+   * the buffer of the downstream FE.
+   */
+  public MTGeneratorElemContext(FlowElement downstream, boolean nonBlocking) {
     mDownstream = downstream;
+    mNonBlocking = nonBlocking;
+  }
+
+  /**
+   * Create a context which never waits on the downstream FE, with the
+   * specified buffer capacity and OverflowPolicy.
+   */
+  MTGeneratorElemContext(FlowElement downstream, int capacity, OverflowPolicy policy) {
+    this(downstream, true);
+    mSubscriberCapacity = capacity;
+    mOverflowPolicy = policy;
   }
 
   /**
@@ -50,8 +108,34 @@ public class MTGeneratorElemContext extends LocalContext {
    */
   @Override
   public void createDownstreamQueues() {
-    mDownstreamQueue = 
-        new ArrayBoundedSelectableQueue<Object>(LocalEnvironment.MAX_QUEUE_LEN);
+    if (!mNonBlocking) {
+      mDownstreamQueue = createEventQueue();
+      return;
+    }
+
+    Configuration conf = getConf();
+    if (mSubscriberCapacity <= 0) {
+      mSubscriberCapacity = LocalEnvironment.DEFAULT_SUBSCRIBER_QUEUE_CAPACITY;
+      if (null != conf) {
+        mSubscriberCapacity = conf.getInt(LocalEnvironment.SUBSCRIBER_QUEUE_CAPACITY_KEY,
+            mSubscriberCapacity);
+      }
+      if (mSubscriberCapacity <= 0) {
+        mSubscriberCapacity = LocalEnvironment.DEFAULT_SUBSCRIBER_QUEUE_CAPACITY;
+      }
+    }
+
+    if (null == mOverflowPolicy) {
+      String policyName = LocalEnvironment.DEFAULT_SUBSCRIBER_OVERFLOW_POLICY;
+      if (null != conf) {
+        policyName = conf.get(LocalEnvironment.SUBSCRIBER_OVERFLOW_POLICY_KEY, policyName);
+      }
+      mOverflowPolicy = OverflowPolicy.fromString(policyName, OverflowPolicy.DROP);
+    }
+
+    // The downstream FE waits on an empty queue as any other consumer does.
+    mDownstreamQueue = new RingBufferSelectableQueue<Object>(mSubscriberCapacity,
+        WaitStrategy.PARK);
   }
 
   @Override
@@ -59,12 +143,83 @@ public class MTGeneratorElemContext extends LocalContext {
     return Collections.singletonList(mDownstreamQueue);
   }
 
+  /**
+   * Add an entry holding numEvents events to the downstream queue. If we may
+   * not wait for room in the queue, apply the OverflowPolicy when it is full.
+   */
+  private void deliver(Object entry, int numEvents) throws InterruptedException {
+    if (!mNonBlocking) {
+      mDownstreamQueue.put(entry);
+    } else if (!mDisconnected) {
+      if (mDownstreamQueue.offer(entry)) {
+        mOverflowing = false;
+      } else {
+        overflow(numEvents);
+      }
+    }
+  }
+
+  /** Apply the OverflowPolicy to an entry that did not fit in the downstream queue. */
+  private void overflow(int numEvents) throws InterruptedException {
+    boolean disconnect = false;
+    synchronized (mOverflowLock) {
+      if (mDisconnected) {
+        return;
+      }
+
+      mNumDropped += numEvents;
+      getMetrics().getCounter(MetricsRegistry.SUBSCRIBER_EVENTS_DROPPED).add(numEvents);
+      if (mOverflowPolicy == OverflowPolicy.DISCONNECT) {
+        LOG.warn("Buffer of " + mDownstream + " is full; disconnecting it from its input");
+        mDisconnected = true;
+        disconnect = true;
+      } else if (!mOverflowing) {
+        LOG.warn("Buffer of " + mDownstream + " is full; dropping events ("
+            + mNumDropped + " dropped so far)");
+        mOverflowing = true;
+      }
+    }
+
+    if (disconnect) {
+      // Have the thread executing the downstream FE complete it.
+      postCompletion();
+    }
+  }
+
+  /** @return the number of events dropped because the downstream queue was full. */
+  long getNumDropped() {
+    synchronized (mOverflowLock) {
+      return mNumDropped;
+    }
+  }
+
+  /** @return true if the OverflowPolicy disconnected the downstream FE. */
+  boolean isDisconnected() {
+    return mDisconnected;
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public void emit(EventWrapper e) throws IOException, InterruptedException {
-    mDownstreamQueue.put(e);
+    deliver(e, 1);
+  }
+
+  /**
+   * Pass the entire batch to the downstream element in a single queue entry.
+   */
+  @Override
+  public void emitBatch(EventBatch batch) throws IOException, InterruptedException {
+    deliver(batch, batch.size());
+  }
+
+  /**
+   * Pass the watermark through the queue, behind the events emitted before it.
+   */
+  @Override
+  public void emitWatermark(long watermark) throws IOException, InterruptedException {
+    deliver(new Watermark(watermark, this), 0);
   }
 
   /**
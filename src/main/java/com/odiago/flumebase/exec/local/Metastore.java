@@ -0,0 +1,480 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.ValueCodec;
+
+import com.odiago.flumebase.util.StringUtils;
+
+/**
+ * Durable record of the streams defined in an environment and the flows
+ * running in it, so that they can be recreated when the environment
+ * restarts.
+ *
+ * <p>Each change is appended to a log file as a separate record, and
+ * synced to disk before the change is acknowledged. A record which was
+ * only partly written when the process stopped is detected by its
+ * checksum, and discarded along with anything after it. When the log holds
+ * many more records than there are live streams and flows, it is compacted:
+ * a log containing just the live entries is written next to it and renamed
+ * over it. The log is also compacted each time it is opened.</p>
+ */
+public class Metastore {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      Metastore.class.getName());
+
+  /**
+   * Config key specifying the directory holding the metastore. If unset,
+   * streams and flows are not persisted.
+   */
+  public static final String METASTORE_DIR_KEY = "flumebase.metastore.dir";
+
+  /**
+   * Config key specifying the number of records the log may hold before it
+   * is compacted. The log is compacted only when at least half of its
+   * records are obsolete.
+   */
+  public static final String COMPACT_THRESHOLD_KEY = "flumebase.metastore.compact.threshold";
+  public static final int DEFAULT_COMPACT_THRESHOLD = 1000;
+
+  /** Magic number at the start of the log file. */
+  private static final int MAGIC = 0x46424d53; // "FBMS"
+
+  /** Version of the log file format. */
+  private static final int VERSION = 1;
+
+  private static final String LOG_FILE = "metastore.log";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** Upper bound on the size of a single record; anything larger is corrupt. */
+  private static final int MAX_RECORD_LEN = 16 * 1024 * 1024;
+
+  // Record types.
+  private static final byte CREATE_STREAM = 1;
+  private static final byte DROP_STREAM = 2;
+  private static final byte ADD_FLOW = 3;
+  private static final byte SET_FLOW_NAME = 4;
+  private static final byte REMOVE_FLOW = 5;
+
+  /** A flow to redeploy when the environment restarts. */
+  static class FlowRecord {
+    final FlowId mFlowId;
+    final String mQuery;
+
+    /** Configuration settings of the flow which differ from those of the environment. */
+    final Map<String, String> mConfOverrides;
+
+    /** The name of the output stream of the flow, or null. */
+    String mStreamName;
+
+    FlowRecord(FlowId flowId, String query, Map<String, String> confOverrides,
+        String streamName) {
+      mFlowId = flowId;
+      mQuery = query;
+      mConfOverrides = confOverrides;
+      mStreamName = streamName;
+    }
+  }
+
+  /** The metastore directory, or null if the metastore is disabled. */
+  private final File mDir;
+
+  private final int mCompactThreshold;
+
+  /** The CREATE STREAM statement of each stream, in the order they were defined. */
+  private final Map<String, String> mStreams;
+
+  private final Map<FlowId, FlowRecord> mFlows;
+
+  /** Number of records in the log file. */
+  private int mNumRecords;
+
+  private FileOutputStream mFileOut;
+  private DataOutputStream mOut;
+
+  public Metastore(Configuration conf) {
+    String dirName = conf.get(METASTORE_DIR_KEY);
+    mDir = null == dirName ? null : new File(dirName);
+    mCompactThreshold = conf.getInt(COMPACT_THRESHOLD_KEY, DEFAULT_COMPACT_THRESHOLD);
+    mStreams = new LinkedHashMap<String, String>();
+    mFlows = new TreeMap<FlowId, FlowRecord>();
+  }
+
+  /** @return true if streams and flows should be persisted. */
+  public boolean isEnabled() {
+    return null != mDir;
+  }
+
+  /**
+   * Read the contents of the metastore, and prepare to record further
+   * changes. Creates the metastore if it does not exist.
+   */
+  public synchronized void open() throws IOException {
+    if (!mDir.isDirectory() && !mDir.mkdirs()) {
+      throw new IOException("Could not create metastore directory " + mDir);
+    }
+
+    File logFile = new File(mDir, LOG_FILE);
+    File tmpFile = new File(mDir, LOG_FILE + TEMP_SUFFIX);
+    if (!logFile.exists() && tmpFile.exists()) {
+      // We stopped while compacting, after removing the old log.
+      if (!tmpFile.renameTo(logFile)) {
+        throw new IOException("Could not rename " + tmpFile + " to " + logFile);
+      }
+    }
+
+    if (logFile.exists()) {
+      replay(logFile);
+    }
+    compact();
+    LOG.info("Opened metastore " + mDir + " with " + mStreams.size() + " streams and "
+        + mFlows.size() + " flows");
+  }
+
+  /** Close the log file. */
+  public synchronized void close() {
+    if (null == mOut) {
+      return;
+    }
+
+    try {
+      mOut.close();
+    } catch (IOException ioe) {
+      LOG.warn("Could not close metastore: " + ioe);
+    }
+    mOut = null;
+    mFileOut = null;
+  }
+
+  /** @return the CREATE STREAM statements of the streams, in the order they were defined. */
+  synchronized List<String> getStreamQueries() {
+    return new ArrayList<String>(mStreams.values());
+  }
+
+  /** @return the flows to redeploy, ordered by flow id. */
+  synchronized List<FlowRecord> getFlows() {
+    List<FlowRecord> flows = new ArrayList<FlowRecord>();
+    for (FlowRecord flow : mFlows.values()) {
+      flows.add(new FlowRecord(flow.mFlowId, flow.mQuery, flow.mConfOverrides,
+          flow.mStreamName));
+    }
+    return flows;
+  }
+
+  /** Record the definition of a stream by a CREATE STREAM statement. */
+  synchronized void createStream(String name, String query) {
+    if (null == mOut) {
+      return;
+    }
+
+    mStreams.put(name, query);
+    append(CREATE_STREAM, name, query, null);
+  }
+
+  /** Record that a stream was dropped. */
+  synchronized void dropStream(String name) {
+    if (null == mOut || mStreams.remove(name) == null) {
+      return;
+    }
+
+    append(DROP_STREAM, name, null, null);
+  }
+
+  /** Record that a flow was deployed. Has no effect if the flow is already recorded. */
+  synchronized void addFlow(FlowId flowId, String query, Map<String, String> confOverrides) {
+    if (null == mOut || mFlows.containsKey(flowId)) {
+      return;
+    }
+
+    FlowRecord flow = new FlowRecord(flowId, query, confOverrides, null);
+    mFlows.put(flowId, flow);
+    append(ADD_FLOW, flowId, null, flow);
+  }
+
+  /** Record the name of the output stream of a flow. */
+  synchronized void setFlowName(FlowId flowId, String streamName) {
+    FlowRecord flow = mFlows.get(flowId);
+    if (null == mOut || null == flow) {
+      return;
+    } else if (null == streamName ? null == flow.mStreamName
+        : streamName.equals(flow.mStreamName)) {
+      return; // No change.
+    }
+
+    flow.mStreamName = streamName;
+    append(SET_FLOW_NAME, flowId, streamName, null);
+  }
+
+  /** Record that a flow was canceled or completed; it should not be redeployed. */
+  synchronized void removeFlow(FlowId flowId) {
+    if (null == mOut || mFlows.remove(flowId) == null) {
+      return;
+    }
+
+    append(REMOVE_FLOW, flowId, null, null);
+  }
+
+  /**
+   * Append a record to the log, and compact the log if it has grown too
+   * large. Errors are logged; the in-memory state remains up to date.
+   */
+  private void append(byte type, Object key, String value, FlowRecord flow) {
+    try {
+      writeRecord(mOut, type, key, value, flow);
+      mOut.flush();
+      mFileOut.getFD().sync();
+      mNumRecords++;
+
+      if (mNumRecords > mCompactThreshold
+          && mNumRecords > 2 * (mStreams.size() + mFlows.size())) {
+        compact();
+      }
+    } catch (IOException ioe) {
+      LOG.error("Could not write to metastore: " + StringUtils.stringifyException(ioe));
+    }
+  }
+
+  /** Write a record, framed by its length and checksum. */
+  private static void writeRecord(DataOutputStream out, byte type, Object key, String value,
+      FlowRecord flow) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream rec = new DataOutputStream(bytes);
+    rec.writeByte(type);
+    if (key instanceof FlowId) {
+      rec.writeLong(((FlowId) key).getId());
+    } else {
+      rec.writeUTF((String) key);
+    }
+
+    switch (type) {
+    case CREATE_STREAM:
+      ValueCodec.writeBytes(value.getBytes("UTF-8"), rec);
+      break;
+    case ADD_FLOW:
+      ValueCodec.writeBytes(flow.mQuery.getBytes("UTF-8"), rec);
+      ValueCodec.writeString(flow.mStreamName, rec);
+      rec.writeInt(flow.mConfOverrides.size());
+      for (Map.Entry<String, String> entry : flow.mConfOverrides.entrySet()) {
+        rec.writeUTF(entry.getKey());
+        rec.writeUTF(entry.getValue());
+      }
+      break;
+    case SET_FLOW_NAME:
+      ValueCodec.writeString(value, rec);
+      break;
+    default:
+      break;
+    }
+    rec.close();
+
+    byte[] payload = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    out.writeInt(payload.length);
+    out.writeInt((int) crc.getValue());
+    out.write(payload);
+  }
+
+  /**
+   * Apply the records in the log file to the in-memory state. Stops at the
+   * first record which is incomplete or corrupt.
+   */
+  private void replay(File logFile) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(logFile)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(logFile + " is not a metastore log");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported metastore version " + version);
+      }
+
+      int numRecords = 0;
+      while (true) {
+        int len;
+        try {
+          len = in.readInt();
+        } catch (EOFException eofe) {
+          break; // End of the log.
+        }
+
+        byte[] payload;
+        try {
+          int checksum = in.readInt();
+          if (len < 0 || len > MAX_RECORD_LEN) {
+            throw new IOException("Invalid record length " + len);
+          }
+          payload = new byte[len];
+          in.readFully(payload);
+          CRC32 crc = new CRC32();
+          crc.update(payload);
+          if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch");
+          }
+        } catch (IOException ioe) {
+          // The write of this record was interrupted. Compaction drops it.
+          LOG.warn("Discarding metastore records after record " + numRecords + ": " + ioe);
+          break;
+        }
+
+        applyRecord(new DataInputStream(new ByteArrayInputStream(payload)));
+        numRecords++;
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private void applyRecord(DataInput in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+    case CREATE_STREAM:
+      String name = in.readUTF();
+      mStreams.put(name, new String(ValueCodec.readBytes(in), "UTF-8"));
+      break;
+    case DROP_STREAM:
+      mStreams.remove(in.readUTF());
+      break;
+    case ADD_FLOW:
+      FlowId flowId = new FlowId(in.readLong());
+      String query = new String(ValueCodec.readBytes(in), "UTF-8");
+      String streamName = ValueCodec.readString(in);
+      int numOverrides = in.readInt();
+      Map<String, String> confOverrides = new HashMap<String, String>();
+      for (int i = 0; i < numOverrides; i++) {
+        String key = in.readUTF();
+        confOverrides.put(key, in.readUTF());
+      }
+      mFlows.put(flowId, new FlowRecord(flowId, query, confOverrides, streamName));
+      break;
+    case SET_FLOW_NAME:
+      FlowRecord flow = mFlows.get(new FlowId(in.readLong()));
+      String newName = ValueCodec.readString(in);
+      if (null != flow) {
+        flow.mStreamName = newName;
+      }
+      break;
+    case REMOVE_FLOW:
+      mFlows.remove(new FlowId(in.readLong()));
+      break;
+    default:
+      throw new IOException("Unknown metastore record type " + type);
+    }
+  }
+
+  /**
+   * Replace the log with one holding a single record for each live stream
+   * and flow, and open it for appending.
+   */
+  private void compact() throws IOException {
+    File logFile = new File(mDir, LOG_FILE);
+    File tmpFile = new File(mDir, LOG_FILE + TEMP_SUFFIX);
+    if (null != mOut && !logFile.exists()) {
+      // A previous compaction could not move the new log into place, and we
+      // have appended to it since. Move it before it is overwritten below.
+      if (!tmpFile.renameTo(logFile)) {
+        throw new IOException("Could not rename " + tmpFile + " to " + logFile);
+      }
+    }
+
+    FileOutputStream fileOut = new FileOutputStream(tmpFile);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    boolean success = false;
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      for (Map.Entry<String, String> stream : mStreams.entrySet()) {
+        writeRecord(out, CREATE_STREAM, stream.getKey(), stream.getValue(), null);
+      }
+      for (FlowRecord flow : mFlows.values()) {
+        writeRecord(out, ADD_FLOW, flow.mFlowId, null, flow);
+      }
+      out.flush();
+      fileOut.getFD().sync();
+      success = true;
+    } finally {
+      out.close();
+      if (!success) {
+        tmpFile.delete();
+      }
+    }
+
+    close();
+    // Remove the old log first; File.renameTo() does not replace existing
+    // files on all platforms. open() recovers the new log if we stop between
+    // these steps.
+    File current = logFile;
+    try {
+      if (logFile.exists() && !logFile.delete()) {
+        throw new IOException("Could not replace metastore log " + logFile);
+      }
+      current = tmpFile;
+      if (!tmpFile.renameTo(logFile)) {
+        throw new IOException("Could not rename " + tmpFile + " to " + logFile);
+      }
+    } catch (IOException ioe) {
+      // Keep appending to whichever file now holds the log, so that later
+      // changes are still recorded; open() recovers the log from either one.
+      // The compaction is retried on the next append.
+      openLog(current);
+      throw ioe;
+    }
+
+    mNumRecords = mStreams.size() + mFlows.size();
+    openLog(logFile);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Compacted metastore to " + mNumRecords + " records");
+    }
+  }
+
+  /** Open the specified log file for appending records. */
+  private void openLog(File file) throws IOException {
+    mFileOut = new FileOutputStream(file, true);
+    mOut = new DataOutputStream(new BufferedOutputStream(mFileOut));
+  }
+}
@@ -0,0 +1,54 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+/**
+ * What a publisher which must never wait does when the buffer of one of its
+ * subscribers is full: e.g., a live stream delivering events to each flow
+ * that reads it, or a shared sub-plan delivering its output to each flow
+ * that subscribes to it.
+ */
+public enum OverflowPolicy {
+  /**
+   * Discard the events that do not fit, and count them. The subscriber
+   * continues to receive events once it catches up.
+   */
+  DROP,
+
+  /**
+   * Stop delivering events to the subscriber altogether, and complete its
+   * input, so that its flow finishes with the events it already received.
+   */
+  DISCONNECT;
+
+  /**
+   * @return the OverflowPolicy with the specified name (case-insensitive), or
+   * defaultPolicy if name is null or not recognized.
+   */
+  public static OverflowPolicy fromString(String name, OverflowPolicy defaultPolicy) {
+    if (null == name) {
+      return defaultPolicy;
+    }
+
+    try {
+      return valueOf(name.trim().toUpperCase());
+    } catch (IllegalArgumentException iae) {
+      return defaultPolicy;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.odiago.flumebase.exec.EventBatch;
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.MetricsRegistry;
+import com.odiago.flumebase.exec.StripedCounter;
+import com.odiago.flumebase.exec.Watermark;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.util.concurrent.SelectableQueue;
+
+/**
+ * Context for a FlowElement whose downstream operator has been replicated
+ * across several partitions, each executing in its own thread. Each event
+ * is hashed on a set of key fields, and pushed into the bounded buffer of
+ * the replica responsible for that key. All events with the same key
+ * values are therefore processed by the same replica.
+ */
+public class PartitionFlowElemContext extends LocalContext {
+
+  /** The downstream replicas, indexed by partition. */
+  private List<FlowElement> mDownstream;
+
+  /** The fields of each event which determine its partition. */
+  private List<TypedField> mKeyFields;
+
+  private List<SelectableQueue<Object>> mDownstreamQueues;
+
+  /** Counts the batches we allocate, in the metrics of our flow; resolved on first use. */
+  private StripedCounter mBatchesAllocated;
+
+  public PartitionFlowElemContext(List<FlowElement> downstream, List<TypedField> keyFields) {
+    mDownstream = downstream;
+    mKeyFields = keyFields;
+  }
+
+  /**
+   * Create a queue to communicate with each downstream replica.
+   */
+  @Override
+  public void createDownstreamQueues() {
+    mDownstreamQueues = new ArrayList<SelectableQueue<Object>>(mDownstream.size());
+    for (int i = 0; i < mDownstream.size(); i++) {
+      mDownstreamQueues.add(createEventQueue());
+    }
+  }
+
+  @Override
+  public List<SelectableQueue<Object>> getDownstreamQueues() {
+    return mDownstreamQueues;
+  }
+
+  /**
+   * @return the partition responsible for the key values held by the event.
+   */
+  private int getPartition(EventWrapper e) throws IOException {
+    int hash = 0;
+    for (TypedField keyField : mKeyFields) {
+      Object val = e.getField(keyField);
+      int valHash = 0;
+      if (val instanceof CharSequence) {
+        // Avro Utf8 and String instances of the same value must agree.
+        valHash = val.toString().hashCode();
+      } else if (null != val) {
+        valHash = val.hashCode();
+      }
+      hash = 31 * hash + valHash;
+    }
+
+    return (hash & Integer.MAX_VALUE) % mDownstreamQueues.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void emit(EventWrapper e) throws IOException, InterruptedException {
+    mDownstreamQueues.get(getPartition(e)).put(e);
+  }
+
+  /**
+   * Split the batch by partition, and pass each replica its share of the
+   * events in a single queue entry. Events keep their relative order.
+   */
+  @Override
+  public void emitBatch(EventBatch batch) throws IOException, InterruptedException {
+    int numPartitions = mDownstreamQueues.size();
+    EventBatch[] partitionBatches = new EventBatch[numPartitions];
+    if (null == mBatchesAllocated) {
+      mBatchesAllocated = getMetrics().getCounter(MetricsRegistry.BATCHES_ALLOCATED);
+    }
+    for (EventWrapper e : batch) {
+      int partition = getPartition(e);
+      if (null == partitionBatches[partition]) {
+        partitionBatches[partition] = new EventBatch(batch.size() / numPartitions + 1);
+        partitionBatches[partition].setIngestNanos(batch.getIngestNanos());
+        mBatchesAllocated.increment();
+      }
+      partitionBatches[partition].add(e);
+    }
+
+    for (int i = 0; i < numPartitions; i++) {
+      if (null != partitionBatches[i]) {
+        mDownstreamQueues.get(i).put(partitionBatches[i]);
+      }
+    }
+  }
+
+  /**
+   * Pass the watermark to every replica; it applies to all partitions.
+   */
+  @Override
+  public void emitWatermark(long watermark) throws IOException, InterruptedException {
+    Watermark out = new Watermark(watermark, this);
+    for (SelectableQueue<Object> queue : mDownstreamQueues) {
+      queue.put(out);
+    }
+  }
+
+  /**
+   * Return the downstream FlowElements. Used by the LocalEnvironment.
+   */
+  @Override
+  List<FlowElement> getDownstream() {
+    return Collections.unmodifiableList(mDownstream);
+  }
+}
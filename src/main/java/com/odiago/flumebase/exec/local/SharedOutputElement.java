@@ -0,0 +1,165 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+import com.odiago.flumebase.exec.EventBatch;
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.FlowElementImpl;
+import com.odiago.flumebase.exec.RecordEventWrapper;
+import com.odiago.flumebase.exec.RowLayout;
+import com.odiago.flumebase.exec.SharedRecord;
+import com.odiago.flumebase.exec.SharedRecordEventWrapper;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * FlowElement which publishes the output of a shared sub-plan to the
+ * SharedSourceElements of the flows which subscribe to it, and passes its
+ * input through to its own downstream element, if any.
+ *
+ * <p>Subscribers run in other threads. Events which may still be read
+ * lazily from their input stream are copied into a SharedRecord before
+ * they are published, so that subscribers never read them concurrently.</p>
+ */
+public class SharedOutputElement extends FlowElementImpl {
+  private final SharedSubplans mSharedSubplans;
+
+  /** The sub-plan whose output we publish. */
+  private final SharedSubplans.Subplan mSubplan;
+
+  /** True if we pass our input to a downstream element of our own flow. */
+  private final boolean mHasDownstream;
+
+  /** Slots of the fields of the input stream, or null if our input is not read lazily. */
+  private final RowLayout mLayout;
+
+  /** Columns to copy out of a lazily-read event, or null to copy all columns. */
+  private final BitSet mColumns;
+
+  /**
+   * @param sourceFields the fields of the stream whose events we may receive
+   * before they have been read, or null if our input is always immutable.
+   * @param requiredFields the fields of that stream read by the sub-plan's
+   * subscribers, or null if they may read any field.
+   */
+  public SharedOutputElement(FlowElementContext context, SharedSubplans sharedSubplans,
+      SharedSubplans.Subplan subplan, boolean hasDownstream,
+      List<TypedField> sourceFields, List<TypedField> requiredFields) {
+    super(context);
+    mSharedSubplans = sharedSubplans;
+    mSubplan = subplan;
+    mHasDownstream = hasDownstream;
+    if (null == sourceFields) {
+      mLayout = null;
+      mColumns = null;
+    } else {
+      mLayout = new RowLayout(sourceFields);
+      mColumns = mLayout.getSlots(requiredFields);
+    }
+  }
+
+  /** @return an event with the same fields as e, which any thread may read. */
+  private EventWrapper share(EventWrapper e) throws IOException {
+    if (null == mLayout || e instanceof RecordEventWrapper
+        || e instanceof SharedRecordEventWrapper) {
+      return e;
+    }
+
+    EventWrapper copy = new SharedRecordEventWrapper(SharedRecord.copy(e, mLayout, mColumns),
+        mLayout);
+    copy.setIngestNanos(e.getIngestNanos());
+    return copy;
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    List<SharedSourceElement> subscribers = mSubplan.getSubscribers();
+    if (!subscribers.isEmpty()) {
+      EventWrapper shared = share(e);
+      if (0 == shared.getIngestNanos()) {
+        shared.setIngestNanos(getIngestNanos());
+      }
+      for (SharedSourceElement subscriber : subscribers) {
+        subscriber.deliver(shared);
+      }
+    }
+
+    if (mHasDownstream) {
+      emit(e);
+    }
+  }
+
+  @Override
+  public void takeEvents(EventBatch batch) throws IOException, InterruptedException {
+    List<SharedSourceElement> subscribers = mSubplan.getSubscribers();
+    if (!subscribers.isEmpty()) {
+      EventBatch shared = new EventBatch(batch.size());
+      shared.setIngestNanos(batch.getIngestNanos());
+      for (EventWrapper e : batch) {
+        shared.add(share(e));
+      }
+
+      // Each subscriber owns the batch it receives; the last one gets the original.
+      Iterator<SharedSourceElement> iter = subscribers.iterator();
+      while (iter.hasNext()) {
+        SharedSourceElement subscriber = iter.next();
+        EventBatch subscriberBatch = shared;
+        if (iter.hasNext()) {
+          subscriberBatch = new EventBatch(shared.size());
+          subscriberBatch.setIngestNanos(shared.getIngestNanos());
+          for (EventWrapper e : shared) {
+            subscriberBatch.add(e);
+          }
+        }
+        subscriber.deliverBatch(subscriberBatch);
+      }
+    }
+
+    if (mHasDownstream) {
+      emitBatch(batch);
+    }
+  }
+
+  @Override
+  protected void advanceWatermark(long watermark) throws IOException, InterruptedException {
+    for (SharedSourceElement subscriber : mSubplan.getSubscribers()) {
+      subscriber.deliverWatermark(watermark);
+    }
+    super.advanceWatermark(watermark);
+  }
+
+  @Override
+  public void close() throws IOException, InterruptedException {
+    // The sub-plan is complete; so are the flows reading it.
+    mSharedSubplans.retire(mSubplan.getOwner());
+    super.close();
+  }
+
+  @Override
+  public String toString() {
+    return "SharedOutput[subplan=" + Integer.toHexString(mSubplan.getFingerprint().hashCode())
+        + "]";
+  }
+}
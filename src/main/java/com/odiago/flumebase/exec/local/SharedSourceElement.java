@@ -0,0 +1,119 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.exec.EventBatch;
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.FlowElementImpl;
+
+/**
+ * Source FlowElement which emits the output of a shared sub-plan, computed
+ * by another flow. The SharedOutputElement publishing the sub-plan pushes
+ * events into this element from the thread of that flow.
+ */
+public class SharedSourceElement extends FlowElementImpl {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      SharedSourceElement.class.getName());
+
+  private final SharedSubplans mSharedSubplans;
+
+  /** The sub-plan whose output we emit. */
+  private final SharedSubplans.Subplan mSubplan;
+
+  /** Set to true after our reference to the sub-plan has been released. */
+  private boolean mReleased;
+
+  public SharedSourceElement(FlowElementContext context, SharedSubplans sharedSubplans,
+      SharedSubplans.Subplan subplan) {
+    super(context);
+    mSharedSubplans = sharedSubplans;
+    mSubplan = subplan;
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) {
+    throw new RuntimeException("SharedSourceElement does not expect takeEvent()");
+  }
+
+  @Override
+  public void open() throws IOException, InterruptedException {
+    super.open();
+    if (!mSubplan.subscribe(this)) {
+      // The flow computing the sub-plan is already complete.
+      getContext().notifyCompletion();
+    }
+  }
+
+  /** Emit an event of the sub-plan. Called by the publishing flow. */
+  void deliver(EventWrapper e) throws IOException, InterruptedException {
+    emit(e);
+  }
+
+  /** Emit a batch of events of the sub-plan. Called by the publishing flow. */
+  void deliverBatch(EventBatch batch) throws IOException, InterruptedException {
+    emitBatch(batch);
+  }
+
+  /** Forward the watermark of the sub-plan. Called by the publishing flow. */
+  void deliverWatermark(long watermark) throws IOException, InterruptedException {
+    getContext().emitWatermark(watermark);
+  }
+
+  /**
+   * Called when the sub-plan will produce no further output. Called by the
+   * publishing flow, so completion is handed to the thread running this flow.
+   */
+  void upstreamComplete() {
+    try {
+      ((LocalContext) getContext()).postCompletion();
+    } catch (InterruptedException ie) {
+      LOG.warn("InterruptedException sending completion notice: " + ie);
+    }
+  }
+
+  /**
+   * Stop receiving the output of the sub-plan, and release our reference
+   * to the flow computing it. Safe to call more than once.
+   */
+  synchronized void release() {
+    if (mReleased) {
+      return;
+    }
+    mReleased = true;
+    mSubplan.unsubscribe(this);
+    mSharedSubplans.release(mSubplan);
+  }
+
+  @Override
+  public void close() throws IOException, InterruptedException {
+    release();
+    super.close();
+  }
+
+  @Override
+  public String toString() {
+    return "SharedSource[subplan=" + Integer.toHexString(mSubplan.getFingerprint().hashCode())
+        + "]";
+  }
+}
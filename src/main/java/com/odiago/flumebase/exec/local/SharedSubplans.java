@@ -0,0 +1,451 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.exec.BucketedAggregationElement;
+import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.StreamSymbol;
+import com.odiago.flumebase.exec.Symbol;
+import com.odiago.flumebase.exec.SymbolTable;
+
+import com.odiago.flumebase.parser.StreamSourceType;
+
+import com.odiago.flumebase.plan.AggregateNode;
+import com.odiago.flumebase.plan.FilterNode;
+import com.odiago.flumebase.plan.FlowSpecification;
+import com.odiago.flumebase.plan.NamedSourceNode;
+import com.odiago.flumebase.plan.PlanNode;
+import com.odiago.flumebase.plan.ProjectionNode;
+import com.odiago.flumebase.plan.SharedOutputNode;
+import com.odiago.flumebase.plan.SharedSourceNode;
+
+import com.odiago.flumebase.util.DAG;
+import com.odiago.flumebase.util.DAGOperatorException;
+
+/**
+ * Finds the sub-plans that a new flow has in common with running flows,
+ * and tracks the flows which compute them.
+ *
+ * <p>A sub-plan is a chain of filters, projections and aggregations
+ * applied to a live stream (one fed by Flume, rather than replayed from
+ * its beginning for each flow). Each such sub-plan is identified by a
+ * fingerprint of the stream and of the parameters of each operator in the
+ * chain. Before a flow is built, split() removes the longest prefix of each
+ * such chain from the flow's plan, and replaces it with a SharedSourceNode
+ * that reads the output of a shared sub-plan. The operators of the prefix
+ * which are not yet computed by a running flow are moved into a new,
+ * hidden, shared flow; that flow publishes the output of each operator in
+ * its chain, so that later flows may share any prefix of it.</p>
+ *
+ * <p>Each shared flow counts the SharedSourceNodes which read its sub-plans.
+ * When the last of them is released, the shared flow is retired, and the
+ * Listener is asked to cancel it.</p>
+ */
+public class SharedSubplans {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      SharedSubplans.class.getName());
+
+  /**
+   * Config key specifying whether flows which apply the same operators to
+   * the same live stream share a single execution of those operators.
+   */
+  public static final String SHARE_SUBPLANS_KEY = "flumebase.exec.share.subplans";
+  public static final boolean DEFAULT_SHARE_SUBPLANS = true;
+
+  /**
+   * Key in the attribute map of a SharedSourceNode or SharedOutputNode for
+   * the Subplan it reads or publishes.
+   */
+  public static final String SUBPLAN_ATTR = "SharedSubplans.subplan";
+
+  /** Receives requests to cancel shared flows which are no longer read. */
+  public interface Listener {
+    void cancelSharedFlow(FlowId flowId);
+  }
+
+  /**
+   * A hidden flow which computes one or more shared sub-plans. Its
+   * FlowSpecification is produced by split(); the environment then
+   * deploys it under a FlowId of its choosing.
+   */
+  public static class SharedFlow {
+    private final FlowSpecification mSpec;
+    private final List<Subplan> mSubplans;
+    private FlowId mFlowId;
+
+    /** Number of SharedSourceNodes reading any of our sub-plans. */
+    private int mRefCount;
+
+    /** Set to true when our sub-plans may no longer be shared. */
+    private boolean mRetired;
+
+    private SharedFlow(FlowSpecification spec) {
+      mSpec = spec;
+      mSubplans = new ArrayList<Subplan>();
+    }
+
+    public FlowSpecification getSpec() {
+      return mSpec;
+    }
+
+    public FlowId getFlowId() {
+      return mFlowId;
+    }
+
+    public void setFlowId(FlowId flowId) {
+      mFlowId = flowId;
+    }
+  }
+
+  /**
+   * The output of a single shared sub-plan, and the SharedSourceElements
+   * which subscribe to it.
+   */
+  public static class Subplan {
+    private final String mFingerprint;
+    private final SharedFlow mOwner;
+    private final List<SharedSourceElement> mSubscribers;
+    private boolean mClosed;
+
+    private Subplan(String fingerprint, SharedFlow owner) {
+      mFingerprint = fingerprint;
+      mOwner = owner;
+      mSubscribers = new CopyOnWriteArrayList<SharedSourceElement>();
+    }
+
+    String getFingerprint() {
+      return mFingerprint;
+    }
+
+    SharedFlow getOwner() {
+      return mOwner;
+    }
+
+    /**
+     * Begin delivering the output of the sub-plan to the specified element.
+     * @return false if the sub-plan has already produced all of its output.
+     */
+    synchronized boolean subscribe(SharedSourceElement subscriber) {
+      if (mClosed) {
+        return false;
+      }
+      mSubscribers.add(subscriber);
+      return true;
+    }
+
+    void unsubscribe(SharedSourceElement subscriber) {
+      mSubscribers.remove(subscriber);
+    }
+
+    /** @return the current subscribers. May be called from any thread. */
+    List<SharedSourceElement> getSubscribers() {
+      return mSubscribers;
+    }
+
+    /**
+     * Mark the sub-plan as complete.
+     * @return the subscribers which must be notified of its completion.
+     */
+    synchronized List<SharedSourceElement> close() {
+      if (mClosed) {
+        return new ArrayList<SharedSourceElement>();
+      }
+      mClosed = true;
+      return new ArrayList<SharedSourceElement>(mSubscribers);
+    }
+  }
+
+  /** The sub-plans which may be shared by new flows, by fingerprint. */
+  private final Map<String, Subplan> mSubplans;
+
+  private final Listener mListener;
+
+  public SharedSubplans(Listener listener) {
+    mSubplans = new HashMap<String, Subplan>();
+    mListener = listener;
+  }
+
+  /** @return true if sub-plans should be shared by a flow with the specified conf. */
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(SHARE_SUBPLANS_KEY, DEFAULT_SHARE_SUBPLANS);
+  }
+
+  /** @return true if the named stream is fed by Flume, and not replayed for each flow. */
+  static boolean isLiveStream(NamedSourceNode source, SymbolTable rootSymbols) {
+    Symbol symbol = rootSymbols.resolve(source.getStreamName());
+    if (null == symbol) {
+      return false;
+    }
+
+    symbol = symbol.resolveAliases();
+    if (!(symbol instanceof StreamSymbol)) {
+      return false;
+    }
+
+    StreamSourceType sourceType = ((StreamSymbol) symbol).getSourceType();
+    return sourceType == StreamSourceType.Source || sourceType == StreamSourceType.Node;
+  }
+
+  /** @return true if the node is an operator that may be part of a shared sub-plan. */
+  private static boolean isShareable(PlanNode node) {
+    return node instanceof FilterNode || node instanceof ProjectionNode
+        || node instanceof AggregateNode;
+  }
+
+  /**
+   * @return the chain of shareable operators below a source node. Each
+   * operator in the chain has a single input and a single output.
+   */
+  private static List<PlanNode> getChain(PlanNode source) {
+    List<PlanNode> chain = new ArrayList<PlanNode>();
+    PlanNode cur = source;
+    while (cur.getChildren().size() == 1) {
+      PlanNode next = cur.getChildren().get(0);
+      if (!isShareable(next) || next.getParents().size() != 1
+          || next.getChildren().size() != 1) {
+        break;
+      }
+      chain.add(next);
+      cur = next;
+    }
+    return chain;
+  }
+
+  /** Append the parameters of a source or shareable operator to sb. */
+  private static void formatNode(PlanNode node, StringBuilder sb) {
+    if (node instanceof NamedSourceNode) {
+      ((NamedSourceNode) node).formatParams(sb);
+    } else if (node instanceof FilterNode) {
+      ((FilterNode) node).formatParams(sb);
+    } else if (node instanceof ProjectionNode) {
+      ((ProjectionNode) node).formatParams(sb);
+    } else if (node instanceof AggregateNode) {
+      ((AggregateNode) node).formatParams(sb);
+    }
+  }
+
+  /**
+   * @return the fingerprint of a source node: the definition of its stream,
+   * the fields it reads, and the settings which govern the timestamps of
+   * its events.
+   */
+  private static String getSourceFingerprint(NamedSourceNode source,
+      SymbolTable rootSymbols, Configuration conf) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(rootSymbols.resolve(source.getStreamName()).resolveAliases());
+    sb.append("\n");
+    formatNode(source, sb);
+    sb.append(LocalEnvironment.MAX_EVENT_LATENESS_KEY);
+    sb.append("=");
+    sb.append(conf.get(LocalEnvironment.MAX_EVENT_LATENESS_KEY));
+    sb.append("\n");
+    sb.append(BucketedAggregationElement.SLACK_INTERVAL_KEY);
+    sb.append("=");
+    sb.append(conf.get(BucketedAggregationElement.SLACK_INTERVAL_KEY));
+    sb.append("\n");
+    return sb.toString();
+  }
+
+  /**
+   * Replace the shareable prefix of each live stream's chain of operators
+   * in a flow specification with a SharedSourceNode.
+   * @return the hidden flows which must be deployed to compute the
+   * sub-plans that are not yet computed by a running flow. Each must be
+   * deployed before the flow itself.
+   */
+  public synchronized List<SharedFlow> split(FlowSpecification spec, SymbolTable rootSymbols) {
+    List<SharedFlow> newFlows = new ArrayList<SharedFlow>();
+    List<PlanNode> roots = spec.getRootSet();
+    for (int r = 0; r < roots.size(); r++) {
+      PlanNode root = roots.get(r);
+      if (!(root instanceof NamedSourceNode)
+          || !isLiveStream((NamedSourceNode) root, rootSymbols)) {
+        continue;
+      }
+
+      NamedSourceNode source = (NamedSourceNode) root;
+      List<PlanNode> chain = getChain(source);
+      if (chain.size() == 0) {
+        // Nothing but the stream itself to share; its events are already
+        // parsed once for all the flows reading it.
+        continue;
+      }
+
+      // fingerprints[i] identifies the output of the first i operators of the chain.
+      String[] fingerprints = new String[chain.size() + 1];
+      fingerprints[0] = getSourceFingerprint(source, rootSymbols, spec.getConf());
+      for (int i = 0; i < chain.size(); i++) {
+        StringBuilder sb = new StringBuilder(fingerprints[i]);
+        formatNode(chain.get(i), sb);
+        fingerprints[i + 1] = sb.toString();
+      }
+
+      // Find the longest prefix of the chain that is already computed.
+      int numShared = chain.size();
+      while (numShared > 0 && !mSubplans.containsKey(fingerprints[numShared])) {
+        numShared--;
+      }
+
+      PlanNode last = chain.get(chain.size() - 1);
+      PlanNode next = last.getChildren().get(0);
+      if (numShared < chain.size()) {
+        // Move the rest of the chain into a new shared flow.
+        Configuration sharedConf = new Configuration(spec.getConf());
+        sharedConf.setBoolean(LocalEnvironment.AUTO_WATCH_FLOW_KEY, false);
+        SharedFlow sharedFlow = new SharedFlow(
+            new FlowSpecification(spec.getQuery(), sharedConf));
+
+        PlanNode upstream;
+        if (numShared == 0) {
+          upstream = source;
+          source.getChildren().clear();
+        } else {
+          upstream = makeSharedSource(mSubplans.get(fingerprints[numShared]),
+              chain.get(numShared - 1));
+        }
+        sharedFlow.getSpec().addRoot(upstream);
+
+        for (int i = numShared; i < chain.size(); i++) {
+          PlanNode op = chain.get(i);
+          op.getParents().clear();
+          op.getChildren().clear();
+          upstream.addChild(op);
+
+          Subplan subplan = new Subplan(fingerprints[i + 1], sharedFlow);
+          SharedOutputNode output;
+          if (numShared == 0) {
+            // Filters pass through the events of the stream, which may not
+            // have been read from it yet.
+            output = new SharedOutputNode(fingerprints[i + 1], source.getFields(),
+                source.getRequiredFields());
+          } else {
+            output = new SharedOutputNode(fingerprints[i + 1], null, null);
+          }
+          Object schema = op.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR);
+          output.setAttr(PlanNode.INPUT_SCHEMA_ATTR, schema);
+          output.setAttr(PlanNode.OUTPUT_SCHEMA_ATTR, schema);
+          output.setAttr(SUBPLAN_ATTR, subplan);
+          op.addChild(output);
+
+          sharedFlow.mSubplans.add(subplan);
+          mSubplans.put(subplan.getFingerprint(), subplan);
+          upstream = output;
+        }
+
+        newFlows.add(sharedFlow);
+        LOG.debug("Sharing " + (chain.size() - numShared) + " new operators over stream "
+            + source.getStreamName());
+      }
+
+      // Read the output of the whole chain from the shared sub-plan.
+      SharedSourceNode sharedSource = makeSharedSource(
+          mSubplans.get(fingerprints[chain.size()]), last);
+      List<PlanNode> nextParents = next.getParents();
+      nextParents.set(nextParents.indexOf(last), sharedSource);
+      sharedSource.getChildren().add(next);
+      roots.set(r, sharedSource);
+    }
+
+    return newFlows;
+  }
+
+  /**
+   * @return a new SharedSourceNode reading the specified sub-plan, whose
+   * output is that of 'op'. Takes a reference to the sub-plan's flow.
+   */
+  private SharedSourceNode makeSharedSource(Subplan subplan, PlanNode op) {
+    subplan.getOwner().mRefCount++;
+    SharedSourceNode sharedSource = new SharedSourceNode(subplan.getFingerprint());
+    sharedSource.setAttr(PlanNode.OUTPUT_SCHEMA_ATTR, op.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR));
+    sharedSource.setAttr(SUBPLAN_ATTR, subplan);
+    return sharedSource;
+  }
+
+  /**
+   * Release the reference to a shared flow taken by a SharedSourceNode.
+   * When no references remain, the flow is retired and canceled.
+   */
+  public synchronized void release(Subplan subplan) {
+    SharedFlow owner = subplan.getOwner();
+    owner.mRefCount--;
+    if (owner.mRefCount == 0 && !owner.mRetired) {
+      retire(owner);
+      if (null != owner.getFlowId()) {
+        LOG.debug("Shared flow " + owner.getFlowId() + " has no more subscribers");
+        mListener.cancelSharedFlow(owner.getFlowId());
+      }
+    }
+  }
+
+  /**
+   * Release the references taken by the SharedSourceNodes of a flow
+   * specification which will not be deployed.
+   */
+  public void releaseAll(FlowSpecification spec) {
+    try {
+      spec.bfs(new DAG.Operator<PlanNode>() {
+        public void process(PlanNode node) {
+          if (node instanceof SharedSourceNode) {
+            release((Subplan) node.getAttr(SUBPLAN_ATTR));
+          }
+        }
+      });
+    } catch (DAGOperatorException doe) {
+      // Shouldn't get here with this operator.
+      LOG.error("Unexpected dag op exn: " + doe);
+    }
+  }
+
+  /**
+   * Stop sharing the sub-plans of a flow which is complete or canceled, or
+   * could not be deployed. Their subscribers are notified that they are complete.
+   */
+  public void retire(SharedFlow sharedFlow) {
+    synchronized (this) {
+      sharedFlow.mRetired = true;
+      for (Subplan subplan : sharedFlow.mSubplans) {
+        if (mSubplans.get(subplan.getFingerprint()) == subplan) {
+          mSubplans.remove(subplan.getFingerprint());
+        }
+      }
+    }
+
+    for (Subplan subplan : sharedFlow.mSubplans) {
+      for (SharedSourceElement subscriber : subplan.close()) {
+        subscriber.upstreamComplete();
+      }
+    }
+  }
+
+  /** @return the number of sub-plans which may currently be shared. */
+  synchronized int getNumSubplans() {
+    return mSubplans.size();
+  }
+}
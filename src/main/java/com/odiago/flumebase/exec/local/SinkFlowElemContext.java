@@ -22,19 +22,34 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
+import com.odiago.flumebase.exec.EventBatch;
 import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FlowElement;
 import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.LatencyHistogram;
+import com.odiago.flumebase.exec.MetricsRegistry;
 
 /**
  * Context for a FlowElement which is itself a sink; it cannot emit data
  * to any downstream elements, for there are none.
+ *
+ * <p>Events delivered to the sink have made it through the flow. The sink
+ * records the latency of each, measured from the local time at which it
+ * entered the flow, in the flow's MetricsRegistry.LATENCY_US histogram. The
+ * lag of each event behind its own timestamp is recorded separately, in the
+ * MetricsRegistry.EVENT_LAG_MS histogram.</p>
  */
 public class SinkFlowElemContext extends LocalContext {
 
   /** The flow this is operating in. */
   private FlowId mFlow;
 
+  /** Histogram of the latencies of events reaching the sink; resolved on first use. */
+  private LatencyHistogram mLatency;
+
+  /** Histogram of the event-time lag of events reaching the sink; resolved on first use. */
+  private LatencyHistogram mEventLag;
+
   public SinkFlowElemContext(FlowId flow) {
     mFlow = flow;
   }
@@ -44,6 +59,47 @@ public class SinkFlowElemContext extends LocalContext {
     throw new IOException("Cannot emit event without downstream element");
   }
 
+  /** Resolve the histograms in which latencies are recorded. */
+  private void initHistograms() {
+    if (null == mLatency) {
+      // The flow data is bound before any events are delivered.
+      mLatency = getMetrics().getHistogram(MetricsRegistry.LATENCY_US);
+      mEventLag = getMetrics().getHistogram(MetricsRegistry.EVENT_LAG_MS);
+    }
+  }
+
+  /**
+   * Record the latency and event-time lag of an event.
+   * @param ingestNanos the time the event entered the flow, or 0 if unknown.
+   */
+  private void record(EventWrapper e, long ingestNanos, long nowNanos, long nowMillis) {
+    if (0 != ingestNanos) {
+      mLatency.record((nowNanos - ingestNanos) / 1000);
+    }
+    mEventLag.record(nowMillis - e.getEvent().getTimestamp());
+  }
+
+  @Override
+  public void recordLatency(EventWrapper e) {
+    initHistograms();
+    record(e, e.getIngestNanos(), System.nanoTime(), System.currentTimeMillis());
+  }
+
+  @Override
+  public void recordLatency(EventBatch batch) {
+    initHistograms();
+    long nowNanos = System.nanoTime();
+    long nowMillis = System.currentTimeMillis();
+    for (int i = 0; i < batch.size(); i++) {
+      EventWrapper e = batch.get(i);
+      long ingestNanos = e.getIngestNanos();
+      if (0 == ingestNanos) {
+        ingestNanos = batch.getIngestNanos();
+      }
+      record(e, ingestNanos, nowNanos, nowMillis);
+    }
+  }
+
   FlowId getFlowId() {
     return mFlow;
   }
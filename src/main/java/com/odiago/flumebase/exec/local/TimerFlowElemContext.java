@@ -22,24 +22,35 @@ import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
+import com.odiago.flumebase.exec.EventBatch;
 import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.Watermark;
 
-import com.odiago.flumebase.util.concurrent.ArrayBoundedSelectableQueue;
 import com.odiago.flumebase.util.concurrent.SelectableQueue;
+import com.odiago.flumebase.util.concurrent.SyncSelectableQueue;
 
 /**
  * Context for a FlowElement which has a single downstream FE on the
- * same physical host, in the same thread, but which also uses a separate
- * internal thread which drives timer interrupts into a second 'timer' downstream FE.
+ * same physical host, in the same thread, but which also receives timer
+ * interrupts from the environment's shared TimerWheel, and drives them into a
+ * second 'timer' downstream FE.
  * 
  * <p>This FlowElementContext implementation is unusual in that it differentiates
  * between the kinds of downstream flow elements it has. The 'main' downstream flow
  * element processes normal events, and is direct-coupled to our output. The
- * 'timer' downstream flow element will only process events generated by our timer
- * thread, which may contain arbitrary data. The timer element is not actually
+ * 'timer' downstream flow element will only process events generated by tasks
+ * run in the timer wheel's thread, which may contain arbitrary data. The timer element is not actually
  * recognized by our emit() method; we provide a separate method to retrieve the
  * timer queue for manual use.</p>
+ *
+ * <p>If the element is one partition of a data-parallel operator, it runs in a
+ * different thread than its main downstream element. In this case the main
+ * output is also buffered through a queue. That queue is unbounded: the
+ * thread which drains it is the same thread which feeds the partition's
+ * (bounded) input queue, and may be blocked waiting for space there. If the
+ * partition could also block on its output, the two threads could wait on
+ * one another forever. Back-pressure is applied at the partition's input.</p>
  */
 public class TimerFlowElemContext extends LocalContext {
 
@@ -52,8 +63,27 @@ public class TimerFlowElemContext extends LocalContext {
   /** Event queue driving the timer element. null if mTimerElement is null. */
   private SelectableQueue<Object> mTimerQueue;
 
-  public TimerFlowElemContext(FlowElement downstream) {
+  /** The timer wheel which runs the tasks that fill mTimerQueue. */
+  private final TimerWheel mTimerWheel;
+
+  /** True if events for the main downstream element are sent through a queue. */
+  private final boolean mBufferDownstream;
+
+  /**
+   * Unbounded queue to the main downstream element; null unless mBufferDownstream
+   * is true.
+   */
+  private SelectableQueue<Object> mDownstreamQueue;
+
+  public TimerFlowElemContext(FlowElement downstream, TimerWheel timerWheel) {
+    this(downstream, false, timerWheel);
+  }
+
+  public TimerFlowElemContext(FlowElement downstream, boolean bufferDownstream,
+      TimerWheel timerWheel) {
     mDownstream = downstream;
+    mBufferDownstream = bufferDownstream;
+    mTimerWheel = timerWheel;
   }
 
   /**
@@ -61,15 +91,18 @@ public class TimerFlowElemContext extends LocalContext {
    */
   @Override
   public void createDownstreamQueues() {
+    if (mBufferDownstream) {
+      mDownstreamQueue = new SyncSelectableQueue<Object>();
+    }
     if (null != mTimerElement) {
-      mTimerQueue = new ArrayBoundedSelectableQueue<Object>(LocalEnvironment.MAX_QUEUE_LEN);
+      mTimerQueue = createEventQueue();
     }
   }
 
   @Override
   public List<SelectableQueue<Object>> getDownstreamQueues() {
     List<SelectableQueue<Object>> out = new LinkedList<SelectableQueue<Object>>();
-    out.add(null);
+    out.add(mDownstreamQueue);
     if (null != mTimerQueue) {
       out.add(mTimerQueue);
     }
@@ -82,13 +115,56 @@ public class TimerFlowElemContext extends LocalContext {
   @Override
   public void emit(EventWrapper e) throws IOException, InterruptedException {
     // NOTE: we emit to the main downstream element. We don't emit to the timer element.
-    mDownstream.takeEvent(e);
+    if (mBufferDownstream) {
+      mDownstreamQueue.put(e);
+    } else {
+      mDownstream.deliverEvent(e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void emitBatch(EventBatch batch) throws IOException, InterruptedException {
+    if (mBufferDownstream) {
+      mDownstreamQueue.put(batch);
+    } else {
+      mDownstream.deliverEvents(batch);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * The watermark is also passed directly to the timer element, which runs in
+   * the same thread as our upstream element, and shares our downstream element.
+   */
+  @Override
+  public void emitWatermark(long watermark) throws IOException, InterruptedException {
+    Watermark out = new Watermark(watermark, this);
+    if (mBufferDownstream) {
+      mDownstreamQueue.put(out);
+    } else {
+      mDownstream.takeWatermark(out);
+    }
+
+    if (null != mTimerElement) {
+      mTimerElement.takeWatermark(out);
+    }
   }
 
   public SelectableQueue<Object> getTimerQueue() {
     return mTimerQueue;
   }
 
+  /**
+   * @return the timer wheel in which tasks that insert events into the timer
+   * queue should be scheduled.
+   */
+  public TimerWheel getTimerWheel() {
+    return mTimerWheel;
+  }
+
   public FlowElement getTimerElement() {
     return mTimerElement;
   }
@@ -0,0 +1,297 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timer wheel shared by all the FlowElements of a LocalEnvironment
+ * which must act after an interval of local time has passed (e.g., to close
+ * aggregation windows). A single thread services every timeout, rather than
+ * one thread per FlowElement.
+ *
+ * <p>Time is divided into ticks of a fixed width. The wheel is a ring of
+ * slots, one per tick; a timeout is placed in the slot of the tick in which
+ * it expires, along with the number of revolutions of the wheel remaining
+ * before it is due. Scheduling or cancelling a timeout is O(1), and each
+ * tick only examines the timeouts in one slot. Timeouts fire up to one tick
+ * late. The thread sleeps until the next schedule() call while the wheel is
+ * empty.</p>
+ *
+ * <p>Tasks run in the timer thread, and so must not block. A task normally
+ * delivers an event to the timer queue of a TimerFlowElemContext; if it cannot
+ * do so because the queue is full, it is retried on the next tick.</p>
+ */
+public class TimerWheel {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      TimerWheel.class.getName());
+
+  /** Config key specifying the width of a tick of the timer wheel, in milliseconds. */
+  public static final String TICK_MILLIS_KEY = "flumebase.timer.tick.ms";
+  public static final long DEFAULT_TICK_MILLIS = 10;
+
+  /**
+   * Config key specifying the number of slots in the timer wheel. Rounded up
+   * to a power of two.
+   */
+  public static final String NUM_SLOTS_KEY = "flumebase.timer.slots";
+  public static final int DEFAULT_NUM_SLOTS = 512;
+
+  /** Work to perform when a timeout expires. */
+  public interface Task {
+    /**
+     * Perform the work for an expired timeout. Called in the timer thread.
+     * @return true if the task is complete, or false if it could not be
+     * performed without blocking and should be retried on the next tick.
+     */
+    boolean expire();
+  }
+
+  /** A scheduled task, which may be cancelled before it expires. */
+  public static class Timeout {
+    private final Task mTask;
+
+    /** Local time (ms) when the task should run. */
+    private final long mDeadline;
+
+    /** Number of times the timer thread must pass this timeout's slot before it expires. */
+    private long mRemainingRounds;
+
+    private volatile boolean mCancelled;
+
+    private Timeout(Task task, long deadline) {
+      mTask = task;
+      mDeadline = deadline;
+    }
+
+    /** Prevent the task from running, if it has not run already. */
+    public void cancel() {
+      mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+      return mCancelled;
+    }
+  }
+
+  /** Width of each tick in milliseconds. */
+  private final long mTickMillis;
+
+  /** The timeouts in each slot. Only accessed by the timer thread. */
+  private final List<List<Timeout>> mSlots;
+
+  /** Mask selecting a slot from a tick number. */
+  private final int mMask;
+
+  /** Timeouts scheduled since the last tick, to be placed in their slots. */
+  private final ConcurrentLinkedQueue<Timeout> mNewTimeouts;
+
+  /** Monitor on which the timer thread waits while the wheel is empty. */
+  private final Object mIdleLock;
+
+  /** True while the timer thread is waiting on mIdleLock. */
+  private volatile boolean mIdle;
+
+  private volatile boolean mIsFinished;
+
+  private final WheelThread mThread;
+
+  /** Number of timeouts in mSlots. Only accessed by the timer thread. */
+  private int mNumTimeouts;
+
+  /** Local time (ms) at which tick 0 began. */
+  private long mStartTime;
+
+  /** The next tick to process. */
+  private long mTick;
+
+  public TimerWheel(Configuration conf) {
+    this(conf.getLong(TICK_MILLIS_KEY, DEFAULT_TICK_MILLIS),
+        conf.getInt(NUM_SLOTS_KEY, DEFAULT_NUM_SLOTS));
+  }
+
+  public TimerWheel(long tickMillis, int numSlots) {
+    if (tickMillis <= 0) {
+      tickMillis = DEFAULT_TICK_MILLIS;
+    }
+    if (numSlots <= 0) {
+      numSlots = DEFAULT_NUM_SLOTS;
+    }
+
+    int size = 2;
+    while (size < numSlots) {
+      size <<= 1;
+    }
+
+    mTickMillis = tickMillis;
+    mSlots = new ArrayList<List<Timeout>>(size);
+    for (int i = 0; i < size; i++) {
+      mSlots.add(new ArrayList<Timeout>());
+    }
+    mMask = size - 1;
+    mNewTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    mIdleLock = new Object();
+    mThread = new WheelThread();
+  }
+
+  /** Start the timer thread. */
+  public void start() {
+    mThread.start();
+  }
+
+  /**
+   * Stop the timer thread. Timeouts that have not yet expired are discarded.
+   */
+  public void stop() throws InterruptedException {
+    mIsFinished = true;
+    synchronized (mIdleLock) {
+      mIdleLock.notifyAll();
+    }
+    mThread.interrupt();
+    mThread.join();
+  }
+
+  /**
+   * Schedule a task to run after the specified delay. May be called from any thread.
+   * @return a Timeout which may be used to cancel the task.
+   */
+  public Timeout schedule(long delayMillis, Task task) {
+    Timeout timeout = new Timeout(task, System.currentTimeMillis() + Math.max(0, delayMillis));
+    mNewTimeouts.add(timeout);
+    if (mIdle) {
+      synchronized (mIdleLock) {
+        mIdleLock.notifyAll();
+      }
+    }
+
+    return timeout;
+  }
+
+  /** Move newly-scheduled timeouts into the slots for the ticks when they expire. */
+  private void transferNewTimeouts() {
+    Timeout timeout;
+    while ((timeout = mNewTimeouts.poll()) != null) {
+      if (timeout.isCancelled()) {
+        continue;
+      }
+
+      // Expire in the first tick that ends at or after the deadline.
+      long tick = mTick;
+      long sinceStart = timeout.mDeadline - mStartTime;
+      if (sinceStart > 0) {
+        tick = Math.max(mTick, (sinceStart - 1) / mTickMillis);
+      }
+
+      timeout.mRemainingRounds = (tick - mTick) / mSlots.size();
+      mSlots.get((int) (tick & mMask)).add(timeout);
+      mNumTimeouts++;
+    }
+  }
+
+  /** Run the tasks in the slot for the current tick which are due. */
+  private void expireTimeouts() {
+    List<Timeout> slot = mSlots.get((int) (mTick & mMask));
+    List<Timeout> nextSlot = mSlots.get((int) ((mTick + 1) & mMask));
+    int kept = 0;
+    for (int i = 0; i < slot.size(); i++) {
+      Timeout timeout = slot.get(i);
+      if (timeout.isCancelled()) {
+        mNumTimeouts--;
+      } else if (timeout.mRemainingRounds > 0) {
+        timeout.mRemainingRounds--;
+        slot.set(kept++, timeout);
+      } else {
+        boolean done = true;
+        try {
+          done = timeout.mTask.expire();
+        } catch (RuntimeException re) {
+          LOG.error("Exception in timer task: " + re);
+        }
+
+        if (!done) {
+          // Retry on the next tick.
+          nextSlot.add(timeout);
+        } else {
+          mNumTimeouts--;
+        }
+      }
+    }
+
+    // Drop the timeouts that were not kept from the end of the slot.
+    for (int i = slot.size() - 1; i >= kept; i--) {
+      slot.remove(i);
+    }
+  }
+
+  /** Thread that advances the wheel once per tick. */
+  private class WheelThread extends Thread {
+    public WheelThread() {
+      super("TimerWheel");
+      setDaemon(true);
+    }
+
+    public void run() {
+      mStartTime = System.currentTimeMillis();
+      mTick = 0;
+
+      while (!mIsFinished) {
+        if (0 == mNumTimeouts && mNewTimeouts.isEmpty()) {
+          // Nothing to do; wait until something is scheduled.
+          synchronized (mIdleLock) {
+            mIdle = true;
+            try {
+              while (mNewTimeouts.isEmpty() && !mIsFinished) {
+                mIdleLock.wait();
+              }
+            } catch (InterruptedException ie) {
+              // Check whether we are finished.
+            }
+            mIdle = false;
+          }
+
+          // Resume counting ticks from the present.
+          mStartTime = System.currentTimeMillis() - mTick * mTickMillis;
+          continue;
+        }
+
+        long tickEnd = mStartTime + (mTick + 1) * mTickMillis;
+        long now = System.currentTimeMillis();
+        if (now < tickEnd) {
+          try {
+            Thread.sleep(tickEnd - now);
+          } catch (InterruptedException ie) {
+            // Check whether we are finished.
+          }
+          continue;
+        }
+
+        transferNewTimeouts();
+        expireTimeouts();
+        mTick++;
+      }
+    }
+  }
+}
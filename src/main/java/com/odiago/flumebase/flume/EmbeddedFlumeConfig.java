@@ -123,10 +123,20 @@ public class EmbeddedFlumeConfig {
    */
   private Set<String> mLocalMultiSinks;
 
+  /**
+   * Logical nodes hosting Flume sources read by local flows, keyed by the
+   * source specification. All flows reading the same source share one node.
+   */
+  private Map<String, LocalSourceConn> mLocalSources;
+
+  /** Used to name the logical nodes in mLocalSources. */
+  private int mNextLocalSourceId;
+
   public EmbeddedFlumeConfig(Configuration conf) {
     mConf = conf;
     mForeignNodeConnections = new HashMap<String, ForeignNodeConn>();
     mLocalMultiSinks = new HashSet<String>();
+    mLocalSources = new HashMap<String, LocalSourceConn>();
     mFlumeNodes = new LinkedList<FlumeNode>();
     getHostName(); // resolve the hostname and cache the result.
     mIsRunning = false;
@@ -224,29 +234,57 @@ public class EmbeddedFlumeConfig {
   }
 
   /**
-   * Creates an EventSink that forwards data to the specified flowSourceId;
-   * instruct the flume master to bind this EventSink to our internal
-   * logical node.
-   * @param flowSourceId - the identifier for the RTSQL flow/source being
-   * populated by this logical node.
-   * @param sourceStr - the Flume EventSource operating on this node.
+   * Deliver the events of a Flume source to the flow with the specified
+   * flowSourceId. The first flow to read a given source spawns a logical node
+   * hosting the source and an RtsqlMultiSink; subsequent flows reading the same
+   * source attach to the existing node.
+   * @param sourceStr - the Flume EventSource to read.
    * Can be a collectorSource() to read from an upstream Flume RPC network, or
    * a specific file- or other resource-based source.
+   * @param flowSourceId - the identifier for the RTSQL flow/source being
+   * populated by the source.
    */
-  public void createFlowSink(String flowSourceId, String sourceStr)
-      throws TException {
-    String nodeName = flowSourceId;
-    String sinkStr = "rtsqlsink(\"" + flowSourceId + "\")";
+  public void addFlowToLocalSource(String sourceStr, String flowSourceId)
+      throws IOException {
+    synchronized (mLocalSources) {
+      LocalSourceConn conn = mLocalSources.get(sourceStr);
+      if (null == conn) {
+        String nodeName = "flumebase-source-" + mNextLocalSourceId++;
+        conn = new LocalSourceConn(nodeName, sourceStr, mConf, this);
+        conn.connect();
+        mLocalSources.put(sourceStr, conn);
+      }
 
-    // Configure the logical node to use our rtsqlsink and the user's source.
-    spawnLogicalNode(nodeName, sourceStr, sinkStr);
+      try {
+        conn.addLocalSink(flowSourceId);
+      } finally {
+        if (conn.getNumFlows() == 0) {
+          // We could not attach the first flow; don't leave the node running.
+          mLocalSources.remove(sourceStr);
+          conn.close();
+        }
+      }
+    }
   }
 
   /**
-   * Removes the logical node for the specified flowSourceId from Flume.
+   * Detach the flow with the specified flowSourceId from a Flume source. The
+   * logical node hosting the source is removed after its last flow is detached.
    */
-  public void stopFlowSink(String flowSourceId) throws TException {
-    decommissionLogicalNode(flowSourceId);
+  public void removeFlowFromLocalSource(String sourceStr, String flowSourceId)
+      throws IOException {
+    synchronized (mLocalSources) {
+      LocalSourceConn conn = mLocalSources.get(sourceStr);
+      if (null == conn) {
+        throw new IOException("No local node for source: " + sourceStr);
+      }
+
+      conn.removeLocalSink(flowSourceId);
+      if (conn.getNumFlows() == 0) {
+        mLocalSources.remove(sourceStr);
+        conn.close();
+      }
+    }
   }
 
   /**
@@ -369,6 +407,10 @@ public class EmbeddedFlumeConfig {
 
     mMasterClient = null;
     mFlumeNodes.clear();
+    synchronized (mLocalSources) {
+      // These logical nodes were hosted on the physical node we just stopped.
+      mLocalSources.clear();
+    }
     mFlumeMaster = null;
     mIsRunning = false;
   }
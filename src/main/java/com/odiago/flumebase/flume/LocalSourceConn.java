@@ -0,0 +1,135 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.flume;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.apache.thrift.TException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provide an interface compatible with ForeignNodeConn for a Flume source
+ * (e.g., "tail(...)") hosted within this process. A single logical node reads
+ * the source into an RtsqlMultiSink, and every flow reading the source adds
+ * its own RtsqlSink to it; so a source is opened and read only once, no matter
+ * how many flows are reading it.
+ *
+ * <p>EmbeddedFlumeConfig closes the connection after the last flow reading
+ * the source is removed.</p>
+ */
+public class LocalSourceConn extends ForeignNodeConn {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      LocalSourceConn.class.getName());
+
+  /** The manager of the embedded Flume node. */
+  private final EmbeddedFlumeConfig mFlumeConfig;
+
+  /** Name of the logical node hosting the source; also the id of its RtsqlMultiSink. */
+  private final String mNodeName;
+
+  /** The Flume source specification read by the logical node. */
+  private final String mSource;
+
+  /** True if we have spawned the logical node. */
+  private boolean mIsConnected;
+
+  /** Number of flows currently attached to the source. */
+  private int mNumFlows;
+
+  public LocalSourceConn(String nodeName, String source, Configuration conf,
+      EmbeddedFlumeConfig flumeConf) {
+    super(nodeName, conf, flumeConf);
+    mFlumeConfig = flumeConf;
+    mNodeName = nodeName;
+    mSource = source;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isConnected() {
+    return mIsConnected;
+  }
+
+  /**
+   * Spawn the logical node which reads the source into an RtsqlMultiSink.
+   */
+  @Override
+  public void connect() throws IOException {
+    if (mIsConnected) {
+      throw new IOException("Already connected");
+    }
+
+    try {
+      mFlumeConfig.spawnLogicalNode(mNodeName, mSource,
+          "rtsqlmultisink(\"" + mNodeName + "\")");
+    } catch (TException te) {
+      throw new IOException(te);
+    }
+
+    mIsConnected = true;
+  }
+
+  /**
+   * Decommission the logical node reading the source.
+   */
+  @Override
+  public void close() throws IOException {
+    LOG.info("Closing shared logical node " + mNodeName + " for source: " + mSource);
+    try {
+      mFlumeConfig.decommissionLogicalNode(mNodeName);
+    } catch (TException te) {
+      throw new IOException(te);
+    }
+
+    mIsConnected = false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected String getMultiSinkId() {
+    return mNodeName;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void addLocalSink(String flowSourceId) throws IOException {
+    super.addLocalSink(flowSourceId);
+    mNumFlows++;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void removeLocalSink(String flowSourceId) throws IOException {
+    super.removeLocalSink(flowSourceId);
+    mNumFlows--;
+  }
+
+  /** @return the number of flows attached to the source. */
+  public int getNumFlows() {
+    return mNumFlows;
+  }
+
+  @Override
+  public String toString() {
+    return "LocalSourceConn(" + mNodeName + ": " + mSource + ")";
+  }
+}
@@ -19,9 +19,10 @@ package com.odiago.flumebase.flume;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -32,6 +33,11 @@ import com.cloudera.flume.core.Event;
 import com.cloudera.flume.core.EventImpl;
 import com.cloudera.flume.core.EventSink;
 
+import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.RowLayout;
+import com.odiago.flumebase.exec.SharedRecord;
+import com.odiago.flumebase.exec.StreamSymbol;
+
 /**
  * EventSink that receives events from upstream in a Flume pipeline.
  * The EventSink then delivers the events to several different RtsqlSink instances
@@ -40,6 +46,16 @@ import com.cloudera.flume.core.EventSink;
  * <p>This is different than an ordinary Flume FanOutSink in that the child
  * sinks can be configured outside of Flume's ordinary workflow.</p>
  *
+ * <p>Child sinks reading the same stream share a single subscription to it:
+ * each event is copied and parsed once per stream (rather than once per
+ * flow), and the resulting immutable SharedRecord is delivered to every
+ * subscribed flow. Child sinks may be attached and detached at any time.</p>
+ *
+ * <p>A child sink never waits for its flow: each flow buffers the events of
+ * a live stream in a bounded queue, and applies the OverflowPolicy set by
+ * flumebase.exec.subscriber.overflow.policy when that queue is full. One slow
+ * flow therefore cannot hold up the others reading the same stream.</p>
+ *
  * <p>This sink is thread safe.</p>
  */
 public class RtsqlMultiSink extends EventSink.Base {
@@ -99,18 +115,69 @@ public class RtsqlMultiSink extends EventSink.Base {
   /** Mapping from sink ContextSourceName to RtsqlSink instances. */
   private Map<String, RtsqlSink> mChildSinks;
 
+  private boolean mIsOpen;
+
   /**
-   * List calculated from mChildSinks. This is used within the append() method
-   * so that it does not need to lock mChildSinks every time it is called.
+   * The open child sinks reading a single stream, and the union of the
+   * columns they read. Immutable once built.
    */
-  private List<RtsqlSink> mActiveSinks;
+  private static class StreamSubscription {
+    private final StreamSymbol mStream;
+    private final byte[] mStreamName;
+    private final RowLayout mLayout;
+    private final List<RtsqlSink> mSinks;
 
-  private boolean mIsOpen;
+    /** Columns read by any of mSinks, or null if all columns may be read. */
+    private final BitSet mColumns;
+
+    public StreamSubscription(StreamSymbol stream, RowLayout layout, List<RtsqlSink> sinks) {
+      mStream = stream;
+      mStreamName = stream.getName().getBytes();
+      mLayout = layout;
+      mSinks = sinks;
+
+      BitSet columns = new BitSet(layout.size());
+      for (RtsqlSink sink : sinks) {
+        BitSet sinkColumns = sink.getRequiredColumns();
+        if (null == sinkColumns) {
+          columns = null;
+          break;
+        }
+        columns.or(sinkColumns);
+      }
+      mColumns = columns;
+    }
+
+    /** Deliver a copy of the event to each subscribed sink. */
+    public void append(Event e) throws IOException {
+      if (mSinks.size() == 1) {
+        // With a single reader, there is nothing to share; let the flow parse
+        // the event lazily, so it only parses the columns it actually reads.
+        mSinks.get(0).append(new EventImpl(e));
+        return;
+      }
+
+      Event copy = new EventImpl(e);
+      copy.set(FlowElement.STREAM_NAME_ATTR, mStreamName);
+      SharedRecord record = SharedRecord.parse(copy, mStream.getEventParser(mColumns),
+          mLayout, mColumns);
+      for (RtsqlSink sink : mSinks) {
+        sink.append(record);
+      }
+    }
+  }
+
+  /**
+   * Subscriptions calculated from mChildSinks, one per stream. This is used
+   * within the append() method so that it does not need to lock mChildSinks
+   * every time it is called.
+   */
+  private volatile List<StreamSubscription> mSubscriptions;
 
   public RtsqlMultiSink(String multiSinkId) throws IOException {
     mMultiSinkId = multiSinkId;
     mChildSinks = new HashMap<String, RtsqlSink>();
-    mActiveSinks = new LinkedList<RtsqlSink>();
+    mSubscriptions = Collections.emptyList();
     mIsOpen = false;
 
     LOG.debug("Created rtsqlmultisink id=" + multiSinkId);
@@ -118,16 +185,49 @@ public class RtsqlMultiSink extends EventSink.Base {
   }
 
   /**
-   * Recalculate the list in mActiveSinks for use by append(). Switch out
-   * the reference in the minimum time possible, to ensure that we don't
-   * need to block in the append method itself.
+   * Recalculate the per-stream subscriptions in mSubscriptions for use by
+   * append(). Switch out the reference in the minimum time possible, to ensure
+   * that we don't need to block in the append method itself.
+   *
+   * <p>Sinks are grouped by StreamSymbol instance rather than by name, since
+   * a stream may be dropped and redefined while flows reading the old
+   * definition are still running.</p>
    */
   private void recalculateActiveSinks() {
-    List<RtsqlSink> newActiveSinks = new LinkedList<RtsqlSink>();
     synchronized (this) {
-      newActiveSinks.addAll(mChildSinks.values());
-      mActiveSinks = newActiveSinks;
-      LOG.debug("Recalculated active sink list; activelen=" + mActiveSinks.size());
+      List<StreamSymbol> streams = new ArrayList<StreamSymbol>();
+      List<List<RtsqlSink>> streamSinks = new ArrayList<List<RtsqlSink>>();
+      for (RtsqlSink sink : mChildSinks.values()) {
+        if (!sink.isOpen()) {
+          continue; // Will be added when we are opened.
+        }
+
+        StreamSymbol stream = sink.getStreamSymbol();
+        int idx = -1;
+        for (int i = 0; i < streams.size(); i++) {
+          if (streams.get(i) == stream) {
+            idx = i;
+            break;
+          }
+        }
+
+        if (-1 == idx) {
+          idx = streams.size();
+          streams.add(stream);
+          streamSinks.add(new ArrayList<RtsqlSink>());
+        }
+        streamSinks.get(idx).add(sink);
+      }
+
+      List<StreamSubscription> subscriptions = new ArrayList<StreamSubscription>();
+      for (int i = 0; i < streams.size(); i++) {
+        List<RtsqlSink> sinks = streamSinks.get(i);
+        subscriptions.add(new StreamSubscription(streams.get(i), sinks.get(0).getLayout(),
+            sinks));
+      }
+      mSubscriptions = subscriptions;
+      LOG.debug("Recalculated active sink list; streams=" + subscriptions.size()
+          + ", sinks=" + mChildSinks.size());
     }
   }
 
@@ -198,7 +298,7 @@ public class RtsqlMultiSink extends EventSink.Base {
         }
       } else {
         mChildSinks.clear();
-        mActiveSinks = new LinkedList<RtsqlSink>();
+        mSubscriptions = Collections.emptyList();
       }
     }
   }
@@ -207,10 +307,10 @@ public class RtsqlMultiSink extends EventSink.Base {
   /** {@inheritDoc} */
   @Override
   public void append(Event e) throws IOException {
-    List<RtsqlSink> sinks = mActiveSinks;
+    List<StreamSubscription> subscriptions = mSubscriptions;
 
-    for (RtsqlSink sink : sinks) {
-      sink.append(new EventImpl(e));
+    for (StreamSubscription subscription : subscriptions) {
+      subscription.append(e);
     }
   }
 
@@ -218,7 +318,7 @@ public class RtsqlMultiSink extends EventSink.Base {
   @Override
   public void close() throws IOException {
     synchronized (this) {
-      mActiveSinks = new LinkedList<RtsqlSink>();
+      mSubscriptions = Collections.emptyList();
       for (RtsqlSink sink : mChildSinks.values()) {
         sink.close();
       }
@@ -19,8 +19,7 @@ package com.odiago.flumebase.flume;
 
 import java.io.IOException;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.BitSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,18 +27,24 @@ import org.slf4j.LoggerFactory;
 import com.cloudera.flume.core.Event;
 import com.cloudera.flume.core.EventSink;
 
+import com.odiago.flumebase.exec.EventBatcher;
 import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FlowElement;
 import com.odiago.flumebase.exec.FlowElementContext;
 import com.odiago.flumebase.exec.ParsingEventWrapper;
+import com.odiago.flumebase.exec.RowLayout;
+import com.odiago.flumebase.exec.SharedRecord;
+import com.odiago.flumebase.exec.SharedRecordEventWrapper;
 import com.odiago.flumebase.exec.StreamSymbol;
 
-import com.odiago.flumebase.parser.TypedField;
-
 /**
  * EventSink that receives events from upstream in a Flume pipeline.
  * The EventSink then injects the events into a FlowElementContext
  * for delivery in a FlumeBase flow.
+ *
+ * <p>When hosted within an RtsqlMultiSink, events may instead arrive
+ * already parsed, as SharedRecords shared with the other flows reading
+ * the same stream.</p>
  */
 public class RtsqlSink extends EventSink.Base {
   private static final Logger LOG = LoggerFactory.getLogger(RtsqlSink.class.getName());
@@ -62,10 +67,16 @@ public class RtsqlSink extends EventSink.Base {
    */
   private FlowElementContext mWriteContext;
 
+  /** Groups the events we receive into batches emitted to mWriteContext. */
+  private EventBatcher mBatcher;
+
   /**
-   * List of field names contained in each element.
+   * Slots of the fields contained in each element.
    */
-  private List<String> mFieldNames;
+  private RowLayout mLayout;
+
+  /** Columns read by the flow, or null if any column may be read. */
+  private BitSet mRequiredColumns;
 
   /** Symbol associated with the stream we are the source for. */
   private StreamSymbol mStreamSymbol;
@@ -83,12 +94,20 @@ public class RtsqlSink extends EventSink.Base {
       throw new IOException("No context binding available for flow/source: "
           + mContextSourceName);
     }
-    mFieldNames = new ArrayList<String>();
     mWriteContext = mSinkContext.getFlowElementContext();
-    mStreamSymbol = mSinkContext.getStreamSymbol();
-    for (TypedField field : mSinkContext.getFieldTypes()) {
-      mFieldNames.add(field.getAvroName());
+    mBatcher = new EventBatcher(mWriteContext);
+    mBatcher.setStats(mSinkContext.getStats());
+    try {
+      // Flume events are timestamped as they enter Flume; if the stream goes
+      // quiet, assume that time keeps passing.
+      mBatcher.enableWatermarks(true);
+    } catch (InterruptedException ie) {
+      throw new IOException(ie);
     }
+    mBatcher.startLingerThread();
+    mStreamSymbol = mSinkContext.getStreamSymbol();
+    mLayout = new RowLayout(mSinkContext.getFieldTypes());
+    mRequiredColumns = mLayout.getSlots(mSinkContext.getRequiredFields());
   }
 
   /** {@inheritDoc} */
@@ -102,26 +121,67 @@ public class RtsqlSink extends EventSink.Base {
     //    + new String(e.getBody()));
     try {
       e.set(FlowElement.STREAM_NAME_ATTR, mStreamSymbol.getName().getBytes());
-      EventWrapper wrapper = new ParsingEventWrapper(mStreamSymbol.getEventParser(),
-          mFieldNames);
+      EventWrapper wrapper = new ParsingEventWrapper(
+          mStreamSymbol.getEventParser(mRequiredColumns), mLayout);
       wrapper.reset(e);
-      mWriteContext.emit(wrapper);
+      mBatcher.add(wrapper);
     } catch (InterruptedException ie) {
       // TODO(aaron): When Flume's api lets us throw InterruptedException, do so directly.
       throw new IOException(ie);
     }
   }
 
+  /**
+   * Deliver an event of our stream which has already been parsed on behalf of
+   * all subscribing flows. The record must contain all of our required columns.
+   */
+  public void append(SharedRecord record) throws IOException {
+    if (null == mWriteContext) {
+      throw new IOException("append() called before open()");
+    }
+
+    try {
+      mBatcher.add(new SharedRecordEventWrapper(record, mLayout));
+    } catch (InterruptedException ie) {
+      throw new IOException(ie);
+    }
+  }
+
+  /** @return true if open() has been called, and close() has not. */
+  public boolean isOpen() {
+    return null != mWriteContext;
+  }
+
+  /** @return the stream we deliver events of. Valid only when open. */
+  public StreamSymbol getStreamSymbol() {
+    return mStreamSymbol;
+  }
+
+  /** @return the layout of the fields of our stream. Valid only when open. */
+  public RowLayout getLayout() {
+    return mLayout;
+  }
+
+  /**
+   * @return the columns read by our flow, or null if any column may be read.
+   * Valid only when open.
+   */
+  public BitSet getRequiredColumns() {
+    return mRequiredColumns;
+  }
+
   /** {@inheritDoc) */
   @Override
   public void close() throws IOException {
     LOG.debug("Closing Flume sink for flow/source: " + mContextSourceName);
     try {
+      mBatcher.close();
       mWriteContext.notifyCompletion();
     } catch (InterruptedException ie) {
       throw new IOException(ie); // TODO - don't wrap this.
     }
 
     mWriteContext = null;
+    mBatcher = null;
   }
 }
@@ -21,6 +21,7 @@ import java.util.List;
 
 import org.apache.avro.Schema;
 
+import com.odiago.flumebase.exec.ElementStats;
 import com.odiago.flumebase.exec.FlowElementContext;
 import com.odiago.flumebase.exec.StreamSymbol;
 
@@ -31,14 +32,25 @@ public class SinkContext {
   private final FlowElementContext mFlowContext;
   private final Schema mOutputSchema;
   private final List<TypedField> mFieldTypes;
+  private final List<TypedField> mRequiredFields;
   private final StreamSymbol mStreamSymbol;
+  private final ElementStats mStats;
 
   public SinkContext(FlowElementContext flowContext, Schema outputSchema,
-      List<TypedField> fieldTypes, StreamSymbol streamSymbol) {
+      List<TypedField> fieldTypes, List<TypedField> requiredFields,
+      StreamSymbol streamSymbol) {
+    this(flowContext, outputSchema, fieldTypes, requiredFields, streamSymbol, null);
+  }
+
+  public SinkContext(FlowElementContext flowContext, Schema outputSchema,
+      List<TypedField> fieldTypes, List<TypedField> requiredFields,
+      StreamSymbol streamSymbol, ElementStats stats) {
     mFlowContext = flowContext;
     mOutputSchema = outputSchema;
     mFieldTypes = fieldTypes;
+    mRequiredFields = requiredFields;
     mStreamSymbol = streamSymbol;
+    mStats = stats;
   }
 
   public FlowElementContext getFlowElementContext() {
@@ -53,7 +65,22 @@ public class SinkContext {
     return mFieldTypes;
   }
 
+  /**
+   * @return the fields read by the flow, or null if any field may be read.
+   */
+  public List<TypedField> getRequiredFields() {
+    return mRequiredFields;
+  }
+
   public StreamSymbol getStreamSymbol() {
     return mStreamSymbol;
   }
+
+  /**
+   * @return the statistics of the flow element the events are delivered
+   * for, or null if none are recorded.
+   */
+  public ElementStats getStats() {
+    return mStats;
+  }
 }
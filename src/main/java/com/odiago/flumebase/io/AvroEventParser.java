@@ -19,6 +19,10 @@ package com.odiago.flumebase.io;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -43,12 +47,40 @@ import com.odiago.flumebase.lang.Type;
 
 import com.odiago.flumebase.parser.TypedField;
 
+/**
+ * EventParser implementation that decodes each event body as a binary Avro
+ * record, whose schema is given by the 'schema' property of the stream. The
+ * i'th column of the stream is the i'th field of the record.
+ *
+ * <p>If the parser is told which columns will be read, the record is decoded
+ * with a reader schema that holds only those fields; Avro skips over the
+ * bytes of the others rather than materializing them.</p>
+ */
 public class AvroEventParser extends EventParser {
   private static final Logger LOG = LoggerFactory.getLogger(
       AvroEventParser.class.getName());
 
   public static final String SCHEMA_PARAM = "schema";
 
+  /** Maximum number of distinct schemas held in SCHEMA_CACHE. */
+  private static final int MAX_CACHED_SCHEMAS = 64;
+
+  /**
+   * Parsed schemas and projections of them, keyed by the schema text and
+   * the set of projected columns. A parser is created for every event, so
+   * this ensures the schema text is parsed once per stream. Avro caches the
+   * resolution of a writer schema against a reader schema by the identity of
+   * the two schema instances, so sharing them also allows that work to be
+   * reused.
+   */
+  private static final Map<String, Schema> SCHEMA_CACHE =
+      new LinkedHashMap<String, Schema>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Schema> eldest) {
+          return size() > MAX_CACHED_SCHEMAS;
+        }
+      };
+
   /** Configuration parameters. */
   private Map<String, String> mParams;
 
@@ -58,6 +90,19 @@ public class AvroEventParser extends EventParser {
   /** Schema for input events */
   private Schema mSchema;
 
+  /**
+   * The schema we decode events into; either mSchema, or a projection of
+   * it onto the required columns.
+   */
+  private Schema mReaderSchema;
+
+  /**
+   * For each column, the position of its field in mReaderSchema, or -1 if
+   * the column is not held by the reader schema. Null if mReaderSchema is
+   * mSchema.
+   */
+  private int[] mReaderPositions;
+
   /** Current event deserialized into a generic data record */
   private GenericData.Record mRecord;
 
@@ -74,6 +119,16 @@ public class AvroEventParser extends EventParser {
    * by the user who created the stream we are parsing.
    */
   public AvroEventParser(Map<String, String> params) {
+    this(params, null);
+  }
+
+  /**
+   * Creates a new AvroEventParser which only needs to decode the columns
+   * whose indices are set in requiredColumns. Other columns may still be
+   * requested, but doing so requires the event to be decoded a second time.
+   * If requiredColumns is null, every field of each record is decoded.
+   */
+  public AvroEventParser(Map<String, String> params, BitSet requiredColumns) {
     mParams = params;
 
     // Initialize avro decoder.
@@ -82,16 +137,88 @@ public class AvroEventParser extends EventParser {
       // If schemaStr is null, validate() will fail, so we won't
       // need these things that we can't initialize.
       try {
-        mSchema = Schema.parse(schemaStr);
+        mSchema = getSchema(schemaStr, null);
         mDecoderFactory = new DecoderFactory();
-        mRecord = new GenericData.Record(mSchema);
-        mDatumReader = new GenericDatumReader<GenericData.Record>(mSchema);
+        if (null != requiredColumns && mSchema.getType() == Schema.Type.RECORD
+            && requiredColumns.nextClearBit(0) < mSchema.getFields().size()) {
+          mReaderSchema = getSchema(schemaStr, requiredColumns);
+          mReaderPositions = getReaderPositions(mSchema, requiredColumns);
+        } else {
+          mReaderSchema = mSchema;
+        }
+        initReader();
       } catch (RuntimeException re) {
         // Couldn't parse schema. Ok, we'll get this in the validate() method.
       }
     }
   }
 
+  /**
+   * @return the parsed form of schemaStr, projected onto the specified
+   * columns if 'columns' is non-null. Schema instances are shared between
+   * all parsers for the same schema and columns.
+   */
+  private static Schema getSchema(String schemaStr, BitSet columns) {
+    String key = null == columns ? schemaStr : schemaStr + "\n" + columns;
+    synchronized (SCHEMA_CACHE) {
+      Schema schema = SCHEMA_CACHE.get(key);
+      if (null == schema) {
+        if (null == columns) {
+          schema = Schema.parse(schemaStr);
+        } else {
+          schema = projectSchema(getSchema(schemaStr, null), columns);
+        }
+        SCHEMA_CACHE.put(key, schema);
+      }
+      return schema;
+    }
+  }
+
+  /**
+   * @return a record schema with the same name as 'schema', holding only
+   * the fields whose positions are set in 'columns'. Avro resolves the
+   * original schema against this one by field name.
+   */
+  private static Schema projectSchema(Schema schema, BitSet columns) {
+    List<Schema.Field> projectedFields = new ArrayList<Schema.Field>();
+    for (Schema.Field field : schema.getFields()) {
+      if (columns.get(field.pos())) {
+        projectedFields.add(new Schema.Field(field.name(), field.schema(), field.doc(),
+            field.defaultValue(), field.order()));
+      }
+    }
+
+    Schema projected = Schema.createRecord(schema.getName(), schema.getDoc(),
+        schema.getNamespace(), schema.isError());
+    projected.setFields(projectedFields);
+    return projected;
+  }
+
+  /**
+   * @return an array mapping each field position in 'schema' to the
+   * position of the same field in its projection onto 'columns', or -1.
+   */
+  private static int[] getReaderPositions(Schema schema, BitSet columns) {
+    int[] positions = new int[schema.getFields().size()];
+    Arrays.fill(positions, -1);
+    int nextPos = 0;
+    for (int i = 0; i < positions.length; i++) {
+      if (columns.get(i)) {
+        positions[i] = nextPos++;
+      }
+    }
+    return positions;
+  }
+
+  private void initReader() {
+    mRecord = new GenericData.Record(mReaderSchema);
+    if (mReaderSchema == mSchema) {
+      mDatumReader = new GenericDatumReader<GenericData.Record>(mSchema);
+    } else {
+      mDatumReader = new GenericDatumReader<GenericData.Record>(mSchema, mReaderSchema);
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
   public void reset(Event e) {
@@ -104,6 +231,22 @@ public class AvroEventParser extends EventParser {
   public Object getColumn(int colIdx, Type expectedType)
       throws IOException {
 
+    int pos = colIdx;
+    if (null != mReaderPositions) {
+      pos = colIdx < mReaderPositions.length ? mReaderPositions[colIdx] : -1;
+      if (pos == -1) {
+        // This column was not projected. Fall back to decoding the entire record.
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Column " + colIdx + " was not projected; decoding all fields");
+        }
+        mReaderSchema = mSchema;
+        mReaderPositions = null;
+        initReader();
+        mIsDecoded = false;
+        pos = colIdx;
+      }
+    }
+
     if (!mIsDecoded) {
       // Now that we actually want a record value, decode the input bytes.
       mDecoder = mDecoderFactory.createBinaryDecoder(mEvent.getBody(), mDecoder);
@@ -111,7 +254,7 @@ public class AvroEventParser extends EventParser {
       mIsDecoded = true;
     }
 
-    return avroToNative(mRecord.get(colIdx), expectedType);
+    return avroToNative(mRecord.get(pos), expectedType);
   }
 
   @Override
@@ -126,7 +269,7 @@ public class AvroEventParser extends EventParser {
       return false;
     } else {
       try {
-        Schema.parse(schemaStr);
+        getSchema(schemaStr, null);
       } catch (RuntimeException re) {
         LOG.error("Couldn't parse specified schema for the stream: " + re);
         return false;
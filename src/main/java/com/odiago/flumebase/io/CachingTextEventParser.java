@@ -20,6 +20,7 @@ package com.odiago.flumebase.io;
 import java.nio.CharBuffer;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -60,12 +61,11 @@ public abstract class CachingTextEventParser extends EventParser {
   private ArrayList<CharBuffer> mColTexts;
 
   /** The reified instances of the columns in their final types. A null
-   * here may mean 'uncached', or true null, if mColumnNulls[i] is true. */
+   * here may mean 'uncached', or true null, if bit i of mColumnNulls is set. */
   private ArrayList<Object> mColumnValues;
 
-  /** Array of t/f values; if true, indicates that we parsed the column
-   * in question, but determined the value to be null. */
-  private ArrayList<Boolean> mColumnNulls;
+  /** Bit i is set if we parsed column i, but determined the value to be null. */
+  private BitSet mColumnNulls;
   
   /** An escape sequence that specifies that the current field is a null string. */
   private String mNullStr;
@@ -97,7 +97,7 @@ public abstract class CachingTextEventParser extends EventParser {
   private void init() {
     mColTexts = new ArrayList<CharBuffer>();
     mColumnValues = new ArrayList<Object>();
-    mColumnNulls = new ArrayList<Boolean>();
+    mColumnNulls = new BitSet();
   }
 
   /**
@@ -130,18 +130,16 @@ public abstract class CachingTextEventParser extends EventParser {
 
     Object out = CharBufferUtils.parseType(chars, expectedType, mNullStr, mListSep);
 
-    while(mColumnValues.size() < colIdx) {
+    while(mColumnValues.size() <= colIdx) {
       // Add nulls to the list to increase the memoized size up to this column.
-      mColumnValues.add(null);
-
-      // Add a 'false' in the mColumnNulls so we know these are "padding" nulls
+      // Their bits in mColumnNulls are clear, so we know these are "padding" nulls
       // and not "true" nulls.
-      mColumnNulls.add(Boolean.valueOf(false));
+      mColumnValues.add(null);
     }
 
-    // Now add this parsed value to the end of the list. Sets its null bit appropriately.
-    mColumnValues.add(out);
-    mColumnNulls.add(Boolean.valueOf(out == null));
+    // Now store this parsed value in its column. Sets its null bit appropriately.
+    mColumnValues.set(colIdx, out);
+    mColumnNulls.set(colIdx, out == null);
 
     if (LOG.isDebugEnabled()) {
       LOG.debug("Parsed string [" + debugInputString + "] with expected type ["
@@ -158,10 +156,10 @@ public abstract class CachingTextEventParser extends EventParser {
   }
 
   /**
-   * @return the list of cached is-null/is-not-null values for columns.
+   * @return true if the specified column was parsed, and its value is null.
    */
-  protected List<Boolean> getColumnNulls() {
-    return Collections.unmodifiableList(mColumnNulls);
+  protected boolean isColumnNull(int colIdx) {
+    return mColumnNulls.get(colIdx);
   }
 
   /**
@@ -178,6 +176,18 @@ public abstract class CachingTextEventParser extends EventParser {
     mColTexts.add(colText);
   }
 
+  /**
+   * Cache the unparsed text representation of the specified column, for
+   * parsers which can locate columns without tokenizing all of their
+   * predecessors.
+   */
+  protected void cacheColText(int colIdx, CharBuffer colText) {
+    while (mColTexts.size() <= colIdx) {
+      mColTexts.add(null);
+    }
+    mColTexts.set(colIdx, colText);
+  }
+
   /**
    * Check whether the cache already contains a value for this column index.
    * If so, put the value in the 'out' parameter. If we've cached the column
@@ -230,4 +240,11 @@ public abstract class CachingTextEventParser extends EventParser {
   protected String getNullStr() {
     return mNullStr;
   }
+
+  /**
+   * @return the separator between the items of a LIST value.
+   */
+  protected String getListSep() {
+    return mListSep;
+  }
 }
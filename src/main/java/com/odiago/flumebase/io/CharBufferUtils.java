@@ -146,7 +146,7 @@ public class CharBufferUtils {
    */
   public static float parseFloat(CharBuffer chars) throws ColumnParseException {
     try {
-      return Float.valueOf(new String(chars.array()));
+      return Float.parseFloat(chars.toString());
     } catch (NumberFormatException nfe) {
       throw new ColumnParseException(nfe);
     }
@@ -157,7 +157,7 @@ public class CharBufferUtils {
    */
   public static double parseDouble(CharBuffer chars) throws ColumnParseException {
     try {
-      return Double.valueOf(new String(chars.array()));
+      return Double.parseDouble(chars.toString());
     } catch (NumberFormatException nfe) {
       throw new ColumnParseException(nfe);
     }
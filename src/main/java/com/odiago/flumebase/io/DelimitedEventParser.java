@@ -15,10 +15,14 @@
  * under the License.
  */
 
+
 package com.odiago.flumebase.io;
 
 import java.nio.CharBuffer;
 
+import java.nio.charset.Charset;
+
+import java.util.Arrays;
 import java.util.Map;
 
 import org.apache.avro.util.Utf8;
@@ -30,14 +34,24 @@ import com.cloudera.flume.core.Event;
 
 import com.odiago.flumebase.exec.StreamSymbol;
 
+import com.odiago.flumebase.lang.Timestamp;
 import com.odiago.flumebase.lang.Type;
 
-import com.odiago.flumebase.util.Ref;
-
 /**
  * EventParser implementation that uses a delimiter character in between fields.
  * The delimiter character cannot appear in the fields themselves;
  * this does not support any enclosed- or escaped-by characters.
+ *
+ * <p>The event body is scanned as UTF-8 bytes, without decoding it. The
+ * bounds of each field are recorded as it is found, and numeric and boolean
+ * fields are parsed straight from those bytes. A STRING field is only copied
+ * out of the body when it is requested.</p>
+ *
+ * <p>FLOAT and DOUBLE fields written as plain decimals with few enough
+ * significant digits are also parsed from the bytes, by dividing their
+ * digits by an exact power of ten, which rounds exactly as
+ * Float.valueOf() and Double.valueOf() do. Other forms, such as exponents,
+ * NaN or long mantissas, are decoded and parsed by those methods.</p>
  */
 public class DelimitedEventParser extends CachingTextEventParser {
 
@@ -48,23 +62,71 @@ public class DelimitedEventParser extends CachingTextEventParser {
   public static final String DELIMITER_PARAM = "delimiter";
   public static final char DEFAULT_DELIMITER = ',';
 
-  /** The event we're processing. */
-  private Event mEvent;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final byte[] TRUE_BYTES = "true".getBytes(UTF8);
+  private static final byte[] FALSE_BYTES = "false".getBytes(UTF8);
+
+  /** The powers of ten that a float holds exactly. */
+  private static final float[] FLOAT_POWERS_OF_TEN = new float[11];
+
+  /** The powers of ten that a double holds exactly. */
+  private static final double[] DOUBLE_POWERS_OF_TEN = new double[23];
+
+  static {
+    FLOAT_POWERS_OF_TEN[0] = 1.0f;
+    for (int i = 1; i < FLOAT_POWERS_OF_TEN.length; i++) {
+      FLOAT_POWERS_OF_TEN[i] = FLOAT_POWERS_OF_TEN[i - 1] * 10.0f;
+    }
+    DOUBLE_POWERS_OF_TEN[0] = 1.0;
+    for (int i = 1; i < DOUBLE_POWERS_OF_TEN.length; i++) {
+      DOUBLE_POWERS_OF_TEN[i] = DOUBLE_POWERS_OF_TEN[i - 1] * 10.0;
+    }
+  }
+
+  /** Largest decimal mantissa that a float holds exactly. */
+  private static final long MAX_FLOAT_MANTISSA = 1L << 24;
 
-  /** A UTF-8 wrapper around the event's bytes. */
-  private Utf8 mAsUtf8;
+  /** Largest decimal mantissa that a double holds exactly. */
+  private static final long MAX_DOUBLE_MANTISSA = 1L << 53;
 
-  /** A char array representation converted from the event's bytes. */
-  private char [] mAsCharacters;
+  /** Initial number of fields we can hold the bounds of. */
+  private static final int INITIAL_FIELD_CAPACITY = 16;
 
-  /** The current cursor index into mAsCharacters. */
-  private int mIndex;
+  /** The body of the event we're processing. */
+  private byte[] mBody;
 
   /** The delimiter character we're using. */
   private char mDelimiter;
 
-  /** Index of the field we will walk across next. */ 
-  private int mCurField;
+  /** The UTF-8 encoding of mDelimiter. */
+  private byte[] mDelimiterBytes;
+
+  /** The UTF-8 encoding of the null string. */
+  private byte[] mNullBytes;
+
+  /** Offset into mBody of the first byte of each field found so far. */
+  private int[] mFieldStarts;
+
+  /** Offset into mBody just past the last byte of each field found so far. */
+  private int[] mFieldEnds;
+
+  /** Number of fields whose bounds are held in mFieldStarts and mFieldEnds. */
+  private int mNumFields;
+
+  /** Offset into mBody where the next field starts. */
+  private int mScanPos;
+
+  /** The parsed values of the fields found so far; valid where mParsed is true. */
+  private Object[] mValues;
+
+  /** Set for each field that has been parsed and cached in mValues. */
+  private boolean[] mParsed;
+
+  /** The digits, number of fractional digits and sign found by scanDecimal(). */
+  private long mDecimalMantissa;
+  private int mDecimalScale;
+  private boolean mDecimalNegative;
 
   public DelimitedEventParser() {
     this(DEFAULT_DELIMITER);
@@ -73,6 +135,7 @@ public class DelimitedEventParser extends CachingTextEventParser {
   public DelimitedEventParser(char delimiter) {
     super();
     mDelimiter = delimiter;
+    init();
   }
 
   public DelimitedEventParser(Map<String, String> params) {
@@ -84,17 +147,27 @@ public class DelimitedEventParser extends CachingTextEventParser {
     } else {
       mDelimiter = delimStr.charAt(0);
     }
+    init();
+  }
+
+  private void init() {
+    mDelimiterBytes = String.valueOf(mDelimiter).getBytes(UTF8);
+    mNullBytes = getNullStr().getBytes(UTF8);
+    mFieldStarts = new int[INITIAL_FIELD_CAPACITY];
+    mFieldEnds = new int[INITIAL_FIELD_CAPACITY];
+    mValues = new Object[INITIAL_FIELD_CAPACITY];
+    mParsed = new boolean[INITIAL_FIELD_CAPACITY];
   }
 
   /** Clear all internal state and reset to a new unparsed event body. */
   @Override
   public void reset(Event e) {
     super.reset(e);
-    mEvent = e;
-    mAsUtf8 = new Utf8(mEvent.getBody());
-    mAsCharacters = null;
-    mIndex = 0;
-    mCurField = 0;
+    mBody = e.getBody();
+    Arrays.fill(mValues, 0, mNumFields, null);
+    Arrays.fill(mParsed, 0, mNumFields, false);
+    mNumFields = 0;
+    mScanPos = 0;
   }
 
   /**
@@ -102,80 +175,271 @@ public class DelimitedEventParser extends CachingTextEventParser {
    *
    * <p>
    * First, check if we've already cached the value. If so, return it.
-   * Next, check if we've cached a CharBuffer that wraps the underlying text.
-   * If so, convert that to the correct value, cache it, and return it.
-   * Finally, walk forward from our current position in mAsCharacters,
-   * looking for delimiters. As we find delimiters, mark and cache the
-   * discovered columns in mColTexts. When we arrive at the column of
-   * interest, cache and return its value.
+   * Otherwise, walk forward from the end of the last field we found,
+   * looking for delimiters and recording the bounds of each field we pass,
+   * until we arrive at the column of interest. Then parse, cache, and
+   * return its value.
    * </p>
    */
   @Override
   public Object getColumn(int colIdx, Type expectedType) throws ColumnParseException {
-
-    // Check if we've cached this column's value, or a wrapper for the column bytes.
-    Ref<Object> cachedResult = new Ref<Object>();
-    if (lookupCache(colIdx, expectedType, cachedResult)) {
-      // Yes; return the cached result.
-      return cachedResult.item;
-    }
-
-    // Check if we have yet decoded the UTF-8 bytes of the event into a char
-    // array.
-    if (mAsCharacters == null) {
-      // Nope, do so now.
-      // TODO(aaron): Make sure we're not making an additional copy. The
-      // toString() call converts the bytes into a String; Does String.toCharArray()
-      // then make an additional copy of the backing array? Can we do better?
-      mAsCharacters = mAsUtf8.toString().toCharArray();
+    if (colIdx < mNumFields && mParsed[colIdx]) {
+      // Already parsed - return it!
+      return mValues[colIdx];
     }
 
     // While we have to walk more fields to get the one we need...
-    CharBuffer cbField = null;
-    while (mCurField <= colIdx) {
-      // We have to continue walking through the underlying string.
-      int start = mIndex; // The field starts here.
-      if (start == mAsCharacters.length && mCurField == colIdx
-          && expectedType.getPrimitiveTypeName().equals(Type.TypeName.STRING)) {
-        // We have found an empty string field at the end of the record.
-        // Return the empty string as a field.
-        cbField = CharBuffer.wrap("");
-        cacheColText(cbField);
-        mCurField++;
-        mIndex++;
-        return parseAndCache(cbField, colIdx, expectedType);
-      } else if (start >= mAsCharacters.length) {
+    while (mNumFields <= colIdx) {
+      if (!findNextField()) {
         // We don't have any more fields we can parse. If we need to read
         // more fields, then this is an error; the event is too short.
         if (LOG.isDebugEnabled()) {
-          LOG.debug("Not enough fields: mCurField=" + mCurField + " and no more string left");
+          LOG.debug("Not enough fields: found " + mNumFields + " and no more string left");
         }
 
         throw new ColumnParseException("Not enough fields");
       }
+    }
+
+    int start = mFieldStarts[colIdx];
+    int end = mFieldEnds[colIdx];
+    Type.TypeName typeName = expectedType.getPrimitiveTypeName();
+    if (start == mBody.length && !Type.TypeName.STRING.equals(typeName)) {
+      // An empty field at the end of the record can only be read as an empty string.
+      throw new ColumnParseException("Not enough fields");
+    }
+
+    Object out = parseField(start, end, expectedType);
+    mValues[colIdx] = out;
+    mParsed[colIdx] = true;
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Parsed string [" + new String(mBody, start, end - start, UTF8)
+          + "] with expected type [" + expectedType + "] for column idx=" + colIdx
+          + "; result is [" + out + "]");
+    }
+
+    return out;
+  }
+
+  /**
+   * Record the bounds of the field that starts at mScanPos, and advance
+   * mScanPos past its delimiter.
+   * @return false if there are no more fields in the event.
+   */
+  private boolean findNextField() {
+    int start = mScanPos;
+    if (start > mBody.length) {
+      return false;
+    }
+
+    int end = indexOfDelimiter(start);
+    if (mNumFields == mFieldStarts.length) {
+      int newCapacity = mFieldStarts.length * 2;
+      mFieldStarts = Arrays.copyOf(mFieldStarts, newCapacity);
+      mFieldEnds = Arrays.copyOf(mFieldEnds, newCapacity);
+      mValues = Arrays.copyOf(mValues, newCapacity);
+      mParsed = Arrays.copyOf(mParsed, newCapacity);
+    }
+
+    mFieldStarts[mNumFields] = start;
+    mFieldEnds[mNumFields] = end;
+    mNumFields++;
+    mScanPos = end + mDelimiterBytes.length; // Advance past the delimiter.
+    return true;
+  }
 
-      for ( ; mIndex < mAsCharacters.length; mIndex++) {
-        char cur = mAsCharacters[mIndex];
-        if (mDelimiter == cur) {
-          // Found the end of the current field.
-          break;
+  /**
+   * @return the offset of the next delimiter at or after 'start', or the
+   * length of the body if there are no more delimiters.
+   */
+  private int indexOfDelimiter(int start) {
+    final byte[] body = mBody;
+    if (mDelimiterBytes.length == 1) {
+      final byte delim = mDelimiterBytes[0];
+      for (int i = start; i < body.length; i++) {
+        if (body[i] == delim) {
+          return i;
         }
       }
 
-      // We have ended the current field, either by finding its delimiter, or hitting
-      // the end of the entire record. Wrap this field in a character buffer, and
-      // memoize it.
-      int delimPos = mIndex;
-      cbField = CharBuffer.wrap(mAsCharacters, start, delimPos - start);
+      return body.length;
+    }
 
-      cacheColText(cbField); // Always add fields to the end of the list.
-      mCurField++; // We've added another field.
-      mIndex++; // Advance past the delimiter character.
+    // A multi-byte UTF-8 sequence never matches in the middle of another
+    // character, so we can match the encoded delimiter byte-for-byte.
+    for (int i = start; i <= body.length - mDelimiterBytes.length; i++) {
+      if (rangeEquals(i, i + mDelimiterBytes.length, mDelimiterBytes)) {
+        return i;
+      }
+    }
+
+    return body.length;
+  }
+
+  /** @return true if mBody[start..end) holds the same bytes as 'bytes'. */
+  private boolean rangeEquals(int start, int end, byte[] bytes) {
+    if (end - start != bytes.length) {
+      return false;
     }
 
-    // We have separated enough fields; this one's text is cached. Parse its
-    // value and return it.
-    return parseAndCache(cbField, colIdx, expectedType);
+    for (int i = 0; i < bytes.length; i++) {
+      if (mBody[start + i] != bytes[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Parse the value of the field in mBody[start..end) as the expected type.
+   */
+  private Object parseField(int start, int end, Type expectedType)
+      throws ColumnParseException {
+    switch (expectedType.getPrimitiveTypeName()) {
+    case BOOLEAN:
+      return Boolean.valueOf(parseBool(start, end));
+    case INT:
+      return Integer.valueOf((int) parseLong(start, end));
+    case BIGINT:
+    case TIMESPAN:
+      return Long.valueOf(parseLong(start, end));
+    case TIMESTAMP:
+      return new Timestamp(parseLong(start, end));
+    case FLOAT:
+      if (scanDecimal(start, end, MAX_FLOAT_MANTISSA, FLOAT_POWERS_OF_TEN.length)) {
+        float val = (float) mDecimalMantissa / FLOAT_POWERS_OF_TEN[mDecimalScale];
+        return Float.valueOf(mDecimalNegative ? -val : val);
+      }
+      try {
+        return Float.valueOf(decode(start, end));
+      } catch (NumberFormatException nfe) {
+        throw new ColumnParseException(nfe);
+      }
+    case DOUBLE:
+      if (scanDecimal(start, end, MAX_DOUBLE_MANTISSA, DOUBLE_POWERS_OF_TEN.length)) {
+        double val = (double) mDecimalMantissa / DOUBLE_POWERS_OF_TEN[mDecimalScale];
+        return Double.valueOf(mDecimalNegative ? -val : val);
+      }
+      try {
+        return Double.valueOf(decode(start, end));
+      } catch (NumberFormatException nfe) {
+        throw new ColumnParseException(nfe);
+      }
+    case STRING:
+      if (expectedType.isNullable() && rangeEquals(start, end, mNullBytes)) {
+        return null;
+      }
+      return new Utf8(Arrays.copyOfRange(mBody, start, end));
+    default:
+      return CharBufferUtils.parseType(CharBuffer.wrap(decode(start, end)), expectedType,
+          getNullStr(), getListSep());
+    }
+  }
+
+  /** @return the text of mBody[start..end). */
+  private String decode(int start, int end) {
+    return new String(mBody, start, end - start, UTF8);
+  }
+
+  /**
+   * Parse a boolean from mBody[start..end). Only the case-sensitive values
+   * "true" and "false" are recognized.
+   */
+  private boolean parseBool(int start, int end) throws ColumnParseException {
+    if (rangeEquals(start, end, TRUE_BYTES)) {
+      return true;
+    } else if (rangeEquals(start, end, FALSE_BYTES)) {
+      return false;
+    } else {
+      throw new ColumnParseException("Invalid boolean");
+    }
+  }
+
+  /**
+   * Parse a base 10 integer from mBody[start..end).
+   */
+  private long parseLong(int start, int end) throws ColumnParseException {
+    if (start == end) {
+      // The empty string can not be parsed as an integer.
+      throw new ColumnParseException("No value provided");
+    }
+
+    boolean isNegative = false;
+    int pos = start;
+    if (mBody[pos] == '-') {
+      isNegative = true;
+      pos++;
+      if (pos == end) {
+        // "-" is not an integer we accept.
+        throw new ColumnParseException("No integer part provided");
+      }
+    }
+
+    long result = 0L;
+    for ( ; pos < end; pos++) {
+      int digitVal = mBody[pos] - '0';
+      if (digitVal < 0 || digitVal > 9) {
+        throw new ColumnParseException("Invalid character in number");
+      }
+
+      result = result * 10 - digitVal;
+    }
+
+    // We built up the value as a negative, to use the larger "half" of the
+    // integer range. If it's not negative, flip it on return.
+    return isNegative ? result : -result;
+  }
+
+  /**
+   * Scan mBody[start..end) as a decimal of the form [+-]digits[.digits],
+   * with at least one digit, into mDecimalMantissa, mDecimalScale and
+   * mDecimalNegative.
+   * @return false if the field is not of that form, if its digits exceed
+   * maxMantissa, or if it has maxScale or more digits after the point.
+   */
+  private boolean scanDecimal(int start, int end, long maxMantissa, int maxScale) {
+    int pos = start;
+    boolean isNegative = false;
+    if (pos < end && (mBody[pos] == '-' || mBody[pos] == '+')) {
+      isNegative = mBody[pos] == '-';
+      pos++;
+    }
+
+    long mantissa = 0L;
+    int numDigits = 0;
+    int scale = 0;
+    boolean seenPoint = false;
+    for ( ; pos < end; pos++) {
+      if (mBody[pos] == '.' && !seenPoint) {
+        seenPoint = true;
+        continue;
+      }
+
+      int digitVal = mBody[pos] - '0';
+      if (digitVal < 0 || digitVal > 9) {
+        return false;
+      }
+
+      mantissa = mantissa * 10 + digitVal;
+      if (mantissa > maxMantissa) {
+        return false;
+      }
+      numDigits++;
+      if (seenPoint) {
+        scale++;
+      }
+    }
+
+    if (numDigits == 0 || scale >= maxScale) {
+      return false;
+    }
+
+    mDecimalMantissa = mantissa;
+    mDecimalScale = scale;
+    mDecimalNegative = isNegative;
+    return true;
   }
 
   @Override
@@ -54,8 +54,8 @@ public class RegexEventParser extends CachingTextEventParser {
   /** The event we're processing. */
   private Event mEvent;
 
-  /** A UTF-8 wrapper around the event's bytes. */
-  private Utf8 mAsUtf8;
+  /** The event body, decoded as UTF-8 text; null until a column is requested. */
+  private String mText;
 
   /** The regular expression we match against. */
   private String mRegexStr;
@@ -66,8 +66,8 @@ public class RegexEventParser extends CachingTextEventParser {
   /** The match result of applying the regex to a string-based event body. */
   private Matcher mMatcher;
 
-  /** The next field we will extract from the regex. */
-  private int mCurField;
+  /** True if the regex matched the current event. */
+  private boolean mMatched;
 
   public RegexEventParser(Map<String, String> params) {
     super(params);
@@ -84,9 +84,11 @@ public class RegexEventParser extends CachingTextEventParser {
   public void reset(Event e) {
     super.reset(e);
     mEvent = e;
-    mAsUtf8 = new Utf8(mEvent.getBody());
-    mCurField = 0;
-    mMatcher = null;
+    mText = null;
+    mMatched = false;
+    if (null != mMatcher) {
+      mMatcher.reset(""); // Release the previous event's text.
+    }
   }
 
   /**
@@ -96,10 +98,9 @@ public class RegexEventParser extends CachingTextEventParser {
    * First, check if we've already cached the value. If so, return it.
    * Next, check if we've cached a CharBuffer that wraps the underlying text.
    * If so, convert that to the correct value, cache it, and return it.
-   * Finally, walk forward from our current position in mAsCharacters,
-   * looking for delimiters. As we find delimiters, mark and cache the
-   * discovered columns in mColTexts. When we arrive at the column of
-   * interest, cache and return its value.
+   * Otherwise, match the regex against the event (once per event) and
+   * wrap the text of the group for this column, without extracting the
+   * groups of any other column.
    * </p>
    */
   @Override
@@ -114,36 +115,36 @@ public class RegexEventParser extends CachingTextEventParser {
 
     // Check if we have yet matched the UTF-8 bytes against the regex.
     assert null != mRegexPattern;
-    if (null == mMatcher) {
+    if (null == mText) {
       // Nope, do so now. Apply the regular expression to it.
-      mMatcher = mRegexPattern.matcher(mAsUtf8);
-      mMatcher.find(); // Align the matcher with the first matching instance in the event.
+      mText = new Utf8(mEvent.getBody()).toString();
+      if (null == mMatcher) {
+        mMatcher = mRegexPattern.matcher(mText);
+      } else {
+        mMatcher.reset(mText);
+      }
+      // Align the matcher with the first matching instance in the event.
+      mMatched = mMatcher.find();
     }
 
-    // While we have to walk more fields to get the one we need...
+    int group = 1 + colIdx; // 1-based offset not 0-based.
     CharBuffer cbField = null;
-    while (mCurField <= colIdx) {
-      // Keep extracting groups from the regex match.
-      try {
-        String fieldStr = mMatcher.group(1 + mCurField); // 1-based offset not 0-based.
-        cbField = CharBuffer.wrap(fieldStr);
-      } catch (IllegalStateException ise) {
-        // Couldn't extract a group for this field. Wrap a null.
-        if (expectedType.equals(Type.getNullable(Type.TypeName.STRING))) {
-          cbField = CharBuffer.wrap(getNullStr());
-        } else if (expectedType.isNullable()) {
-          cbField = CharBuffer.wrap("");
-        } else {
-          throw new ColumnParseException(ise);
-        }
+    if (mMatched && group <= mMatcher.groupCount() && mMatcher.start(group) != -1) {
+      cbField = CharBuffer.wrap(mText, mMatcher.start(group), mMatcher.end(group));
+    } else {
+      // Couldn't extract a group for this field. Wrap a null.
+      if (expectedType.equals(Type.getNullable(Type.TypeName.STRING))) {
+        cbField = CharBuffer.wrap(getNullStr());
+      } else if (expectedType.isNullable()) {
+        cbField = CharBuffer.wrap("");
+      } else {
+        throw new ColumnParseException("No group " + group + " in regex match");
       }
-
-      cacheColText(cbField);
-      mCurField++;
     }
 
-    // We have separated enough fields; this one's text is cached. Parse its
-    // value and return it.
+    cacheColText(colIdx, cbField);
+
+    // This column's text is cached. Parse its value and return it.
     return parseAndCache(cbField, colIdx, expectedType);
   }
 
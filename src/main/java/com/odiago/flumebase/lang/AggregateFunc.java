@@ -17,7 +17,12 @@
 
 package com.odiago.flumebase.lang;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import com.odiago.flumebase.exec.Bucket;
+import com.odiago.flumebase.exec.ValueCodec;
 
 /**
  * An aggregate function that receives multiple values for a single field
@@ -57,4 +62,85 @@ public abstract class AggregateFunc<BUCKETSTATE> extends Function {
    */
   public abstract Object finishWindow(Iterable<Bucket<BUCKETSTATE>> buckets, Type type)
       throws EvalException;
+
+  /**
+   * Specifies whether this function can maintain a running value for a
+   * sliding window, adding buckets as they enter the window and subtracting
+   * them as they leave it. Functions which return true must implement
+   * createWindowState(), addToWindow(), removeFromWindow(), and
+   * getWindowResult(). Otherwise, finishWindow() is called over every bucket
+   * in the window each time a window closes.
+   * @param type the expected output type for this function.
+   * @return true if this function supports incremental windows over the given type.
+   */
+  public boolean isInvertible(Type type) {
+    return false;
+  }
+
+  /**
+   * @return a new object holding the running value for an empty window.
+   * @param type the expected output type for this function.
+   * @throws EvalException if this function is not invertible.
+   */
+  public Object createWindowState(Type type) throws EvalException {
+    throw new EvalException("Function " + getClass().getName() + " is not invertible");
+  }
+
+  /**
+   * Fold the contents of a bucket entering the window into the running window state.
+   * @param windowState an object returned by createWindowState().
+   * @param bucket the bucket entering the window.
+   * @param type the expected output type for this function.
+   * @throws EvalException if the function cannot be evaluated.
+   */
+  public void addToWindow(Object windowState, Bucket<BUCKETSTATE> bucket, Type type)
+      throws EvalException {
+    throw new EvalException("Function " + getClass().getName() + " is not invertible");
+  }
+
+  /**
+   * Subtract the contents of a bucket leaving the window from the running
+   * window state. The bucket will have previously been passed to addToWindow()
+   * with the same contents.
+   * @param windowState an object returned by createWindowState().
+   * @param bucket the bucket leaving the window.
+   * @param type the expected output type for this function.
+   * @throws EvalException if the function cannot be evaluated.
+   */
+  public void removeFromWindow(Object windowState, Bucket<BUCKETSTATE> bucket, Type type)
+      throws EvalException {
+    throw new EvalException("Function " + getClass().getName() + " is not invertible");
+  }
+
+  /**
+   * @return the final value for this function over the buckets currently
+   * folded into the window state. This must equal the value finishWindow()
+   * would return over the same buckets.
+   * @param windowState an object returned by createWindowState().
+   * @param type the expected output type for this function.
+   * @throws EvalException if the function cannot be evaluated.
+   */
+  public Object getWindowResult(Object windowState, Type type) throws EvalException {
+    throw new EvalException("Function " + getClass().getName() + " is not invertible");
+  }
+
+  /**
+   * Write the state of a bucket to a checkpoint. The default implementation
+   * handles states which are null or simple values (numbers, strings,
+   * timestamps, etc.); functions with other state types must override this
+   * and readBucketState().
+   * @param state the state of a bucket, as set by addToBucket().
+   * @param out the stream to write the state to.
+   */
+  public void writeBucketState(BUCKETSTATE state, DataOutput out) throws IOException {
+    ValueCodec.write(state, out);
+  }
+
+  /**
+   * @return a bucket state read from a checkpoint written by writeBucketState().
+   */
+  @SuppressWarnings("unchecked")
+  public BUCKETSTATE readBucketState(DataInput in) throws IOException {
+    return (BUCKETSTATE) ValueCodec.read(in);
+  }
 }
@@ -0,0 +1,99 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.lang;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.odiago.flumebase.exec.RowLayout;
+
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.IdentifierExpr;
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * Collects the fields referenced by a set of type-checked expressions into
+ * a RowLayout, and binds each IdentifierExpr to the slot of its field.
+ * Call getLayout() after visiting all expressions that are evaluated
+ * against the same rows.
+ */
+public class BindSlotsVisitor extends TreeWalkVisitor {
+
+  /** Fields referenced so far, by avro name, in the order first referenced. */
+  private Map<String, TypedField> mFields;
+
+  /** All identifiers that read a field, to bind once the layout is known. */
+  private List<IdentifierExpr> mIdentifiers;
+
+  private RowLayout mLayout;
+
+  public BindSlotsVisitor() {
+    mFields = new LinkedHashMap<String, TypedField>();
+    mIdentifiers = new ArrayList<IdentifierExpr>();
+  }
+
+  /**
+   * @return a layout for the fields referenced by the specified expressions,
+   * to which they are all bound.
+   */
+  public static RowLayout bind(List<? extends Expr> exprs) {
+    BindSlotsVisitor visitor = new BindSlotsVisitor();
+    try {
+      for (Expr e : exprs) {
+        e.accept(visitor);
+      }
+    } catch (VisitException ve) {
+      // Our visit methods do not throw this.
+      throw new RuntimeException(ve);
+    }
+
+    return visitor.getLayout();
+  }
+
+  @Override
+  protected void visit(IdentifierExpr e) throws VisitException {
+    assert null == mLayout; // Cannot visit more expressions after getLayout().
+    if (!IdentifierExpr.AccessType.FIELD.equals(e.getAccessType())) {
+      return; // Attributes are read from the event itself.
+    }
+
+    String name = e.getAssignedName();
+    if (!mFields.containsKey(name)) {
+      mFields.put(name, new TypedField(name, e.getResolvedType()));
+    }
+    mIdentifiers.add(e);
+  }
+
+  /**
+   * @return the layout holding every field referenced by the visited
+   * expressions. All visited identifiers are bound to this layout.
+   */
+  public RowLayout getLayout() {
+    if (null == mLayout) {
+      mLayout = new RowLayout(new ArrayList<TypedField>(mFields.values()));
+      for (IdentifierExpr ident : mIdentifiers) {
+        ident.bindSlot(mLayout, mLayout.getSlot(ident.getAssignedName()));
+      }
+    }
+
+    return mLayout;
+  }
+}
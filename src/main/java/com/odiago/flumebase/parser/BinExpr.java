@@ -182,7 +182,13 @@ public class BinExpr extends Expr {
   public Object eval(EventWrapper e) throws IOException {
     Object lhs = mLeftExpr.eval(e);
     Object rhs = mRightExpr.eval(e);
+    return evalOp(lhs, rhs);
+  }
 
+  /**
+   * Apply this operator to the values of the left and right subexpressions.
+   */
+  public Object evalOp(Object lhs, Object rhs) {
     if (null == lhs || null == rhs) {
       // NULL op X always returns null.
       return null;
@@ -317,10 +323,20 @@ public class BinExpr extends Expr {
     return mType;
   }
 
+  /** @return the type of the left subexpression, as seen by the type checker. */
+  public Type getLhsType() {
+    return mLhsType;
+  }
+
+  /** @return the type of the right subexpression, as seen by the type checker. */
+  public Type getRhsType() {
+    return mRhsType;
+  }
+
   /**
-   * Set the type that the subexpressions should be coerced to.
+   * @return the type that the subexpressions should be coerced to.
    */
-  private Type getArgType() {
+  public Type getArgType() {
     return mArgType;
   }
 
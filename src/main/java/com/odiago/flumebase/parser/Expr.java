@@ -95,7 +95,9 @@ public abstract class Expr extends SQLStatement {
    * from valType into targetType.
    */
   protected Object coerce(Object val, Type valType, Type targetType) {
-    LOG.debug("Converting: " + valType + " to " + targetType);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Converting: " + valType + " to " + targetType);
+    }
     return targetType.coerceValue(valType, val);
   }
 }
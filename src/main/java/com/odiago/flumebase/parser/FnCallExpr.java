@@ -17,6 +17,8 @@
 
 package com.odiago.flumebase.parser;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 import java.util.ArrayList;
@@ -63,7 +65,6 @@ public class FnCallExpr extends Expr {
   private FnSymbol mFnSymbol;
   private Function mExecFunc; // The function instance to execute.
   private boolean mAutoPromote; // true if we auto-promote argument return types.
-  private Object[] mPartialResults; // reusable array where argument results are stored.
 
   public FnCallExpr(String fnName) {
     mFunctionName = fnName;
@@ -279,7 +280,6 @@ public class FnCallExpr extends Expr {
 
     mExecFunc = mFnSymbol.getFuncInstance();
     mAutoPromote = mExecFunc.autoPromoteArguments();
-    mPartialResults = new Object[mExprTypes.size()];
   }
 
   /** @return true if this fn call is an aggregate function. */
@@ -304,22 +304,33 @@ public class FnCallExpr extends Expr {
 
   /**
    * Evaluate all the arguments to the function in preparation for
-   * calling the function on them. Stores its output in the
-   * mPartialResults array.
+   * calling the function on them. The values are returned in a new array:
+   * the replicas of a partitioned operator share their expressions, and
+   * may evaluate them concurrently.
    */
-  private void evaluateArguments(EventWrapper e) throws IOException {
+  private Object[] evaluateArguments(EventWrapper e) throws IOException {
     // Ensure that we have actual and specified types for all actual expression arguments.
     // We may have some extras, if virtual arguments were used to finish type unification.
     assert mArgExprs.size() <= mArgTypes.length;
     assert mArgExprs.size() <= mExprTypes.size();
 
     // Evaluate arguments left-to-right.
+    Object[] argValues = createArgValues();
     for (int i = 0; i < mArgExprs.size(); i++) {
-      Object result = mArgExprs.get(i).eval(e);
-      if (mAutoPromote) {
-        mPartialResults[i] = coerce(result, mExprTypes.get(i), mArgTypes[i]);
-      } else {
-        mPartialResults[i] = result;
+      argValues[i] = mArgExprs.get(i).eval(e);
+    }
+    coerceArguments(argValues);
+    return argValues;
+  }
+
+  /**
+   * Coerce the evaluated argument values in place to the argument types
+   * of the function, if it auto-promotes its arguments.
+   */
+  private void coerceArguments(Object[] argValues) {
+    if (mAutoPromote) {
+      for (int i = 0; i < mArgExprs.size(); i++) {
+        argValues[i] = coerce(argValues[i], mExprTypes.get(i), mArgTypes[i]);
       }
     }
   }
@@ -328,15 +339,44 @@ public class FnCallExpr extends Expr {
   @Override
   public Object eval(EventWrapper e) throws IOException {
     assert mExecFunc instanceof ScalarFunc;
-    evaluateArguments(e);
+    return evalWithArgs(e, evaluateArguments(e));
+  }
+
+  /**
+   * @return an array large enough to hold the argument values passed to
+   * evalWithArgs().
+   */
+  public Object[] createArgValues() {
+    return new Object[mExprTypes.size()];
+  }
+
+  /**
+   * Call the scalar function on argument values that the caller has already
+   * evaluated, left-to-right, into an array from createArgValues(). The values
+   * are coerced in place to the function's argument types.
+   */
+  public Object evalWithArgs(EventWrapper e, Object[] argValues) throws IOException {
+    assert mExecFunc instanceof ScalarFunc;
+    coerceArguments(argValues);
 
     try {
-      return ((ScalarFunc) mExecFunc).eval(e, mPartialResults);
+      return ((ScalarFunc) mExecFunc).eval(e, argValues);
     } catch (EvalException ee) {
       throw new IOException(ee);
     }
   }
 
+  /**
+   * @return the aggregate function being called, viewed with the bucket state
+   * type of the Buckets passed to it. Each BucketedAggregationElement keeps the
+   * Buckets for a function call separate from those of the others, so they
+   * always hold this function's state.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> AggregateFunc<T> getAggregateFunc() {
+    return (AggregateFunc<T>) mExecFunc;
+  }
+
   /**
    * For a function call representing an aggregation function, call the
    * bucket-insertion method of the AggregationFunc on the (already
@@ -344,10 +384,10 @@ public class FnCallExpr extends Expr {
    */
   public <T> void insertAggregate(EventWrapper e, Bucket<T> bucket) throws IOException {
     assert mExecFunc instanceof AggregateFunc;
-    evaluateArguments(e);
-    
+    Object[] argValues = evaluateArguments(e);
+
     try {
-      ((AggregateFunc<T>) mExecFunc).addToBucket(mPartialResults[0], bucket, mReturnType);
+      this.<T>getAggregateFunc().addToBucket(argValues[0], bucket, mReturnType);
     } catch (EvalException ee) {
       throw new IOException(ee);
     }
@@ -362,12 +402,93 @@ public class FnCallExpr extends Expr {
     assert mExecFunc instanceof AggregateFunc;
 
     try {
-      return ((AggregateFunc<T>) mExecFunc).finishWindow(buckets, mReturnType);
+      return this.<T>getAggregateFunc().finishWindow(buckets, mReturnType);
+    } catch (EvalException ee) {
+      throw new IOException(ee);
+    }
+  }
+
+  /**
+   * @return true if this is an aggregate function call that can maintain
+   * a running value for a sliding window.
+   */
+  public boolean isInvertibleAggregate() {
+    return mExecFunc instanceof AggregateFunc
+        && ((AggregateFunc) mExecFunc).isInvertible(mReturnType);
+  }
+
+  /**
+   * For an invertible aggregate function call, create the running state
+   * for an empty window.
+   */
+  public Object createWindowState() throws IOException {
+    assert isInvertibleAggregate();
+
+    try {
+      return ((AggregateFunc) mExecFunc).createWindowState(mReturnType);
     } catch (EvalException ee) {
       throw new IOException(ee);
     }
   }
 
+  /**
+   * For an invertible aggregate function call, add a bucket entering
+   * the window to the running window state.
+   */
+  public <T> void addToWindow(Object windowState, Bucket<T> bucket) throws IOException {
+    assert isInvertibleAggregate();
+
+    try {
+      this.<T>getAggregateFunc().addToWindow(windowState, bucket, mReturnType);
+    } catch (EvalException ee) {
+      throw new IOException(ee);
+    }
+  }
+
+  /**
+   * For an invertible aggregate function call, subtract a bucket leaving
+   * the window from the running window state.
+   */
+  public <T> void removeFromWindow(Object windowState, Bucket<T> bucket) throws IOException {
+    assert isInvertibleAggregate();
+
+    try {
+      this.<T>getAggregateFunc().removeFromWindow(windowState, bucket, mReturnType);
+    } catch (EvalException ee) {
+      throw new IOException(ee);
+    }
+  }
+
+  /**
+   * For an invertible aggregate function call, return the function's value
+   * over the buckets held in the running window state.
+   */
+  public Object getWindowResult(Object windowState) throws IOException {
+    assert isInvertibleAggregate();
+
+    try {
+      return ((AggregateFunc) mExecFunc).getWindowResult(windowState, mReturnType);
+    } catch (EvalException ee) {
+      throw new IOException(ee);
+    }
+  }
+
+  /**
+   * For an aggregate function call, write the state of a bucket to a checkpoint.
+   */
+  public <T> void writeBucketState(Bucket<T> bucket, DataOutput out) throws IOException {
+    assert mExecFunc instanceof AggregateFunc;
+    this.<T>getAggregateFunc().writeBucketState(bucket.getState(), out);
+  }
+
+  /**
+   * For an aggregate function call, restore the state of a bucket from a checkpoint.
+   */
+  public <T> void readBucketState(Bucket<T> bucket, DataInput in) throws IOException {
+    assert mExecFunc instanceof AggregateFunc;
+    bucket.setState(this.<T>getAggregateFunc().readBucketState(in));
+  }
+
   @Override
   public Type getResolvedType() {
     return mReturnType;
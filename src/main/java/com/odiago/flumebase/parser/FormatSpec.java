@@ -17,6 +17,7 @@
 
 package com.odiago.flumebase.parser;
 
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -86,10 +87,21 @@ public class FormatSpec extends SQLStatement {
    * @return an EventParser as we configured it.
    */
   public EventParser getEventParser() {
+    return getEventParser(null);
+  }
+
+  /**
+   * @return an EventParser as we configured it, which need only be able to
+   * efficiently return the columns whose indices are set in requiredColumns.
+   * If requiredColumns is null, any column may be requested.
+   */
+  public EventParser getEventParser(BitSet requiredColumns) {
     if (FORMAT_DELIMITED.equals(mFormat)) {
+      // Text formats are tokenized lazily, and only as far as the last
+      // column requested; they need no projection.
       return new DelimitedEventParser(mParams);
     } else if (FORMAT_AVRO.equals(mFormat)) {
-      return new AvroEventParser(mParams);
+      return new AvroEventParser(mParams, requiredColumns);
     } else if (FORMAT_REGEX.equals(mFormat)) {
       return new RegexEventParser(mParams);
     }
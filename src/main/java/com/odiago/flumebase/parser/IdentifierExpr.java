@@ -29,8 +29,10 @@ import org.slf4j.LoggerFactory;
 
 import com.odiago.flumebase.exec.AssignedSymbol;
 import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.RowLayout;
 import com.odiago.flumebase.exec.Symbol;
 import com.odiago.flumebase.exec.SymbolTable;
+import com.odiago.flumebase.exec.TypedRow;
 
 import com.odiago.flumebase.lang.Timestamp;
 import com.odiago.flumebase.lang.Type;
@@ -74,6 +76,15 @@ public class IdentifierExpr extends Expr {
    */
   private AssignedSymbol mAssignedSym;
 
+  /** The field read by eval(); created on first use. */
+  private TypedField mField;
+
+  /** Layout of the TypedRows this expression is bound to; null if unbound. */
+  private RowLayout mLayout;
+
+  /** Slot of mLayout holding this field's value. */
+  private int mSlot;
+
   public IdentifierExpr(String identifier) {
     mIdentifier = identifier;
   }
@@ -88,12 +99,36 @@ public class IdentifierExpr extends Expr {
 
   public void setAssignedName(String assignedName) {
     mAssignedName = assignedName;
+    mField = null;
   }
 
   public void setAccessType(AccessType accessType) {
     mAccessType = accessType;
   }
 
+  public AccessType getAccessType() {
+    return mAccessType;
+  }
+
+  /**
+   * Bind this expression to a slot of a RowLayout. When evaluated against a
+   * TypedRow with that layout, the value is read from the slot directly.
+   */
+  public void bindSlot(RowLayout layout, int slot) {
+    mLayout = layout;
+    mSlot = slot;
+  }
+
+  /** @return the layout this expression was bound to by bindSlot(), or null. */
+  public RowLayout getLayout() {
+    return mLayout;
+  }
+
+  /** @return the slot this expression was bound to by bindSlot(), or -1. */
+  public int getSlot() {
+    return null == mLayout ? -1 : mSlot;
+  }
+
   @Override
   public void format(StringBuilder sb, int depth) {
     pad(sb, depth);
@@ -132,6 +167,7 @@ public class IdentifierExpr extends Expr {
    */
   public void setType(Type t) {
     mType = t;
+    mField = null;
   }
 
   @Override
@@ -169,7 +205,14 @@ public class IdentifierExpr extends Expr {
   public Object eval(EventWrapper e) throws IOException {
     switch (mAccessType) {
     case FIELD:
-      return e.getField(new TypedField(mAssignedName, mType));
+      if (null != mLayout && e instanceof TypedRow && ((TypedRow) e).getLayout() == mLayout) {
+        return ((TypedRow) e).getObject(mSlot);
+      }
+
+      if (null == mField) {
+        mField = new TypedField(mAssignedName, mType);
+      }
+      return e.getField(mField);
     case ATTRIBUTE:
       byte[] bytes = e.getEvent().getAttrs().get(mAssignedName);
       if (null == bytes) {
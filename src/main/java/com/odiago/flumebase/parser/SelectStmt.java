@@ -37,6 +37,7 @@ import com.odiago.flumebase.plan.EvaluateExprsNode;
 import com.odiago.flumebase.plan.FilterNode;
 import com.odiago.flumebase.plan.FlowSpecification;
 import com.odiago.flumebase.plan.MemoryOutputNode;
+import com.odiago.flumebase.plan.NamedSourceNode;
 import com.odiago.flumebase.plan.PlanContext;
 import com.odiago.flumebase.plan.PlanNode;
 import com.odiago.flumebase.plan.ProjectionNode;
@@ -320,6 +321,12 @@ public class SelectStmt extends RecordSource {
         allRequiredFields, groupByPropagateFields, exprPropagateFields,
         projectionInputs, projectionOutputs, consoleFields);
 
+    if (source instanceof LiteralSource) {
+      // We read directly from a named stream; its events need only be parsed
+      // as far as the fields this statement references.
+      setSourceRequiredFields(sourceOutCtxt.getFlowSpec(), distinctFields(allRequiredFields));
+    }
+
     if (where != null) {
       // Non-null filter conditions; apply the filter to all of our sources.
       PlanNode filterNode = new FilterNode(where);
@@ -412,6 +419,8 @@ public class SelectStmt extends RecordSource {
           // the output of the source layer (projection input list).
           groupByPropagateFields.add(projectionField);
           exprPropagateFields.add(projectionField);
+          // The field itself must still be read from the source.
+          allRequiredFields.addAll(fieldsForExpr);
         } else if (mAggregateExprs.contains(aliasExpr)) {
           // Calculated in the aggregation layer.
           // Carry result forward through expr eval.
@@ -453,6 +462,20 @@ public class SelectStmt extends RecordSource {
     assert projectionInputs.size() == projectionOutputs.size();
   }
 
+  /**
+   * Record the fields required from the source layer on each named source
+   * node at the root of the source's plan, so that the source's EventParser
+   * can skip the others.
+   */
+  private void setSourceRequiredFields(FlowSpecification sourceFlow,
+      List<TypedField> requiredFields) {
+    for (PlanNode root : sourceFlow.getRootSet()) {
+      if (root instanceof NamedSourceNode) {
+        ((NamedSourceNode) root).setRequiredFields(requiredFields);
+      }
+    }
+  }
+
   private void addAggregationToPlan(SymbolTable fieldSymbols, FlowSpecification flowSpec,
       List<TypedField> groupByPropagateFields) {
 
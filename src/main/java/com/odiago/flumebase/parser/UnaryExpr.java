@@ -134,7 +134,13 @@ public class UnaryExpr extends Expr {
 
   @Override
   public Object eval(EventWrapper e) throws IOException {
-    Object childObj = mSubExpr.eval(e);
+    return evalOp(mSubExpr.eval(e));
+  }
+
+  /**
+   * Apply this operator to the value of the subexpression.
+   */
+  public Object evalOp(Object childObj) {
     Type childType = mSubExpr.getResolvedType();
     switch (mOp) {
     case Plus:
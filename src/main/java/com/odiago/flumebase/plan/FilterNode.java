@@ -17,28 +17,51 @@
 
 package com.odiago.flumebase.plan;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import com.odiago.flumebase.parser.Expr;
 
 /**
- * Filter that passes events through without modification if the filter expression
- * passes.
+ * Filter that passes events through without modification if all of the
+ * filter expressions pass. The expressions are conjuncts, evaluated in the
+ * order given; an event is rejected as soon as one of them fails.
  */
 public class FilterNode extends PlanNode {
-  private Expr mFilterExpr;
+  private List<Expr> mConjuncts;
 
   public FilterNode(Expr filterExpr) {
-    mFilterExpr = filterExpr;
+    this(Collections.singletonList(filterExpr));
+  }
+
+  public FilterNode(List<Expr> conjuncts) {
+    mConjuncts = new ArrayList<Expr>(conjuncts);
   }
 
   @Override 
   public void formatParams(StringBuilder sb) {
-    sb.append("FilterNode mExpr=(");
-    sb.append(mFilterExpr);
-    sb.append(")\n");
+    sb.append("FilterNode mExpr=");
+    boolean first = true;
+    for (Expr conjunct : mConjuncts) {
+      if (!first) {
+        sb.append(" AND ");
+      }
+      sb.append("(");
+      sb.append(conjunct);
+      sb.append(")");
+      first = false;
+    }
+    sb.append("\n");
     formatAttributes(sb);
   }
 
-  public Expr getFilterExpr() {
-    return mFilterExpr;
+  /** @return the conjuncts of the filter, in the order they are evaluated. */
+  public List<Expr> getConjuncts() {
+    return mConjuncts;
+  }
+
+  public void setConjuncts(List<Expr> conjuncts) {
+    mConjuncts = new ArrayList<Expr>(conjuncts);
   }
 }
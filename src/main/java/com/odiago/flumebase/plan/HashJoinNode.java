@@ -56,6 +56,9 @@ public class HashJoinNode extends PlanNode {
     mLeftFields = leftFieldNames;
     mRightFields = rightFieldNames;
     mConf = conf;
+
+    // Join node uses a timer to release the state of idle streams.
+    this.setAttr(PlanNode.USES_TIMER_ATTR, Boolean.TRUE);
   }
 
   protected void formatParams(StringBuilder sb) {
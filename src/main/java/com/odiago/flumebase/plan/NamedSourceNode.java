@@ -29,6 +29,12 @@ public class NamedSourceNode extends PlanNode {
   private String mStreamName;
   private List<TypedField> mFields;
 
+  /**
+   * The subset of mFields that downstream operators actually read, or null
+   * if they may read any field.
+   */
+  private List<TypedField> mRequiredFields;
+
   public NamedSourceNode(String streamName, List<TypedField> fields) {
     mStreamName = streamName;
     mFields = fields;
@@ -44,6 +50,14 @@ public class NamedSourceNode extends PlanNode {
       sb.append(field.toString());
       sb.append("\n");
     }
+    if (null != mRequiredFields) {
+      sb.append("required fields:\n");
+      for (TypedField field : mRequiredFields) {
+        sb.append("  ");
+        sb.append(field.toString());
+        sb.append("\n");
+      }
+    }
     formatAttributes(sb);
   }
 
@@ -54,4 +68,16 @@ public class NamedSourceNode extends PlanNode {
   public List<TypedField> getFields() {
     return mFields;
   }
+
+  /**
+   * @return the fields that must be parsed from each input event, or null
+   * if every field may be read.
+   */
+  public List<TypedField> getRequiredFields() {
+    return mRequiredFields;
+  }
+
+  public void setRequiredFields(List<TypedField> requiredFields) {
+    mRequiredFields = requiredFields;
+  }
 }
@@ -0,0 +1,474 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.avro.Schema;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.lang.TreeWalkVisitor;
+import com.odiago.flumebase.lang.Type;
+import com.odiago.flumebase.lang.VisitException;
+
+import com.odiago.flumebase.parser.BinExpr;
+import com.odiago.flumebase.parser.BinOp;
+import com.odiago.flumebase.parser.ConstExpr;
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.FnCallExpr;
+import com.odiago.flumebase.parser.IdentifierExpr;
+import com.odiago.flumebase.parser.TypedField;
+import com.odiago.flumebase.parser.UnaryExpr;
+
+import com.odiago.flumebase.util.DAG;
+import com.odiago.flumebase.util.DAGOperatorException;
+
+/**
+ * Rule-based optimizer for the filters of a flow specification. The rules
+ * are applied in order:
+ * <ul>
+ *   <li>The expression of each filter is split into its AND conjuncts.</li>
+ *   <li>Conjuncts are pushed toward the sources of the flow: below
+ *   projections that pass the fields they read through unchanged, and
+ *   below joins, into the side of the join whose fields they read. A
+ *   conjunct pushed onto an existing filter joins its conjuncts.</li>
+ *   <li>The conjuncts of each filter are ordered by their estimated cost and
+ *   selectivity, so that cheap comparisons reject events before more costly
+ *   function calls are evaluated.</li>
+ * </ul>
+ *
+ * <p>This is applied after PropagateSchemas, since the fields available at
+ * each side of a join are determined from the output schemas of its
+ * parents.</p>
+ */
+public class OptimizeFilters {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      OptimizeFilters.class.getName());
+
+  /** Configuration key enabling filter pushdown and conjunct ordering. */
+  public static final String OPTIMIZE_FILTERS_KEY = "flumebase.plan.optimize.filters";
+  public static final boolean DEFAULT_OPTIMIZE_FILTERS = true;
+
+  /** Estimated cost of reading a field, or applying a numeric or boolean operator. */
+  private static final double UNIT_COST = 1.0;
+
+  /** Estimated cost of comparing two strings, or other non-primitive values. */
+  private static final double OBJECT_OP_COST = 4.0;
+
+  /** Estimated cost of calling a function, in addition to evaluating its arguments. */
+  private static final double FN_CALL_COST = 20.0;
+
+  /** Fraction of events assumed to satisfy a predicate we know nothing about. */
+  private static final double DEFAULT_SELECTIVITY = 0.5;
+
+  /** Fraction of events assumed to satisfy an equality comparison. */
+  private static final double EQ_SELECTIVITY = 0.1;
+
+  /** Fraction of events assumed to satisfy an inequality (e.g., 'x &lt; y') comparison. */
+  private static final double RANGE_SELECTIVITY = 1.0 / 3.0;
+
+  /** Fraction of events assumed to have a null value for an IS NULL test. */
+  private static final double NULL_SELECTIVITY = 0.1;
+
+  /** @return true if filters should be optimized for flows with this configuration. */
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(OPTIMIZE_FILTERS_KEY, DEFAULT_OPTIMIZE_FILTERS);
+  }
+
+  /**
+   * Apply all rules to the filters of the specified flow.
+   */
+  public void apply(FlowSpecification spec) throws DAGOperatorException {
+    List<FilterNode> filters = getFilters(spec);
+    for (FilterNode filter : filters) {
+      filter.setConjuncts(splitConjuncts(filter.getConjuncts()));
+    }
+
+    List<FilterNode> work = new LinkedList<FilterNode>(filters);
+    while (!work.isEmpty()) {
+      pushDown(work.remove(0), work);
+    }
+
+    for (FilterNode filter : getFilters(spec)) {
+      orderConjuncts(filter);
+    }
+  }
+
+  /** @return all the filters of the flow. */
+  private static List<FilterNode> getFilters(FlowSpecification spec)
+      throws DAGOperatorException {
+    final List<FilterNode> filters = new ArrayList<FilterNode>();
+    spec.bfs(new DAG.Operator<PlanNode>() {
+      @Override
+      public void process(PlanNode node) {
+        if (node instanceof FilterNode) {
+          filters.add((FilterNode) node);
+        }
+      }
+    });
+    return filters;
+  }
+
+  /**
+   * @return the conjuncts of the specified expressions; each expression
+   * which is an AND of two others is replaced by the conjuncts of those.
+   */
+  static List<Expr> splitConjuncts(List<Expr> exprs) {
+    List<Expr> out = new ArrayList<Expr>();
+    for (Expr e : exprs) {
+      addConjuncts(e, out);
+    }
+    return out;
+  }
+
+  private static void addConjuncts(Expr e, List<Expr> out) {
+    if (e instanceof BinExpr && BinOp.And.equals(((BinExpr) e).getOp())) {
+      BinExpr binExpr = (BinExpr) e;
+      addConjuncts(binExpr.getLeftExpr(), out);
+      addConjuncts(binExpr.getRightExpr(), out);
+    } else {
+      out.add(e);
+    }
+  }
+
+  /**
+   * Move whichever conjuncts of a filter can be evaluated before its parent
+   * into new (or existing) filters above its parent. Each filter which
+   * receives conjuncts is added to the work list, so that they may be pushed
+   * further still. If all conjuncts are moved, the filter is removed.
+   */
+  private void pushDown(FilterNode filter, List<FilterNode> work) {
+    if (filter.getParents().size() != 1) {
+      return;
+    }
+
+    PlanNode parent = filter.getParents().get(0);
+    if (parent.getChildren().size() != 1) {
+      // Other children of the parent must still see the events we reject.
+      return;
+    }
+
+    List<Expr> remaining = new ArrayList<Expr>();
+    Map<PlanNode, List<Expr>> pushed = new LinkedHashMap<PlanNode, List<Expr>>();
+    for (Expr conjunct : filter.getConjuncts()) {
+      PlanNode target = null;
+      Set<String> fields = getPushableFields(conjunct);
+      if (null != fields && parent instanceof ProjectionNode) {
+        target = getProjectionInput((ProjectionNode) parent, fields);
+      } else if (null != fields && parent instanceof HashJoinNode) {
+        target = getJoinSide((HashJoinNode) parent, fields);
+      }
+
+      if (null == target) {
+        remaining.add(conjunct);
+      } else {
+        List<Expr> targetConjuncts = pushed.get(target);
+        if (null == targetConjuncts) {
+          targetConjuncts = new ArrayList<Expr>();
+          pushed.put(target, targetConjuncts);
+        }
+        targetConjuncts.add(conjunct);
+      }
+    }
+
+    for (Map.Entry<PlanNode, List<Expr>> entry : pushed.entrySet()) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Pushing conjuncts " + entry.getValue() + " above node " + parent.getId());
+      }
+      work.add(addConjuncts(entry.getKey(), parent, entry.getValue()));
+    }
+
+    if (remaining.isEmpty()) {
+      filter.splice();
+    } else {
+      filter.setConjuncts(remaining);
+    }
+  }
+
+  /**
+   * Filter the events 'node' receives from 'parent' with the specified
+   * conjuncts. These are added to 'parent' itself if it is a filter that
+   * feeds only 'node'; otherwise, a filter is inserted between the two.
+   * @return the filter the conjuncts were added to.
+   */
+  private FilterNode addConjuncts(PlanNode parent, PlanNode node, List<Expr> conjuncts) {
+    if (parent instanceof FilterNode && parent.getChildren().size() == 1) {
+      FilterNode parentFilter = (FilterNode) parent;
+      List<Expr> merged = new ArrayList<Expr>(parentFilter.getConjuncts());
+      merged.addAll(conjuncts);
+      parentFilter.setConjuncts(merged);
+      return parentFilter;
+    }
+
+    FilterNode filter = new FilterNode(conjuncts);
+    Schema schema = (Schema) parent.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR);
+    filter.setAttr(PlanNode.INPUT_SCHEMA_ATTR, schema);
+    filter.setAttr(PlanNode.OUTPUT_SCHEMA_ATTR, schema);
+    parent.spliceChild(node, filter);
+    return filter;
+  }
+
+  /**
+   * @return the parent of a projection, if the projection passes each of the
+   * specified fields through unchanged; null otherwise.
+   */
+  private PlanNode getProjectionInput(ProjectionNode projection, Set<String> fields) {
+    if (projection.getParents().size() != 1) {
+      return null;
+    }
+
+    List<TypedField> inputs = projection.getInputFields();
+    List<TypedField> outputs = projection.getOutputFields();
+    Set<String> passed = new HashSet<String>();
+    for (int i = 0; i < inputs.size() && i < outputs.size(); i++) {
+      String name = outputs.get(i).getAvroName();
+      if (name.equals(inputs.get(i).getAvroName())) {
+        passed.add(name);
+      }
+    }
+
+    if (!passed.containsAll(fields)) {
+      return null;
+    }
+
+    return projection.getParents().get(0);
+  }
+
+  /**
+   * @return the parent of a join which supplies all the specified fields,
+   * or null if none or both of its parents do.
+   */
+  private PlanNode getJoinSide(HashJoinNode join, Set<String> fields) {
+    PlanNode side = null;
+    for (PlanNode parent : join.getParents()) {
+      Schema schema = (Schema) parent.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR);
+      if (null == schema) {
+        return null;
+      }
+
+      boolean hasAll = true;
+      for (String field : fields) {
+        if (null == schema.getField(field)) {
+          hasAll = false;
+          break;
+        }
+      }
+
+      if (hasAll) {
+        if (null != side) {
+          return null; // Ambiguous.
+        }
+        side = parent;
+      }
+    }
+
+    return side;
+  }
+
+  /**
+   * @return the names of the fields read by an expression, or null if the
+   * expression cannot be moved to another point in the flow. This is the
+   * case if it reads no fields, or reads an attribute of the event, or calls
+   * an aggregate function or a function without arguments (which may read
+   * the event itself, such as host()).
+   */
+  static Set<String> getPushableFields(Expr e) {
+    ReferencedFieldsVisitor visitor = new ReferencedFieldsVisitor();
+    try {
+      e.accept(visitor);
+    } catch (VisitException ve) {
+      // Our visit methods do not throw this.
+      throw new RuntimeException(ve);
+    }
+
+    if (!visitor.mPushable || visitor.mFields.isEmpty()) {
+      return null;
+    }
+
+    return visitor.mFields;
+  }
+
+  /** Collects the fields read by an expression. */
+  private static class ReferencedFieldsVisitor extends TreeWalkVisitor {
+    private Set<String> mFields = new HashSet<String>();
+    private boolean mPushable = true;
+
+    @Override
+    protected void visit(IdentifierExpr e) throws VisitException {
+      if (IdentifierExpr.AccessType.FIELD.equals(e.getAccessType())) {
+        mFields.add(e.getAssignedName());
+      } else {
+        mPushable = false;
+      }
+    }
+
+    @Override
+    protected void visit(FnCallExpr e) throws VisitException {
+      List<Expr> args = e.getArgExpressions();
+      if (e.isAggregate() || null == args || args.isEmpty()) {
+        mPushable = false;
+      }
+      super.visit(e);
+    }
+  }
+
+  /**
+   * Sort the conjuncts of a filter so that those with the lowest rank are
+   * evaluated first.
+   */
+  private void orderConjuncts(FilterNode filter) {
+    List<Expr> conjuncts = new ArrayList<Expr>(filter.getConjuncts());
+    if (conjuncts.size() < 2) {
+      return;
+    }
+
+    final Map<Expr, Double> ranks = new IdentityHashMap<Expr, Double>();
+    for (Expr conjunct : conjuncts) {
+      ranks.put(conjunct, getRank(conjunct));
+    }
+
+    // This sort is stable; conjuncts of equal rank are evaluated as written.
+    Collections.sort(conjuncts, new Comparator<Expr>() {
+      @Override
+      public int compare(Expr a, Expr b) {
+        return Double.compare(ranks.get(a), ranks.get(b));
+      }
+    });
+    filter.setConjuncts(conjuncts);
+  }
+
+  /**
+   * @return the rank of a conjunct: its estimated cost per event it rejects.
+   * Evaluating conjuncts in increasing order of rank minimizes the expected
+   * cost of rejecting an event.
+   */
+  public static double getRank(Expr e) {
+    double rejected = 1.0 - estimateSelectivity(e);
+    if (rejected <= 0.0) {
+      return Double.POSITIVE_INFINITY;
+    }
+    return estimateCost(e) / rejected;
+  }
+
+  /** @return the estimated relative cost of evaluating an expression. */
+  public static double estimateCost(Expr e) {
+    if (e instanceof ConstExpr) {
+      return 0.0;
+    } else if (e instanceof IdentifierExpr) {
+      return UNIT_COST;
+    } else if (e instanceof UnaryExpr) {
+      return UNIT_COST + estimateCost(((UnaryExpr) e).getSubExpr());
+    } else if (e instanceof BinExpr) {
+      BinExpr binExpr = (BinExpr) e;
+      return getOpCost(binExpr.getArgType()) + estimateCost(binExpr.getLeftExpr())
+          + estimateCost(binExpr.getRightExpr());
+    } else if (e instanceof FnCallExpr) {
+      double cost = FN_CALL_COST;
+      List<Expr> args = ((FnCallExpr) e).getArgExpressions();
+      if (null != args) {
+        for (Expr arg : args) {
+          cost += estimateCost(arg);
+        }
+      }
+      return cost;
+    } else {
+      return FN_CALL_COST;
+    }
+  }
+
+  /** @return the estimated cost of a binary operator on arguments of the specified type. */
+  private static double getOpCost(Type argType) {
+    Type.TypeName typeName = null == argType ? null : argType.getPrimitiveTypeName();
+    if (null == typeName) {
+      return OBJECT_OP_COST;
+    }
+
+    switch (typeName) {
+    case BOOLEAN:
+    case INT:
+    case BIGINT:
+    case FLOAT:
+    case DOUBLE:
+      return UNIT_COST;
+    default:
+      return OBJECT_OP_COST;
+    }
+  }
+
+  /**
+   * @return the estimated fraction of events for which a boolean expression
+   * is true.
+   */
+  public static double estimateSelectivity(Expr e) {
+    if (e instanceof ConstExpr) {
+      Object val = ((ConstExpr) e).getValue();
+      if (val instanceof Boolean) {
+        return ((Boolean) val).booleanValue() ? 1.0 : 0.0;
+      }
+    } else if (e instanceof UnaryExpr) {
+      UnaryExpr unaryExpr = (UnaryExpr) e;
+      switch (unaryExpr.getOp()) {
+      case Not:
+        return 1.0 - estimateSelectivity(unaryExpr.getSubExpr());
+      case IsNull:
+        return NULL_SELECTIVITY;
+      case IsNotNull:
+        return 1.0 - NULL_SELECTIVITY;
+      default:
+        break;
+      }
+    } else if (e instanceof BinExpr) {
+      BinExpr binExpr = (BinExpr) e;
+      switch (binExpr.getOp()) {
+      case Eq:
+        return EQ_SELECTIVITY;
+      case NotEq:
+        return 1.0 - EQ_SELECTIVITY;
+      case Greater:
+      case GreaterEq:
+      case Less:
+      case LessEq:
+        return RANGE_SELECTIVITY;
+      case And:
+        return estimateSelectivity(binExpr.getLeftExpr())
+            * estimateSelectivity(binExpr.getRightExpr());
+      case Or:
+        double left = estimateSelectivity(binExpr.getLeftExpr());
+        double right = estimateSelectivity(binExpr.getRightExpr());
+        return left + right - left * right;
+      default:
+        break;
+      }
+    }
+
+    return DEFAULT_SELECTIVITY;
+  }
+}
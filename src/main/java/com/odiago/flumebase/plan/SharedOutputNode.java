@@ -0,0 +1,67 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.util.List;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * Node that publishes the output of a sub-plan to the flows which share it.
+ * It also passes its input through to its own child, if it has one.
+ */
+public class SharedOutputNode extends PlanNode {
+  /** Identifies the sub-plan whose output we publish. */
+  private String mFingerprint;
+
+  /**
+   * The fields of the stream at the root of the sub-plan, if the events we
+   * publish may still be read lazily from that stream; null otherwise.
+   */
+  private List<TypedField> mSourceFields;
+
+  /** The subset of mSourceFields read by the sub-plan, or null if all are read. */
+  private List<TypedField> mRequiredFields;
+
+  public SharedOutputNode(String fingerprint, List<TypedField> sourceFields,
+      List<TypedField> requiredFields) {
+    mFingerprint = fingerprint;
+    mSourceFields = sourceFields;
+    mRequiredFields = requiredFields;
+  }
+
+  public String getFingerprint() {
+    return mFingerprint;
+  }
+
+  public List<TypedField> getSourceFields() {
+    return mSourceFields;
+  }
+
+  public List<TypedField> getRequiredFields() {
+    return mRequiredFields;
+  }
+
+  @Override
+  public void formatParams(StringBuilder sb) {
+    sb.append("SharedOutput subplan=");
+    sb.append(Integer.toHexString(mFingerprint.hashCode()));
+    sb.append("\n");
+    formatAttributes(sb);
+  }
+}
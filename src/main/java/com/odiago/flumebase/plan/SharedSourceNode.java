@@ -0,0 +1,45 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+/**
+ * Input source that reads the output of a sub-plan which is already
+ * computed on behalf of other flows. Introduced by the execution
+ * environment in place of the prefix of a plan that it shares with
+ * running flows.
+ */
+public class SharedSourceNode extends PlanNode {
+  /** Identifies the shared sub-plan whose output we read. */
+  private String mFingerprint;
+
+  public SharedSourceNode(String fingerprint) {
+    mFingerprint = fingerprint;
+  }
+
+  public String getFingerprint() {
+    return mFingerprint;
+  }
+
+  @Override
+  public void formatParams(StringBuilder sb) {
+    sb.append("SharedSource subplan=");
+    sb.append(Integer.toHexString(mFingerprint.hashCode()));
+    sb.append("\n");
+    formatAttributes(sb);
+  }
+}
@@ -44,12 +44,14 @@ import org.slf4j.LoggerFactory;
 import com.odiago.flumebase.exec.ExecEnvironment;
 import com.odiago.flumebase.exec.FlowId;
 import com.odiago.flumebase.exec.FlowInfo;
+import com.odiago.flumebase.exec.FlowMetrics;
 
 import com.odiago.flumebase.thrift.CallbackConnectionError;
 import com.odiago.flumebase.thrift.ClientConsole;
 import com.odiago.flumebase.thrift.RemoteServer;
 import com.odiago.flumebase.thrift.TFlowId;
 import com.odiago.flumebase.thrift.TFlowInfo;
+import com.odiago.flumebase.thrift.TFlowMetrics;
 import com.odiago.flumebase.thrift.TQuerySubmitResponse;
 import com.odiago.flumebase.thrift.TSessionId;
 
@@ -82,7 +84,11 @@ class RemoteServerImpl implements RemoteServer.Iface, CloseHandler<UserSession>
    */
   private Map<SessionId, UserSession> mActiveSessions;
 
+  /** Configuration used for the sessions of connecting clients. */
+  private Configuration mConf;
+
   public RemoteServerImpl(Configuration conf) {
+    mConf = conf;
     mStarted = false;
     mNextSessionId = 0;
     mActiveSessions = Collections.synchronizedMap(new HashMap<SessionId, UserSession>());
@@ -133,7 +139,7 @@ class RemoteServerImpl implements RemoteServer.Iface, CloseHandler<UserSession>
         ClientConsole.Client client = new ClientConsole.Client(protocol);
 
         // Store the info about this RPC connection in the active sessions table.
-        UserSession session = new UserSession(sessionId, transport, client);
+        UserSession session = new UserSession(sessionId, transport, client, mConf);
         session.subscribeToClose(this);
         mActiveSessions.put(sessionId, session);
       } catch (TException te) {
@@ -195,6 +201,22 @@ class RemoteServerImpl implements RemoteServer.Iface, CloseHandler<UserSession>
     }
   }
 
+  @Override
+  public Map<TFlowId, TFlowMetrics> getFlowMetrics() throws TException {
+    try {
+      Map<FlowId, FlowMetrics> metrics = mExecEnv.getFlowMetrics();
+      Map<TFlowId, TFlowMetrics> out = new HashMap<TFlowId, TFlowMetrics>();
+
+      for (Map.Entry<FlowId, FlowMetrics> entry : metrics.entrySet()) {
+        out.put(entry.getKey().toThrift(), entry.getValue().toThrift());
+      }
+
+      return out;
+    } catch (Exception e) {
+      throw new TException(e);
+    }
+  }
+
   @Override
   public boolean joinFlow(TFlowId id, long timeout) throws TException {
     if (null == id) {
@@ -17,6 +17,8 @@
 
 package com.odiago.flumebase.server;
 
+import java.io.File;
+
 import org.apache.hadoop.conf.Configuration;
 
 import org.apache.thrift.TProcessor;
@@ -35,6 +37,8 @@ import org.apache.thrift.transport.TTransportFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.odiago.flumebase.exec.local.Metastore;
+
 import com.odiago.flumebase.thrift.RemoteServer;
 
 import com.odiago.flumebase.util.AppUtils;
@@ -48,6 +52,10 @@ public class ServerMain {
   public static final String THRIFT_SERVER_PORT_KEY = "flumebase.remote.port";
   public static final int DEFAULT_THRIFT_SERVER_PORT = 9292;
 
+  /** Directory under $FLUMEBASE_HOME holding the server's persistent data. */
+  private static final String DATA_DIR_NAME = "data";
+  private static final String METASTORE_DIR_NAME = "metastore";
+
   /** Configuration info for the server. */
   private Configuration mConf;
   private PidFile mPidFile;
@@ -88,6 +96,16 @@ public class ServerMain {
 
     Runtime.getRuntime().addShutdownHook(new ShutdownLogger());
 
+    if (null == mConf.get(Metastore.METASTORE_DIR_KEY)) {
+      String homeDir = AppUtils.getAppHomeDir();
+      if (null != homeDir) {
+        // Persist streams and flows under the installation by default, so that
+        // they are restored when the server restarts.
+        File metastoreDir = new File(new File(homeDir, DATA_DIR_NAME), METASTORE_DIR_NAME);
+        mConf.set(Metastore.METASTORE_DIR_KEY, metastoreDir.getAbsolutePath());
+      }
+    }
+
     RemoteServerImpl remoteImpl = new RemoteServerImpl(mConf);
 
     int port = mConf.getInt(THRIFT_SERVER_PORT_KEY, DEFAULT_THRIFT_SERVER_PORT);
@@ -17,6 +17,18 @@
 
 package com.odiago.flumebase.server;
 
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+
 import org.apache.thrift.TException;
 
 import org.apache.thrift.transport.TTransport;
@@ -24,17 +36,44 @@ import org.apache.thrift.transport.TTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.odiago.flumebase.exec.FlowId;
+
 import com.odiago.flumebase.thrift.ClientConsole;
+import com.odiago.flumebase.thrift.TRowBlock;
 
 import com.odiago.flumebase.util.ClosePublisher;
 
 /**
  * State about a user's session, including the callback RPC connection, etc.
+ *
+ * <p>Output rows of the flows watched by this session are delivered
+ * asynchronously: {@link #sendRow(FlowId, String, byte[])} places each row in
+ * a bounded buffer, and a sender thread sends them to the client in blocks.
+ * A client that cannot keep up never holds up the flows; when the buffer
+ * is full, rows are dropped (and the client told how many), or the session
+ * is disconnected, depending on the configured policy.</p>
  */
 public class UserSession extends ClosePublisher implements ClientConsole.Iface {
   private static final Logger LOG = LoggerFactory.getLogger(
       UserSession.class.getName());
 
+  /** Max number of output rows buffered for delivery to the client. */
+  public static final String OUTPUT_BUFFER_ROWS_KEY = "flumebase.client.output.buffer.rows";
+  public static final int DEFAULT_OUTPUT_BUFFER_ROWS = 10000;
+
+  /** Max number of output rows sent to the client in a single RPC. */
+  public static final String OUTPUT_BLOCK_ROWS_KEY = "flumebase.client.output.block.rows";
+  public static final int DEFAULT_OUTPUT_BLOCK_ROWS = 500;
+
+  /**
+   * What to do with output rows when the client falls so far behind that the
+   * output buffer is full: "drop" them, or "disconnect" the session.
+   */
+  public static final String SLOW_CLIENT_POLICY_KEY = "flumebase.client.output.slow.policy";
+  public static final String SLOW_CLIENT_POLICY_DROP = "drop";
+  public static final String SLOW_CLIENT_POLICY_DISCONNECT = "disconnect";
+  public static final String DEFAULT_SLOW_CLIENT_POLICY = SLOW_CLIENT_POLICY_DROP;
+
   /** unique SessionId associated with this connection. */
   private final SessionId mSessionId;
 
@@ -43,14 +82,73 @@ public class UserSession extends ClosePublisher implements ClientConsole.Iface {
 
   /** Thrift service client for the RPC conn back to the client. */
   private ClientConsole.Iface mClient;
-  
+
+  /** Set to true when the session is closed. */
+  private volatile boolean mClosed;
+
+  private final int mBufferRows;
+  private final int mBlockRows;
+
+  /** True if the session is disconnected when the output buffer overflows. */
+  private final boolean mDisconnectSlowClient;
+
+  /** Output rows awaiting delivery to the client; created on first use. */
+  private volatile BlockingQueue<PendingRow> mPendingRows;
+
+  /** Thread delivering the contents of mPendingRows to the client. */
+  private RowSenderThread mSenderThread;
+
+  /** Number of rows dropped since the last block was sent to the client. */
+  private final AtomicLong mNumDropped;
+
+  /** Set to true when the output buffer overflows under the disconnect policy. */
+  private volatile boolean mOverflowed;
+
+  /** An output row waiting to be sent to the client. */
+  private static class PendingRow {
+    private final FlowId mFlowId;
+    private final String mSchema;
+    private final byte[] mRow;
+
+    public PendingRow(FlowId flowId, String schema, byte[] row) {
+      mFlowId = flowId;
+      mSchema = schema;
+      mRow = row;
+    }
+
+    /** @return true if this row can be sent in the same block as 'other'. */
+    public boolean isCompatible(PendingRow other) {
+      // Schema strings are shared by all rows of an OutputElement.
+      return mSchema == other.mSchema && mFlowId.equals(other.mFlowId);
+    }
+  }
+
   public UserSession(SessionId id, TTransport transport, ClientConsole.Iface client) {
+    this(id, transport, client, new Configuration());
+  }
+
+  public UserSession(SessionId id, TTransport transport, ClientConsole.Iface client,
+      Configuration conf) {
     mSessionId = id;
     mRpcTransport = transport;
     mClient = client;
 
     assert null != id;
     assert null != mClient;
+
+    mBufferRows = Math.max(1, conf.getInt(OUTPUT_BUFFER_ROWS_KEY, DEFAULT_OUTPUT_BUFFER_ROWS));
+    mBlockRows = Math.max(1, conf.getInt(OUTPUT_BLOCK_ROWS_KEY, DEFAULT_OUTPUT_BLOCK_ROWS));
+    String policy = conf.get(SLOW_CLIENT_POLICY_KEY, DEFAULT_SLOW_CLIENT_POLICY);
+    if (SLOW_CLIENT_POLICY_DISCONNECT.equals(policy)) {
+      mDisconnectSlowClient = true;
+    } else {
+      if (!SLOW_CLIENT_POLICY_DROP.equals(policy)) {
+        LOG.warn("Unknown " + SLOW_CLIENT_POLICY_KEY + " '" + policy + "'; using '"
+            + SLOW_CLIENT_POLICY_DROP + "'");
+      }
+      mDisconnectSlowClient = false;
+    }
+    mNumDropped = new AtomicLong();
   }
 
   /**
@@ -61,6 +159,12 @@ public class UserSession extends ClosePublisher implements ClientConsole.Iface {
   public synchronized void close() {
     LOG.info("Closing user session: " + mSessionId);
 
+    mClosed = true;
+    if (null != mSenderThread && Thread.currentThread() != mSenderThread) {
+      mSenderThread.interrupt();
+    }
+    mSenderThread = null;
+
     if (null != mRpcTransport) {
       mRpcTransport.close();
     }
@@ -124,5 +228,115 @@ public class UserSession extends ClosePublisher implements ClientConsole.Iface {
       close();
     }
   }
-}
 
+  /**
+   * Sends a block of output rows to the user's console. If this triggers an
+   * error, the session is closed and removed from the list of active sessions.
+   */
+  public synchronized void sendRows(TRowBlock rows) {
+    if (null == mClient) {
+      // We're already closed. Ignore.
+      return;
+    }
+    try {
+      mClient.sendRows(rows);
+    } catch (TException te) {
+      LOG.error("Could not send data to client: " + te);
+      close();
+    }
+  }
+
+  /**
+   * Queues an output row of a flow for delivery to the user's console. Never
+   * blocks; if the client has fallen too far behind, the row is handled
+   * according to the slow client policy.
+   * @param flowId the flow that emitted the row.
+   * @param schema the Avro schema (as JSON) of the row. All rows emitted by a
+   * flow should share the same String instance.
+   * @param row the Avro binary encoding of the row.
+   */
+  public void sendRow(FlowId flowId, String schema, byte[] row) {
+    if (mClosed) {
+      return;
+    }
+
+    BlockingQueue<PendingRow> pendingRows = mPendingRows;
+    if (null == pendingRows) {
+      pendingRows = startSender();
+      if (null == pendingRows) {
+        return; // Closed in the meantime.
+      }
+    }
+
+    if (!pendingRows.offer(new PendingRow(flowId, schema, row))) {
+      if (mDisconnectSlowClient) {
+        if (!mOverflowed) {
+          LOG.warn("Output buffer full for session " + mSessionId + "; disconnecting");
+          mOverflowed = true;
+        }
+      } else {
+        mNumDropped.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Creates the output buffer and starts the thread that empties it.
+   * @return the output buffer, or null if the session is closed.
+   */
+  private synchronized BlockingQueue<PendingRow> startSender() {
+    if (mClosed) {
+      return null;
+    } else if (null == mPendingRows) {
+      mPendingRows = new ArrayBlockingQueue<PendingRow>(mBufferRows);
+      mSenderThread = new RowSenderThread(mPendingRows);
+      mSenderThread.start();
+    }
+    return mPendingRows;
+  }
+
+  /**
+   * Thread that takes rows from the output buffer and sends them to the
+   * client, grouping consecutive rows of the same flow into blocks.
+   */
+  private class RowSenderThread extends Thread {
+    private final BlockingQueue<PendingRow> mQueue;
+
+    public RowSenderThread(BlockingQueue<PendingRow> queue) {
+      super("RowSender-" + mSessionId);
+      setDaemon(true);
+      mQueue = queue;
+    }
+
+    public void run() {
+      try {
+        while (!mClosed) {
+          PendingRow first = mQueue.take();
+          List<ByteBuffer> rows = new ArrayList<ByteBuffer>();
+          rows.add(ByteBuffer.wrap(first.mRow));
+          // We are the only consumer of the queue, so a row we peek at is
+          // still there when we poll.
+          PendingRow next = mQueue.peek();
+          while (null != next && rows.size() < mBlockRows && next.isCompatible(first)) {
+            mQueue.poll();
+            rows.add(ByteBuffer.wrap(next.mRow));
+            next = mQueue.peek();
+          }
+
+          TRowBlock block = new TRowBlock(first.mFlowId.toThrift(), first.mSchema, rows);
+          long numDropped = mNumDropped.getAndSet(0);
+          if (numDropped > 0) {
+            block.setNumDropped(numDropped);
+          }
+          sendRows(block);
+
+          if (mOverflowed) {
+            close();
+          }
+        }
+      } catch (InterruptedException ie) {
+        // Session closed; exit.
+      }
+    }
+  }
+}
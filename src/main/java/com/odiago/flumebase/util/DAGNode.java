@@ -97,6 +97,41 @@ public class DAGNode<NODETYPE extends DAGNode> {
     parent.mOutputs.add(this);
   }
 
+  /**
+   * Inserts 'node' into the edge from this node to 'child', so that 'node'
+   * becomes a child of this node and a parent of 'child'. The positions of
+   * the edge within the lists of children and parents are preserved.
+   */
+  public void spliceChild(NODETYPE child, NODETYPE node) {
+    List<DAGNode> childInputs = child.getParents();
+    int outPos = mOutputs.indexOf(child);
+    int inPos = childInputs.indexOf(this);
+    assert outPos >= 0 && inPos >= 0;
+    mOutputs.set(outPos, node);
+    node.getParents().add(this);
+    node.getChildren().add(child);
+    childInputs.set(inPos, node);
+  }
+
+  /**
+   * Removes this node, which must have a single parent, from the DAG. Its
+   * children become children of its parent in its place.
+   */
+  public void splice() {
+    assert mInputs.size() == 1;
+    NODETYPE parent = mInputs.get(0);
+    List<DAGNode> parentOutputs = parent.getChildren();
+    int outPos = parentOutputs.indexOf(this);
+    parentOutputs.remove(outPos);
+    parentOutputs.addAll(outPos, mOutputs);
+    for (NODETYPE child : mOutputs) {
+      List<DAGNode> childInputs = child.getParents();
+      childInputs.set(childInputs.indexOf(this), parent);
+    }
+    mInputs.clear();
+    mOutputs.clear();
+  }
+
   /** @return the node's id within the graph. */
   public int getId() {
     return mId;
@@ -0,0 +1,218 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+/**
+ * A hash map whose keys are tuples of values, held as Object arrays.
+ *
+ * <p>Callers compute the hash of a key once with hash(), and pass it along
+ * with the key to each operation. A lookup does not allocate; callers can
+ * probe the map with a reused scratch array, and only copy the key when
+ * inserting it. The map is open-addressed with linear probing, and stores
+ * the hash of each key so that most mismatched probes are rejected without
+ * comparing key elements.</p>
+ *
+ * <p>Key elements may be null; values may not. This map is not thread-safe.</p>
+ */
+public class GroupKeyMap<V> {
+
+  /** Initial number of slots. Must be a power of two. */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** The key in each slot, or null for an empty slot. */
+  private Object[][] mKeys;
+
+  /** The hash of the key in each slot. */
+  private int[] mHashes;
+
+  /** The value in each slot. */
+  private Object[] mValues;
+
+  /** Number of entries in the map. */
+  private int mSize;
+
+  /** Number of entries at which the table is grown. */
+  private int mThreshold;
+
+  public GroupKeyMap() {
+    allocate(INITIAL_CAPACITY);
+  }
+
+  private void allocate(int capacity) {
+    mKeys = new Object[capacity][];
+    mHashes = new int[capacity];
+    mValues = new Object[capacity];
+    mThreshold = capacity / 4 * 3;
+  }
+
+  /** @return the hash code of a key. */
+  public static int hash(Object[] key) {
+    int hash = 1;
+    for (Object elem : key) {
+      hash = 31 * hash + (null == elem ? 0 : elem.hashCode());
+    }
+    return hash;
+  }
+
+  /** @return the first slot to probe for a hash code. */
+  private int slotFor(int hash) {
+    int mixed = hash * 0x9E3779B9;
+    return (mixed ^ (mixed >>> 16)) & (mKeys.length - 1);
+  }
+
+  private static boolean keysEqual(Object[] a, Object[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+
+    for (int i = 0; i < a.length; i++) {
+      Object elemA = a[i];
+      Object elemB = b[i];
+      if (elemA != elemB && (null == elemA || !elemA.equals(elemB))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /** @return the slot holding 'key', or -1 if it is not present. */
+  private int findSlot(Object[] key, int hash) {
+    int mask = mKeys.length - 1;
+    for (int slot = slotFor(hash); null != mKeys[slot]; slot = (slot + 1) & mask) {
+      if (mHashes[slot] == hash && keysEqual(mKeys[slot], key)) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the value mapped to 'key', or null if there is none.
+   * @param hash the result of hash(key).
+   */
+  @SuppressWarnings("unchecked")
+  public V get(Object[] key, int hash) {
+    int slot = findSlot(key, hash);
+    if (-1 == slot) {
+      return null;
+    }
+    return (V) mValues[slot];
+  }
+
+  /**
+   * Map 'key' to 'value', replacing any existing mapping for the key.
+   * The map retains the key array; the caller must not modify it afterward.
+   * @param hash the result of hash(key).
+   */
+  public void put(Object[] key, int hash, V value) {
+    if (null == value) {
+      throw new IllegalArgumentException("GroupKeyMap cannot hold null values");
+    }
+
+    int slot = findSlot(key, hash);
+    if (-1 != slot) {
+      mValues[slot] = value;
+      return;
+    }
+
+    if (mSize >= mThreshold) {
+      grow();
+    }
+
+    int mask = mKeys.length - 1;
+    slot = slotFor(hash);
+    while (null != mKeys[slot]) {
+      slot = (slot + 1) & mask;
+    }
+    mKeys[slot] = key;
+    mHashes[slot] = hash;
+    mValues[slot] = value;
+    mSize++;
+  }
+
+  /**
+   * Remove the mapping for 'key', if it maps to 'value'.
+   * @param hash the result of hash(key).
+   * @return true if the mapping was removed.
+   */
+  public boolean remove(Object[] key, int hash, V value) {
+    int slot = findSlot(key, hash);
+    if (-1 == slot || mValues[slot] != value) {
+      return false;
+    }
+
+    // Shift later entries of the probe sequence back into the gap, so that
+    // every entry remains reachable from its first probe slot.
+    int mask = mKeys.length - 1;
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (null != mKeys[next]) {
+      int home = slotFor(mHashes[next]);
+      // Move the entry at 'next' if its home slot does not lie in (gap, next].
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        mKeys[gap] = mKeys[next];
+        mHashes[gap] = mHashes[next];
+        mValues[gap] = mValues[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+
+    mKeys[gap] = null;
+    mValues[gap] = null;
+    mSize--;
+    return true;
+  }
+
+  /** Double the number of slots, and rehash all entries. */
+  private void grow() {
+    Object[][] oldKeys = mKeys;
+    int[] oldHashes = mHashes;
+    Object[] oldValues = mValues;
+    allocate(oldKeys.length * 2);
+
+    int mask = mKeys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (null != oldKeys[i]) {
+        int slot = slotFor(oldHashes[i]);
+        while (null != mKeys[slot]) {
+          slot = (slot + 1) & mask;
+        }
+        mKeys[slot] = oldKeys[i];
+        mHashes[slot] = oldHashes[i];
+        mValues[slot] = oldValues[i];
+      }
+    }
+  }
+
+  /** @return the number of entries in the map. */
+  public int size() {
+    return mSize;
+  }
+
+  public boolean isEmpty() {
+    return 0 == mSize;
+  }
+
+  /** Remove all entries from the map. */
+  public void clear() {
+    allocate(INITIAL_CAPACITY);
+    mSize = 0;
+  }
+}
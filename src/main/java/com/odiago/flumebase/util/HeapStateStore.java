@@ -0,0 +1,70 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+/**
+ * A StateStore which keeps every value on the heap; spill() never moves any
+ * values. Used when the state of a flow is not limited by a StateBudget.
+ */
+public class HeapStateStore<V> implements StateStore<V> {
+
+  /** Estimates the size of values, or null if values are not measured. */
+  private final ValueSerializer<V> mSerializer;
+
+  /**
+   * Create a store whose values are measured by 'serializer'. If it is null,
+   * sizeOf() always returns 0.
+   */
+  public HeapStateStore(ValueSerializer<V> serializer) {
+    mSerializer = serializer;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  @SuppressWarnings("unchecked")
+  public long sizeOf(Object slot) {
+    if (null == mSerializer) {
+      return 0;
+    }
+    return mSerializer.estimateSize((V) slot);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Object spill(Object[] slots, int count) {
+    return null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isSpilled(Object slot) {
+    return false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(Object slot) {
+    return (V) slot;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void release(Object spill) {
+  }
+}
@@ -0,0 +1,236 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A StateStore which spills values to files, and reads them back through a
+ * read-only memory mapping of those files.
+ *
+ * <p>Each spill() call writes the values of its slots to a new file in the
+ * spill directory, using a ValueSerializer, and maps it; the slots then
+ * hold the location of their value within the mapping. Values which the
+ * serializer cannot write stay on the heap. A file is deleted when its spill
+ * is released; its mapping is released once no slots refer to it.</p>
+ */
+public class MappedStateStore<V> implements StateStore<V> {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      MappedStateStore.class.getName());
+
+  /** Estimated heap used by a reference to a spilled value. */
+  private static final long SPILLED_VALUE_SIZE = 32;
+
+  /** A spill stops writing values once its file reaches this size. */
+  private static final int MAX_SPILL_FILE_SIZE = 1 << 30;
+
+  /** The location of a value in a memory-mapped spill file. */
+  private static final class SpilledValue {
+    private ByteBuffer mBuffer;
+    private final int mOffset;
+    private final int mLength;
+
+    SpilledValue(int offset, int length) {
+      mOffset = offset;
+      mLength = length;
+    }
+
+    InputStream open() {
+      ByteBuffer buf = mBuffer.duplicate();
+      buf.limit(mOffset + mLength);
+      buf.position(mOffset);
+      return new ByteBufferInputStream(buf);
+    }
+  }
+
+  /** Reads the remaining bytes of a ByteBuffer. */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer mBuf;
+
+    ByteBufferInputStream(ByteBuffer buf) {
+      mBuf = buf;
+    }
+
+    @Override
+    public int read() {
+      if (!mBuf.hasRemaining()) {
+        return -1;
+      }
+      return mBuf.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      } else if (!mBuf.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, mBuf.remaining());
+      mBuf.get(b, off, len);
+      return len;
+    }
+  }
+
+  private final ValueSerializer<V> mSerializer;
+
+  /** Directory in which spill files are created, or null for the default. */
+  private final File mSpillDir;
+
+  /** Prefix of the names of the spill files. */
+  private final String mPrefix;
+
+  /** Indices into the slots, and (start, end) offsets, of the values written by a spill. */
+  private int[] mSpillEntries;
+
+  /**
+   * Create a store which spills values to files in 'spillDir'.
+   * @param prefix the prefix of the names of the spill files, identifying
+   * the kind of state they hold.
+   * @param spillDir the directory to spill to, or null for the default
+   * temporary-file directory.
+   */
+  public MappedStateStore(ValueSerializer<V> serializer, String prefix, File spillDir) {
+    mSerializer = serializer;
+    mPrefix = prefix;
+    mSpillDir = spillDir;
+    mSpillEntries = new int[0];
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  @SuppressWarnings("unchecked")
+  public long sizeOf(Object slot) {
+    if (slot instanceof SpilledValue) {
+      return SPILLED_VALUE_SIZE;
+    }
+    return mSerializer.estimateSize((V) slot);
+  }
+
+  /** Record that slot 'index' was written to a spill file between 'start' and 'end'. */
+  private void addSpillEntry(int entry, int index, int start, int end) {
+    int pos = entry * 3;
+    if (pos == mSpillEntries.length) {
+      mSpillEntries = Arrays.copyOf(mSpillEntries, Math.max(48, pos * 2));
+    }
+    mSpillEntries[pos] = index;
+    mSpillEntries[pos + 1] = start;
+    mSpillEntries[pos + 2] = end;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  @SuppressWarnings("unchecked")
+  public Object spill(Object[] slots, int count) throws IOException {
+    File file = File.createTempFile(mPrefix, ".spill", mSpillDir);
+    boolean success = false;
+    try {
+      int numEntries = 0;
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(file)));
+      try {
+        for (int i = 0; i < count && out.size() < MAX_SPILL_FILE_SIZE; i++) {
+          if (slots[i] instanceof SpilledValue) {
+            continue;
+          }
+          int start = out.size();
+          if (mSerializer.write((V) slots[i], out)) {
+            addSpillEntry(numEntries++, i, start, out.size());
+          }
+        }
+      } finally {
+        out.close();
+      }
+
+      if (0 == numEntries) {
+        return null;
+      }
+
+      ByteBuffer buffer;
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      } finally {
+        raf.close();
+      }
+
+      for (int e = 0; e < numEntries; e++) {
+        int start = mSpillEntries[e * 3 + 1];
+        SpilledValue spilled = new SpilledValue(start, mSpillEntries[e * 3 + 2] - start);
+        spilled.mBuffer = buffer;
+        slots[mSpillEntries[e * 3]] = spilled;
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Spilled " + numEntries + " values to " + file);
+      }
+      success = true;
+      return file;
+    } finally {
+      if (!success) {
+        file.delete();
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isSpilled(Object slot) {
+    return slot instanceof SpilledValue;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(Object slot) {
+    if (!(slot instanceof SpilledValue)) {
+      return (V) slot;
+    }
+
+    try {
+      return mSerializer.read(new DataInputStream(((SpilledValue) slot).open()));
+    } catch (IOException ioe) {
+      // The value is read from memory; this means the spill file is corrupt.
+      throw new RuntimeException("Could not read spilled value", ioe);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void release(Object spill) {
+    File file = (File) spill;
+    if (!file.delete()) {
+      LOG.warn("Could not delete spill file " + file);
+    }
+  }
+}
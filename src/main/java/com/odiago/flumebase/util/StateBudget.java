@@ -0,0 +1,103 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+import java.io.File;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The amount of heap which the state of the stateful operators of a flow
+ * (its joins and aggregations) may use, shared by all of those operators.
+ *
+ * <p>Each operator adds the estimated heap used by its state to the budget
+ * as it grows, and subtracts it as it shrinks. When the total exceeds the
+ * limit, the operator whose state is growing spills its coldest state through
+ * a StateStore obtained from newStore(). The operators of a flow may run in
+ * several threads; the budget is thread-safe.</p>
+ */
+public class StateBudget {
+
+  /** A budget without a limit; its state is always kept on the heap. */
+  public static final StateBudget UNLIMITED = new StateBudget(0, null);
+
+  /** The limit in bytes, or 0 if the budget is unlimited. */
+  private final long mLimit;
+
+  /** Directory in which spill files are created, or null for the default. */
+  private final File mSpillDir;
+
+  /** Estimated heap used by the state of the flow. */
+  private final AtomicLong mUsedBytes;
+
+  /**
+   * Create a budget which allows the state of a flow to use 'limit' bytes
+   * of heap before it is spilled to files in 'spillDir'.
+   * @param limit the limit in bytes, or 0 for no limit.
+   * @param spillDir the directory to spill to, or null for the default
+   * temporary-file directory.
+   */
+  public StateBudget(long limit, File spillDir) {
+    mLimit = Math.max(0, limit);
+    mSpillDir = spillDir;
+    mUsedBytes = new AtomicLong();
+  }
+
+  /** @return true if the budget limits the heap used by state. */
+  public boolean isLimited() {
+    return mLimit > 0;
+  }
+
+  /** @return the limit in bytes, or 0 if the budget is unlimited. */
+  public long getLimit() {
+    return mLimit;
+  }
+
+  /** @return the estimated heap used by the state of the flow. */
+  public long getUsedBytes() {
+    return mUsedBytes.get();
+  }
+
+  /**
+   * Record a change in the estimated heap used by an operator's state.
+   * Changes to an unlimited budget are not recorded.
+   */
+  public void add(long bytes) {
+    if (mLimit > 0 && bytes != 0) {
+      mUsedBytes.addAndGet(bytes);
+    }
+  }
+
+  /** @return true if the state of the flow uses more heap than the limit allows. */
+  public boolean isExceeded() {
+    return mLimit > 0 && mUsedBytes.get() > mLimit;
+  }
+
+  /**
+   * @return a new StateStore for values written by 'serializer': a
+   * MappedStateStore spilling to this budget's directory if the budget is
+   * limited, or a HeapStateStore otherwise.
+   * @param prefix the prefix of the names of the spill files.
+   */
+  public <V> StateStore<V> newStore(ValueSerializer<V> serializer, String prefix) {
+    if (mLimit > 0) {
+      return new MappedStateStore<V>(serializer, prefix, mSpillDir);
+    }
+    return new HeapStateStore<V>(serializer);
+  }
+}
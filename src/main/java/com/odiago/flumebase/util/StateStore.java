@@ -0,0 +1,66 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+import java.io.IOException;
+
+/**
+ * Holds the values making up the state of a stateful operator (e.g., the
+ * events in a join window, or the buckets of an aggregation), on or off the
+ * heap.
+ *
+ * <p>The operator keeps its values in its own data structures, in "slots".
+ * A slot initially holds the value itself. When the operator must reduce its
+ * heap usage, it passes a batch of slots to spill(), which may replace them
+ * with references to copies of their values held elsewhere. get() returns the
+ * value of a slot either way. The storage of a batch is released as a whole,
+ * once none of its slots are in use.</p>
+ *
+ * <p>A StateStore is used by the thread executing its operator, and is not
+ * thread-safe.</p>
+ */
+public interface StateStore<V> {
+
+  /**
+   * @return an estimate of the number of bytes of heap retained by a slot
+   * holding 'slot', which is either a value or a reference returned by spill().
+   */
+  long sizeOf(Object slot);
+
+  /**
+   * Move the values of slots[0..count) out of the heap. On return, each slot
+   * whose value was moved holds a reference to it instead; the other slots
+   * are unchanged. Slots which already hold references are skipped. If this
+   * throws an IOException, all slots are unchanged.
+   * @return a handle on the storage of the moved values, to be passed to
+   * release(), or null if no values were moved.
+   */
+  Object spill(Object[] slots, int count) throws IOException;
+
+  /** @return true if 'slot' holds a reference returned by spill(). */
+  boolean isSpilled(Object slot);
+
+  /** @return the value held by, or referenced by, a slot. */
+  V get(Object slot);
+
+  /**
+   * Release the storage of the values moved by a spill() call. The slots
+   * which referenced them must no longer be used.
+   */
+  void release(Object spill);
+}
@@ -0,0 +1,45 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts values held by a state store to and from a compact binary form,
+ * so that they can be spilled out of the heap.
+ */
+public interface ValueSerializer<V> {
+
+  /**
+   * @return an estimate of the number of bytes of heap retained by the
+   * specified value.
+   */
+  long estimateSize(V value);
+
+  /**
+   * Write the specified value to 'out'.
+   * @return true if the value was written; false if this value cannot be
+   * serialized, in which case nothing is written and it must stay on the heap.
+   */
+  boolean write(V value, DataOutput out) throws IOException;
+
+  /** Read a value previously written by write(). */
+  V read(DataInput in) throws IOException;
+}
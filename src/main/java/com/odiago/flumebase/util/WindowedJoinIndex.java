@@ -0,0 +1,629 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.util;
+
+import java.io.IOException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of timestamped values by key, for use by windowed join
+ * operations. Each entry has a key, a value, and a timestamp in
+ * milliseconds.
+ *
+ * <p>The entries for each key are held in a ring buffer of primitive
+ * timestamps and values, ordered by timestamp, so that a time-ranged lookup
+ * is a binary search followed by a scan over exactly the matching entries.
+ * Entries may be inserted out of timestamp order, although this is most
+ * efficient when they arrive (nearly) in order.</p>
+ *
+ * <p>Time is divided into fixed-width segments. Each segment records the
+ * keys that received entries in that segment. Expiry works a segment at a
+ * time: once a segment lies entirely before the expiry time, only the keys
+ * it recorded are visited and their oldest entries dropped. Entries in a
+ * partially-expired segment stay in the index until the whole segment
+ * expires, but are never returned by getRange() calls that exclude them.</p>
+ *
+ * <p>An index may be given a StateStore and the StateBudget of its flow.
+ * The estimated size of its entries is then added to the budget, and when
+ * the budget is exceeded, the values of the oldest segments are spilled
+ * through the store a segment at a time; the newest segment, which receives
+ * most lookups, always stays on the heap. A segment's spill is released
+ * when the segment expires.</p>
+ *
+ * <p>This index may not store null keys or values. It is not thread-safe.</p>
+ */
+public class WindowedJoinIndex<K, V> {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      WindowedJoinIndex.class.getName());
+
+  /** Initial capacity of the ring buffer for a key. Must be a power of two. */
+  private static final int INITIAL_RING_CAPACITY = 2;
+
+  /** Initial capacity of the key list of a segment. */
+  private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+  /** Estimated heap used by an entry's slots in a ring, beyond its value. */
+  private static final long ENTRY_OVERHEAD = 16;
+
+  /** The entries for a single key, ordered by timestamp. */
+  private static final class KeyRing {
+    private final Object mKey;
+    private long[] mTimes;
+    private Object[] mValues;
+
+    /** Physical index of the oldest entry. */
+    private int mHead;
+    private int mSize;
+
+    /** The newest segment this ring has been recorded in. */
+    private long mLastSegment;
+
+    /** The number of the last spill which visited this ring. */
+    private int mSpillMark;
+
+    KeyRing(Object key) {
+      mKey = key;
+      mTimes = new long[INITIAL_RING_CAPACITY];
+      mValues = new Object[INITIAL_RING_CAPACITY];
+      mLastSegment = Long.MIN_VALUE;
+    }
+
+    /** @return the physical index of the i'th oldest entry. */
+    private int index(int i) {
+      return (mHead + i) & (mTimes.length - 1);
+    }
+
+    long timeAt(int i) {
+      return mTimes[index(i)];
+    }
+
+    Object valueAt(int i) {
+      return mValues[index(i)];
+    }
+
+    /** Insert an entry after all entries with timestamps less than or equal to its own. */
+    void add(long timestamp, Object value) {
+      if (mSize == mTimes.length) {
+        grow();
+      }
+
+      // Shift newer entries up by one to make room; usually there are none.
+      int pos = mSize;
+      while (pos > 0 && timeAt(pos - 1) > timestamp) {
+        int dest = index(pos);
+        int src = index(pos - 1);
+        mTimes[dest] = mTimes[src];
+        mValues[dest] = mValues[src];
+        pos--;
+      }
+
+      int dest = index(pos);
+      mTimes[dest] = timestamp;
+      mValues[dest] = value;
+      mSize++;
+    }
+
+    private void grow() {
+      int capacity = mTimes.length;
+      long[] times = new long[capacity * 2];
+      Object[] values = new Object[capacity * 2];
+      for (int i = 0; i < mSize; i++) {
+        times[i] = timeAt(i);
+        values[i] = valueAt(i);
+      }
+      mTimes = times;
+      mValues = values;
+      mHead = 0;
+    }
+
+    /**
+     * Remove all entries with timestamps less than 'timestamp'.
+     * @return the number of entries removed.
+     */
+    int removeOlderThan(long timestamp) {
+      int removed = 0;
+      while (mSize > 0 && mTimes[mHead] < timestamp) {
+        mValues[mHead] = null;
+        mHead = (mHead + 1) & (mTimes.length - 1);
+        mSize--;
+        removed++;
+      }
+      return removed;
+    }
+
+    /**
+     * @return the logical index of the first entry whose timestamp is greater
+     * than (if 'open') or equal to (otherwise) 'timestamp'.
+     */
+    int lowerBound(long timestamp, boolean open) {
+      int lo = 0;
+      int hi = mSize;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        long t = timeAt(mid);
+        if (open ? t <= timestamp : t < timestamp) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+  }
+
+  /** The keys which received entries within one span of time. */
+  private static final class Segment {
+    /** Segment number; the segment covers [mIndex * width, (mIndex + 1) * width). */
+    private long mIndex;
+    private KeyRing[] mRings;
+    private int mNumRings;
+
+    /** The oldest timestamp of any entry recorded in this segment. */
+    private long mMinTime;
+
+    /** True if this segment's values have been spilled. */
+    private boolean mSpilled;
+
+    /** The StateStore's handle on this segment's spilled values, or null. */
+    private Object mSpill;
+
+    Segment() {
+      mRings = new KeyRing[INITIAL_SEGMENT_CAPACITY];
+    }
+
+    void init(long index) {
+      mIndex = index;
+      mNumRings = 0;
+      mMinTime = Long.MAX_VALUE;
+      mSpilled = false;
+      mSpill = null;
+    }
+
+    void add(KeyRing ring, long timestamp) {
+      if (mNumRings == mRings.length) {
+        mRings = Arrays.copyOf(mRings, mRings.length * 2);
+      }
+      mRings[mNumRings++] = ring;
+      mMinTime = Math.min(mMinTime, timestamp);
+    }
+
+    /** Release the references held by this segment so it can be reused. */
+    void clear() {
+      Arrays.fill(mRings, 0, mNumRings, null);
+      mNumRings = 0;
+    }
+  }
+
+  /** Receives the entries of an index from visitEntries(). */
+  public interface EntryVisitor<K, V> {
+    void visit(K key, V value, long timestamp) throws IOException;
+  }
+
+  /** Width of each segment, in milliseconds. */
+  private final long mSegmentWidth;
+
+  private final HashMap<K, KeyRing> mRings;
+
+  /** Live segments, in increasing order of segment number. */
+  private final ArrayDeque<Segment> mSegments;
+
+  /** Expired segments available for reuse. */
+  private final ArrayDeque<Segment> mFreeSegments;
+
+  /** Total number of entries in the index. */
+  private int mSize;
+
+  /** Holds the values of the entries, in the slots of the rings. */
+  private final StateStore<V> mStore;
+
+  /** The budget of the flow, to which the size of the entries is added. */
+  private final StateBudget mBudget;
+
+  /** True if the size of the entries is tracked; false if the budget is unlimited. */
+  private final boolean mTracked;
+
+  /** Set if spilling failed; the index then keeps all new entries on the heap. */
+  private boolean mSpillDisabled;
+
+  /** Estimated heap used by the entries; only maintained if mTracked is set. */
+  private long mMemoryBytes;
+
+  /** Number of entries whose values are spilled. */
+  private int mNumSpilled;
+
+  /** Number of the current (or most recent) spill. */
+  private int mSpillCount;
+
+  /** Rings and indices of the entries passed to the current spill, and their slots. */
+  private final List<KeyRing> mSpillRings;
+  private int[] mSpillIndices;
+  private Object[] mSpillSlots;
+
+  /**
+   * Create an index whose entries are expired in segments of the specified
+   * width, in milliseconds. A narrower segment releases expired entries
+   * sooner, at the cost of more frequent expiry work.
+   */
+  public WindowedJoinIndex(long segmentWidth) {
+    this(segmentWidth, new HeapStateStore<V>(null), StateBudget.UNLIMITED);
+  }
+
+  /**
+   * Create an index whose values are held in 'store', and whose entries
+   * count against 'budget'. If the budget is limited, the store must
+   * measure its values; they are spilled when the budget is exceeded.
+   */
+  public WindowedJoinIndex(long segmentWidth, StateStore<V> store, StateBudget budget) {
+    if (segmentWidth <= 0) {
+      throw new IllegalArgumentException("Segment width must be positive: " + segmentWidth);
+    }
+    mSegmentWidth = segmentWidth;
+    mRings = new HashMap<K, KeyRing>();
+    mSegments = new ArrayDeque<Segment>();
+    mFreeSegments = new ArrayDeque<Segment>();
+    mStore = store;
+    mBudget = budget;
+    mTracked = budget.isLimited();
+    mSpillRings = new ArrayList<KeyRing>();
+    mSpillIndices = new int[0];
+    mSpillSlots = new Object[0];
+  }
+
+  /** @return the number of entries in the index. */
+  public int size() {
+    return mSize;
+  }
+
+  public boolean isEmpty() {
+    return mSize == 0;
+  }
+
+  /** @return the number of distinct keys with entries in the index. */
+  public int numKeys() {
+    return mRings.size();
+  }
+
+  /** @return the number of entries whose values are spilled out of the heap. */
+  public int numSpilled() {
+    return mNumSpilled;
+  }
+
+  /**
+   * @return the estimated heap used by the entries of the index, or 0 if
+   * its budget is unlimited.
+   */
+  public long getMemoryBytes() {
+    return mMemoryBytes;
+  }
+
+  /** @return the estimated heap used by an entry whose slot holds 'value'. */
+  private long entrySize(Object value) {
+    return ENTRY_OVERHEAD + mStore.sizeOf(value);
+  }
+
+  /** @return the segment number holding the specified timestamp. */
+  private long segmentFor(long timestamp) {
+    long segment = timestamp / mSegmentWidth;
+    if (timestamp < 0 && segment * mSegmentWidth != timestamp) {
+      segment--; // Round towards negative infinity.
+    }
+    return segment;
+  }
+
+  private Segment newSegment(long index) {
+    Segment segment = mFreeSegments.poll();
+    if (null == segment) {
+      segment = new Segment();
+    }
+    segment.init(index);
+    return segment;
+  }
+
+  /**
+   * @return the segment in which an entry with the specified segment number
+   * should be recorded: the segment with that number, or if that would be
+   * out of order, the oldest segment after it.
+   */
+  private Segment getSegment(long index) {
+    Segment last = mSegments.peekLast();
+    if (null == last || last.mIndex < index) {
+      Segment segment = newSegment(index);
+      mSegments.addLast(segment);
+      return segment;
+    } else if (last.mIndex == index) {
+      return last;
+    }
+
+    // An out-of-order entry. Recording it in a later segment only delays its expiry.
+    Iterator<Segment> segments = mSegments.iterator();
+    while (true) {
+      Segment segment = segments.next();
+      if (segment.mIndex >= index) {
+        return segment;
+      }
+    }
+  }
+
+  /** Add an entry to the index. */
+  public void put(K key, V value, long timestamp) {
+    KeyRing ring = mRings.get(key);
+    if (null == ring) {
+      ring = new KeyRing(key);
+      mRings.put(key, ring);
+    }
+
+    ring.add(timestamp, value);
+    mSize++;
+
+    Segment segment = getSegment(segmentFor(timestamp));
+    if (ring.mLastSegment != segment.mIndex) {
+      // A ring may be recorded in a segment more than once if its entries
+      // arrive out of order; expiring it twice is harmless.
+      segment.add(ring, timestamp);
+      ring.mLastSegment = Math.max(ring.mLastSegment, segment.mIndex);
+    } else {
+      segment.mMinTime = Math.min(segment.mMinTime, timestamp);
+    }
+
+    if (mTracked) {
+      long size = entrySize(value);
+      mMemoryBytes += size;
+      mBudget.add(size);
+      if (!mSpillDisabled && mBudget.isExceeded()) {
+        spill();
+      }
+    }
+  }
+
+  /**
+   * Spill the values of the oldest segments until the state of the flow fits
+   * within its budget, or only the newest segment remains on the heap.
+   */
+  private void spill() {
+    Segment newest = mSegments.peekLast();
+    for (Segment segment : mSegments) {
+      if (!mBudget.isExceeded() || segment == newest) {
+        return;
+      } else if (segment.mSpilled) {
+        continue;
+      }
+
+      try {
+        spillSegment(segment);
+      } catch (IOException ioe) {
+        // Keep going without spilling, rather than fail the flow.
+        LOG.warn("Could not spill join state; keeping new entries on the heap: " + ioe);
+        mSpillDisabled = true;
+        return;
+      }
+    }
+  }
+
+  /** Record that the entry at 'index' of 'ring' is passed to the current spill. */
+  private void addSpillEntry(KeyRing ring, int index) {
+    int pos = mSpillRings.size();
+    if (pos == mSpillIndices.length) {
+      int capacity = Math.max(16, pos * 2);
+      mSpillIndices = Arrays.copyOf(mSpillIndices, capacity);
+      mSpillSlots = Arrays.copyOf(mSpillSlots, capacity);
+    }
+    mSpillRings.add(ring);
+    mSpillIndices[pos] = ring.index(index);
+    mSpillSlots[pos] = ring.valueAt(index);
+  }
+
+  /**
+   * Spill the values held on the heap of all entries recorded in 'segment'
+   * which precede its end, and replace them in their rings with the
+   * references returned by the store. If this fails, the index is left
+   * unchanged.
+   */
+  private void spillSegment(Segment segment) throws IOException {
+    long end = (segment.mIndex + 1) * mSegmentWidth;
+    int spill = ++mSpillCount;
+    try {
+      for (int r = 0; r < segment.mNumRings; r++) {
+        KeyRing ring = segment.mRings[r];
+        if (ring.mSpillMark == spill) {
+          continue; // Recorded in this segment twice.
+        }
+        ring.mSpillMark = spill;
+        for (int i = 0; i < ring.mSize && ring.timeAt(i) < end; i++) {
+          if (!mStore.isSpilled(ring.valueAt(i))) {
+            addSpillEntry(ring, i);
+          }
+        }
+      }
+
+      int numEntries = mSpillRings.size();
+      segment.mSpill = mStore.spill(mSpillSlots, numEntries);
+      segment.mSpilled = true;
+      for (int e = 0; e < numEntries; e++) {
+        if (mStore.isSpilled(mSpillSlots[e])) {
+          KeyRing ring = mSpillRings.get(e);
+          int index = mSpillIndices[e];
+          long delta = mStore.sizeOf(mSpillSlots[e]) - mStore.sizeOf(ring.mValues[index]);
+          mMemoryBytes += delta;
+          mBudget.add(delta);
+          ring.mValues[index] = mSpillSlots[e];
+          mNumSpilled++;
+        }
+      }
+    } finally {
+      mSpillRings.clear();
+      Arrays.fill(mSpillSlots, null);
+    }
+  }
+
+  /** @return the value of an entry, reading it back from the store if necessary. */
+  private V getValue(Object value) {
+    return mStore.get(value);
+  }
+
+  /** Release the values spilled from a segment which has been removed from the index. */
+  private void releaseSpill(Segment segment) {
+    if (null != segment.mSpill) {
+      mStore.release(segment.mSpill);
+      segment.mSpill = null;
+    }
+  }
+
+  /** Remove the entries of 'ring' older than 'timestamp' from the memory estimate. */
+  private void releaseOlderThan(KeyRing ring, long timestamp) {
+    for (int i = 0; i < ring.mSize && ring.timeAt(i) < timestamp; i++) {
+      Object value = ring.valueAt(i);
+      if (mStore.isSpilled(value)) {
+        mNumSpilled--;
+      }
+      long size = entrySize(value);
+      mMemoryBytes -= size;
+      mBudget.add(-size);
+    }
+  }
+
+  /**
+   * Add to 'out' all values for a key within a given timestamp range, in
+   * timestamp order. Arguments specify whether the lower and upper bounds
+   * of the interval are open-ended or closed.
+   * @return the number of values added to 'out'.
+   */
+  public int getRange(K key, long lo, long hi, boolean openLo, boolean openHi,
+      List<? super V> out) {
+    KeyRing ring = mRings.get(key);
+    if (null == ring) {
+      return 0;
+    }
+
+    int count = 0;
+    for (int i = ring.lowerBound(lo, openLo); i < ring.mSize; i++) {
+      long t = ring.timeAt(i);
+      if (openHi ? t >= hi : t > hi) {
+        break;
+      }
+      out.add(getValue(ring.valueAt(i)));
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Remove entries whose timestamps are less than 'timestamp'. Entries are
+   * removed a segment at a time, so some entries older than 'timestamp'
+   * may remain until the rest of their segment expires.
+   */
+  public void removeOlderThan(long timestamp) {
+    while (!mSegments.isEmpty()) {
+      Segment head = mSegments.peekFirst();
+      if ((head.mIndex + 1) * mSegmentWidth > timestamp) {
+        return; // The oldest segment has not yet expired.
+      }
+
+      for (int i = 0; i < head.mNumRings; i++) {
+        KeyRing ring = head.mRings[i];
+        if (mTracked) {
+          releaseOlderThan(ring, timestamp);
+        }
+        mSize -= ring.removeOlderThan(timestamp);
+        if (ring.mSize == 0 && mRings.get(ring.mKey) == ring) {
+          mRings.remove(ring.mKey);
+        }
+      }
+
+      mSegments.pollFirst();
+      releaseSpill(head);
+      head.clear();
+      mFreeSegments.push(head);
+    }
+  }
+
+  /**
+   * @return a lower bound on the oldest timestamp in the index, or
+   * Long.MIN_VALUE if the index is empty. Entries that expired alongside a
+   * segment may make this older than the oldest remaining entry.
+   */
+  public long oldestTimestamp() {
+    if (mSize == 0) {
+      return Long.MIN_VALUE;
+    }
+
+    long oldest = Long.MAX_VALUE;
+    for (Segment segment : mSegments) {
+      oldest = Math.min(oldest, segment.mMinTime);
+    }
+    return oldest;
+  }
+
+  /** Remove all entries from the index, and release its spilled values. */
+  public void clear() {
+    mRings.clear();
+    while (!mSegments.isEmpty()) {
+      Segment segment = mSegments.pollFirst();
+      releaseSpill(segment);
+      segment.clear();
+      mFreeSegments.push(segment);
+    }
+    mSize = 0;
+    mBudget.add(-mMemoryBytes);
+    mMemoryBytes = 0;
+    mNumSpilled = 0;
+  }
+
+  /**
+   * Pass every entry in the index to 'visitor'. Entries are visited a
+   * segment at a time, oldest first, so they can be put into another index
+   * nearly in timestamp order.
+   */
+  @SuppressWarnings("unchecked")
+  public void visitEntries(EntryVisitor<K, V> visitor) throws IOException {
+    // Each segment holds the entries whose segment numbers follow those of
+    // the segment before it, up to and including its own.
+    long lo = Long.MIN_VALUE;
+    Set<KeyRing> visited = new HashSet<KeyRing>();
+    for (Segment segment : mSegments) {
+      long hi = (segment.mIndex + 1) * mSegmentWidth;
+      visited.clear();
+      for (int i = 0; i < segment.mNumRings; i++) {
+        KeyRing ring = segment.mRings[i];
+        if (!visited.add(ring)) {
+          continue; // Recorded in this segment more than once.
+        }
+
+        for (int j = ring.lowerBound(lo, false); j < ring.mSize; j++) {
+          long t = ring.timeAt(j);
+          if (t >= hi) {
+            break;
+          }
+          visitor.visit((K) ring.mKey, getValue(ring.valueAt(j)), t);
+        }
+      }
+      lo = hi;
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded SelectableQueue backed by a lock-free ring buffer. Producers and
+ * consumers claim slots with compare-and-set operations on a pair of
+ * counters; each slot carries a sequence number that tells whether it is
+ * ready to be written or read. Any number of threads may put and take
+ * concurrently.
+ *
+ * <p>The put() and take() operations do not use monitors. When they must
+ * wait for space or data, they do so according to a WaitStrategy. Select
+ * instances are only notified of new data when they are blocked waiting
+ * for it.</p>
+ *
+ * <p>The capacity of the queue is rounded up to the next power of two.</p>
+ */
+public class RingBufferSelectableQueue<T> extends SelectableQueue<T> {
+
+  /** Returned by dequeue() when there is nothing to take. */
+  private static final Object EMPTY = new Object();
+
+  /** Slots holding the queue elements. */
+  private final AtomicReferenceArray<T> mBuffer;
+
+  /**
+   * Sequence number of each slot. A slot at position p may be written when its
+   * sequence is p, and read when its sequence is p + 1.
+   */
+  private final AtomicLongArray mSequences;
+
+  /** Mask applied to a position to get its slot index. */
+  private final int mMask;
+
+  /** Position of the next slot to write. */
+  private final AtomicLong mEnqueuePos;
+
+  /** Position of the next slot to read. */
+  private final AtomicLong mDequeuePos;
+
+  /** How put() and take() wait for the queue to change state. */
+  private final WaitStrategy mWaitStrategy;
+
+  public RingBufferSelectableQueue(int capacity) {
+    this(capacity, WaitStrategy.PARK);
+  }
+
+  public RingBufferSelectableQueue(int capacity, WaitStrategy waitStrategy) {
+    assert capacity > 0;
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+
+    mMask = size - 1;
+    mBuffer = new AtomicReferenceArray<T>(size);
+    mSequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      mSequences.set(i, i);
+    }
+
+    mEnqueuePos = new AtomicLong(0);
+    mDequeuePos = new AtomicLong(0);
+    mWaitStrategy = waitStrategy;
+  }
+
+  /** @return the maximum number of items the queue can hold. */
+  public int capacity() {
+    return mMask + 1;
+  }
+
+  public WaitStrategy getWaitStrategy() {
+    return mWaitStrategy;
+  }
+
+  @Override
+  public int size() {
+    // Read the dequeue position first, so the result is never negative.
+    long dequeuePos = mDequeuePos.get();
+    long enqueuePos = mEnqueuePos.get();
+    return (int) Math.min(Math.max(enqueuePos - dequeuePos, 0), capacity());
+  }
+
+  @Override
+  public boolean canRead() {
+    long pos = mDequeuePos.get();
+    return mSequences.get((int) pos & mMask) == pos + 1;
+  }
+
+  /**
+   * Try to remove the next item from the queue.
+   * @return the item removed, or EMPTY if the queue is empty.
+   */
+  private Object dequeue() {
+    long pos = mDequeuePos.get();
+    while (true) {
+      int idx = (int) pos & mMask;
+      long seq = mSequences.get(idx);
+      long diff = seq - (pos + 1);
+      if (diff == 0) {
+        if (mDequeuePos.compareAndSet(pos, pos + 1)) {
+          T val = mBuffer.get(idx);
+          mBuffer.lazySet(idx, null);
+          // Release the slot to producers for the next pass around the ring.
+          mSequences.set(idx, pos + mMask + 1);
+          return val;
+        }
+        pos = mDequeuePos.get();
+      } else if (diff < 0) {
+        return EMPTY;
+      } else {
+        // Another consumer took this slot; catch up.
+        pos = mDequeuePos.get();
+      }
+    }
+  }
+
+  @Override
+  public T take() throws InterruptedException {
+    int iteration = 0;
+    Object val;
+    while ((val = dequeue()) == EMPTY) {
+      mWaitStrategy.await(iteration++);
+    }
+    // Every non-EMPTY value returned by dequeue() came from mBuffer.
+    @SuppressWarnings("unchecked")
+    T result = (T) val;
+    return result;
+  }
+
+  @Override
+  public T poll() throws EmptyException {
+    Object val = dequeue();
+    if (val == EMPTY) {
+      throw new EmptyException();
+    }
+    @SuppressWarnings("unchecked")
+    T result = (T) val;
+    return result;
+  }
+
+  @Override
+  public boolean offer(T t) {
+    long pos = mEnqueuePos.get();
+    while (true) {
+      int idx = (int) pos & mMask;
+      long seq = mSequences.get(idx);
+      long diff = seq - pos;
+      if (diff == 0) {
+        if (mEnqueuePos.compareAndSet(pos, pos + 1)) {
+          mBuffer.lazySet(idx, t);
+          // Publish the element to consumers.
+          mSequences.set(idx, pos + 1);
+          notifyWaitingReaders();
+          return true;
+        }
+        pos = mEnqueuePos.get();
+      } else if (diff < 0) {
+        return false; // Full.
+      } else {
+        // Another producer claimed this slot; catch up.
+        pos = mEnqueuePos.get();
+      }
+    }
+  }
+
+  @Override
+  public void put(T t) throws InterruptedException {
+    int iteration = 0;
+    while (!offer(t)) {
+      mWaitStrategy.await(iteration++);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>This scans the queue without blocking producers or consumers, so the
+   * result may be stale if the queue is concurrently modified.</p>
+   */
+  @Override
+  public boolean contains(T t) {
+    long pos = mDequeuePos.get();
+    long end = mEnqueuePos.get();
+    for (; pos < end; pos++) {
+      int idx = (int) pos & mMask;
+      if (mSequences.get(idx) != pos + 1) {
+        continue; // Not yet published, or already consumed.
+      }
+      T obj = mBuffer.get(idx);
+      if (obj == null && t == null) {
+        return true;
+      } else if (obj != null && obj.equals(t)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
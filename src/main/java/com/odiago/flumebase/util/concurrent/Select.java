@@ -21,6 +21,8 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A Select object can wait on multiple objects, returning when one of them
  * is ready for a read operation. Objects registered with a Select must
@@ -45,8 +47,15 @@ public class Select<T> implements Iterable<Selectable<T>> {
   /** The objects we are monitoring for readability. */
   private List<Selectable<T>> mTargets;
 
+  /** Number of threads in join() which may be about to wait for a notification. */
+  private final AtomicInteger mNumWaiting;
+
+  /** Set when a target was signaled since join() last checked. Guarded by this. */
+  private boolean mSignaled;
+
   public Select() {
     mTargets = new ArrayList<Selectable<T>>();
+    mNumWaiting = new AtomicInteger(0);
   }
 
   /**
@@ -101,12 +110,23 @@ public class Select<T> implements Iterable<Selectable<T>> {
     }
     
     // Couldn't find a ready target. Wait for one to become available.
-    do {
-      synchronized (this) {
-        this.wait();
-      }
+    // Advertise that we are waiting before checking the targets again, so
+    // that a producer which enqueues after our check will notify us.
+    mNumWaiting.incrementAndGet();
+    try {
       ret = nextReady();
-    } while (ret == null);
+      while (null == ret) {
+        synchronized (this) {
+          while (!mSignaled) {
+            this.wait();
+          }
+          mSignaled = false;
+        }
+        ret = nextReady();
+      }
+    } finally {
+      mNumWaiting.decrementAndGet();
+    }
 
     return ret;
   }
@@ -144,9 +164,17 @@ public class Select<T> implements Iterable<Selectable<T>> {
     return null;
   }
 
+  /**
+   * @return true if a thread is blocked (or about to block) in join().
+   */
+  boolean isWaiting() {
+    return mNumWaiting.get() > 0;
+  }
+
   /** Called by Selectable when an object is readable. */
   void enqueueSelectable(Selectable<T> sel) {
     synchronized (this) {
+      mSignaled = true;
       this.notify();
     }
   }
@@ -17,20 +17,24 @@
 
 package com.odiago.flumebase.util.concurrent;
 
-import java.util.ArrayList;
 import java.util.List;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 /**
  * A shared object which supports a blocking read operation. Each
  * read operation returns a value of type T.
  */
 public abstract class Selectable<T> {
 
-  /** Select instances to notify when we're ready for read. */
+  /**
+   * Select instances to notify when we're ready for read. This is read on
+   * every notification, but rarely modified.
+   */
   private List<Select<T>> mSelects;
 
   public Selectable() {
-    mSelects = new ArrayList<Select<T>>();
+    mSelects = new CopyOnWriteArrayList<Select<T>>();
   }
 
   /**
@@ -38,9 +42,7 @@ public abstract class Selectable<T> {
    * is ready. Called by the Select instance, not by users.
    */
   void register(Select<T> sel) {
-    synchronized (mSelects) {
-      mSelects.add(sel);
-    }
+    mSelects.add(sel);
   }
 
   /**
@@ -48,9 +50,7 @@ public abstract class Selectable<T> {
    * the object is ready for read. Called by the Select instance, not by users.
    */
   void unregister(Select<T> sel) {
-    synchronized (mSelects) {
-      mSelects.remove(sel);
-    }
+    mSelects.remove(sel);
   }
 
   /**
@@ -59,8 +59,22 @@ public abstract class Selectable<T> {
    * they can try to read now.
    */
   protected void notifyReaders() {
-    synchronized (mSelects) {
-      for (Select<T> select : mSelects) {
+    for (Select<T> select : mSelects) {
+      synchronized (select) {
+        select.enqueueSelectable(this);
+      }
+    }
+  }
+
+  /**
+   * Like notifyReaders(), but only notifies Select instances which are
+   * blocked waiting for a target to become ready. Producers which make data
+   * visible to canRead() before calling this method need not acquire any
+   * monitor when no reader is waiting.
+   */
+  protected void notifyWaitingReaders() {
+    for (Select<T> select : mSelects) {
+      if (select.isWaiting()) {
         synchronized (select) {
           select.enqueueSelectable(this);
         }
@@ -0,0 +1,105 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util.concurrent;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Policy for how a thread waits for a lock-free queue to change state,
+ * e.g., for room to become available in a full RingBufferSelectableQueue.
+ * SPIN has the lowest latency but occupies a CPU while waiting; PARK
+ * releases the CPU at the cost of latency. YIELD is in between.
+ */
+public enum WaitStrategy {
+  /**
+   * Busy-wait, re-checking the queue state continuously. Yields once every
+   * SPIN_YIELD_INTERVAL iterations so that a thread spinning on an
+   * oversubscribed host does not starve the thread it is waiting for.
+   */
+  SPIN {
+    @Override
+    void idle(int iteration) {
+      if ((iteration & (SPIN_YIELD_INTERVAL - 1)) == SPIN_YIELD_INTERVAL - 1) {
+        Thread.yield();
+      }
+    }
+  },
+
+  /** Yield the processor to other threads between checks. */
+  YIELD {
+    @Override
+    void idle(int iteration) {
+      Thread.yield();
+    }
+  },
+
+  /** Yield briefly, then sleep for short intervals between checks. */
+  PARK {
+    @Override
+    void idle(int iteration) {
+      if (iteration < PARK_SPIN_ITERATIONS) {
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(PARK_NANOS);
+      }
+    }
+  };
+
+  /** Number of iterations between yields for SPIN. Must be a power of two. */
+  private static final int SPIN_YIELD_INTERVAL = 1024;
+
+  /** Number of iterations for which PARK yields before it starts sleeping. */
+  private static final int PARK_SPIN_ITERATIONS = 100;
+
+  /** Time (ns) for which PARK sleeps on each iteration. */
+  private static final long PARK_NANOS = 50000;
+
+  /**
+   * Wait before the next check of the condition the caller is waiting for.
+   * @param iteration the number of times the caller has already waited
+   * for the current condition.
+   */
+  abstract void idle(int iteration);
+
+  /**
+   * Wait before the next check of a condition, throwing InterruptedException
+   * if the calling thread has been interrupted.
+   */
+  void await(int iteration) throws InterruptedException {
+    idle(iteration);
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  /**
+   * @return the WaitStrategy with the specified name (case-insensitive), or
+   * defaultStrategy if name is null or not recognized.
+   */
+  public static WaitStrategy fromString(String name, WaitStrategy defaultStrategy) {
+    if (null == name) {
+      return defaultStrategy;
+    }
+
+    try {
+      return valueOf(name.trim().toUpperCase());
+    } catch (IllegalArgumentException iae) {
+      return defaultStrategy;
+    }
+  }
+}
@@ -42,6 +42,66 @@ struct TFlowInfo {
   3: optional string streamName
 }
 
+/** Thrift version of exec.FlowMetrics.Element. */
+struct TElementMetrics {
+  1: required string name,
+  2: required i64 eventsIn,
+  3: required i64 eventsOut,
+
+  /** Average time (ns) the element spent processing each event. */
+  4: required double nanosPerEvent,
+
+  /** Items (events or batches) waiting in the element's input queue(s). */
+  5: required i64 queueDepth,
+  6: required i64 maxQueueDepth,
+
+  /** Entries held in the element's window state. */
+  7: required i64 stateSize
+}
+
+/** Thrift version of exec.FlowMetrics. */
+struct TFlowMetrics {
+  1: required TFlowId flowId,
+  2: required i64 uptimeMillis,
+  3: required i64 eventsIn,
+  4: required i64 eventsOut,
+
+  /** Latency (us) of events reaching the end of the flow, from when they entered it. */
+  5: required i64 latencyP50,
+  6: required i64 latencyP99,
+  7: required i64 latencyMax,
+
+  8: required i64 queueBacklog,
+  9: required i64 windowStateSize,
+  10: required i64 lateEventsDropped,
+  11: required i64 batchesAllocated,
+
+  /** Collections (and time spent in them, in ms) by the server's JVM as a whole. */
+  12: required i64 gcCount,
+  13: required i64 gcMillis,
+
+  14: required list<TElementMetrics> elements,
+
+  /** Lag (ms) of events reaching the end of the flow behind their timestamps. */
+  15: required i64 eventLagP50,
+  16: required i64 eventLagP99,
+  17: required i64 eventLagMax
+}
+
+/**
+ * A block of output records from a flow, sent to a client console.
+ * Each element of rows is a record of the Avro schema given in the
+ * schema field (in JSON), encoded with Avro's binary encoding.
+ */
+struct TRowBlock {
+  1: required TFlowId flowId,
+  2: required string schema,
+  3: required list<binary> rows,
+
+  /** Number of rows dropped since the previous block was sent. */
+  4: optional i64 numDropped = 0
+}
+
 /* Thrift version of server.SessionId */
 struct TSessionId {
   1: required i64 id
@@ -92,6 +152,9 @@ service RemoteServer {
   /** Return information about all running flows. */
   map<TFlowId, TFlowInfo> listFlows(),
 
+  /** Return the runtime metrics of all running flows. */
+  map<TFlowId, TFlowMetrics> getFlowMetrics(),
+
   /**
    * Wait up to 'timeout' ms for the specified flow to complete.
    * Block indefinitely if timeout is 0 or unspecified.
@@ -137,5 +200,8 @@ service ClientConsole {
   oneway void sendInfo(1: required string info),
 
   /** Send error information to the client to display (e.g., on stderr) */
-  oneway void sendErr(1: required string err)
+  oneway void sendErr(1: required string err),
+
+  /** Send a block of output records to the client to display. */
+  oneway void sendRows(1: required TRowBlock rows)
 }
@@ -0,0 +1,271 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.generic.GenericData;
+
+import org.testng.annotations.Test;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.exec.local.CheckpointManager;
+import com.odiago.flumebase.exec.local.LocalEnvironment;
+import com.odiago.flumebase.exec.local.MemoryOutputElement;
+
+import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
+
+import com.odiago.flumebase.lang.StreamType;
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.testutil.MemStreamBuilder;
+import com.odiago.flumebase.testutil.RtsqlTestCase;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that flows are checkpointed when the environment shuts down, and
+ * restored with their state when it restarts.
+ */
+public class TestCheckpoint extends RtsqlTestCase {
+
+  /**
+   * An in-memory stream which delivers its events, and then waits for a
+   * latch to be released before it completes.
+   */
+  private static class BlockingStreamSymbol extends InMemStreamSymbol {
+    private final List<Event> mEvents;
+    private final CountDownLatch mDelivered;
+    private final CountDownLatch mRelease;
+
+    public BlockingStreamSymbol(StreamSymbol template, List<Event> events,
+        CountDownLatch delivered, CountDownLatch release) {
+      super(template.getName(), (StreamType) template.getType(), events,
+          template.getFields(), template.getFormatSpec(),
+          ((InMemStreamSymbol) template).getLatencyPolicy());
+      mEvents = events;
+      mDelivered = delivered;
+      mRelease = release;
+    }
+
+    @Override
+    public Iterator<Event> getEvents() {
+      final Iterator<Event> iter = mEvents.iterator();
+      return new Iterator<Event>() {
+        public boolean hasNext() {
+          if (iter.hasNext()) {
+            return true;
+          }
+
+          mDelivered.countDown();
+          try {
+            mRelease.await();
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+          }
+          return false;
+        }
+
+        public Event next() {
+          if (!iter.hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return iter.next();
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  /**
+   * Create a stream with two INT columns. The first column is "NOT NULL",
+   * the second is nullable.
+   */
+  private StreamSymbol makeStream(String streamName, String leftColName,
+      String rightColName, String [] eventTexts, long [] eventTimestamps) {
+    MemStreamBuilder streamBuilder = new MemStreamBuilder(streamName);
+    streamBuilder.addField(new TypedField(leftColName, Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField(rightColName, Type.getNullable(Type.TypeName.INT)));
+
+    for (int i = 0; i < eventTexts.length; i++) {
+      streamBuilder.addEvent(eventTexts[i], eventTimestamps[i]);
+    }
+
+    return streamBuilder.build();
+  }
+
+  private File makeCheckpointDir() throws IOException {
+    File dir = File.createTempFile("flumebase-checkpoint-", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    return dir;
+  }
+
+  /** Create an event whose body is 'text' at the specified time. */
+  private Event makeEvent(String text, long timestamp) {
+    return new EventImpl(text.getBytes(), timestamp, Event.Priority.INFO, 0, "localhost");
+  }
+
+  /**
+   * Run a query over a stream "lt" which delivers the specified events and
+   * then stalls, and a stream "rt" with no events. Shut down the environment
+   * once the events are delivered, checkpointing the flow.
+   * @return the id of the checkpointed flow.
+   */
+  private FlowId runAndCheckpoint(String query, List<Event> leftEvents, File checkpointDir)
+      throws IOException, InterruptedException {
+    getConf().set(CheckpointManager.CHECKPOINT_DIR_KEY, checkpointDir.getAbsolutePath());
+    getConf().setInt(LocalEnvironment.MAX_BATCH_SIZE_KEY, 1);
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testCheckpoint");
+
+    final CountDownLatch delivered = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    StreamSymbol leftTemplate = makeStream("lt", "a", "b", new String[0], new long[0]);
+    getSymbolTable().addSymbol(new BlockingStreamSymbol(leftTemplate, leftEvents,
+        delivered, release));
+    getSymbolTable().addSymbol(makeStream("rt", "c", "d", new String[0], new long[0]));
+
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+    QuerySubmitResponse response = env.submitQuery(query, getQueryOpts());
+    FlowId id = response.getFlowId();
+    assertNotNull(response.getMessage(), id);
+    assertTrue(delivered.await(60, TimeUnit.SECONDS));
+
+    // Shutting down checkpoints the flow before its elements are closed.
+    // Closing the left source waits for it to complete; let it do so shortly.
+    Thread releaser = new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(500);
+        } catch (InterruptedException ie) {
+          // Release now.
+        }
+        release.countDown();
+      }
+    };
+    releaser.start();
+    env.shutdown();
+    releaser.join();
+
+    assertTrue(getCheckpointFile(checkpointDir, id).exists());
+    return id;
+  }
+
+  private File getCheckpointFile(File checkpointDir, FlowId id) {
+    return new File(checkpointDir, "flow-" + id.getId() + ".ckpt");
+  }
+
+  /**
+   * Restart the environment with new "lt" and "rt" streams, and wait for the
+   * restored flow to complete.
+   * @return the output records of the restored flow.
+   */
+  private List<GenericData.Record> restart(FlowId id, StreamSymbol leftStream,
+      StreamSymbol rightStream) throws IOException, InterruptedException {
+    SymbolTable symbolTable = new HashSymbolTable(new BuiltInSymbolTable());
+    symbolTable.addSymbol(leftStream);
+    symbolTable.addSymbol(rightStream);
+    Map<String, MemoryOutputElement> outputs =
+        Collections.synchronizedMap(new HashMap<String, MemoryOutputElement>());
+    LocalEnvironment env = new LocalEnvironment(getConf(), symbolTable, outputs,
+        new EmbeddedFlumeConfig(getConf()));
+    try {
+      env.connect();
+      assertTrue("Restored flow did not complete", env.joinFlow(id, 60000));
+      MemoryOutputElement output = outputs.get("testCheckpoint");
+      assertNotNull(output);
+      return output.getRecords();
+    } finally {
+      env.shutdown();
+    }
+  }
+
+  @Test
+  public void testRestoreJoin() throws IOException, InterruptedException {
+    // The join holds the left events in its state when the flow is checkpointed.
+    List<Event> leftEvents = new ArrayList<Event>();
+    for (int i = 0; i < 3; i++) {
+      leftEvents.add(makeEvent("" + i + "," + (10 + i), i));
+    }
+    File checkpointDir = makeCheckpointDir();
+    FlowId id = runAndCheckpoint(
+        "SELECT * FROM lt JOIN rt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING",
+        leftEvents, checkpointDir);
+
+    // Restart with right events which join the checkpointed left events.
+    String [] rightRecords = { "0,20", "1,21", "2,22" };
+    long [] rightTimes = { 0, 1, 2 };
+    List<GenericData.Record> results = restart(id,
+        makeStream("lt", "a", "b", new String[0], new long[0]),
+        makeStream("rt", "c", "d", rightRecords, rightTimes));
+    synchronized (results) {
+      assertEquals(3, results.size());
+      assertRecordFields(results, "a", Integer.valueOf(0), "d", Integer.valueOf(20));
+      assertRecordFields(results, "a", Integer.valueOf(1), "d", Integer.valueOf(21));
+      assertRecordFields(results, "a", Integer.valueOf(2), "d", Integer.valueOf(22));
+    }
+
+    // The flow completed, so it is not restored again.
+    assertFalse(getCheckpointFile(checkpointDir, id).exists());
+    assertTrue(checkpointDir.delete());
+  }
+
+  @Test
+  public void testRestoreAggregate() throws IOException, InterruptedException {
+    // The aggregation holds a bucket for the first two events when checkpointed.
+    List<Event> leftEvents = new ArrayList<Event>();
+    leftEvents.add(makeEvent("0,10", 35));
+    leftEvents.add(makeEvent("0,20", 36));
+    File checkpointDir = makeCheckpointDir();
+    FlowId id = runAndCheckpoint(
+        "SELECT AVG(b) AS c FROM lt OVER RANGE INTERVAL 1 SECONDS PRECEDING",
+        leftEvents, checkpointDir);
+
+    // The window containing the next event includes the restored bucket.
+    List<GenericData.Record> results = restart(id,
+        makeStream("lt", "a", "b", new String[] { "0,60" }, new long[] { 200 }),
+        makeStream("rt", "c", "d", new String[0], new long[0]));
+    synchronized (results) {
+      assertRecordExists(results, "c", Integer.valueOf(30));
+    }
+
+    assertFalse(getCheckpointFile(checkpointDir, id).exists());
+    assertTrue(checkpointDir.delete());
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.generic.GenericData;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.local.LocalEnvironment;
+import com.odiago.flumebase.exec.local.MemoryOutputElement;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.testutil.MemStreamBuilder;
+import com.odiago.flumebase.testutil.RtsqlTestCase;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that independent flows deployed across several worker threads
+ * each run to completion with correct results.
+ */
+public class TestConcurrentFlows extends RtsqlTestCase {
+
+  private static final int NUM_FLOWS = 6;
+  private static final int NUM_RECORDS = 1000;
+
+  @Test
+  public void testFlowsOnSeveralWorkers() throws IOException, InterruptedException {
+    getConf().setInt(LocalEnvironment.NUM_WORKER_THREADS_KEY, 3);
+
+    for (int i = 0; i < NUM_FLOWS; i++) {
+      MemStreamBuilder streamBuilder = new MemStreamBuilder("memstream" + i);
+      streamBuilder.addField(new TypedField("x", Type.getPrimitive(Type.TypeName.INT)));
+      for (int j = 0; j < NUM_RECORDS; j++) {
+        streamBuilder.addEvent(Integer.toString(j));
+      }
+      getSymbolTable().addSymbol(streamBuilder.build());
+    }
+
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    // Submit all the flows before waiting on any of them, so they run concurrently.
+    List<FlowId> ids = new ArrayList<FlowId>();
+    for (int i = 0; i < NUM_FLOWS; i++) {
+      Map<String, String> opts = getQueryOpts();
+      opts.put(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testConcurrent" + i);
+      QuerySubmitResponse response = env.submitQuery(
+          "SELECT x FROM memstream" + i + " WHERE x % 2 = 0", opts);
+      FlowId id = response.getFlowId();
+      assertNotNull(response.getMessage(), id);
+      ids.add(id);
+    }
+
+    for (FlowId id : ids) {
+      joinFlow(id);
+    }
+
+    for (int i = 0; i < NUM_FLOWS; i++) {
+      MemoryOutputElement output = getOutput("testConcurrent" + i);
+      assertNotNull(output);
+      List<GenericData.Record> outRecords = output.getRecords();
+      synchronized (outRecords) {
+        assertEquals(NUM_RECORDS / 2, outRecords.size());
+        // Each flow runs on a single worker, so its output order is preserved.
+        for (int j = 0; j < outRecords.size(); j++) {
+          assertEquals(Integer.valueOf(2 * j), outRecords.get(j).get("x"));
+        }
+      }
+    }
+
+    // All flows are complete; none should remain listed.
+    assertEquals(0, env.listFlows().size());
+  }
+}
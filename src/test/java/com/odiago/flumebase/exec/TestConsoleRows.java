@@ -0,0 +1,179 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.math.BigDecimal;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.avro.Schema;
+
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+
+import org.apache.avro.util.Utf8;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.lang.ListType;
+import com.odiago.flumebase.lang.PreciseType;
+import com.odiago.flumebase.lang.Timestamp;
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.server.SessionId;
+import com.odiago.flumebase.server.UserSession;
+
+import com.odiago.flumebase.thrift.ClientConsole;
+import com.odiago.flumebase.thrift.TRowBlock;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test the encoding of output rows sent to consoles, and their delivery
+ * to clients by UserSession.
+ */
+public class TestConsoleRows {
+
+  /** ClientConsole that records the row blocks it receives. */
+  private static class RecordingConsole implements ClientConsole.Iface {
+    private final List<TRowBlock> mBlocks = new ArrayList<TRowBlock>();
+    private final CountDownLatch mReleaseLatch;
+    private int mNumRows;
+    private long mNumDropped;
+
+    public RecordingConsole(CountDownLatch releaseLatch) {
+      mReleaseLatch = releaseLatch;
+    }
+
+    public void sendInfo(String info) {
+    }
+
+    public void sendErr(String err) {
+    }
+
+    public void sendRows(TRowBlock rows) {
+      try {
+        mReleaseLatch.await();
+      } catch (InterruptedException ie) {
+        return;
+      }
+      synchronized (this) {
+        mBlocks.add(rows);
+        mNumRows += rows.getRows().size();
+        mNumDropped += rows.getNumDropped();
+      }
+    }
+
+    /** @return true if every row sent was either received or reported as dropped. */
+    public synchronized boolean hasAccountedFor(long numSent) {
+      return mNumRows + mNumDropped == numSent;
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    List<TypedField> fields = new ArrayList<TypedField>();
+    fields.add(new TypedField("a", Type.getPrimitive(Type.TypeName.INT)));
+    fields.add(new TypedField("b", Type.getNullable(Type.TypeName.STRING)));
+    fields.add(new TypedField("c", Type.getNullable(Type.TypeName.TIMESTAMP)));
+    fields.add(new TypedField("d", new PreciseType(2)));
+    fields.add(new TypedField("e", new ListType(Type.getPrimitive(Type.TypeName.INT))));
+    fields.add(new TypedField("f", Type.getNullable(Type.TypeName.BINARY)));
+    fields.add(new TypedField("g", Type.getNullable(Type.TypeName.STRING)));
+    Schema schema = ConsoleRows.createSchema(fields);
+
+    Timestamp timestamp = new Timestamp(1234L, 5L);
+    Object[] values = {
+      Integer.valueOf(4), new Utf8("foo"), timestamp, new BigDecimal("1.50"),
+      Arrays.asList(Integer.valueOf(1), Integer.valueOf(2)),
+      ByteBuffer.wrap("bin".getBytes()), null,
+    };
+    GenericData.Record record = new GenericData.Record(schema);
+    record.put(0, Long.valueOf(42));
+    for (int i = 0; i < values.length; i++) {
+      record.put(i + 1, ConsoleRows.toAvro(values[i]));
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new GenericDatumWriter<GenericRecord>(schema).write(record, new BinaryEncoder(out));
+
+    // The client only has the JSON form of the schema.
+    Schema clientSchema = Schema.parse(schema.toString());
+    GenericRecord decoded = new GenericDatumReader<GenericRecord>(clientSchema).read(null,
+        DecoderFactory.defaultFactory().createBinaryDecoder(out.toByteArray(), null));
+    assertEquals("42\t4\tfoo\t" + timestamp + "\t1.50\t[1, 2]\tB[bin]\tnull",
+        ConsoleRows.formatRecord(decoded));
+  }
+
+  @Test
+  public void testSlowClientDropsRows() throws InterruptedException {
+    Configuration conf = new Configuration();
+    conf.setInt(UserSession.OUTPUT_BUFFER_ROWS_KEY, 10);
+    conf.setInt(UserSession.OUTPUT_BLOCK_ROWS_KEY, 4);
+    CountDownLatch releaseLatch = new CountDownLatch(1);
+    RecordingConsole console = new RecordingConsole(releaseLatch);
+    UserSession session = new UserSession(new SessionId(1), null, console, conf);
+
+    // The console blocks until released; rows beyond the buffer are dropped
+    // without blocking the caller.
+    FlowId flowId = new FlowId(3);
+    String schema = "schema";
+    int numRows = 100;
+    for (int i = 0; i < numRows; i++) {
+      session.sendRow(flowId, schema, new byte[] { (byte) i });
+    }
+    releaseLatch.countDown();
+
+    // Later rows report the drops that happened before them, once the
+    // console catches up.
+    int numSent = numRows;
+    while (!console.hasAccountedFor(numSent)) {
+      session.sendRow(flowId, schema, new byte[] { (byte) numSent });
+      numSent++;
+      Thread.sleep(10);
+    }
+
+    synchronized (console) {
+      assertTrue(console.mNumDropped > 0);
+      assertTrue(console.mNumRows < numSent);
+      for (TRowBlock block : console.mBlocks) {
+        assertTrue(block.getRows().size() <= 4);
+        assertEquals(flowId.toThrift().getId(), block.getFlowId().getId());
+      }
+    }
+    session.close();
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that EventBatcher groups events into batches of the expected size,
+ * and does not hold events back for longer than its linger time.
+ */
+public class TestEventBatcher {
+
+  /** Context which records each emit() and emitBatch() call. */
+  private static class RecordingContext extends FlowElementContext {
+    private final int mMaxBatchSize;
+    private final long mLingerMillis;
+
+    /** Sizes of each handoff; individually-emitted events have size 0. */
+    private final List<Integer> mHandoffs = new ArrayList<Integer>();
+
+    public RecordingContext(int maxBatchSize, long lingerMillis) {
+      mMaxBatchSize = maxBatchSize;
+      mLingerMillis = lingerMillis;
+    }
+
+    @Override
+    public synchronized void emit(EventWrapper e) {
+      mHandoffs.add(Integer.valueOf(0));
+    }
+
+    @Override
+    public synchronized void emitBatch(EventBatch batch) {
+      mHandoffs.add(Integer.valueOf(batch.size()));
+    }
+
+    @Override
+    public void notifyCompletion() {
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+      return mMaxBatchSize;
+    }
+
+    @Override
+    public long getBatchLingerMillis() {
+      return mLingerMillis;
+    }
+
+    public synchronized List<Integer> getHandoffs() {
+      return new ArrayList<Integer>(mHandoffs);
+    }
+  }
+
+  @Test
+  public void testFullBatches() throws IOException, InterruptedException {
+    RecordingContext context = new RecordingContext(4, 60000);
+    EventBatcher batcher = new EventBatcher(context);
+    for (int i = 0; i < 10; i++) {
+      batcher.add(new EmptyEventWrapper());
+    }
+
+    // Two full batches emitted; two events still pending.
+    List<Integer> handoffs = context.getHandoffs();
+    assertEquals(2, handoffs.size());
+    assertEquals(Integer.valueOf(4), handoffs.get(0));
+    assertEquals(Integer.valueOf(4), handoffs.get(1));
+
+    batcher.flush();
+    handoffs = context.getHandoffs();
+    assertEquals(3, handoffs.size());
+    assertEquals(Integer.valueOf(2), handoffs.get(2));
+
+    // Flushing with nothing pending does not emit an empty batch.
+    batcher.flush();
+    assertEquals(3, context.getHandoffs().size());
+  }
+
+  @Test
+  public void testUnbatched() throws IOException, InterruptedException {
+    RecordingContext context = new RecordingContext(1, 60000);
+    EventBatcher batcher = new EventBatcher(context);
+    for (int i = 0; i < 3; i++) {
+      batcher.add(new EmptyEventWrapper());
+    }
+
+    List<Integer> handoffs = context.getHandoffs();
+    assertEquals(3, handoffs.size());
+    for (Integer size : handoffs) {
+      assertEquals(Integer.valueOf(0), size);
+    }
+  }
+
+  @Test
+  public void testLingerThread() throws IOException, InterruptedException {
+    RecordingContext context = new RecordingContext(1000, 10);
+    EventBatcher batcher = new EventBatcher(context);
+    batcher.startLingerThread();
+    try {
+      batcher.add(new EmptyEventWrapper());
+      batcher.add(new EmptyEventWrapper());
+
+      // The partial batch must be delivered without any further events arriving.
+      long deadline = System.currentTimeMillis() + 5000;
+      while (context.getHandoffs().isEmpty() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+
+      List<Integer> handoffs = context.getHandoffs();
+      assertEquals(1, handoffs.size());
+      assertEquals(Integer.valueOf(2), handoffs.get(0));
+    } finally {
+      batcher.close();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test the sampling of events by the EventTracer.
+ */
+public class TestEventTracer {
+
+  private int countSamples(EventTracer tracer, int numEvents) {
+    int numSampled = 0;
+    for (int i = 0; i < numEvents; i++) {
+      if (tracer.isSampled()) {
+        numSampled++;
+      }
+    }
+    return numSampled;
+  }
+
+  @Test
+  public void testSampling() {
+    Logger traceLog = Logger.getLogger(EventTracer.class.getName());
+    Level oldLevel = traceLog.getLevel();
+    try {
+      traceLog.setLevel(Level.TRACE);
+      assertEquals(0, countSamples(new EventTracer(new FlowId(1), 0), 100));
+      assertEquals(10, countSamples(new EventTracer(new FlowId(1), 10), 100));
+      EventTracer tracer = new EventTracer(new FlowId(1), 1);
+      assertEquals(100, countSamples(tracer, 100));
+
+      // Sampled events are only traced if the logger would print them.
+      traceLog.setLevel(Level.DEBUG);
+      assertEquals(0, countSamples(tracer, 100));
+
+      traceLog.setLevel(Level.TRACE);
+      assertEquals(0, countSamples(EventTracer.DISABLED, 100));
+    } finally {
+      traceLog.setLevel(oldLevel);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.Schema;
+
+import org.apache.avro.generic.GenericData;
+
+import org.apache.avro.util.Utf8;
+
+import org.testng.annotations.Test;
+
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.io.DelimitedEventParser;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that EventWrapperSerializer estimates the heap used by events.
+ */
+public class TestEventWrapperSerializer {
+
+  private static final TypedField FIELD_S =
+      new TypedField("s", Type.getNullable(Type.TypeName.STRING));
+  private static final TypedField FIELD_I =
+      new TypedField("i", Type.getPrimitive(Type.TypeName.INT));
+
+  /** @return a RecordEventWrapper, with an empty body, holding the specified values. */
+  private EventWrapper makeRecord(String s, int i) {
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+    fields.add(new Schema.Field(FIELD_S.getAvroName(), FIELD_S.getType().getAvroSchema(),
+        null, null));
+    fields.add(new Schema.Field(FIELD_I.getAvroName(), FIELD_I.getType().getAvroSchema(),
+        null, null));
+    GenericData.Record record = new GenericData.Record(Schema.createRecord(fields));
+    record.put(0, null == s ? null : new Utf8(s));
+    record.put(1, Integer.valueOf(i));
+    return new RecordEventWrapper(record, new EventImpl(new byte[0]));
+  }
+
+  @Test
+  public void testRecordSize() {
+    List<TypedField> fields = new ArrayList<TypedField>();
+    fields.add(FIELD_S);
+    fields.add(FIELD_I);
+    EventWrapperSerializer serializer = new EventWrapperSerializer(fields);
+
+    // Records have no body; their size grows with their field values.
+    long nullSize = serializer.estimateSize(makeRecord(null, 1));
+    long shortSize = serializer.estimateSize(makeRecord("abc", 1));
+    long longSize = serializer.estimateSize(makeRecord(new String(new char[1000]), 1));
+    assertTrue(shortSize > nullSize);
+    assertEquals(997, longSize - shortSize);
+
+    // A record costs more than an unparsed event with an empty body.
+    EventWrapper emptyWrapper = new ParsingEventWrapper(new DelimitedEventParser(),
+        new ArrayList<String>());
+    emptyWrapper.reset(new EventImpl(new byte[0]));
+    assertTrue(nullSize > serializer.estimateSize(emptyWrapper));
+  }
+}
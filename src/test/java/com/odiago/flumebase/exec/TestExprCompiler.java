@@ -0,0 +1,281 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.exec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.util.Utf8;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.lang.BindSlotsVisitor;
+import com.odiago.flumebase.lang.Type;
+import com.odiago.flumebase.lang.TypeChecker;
+
+import com.odiago.flumebase.parser.BinExpr;
+import com.odiago.flumebase.parser.BinOp;
+import com.odiago.flumebase.parser.ConstExpr;
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.FnCallExpr;
+import com.odiago.flumebase.parser.IdentifierExpr;
+import com.odiago.flumebase.parser.UnaryExpr;
+import com.odiago.flumebase.parser.UnaryOp;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that compiled expressions return the same values as Expr.eval(),
+ * and measure how much faster they are.
+ */
+public class TestExprCompiler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(
+      TestExprCompiler.class.getName());
+
+  /** Number of rows to evaluate each expression over in the benchmark. */
+  private static final int BENCHMARK_ROWS = 2000000;
+
+  private SymbolTable mSymbols;
+
+  @BeforeMethod
+  public void setUp() {
+    mSymbols = new HashSymbolTable(new BuiltInSymbolTable());
+    addField("a", Type.getPrimitive(Type.TypeName.INT));
+    addField("b", Type.getNullable(Type.TypeName.BIGINT));
+    addField("f", Type.getNullable(Type.TypeName.FLOAT));
+    addField("d", Type.getNullable(Type.TypeName.DOUBLE));
+    addField("s", Type.getNullable(Type.TypeName.STRING));
+    addField("flag", Type.getNullable(Type.TypeName.BOOLEAN));
+  }
+
+  private void addField(String name, Type type) {
+    mSymbols.addSymbol(new AssignedSymbol(name, type, name, IdentifierExpr.AccessType.FIELD));
+  }
+
+  private static Expr id(String name) {
+    return new IdentifierExpr(name);
+  }
+
+  private static Expr intConst(int val) {
+    return new ConstExpr(Type.getPrimitive(Type.TypeName.INT), Integer.valueOf(val));
+  }
+
+  private static Expr doubleConst(double val) {
+    return new ConstExpr(Type.getPrimitive(Type.TypeName.DOUBLE), Double.valueOf(val));
+  }
+
+  private static Expr bin(Expr lhs, BinOp op, Expr rhs) {
+    return new BinExpr(lhs, op, rhs);
+  }
+
+  private static Expr unary(UnaryOp op, Expr e) {
+    return new UnaryExpr(op, e);
+  }
+
+  private static Expr square(Expr e) {
+    FnCallExpr fnCall = new FnCallExpr("square");
+    fnCall.addArg(e);
+    return fnCall;
+  }
+
+  /** @return the expressions compared by testMatchesInterpreter(). */
+  private List<Expr> makeExprs() {
+    List<Expr> exprs = new ArrayList<Expr>();
+    exprs.add(bin(bin(id("a"), BinOp.Mod, intConst(10)), BinOp.Eq, intConst(0)));
+    exprs.add(bin(bin(id("a"), BinOp.Times, intConst(2)), BinOp.Add, id("b")));
+    exprs.add(bin(id("a"), BinOp.Subtract, intConst(Integer.MAX_VALUE)));
+    exprs.add(bin(id("f"), BinOp.Times, id("a")));
+    exprs.add(bin(id("b"), BinOp.Div, id("f")));
+    exprs.add(bin(bin(id("d"), BinOp.Div, id("f")), BinOp.Greater, doubleConst(1.5)));
+    exprs.add(bin(id("f"), BinOp.LessEq, id("d")));
+    exprs.add(bin(id("a"), BinOp.NotEq, id("b")));
+    exprs.add(unary(UnaryOp.Not, id("flag")));
+    exprs.add(bin(id("flag"), BinOp.Eq, bin(id("a"), BinOp.Greater, intConst(3))));
+    exprs.add(bin(bin(id("a"), BinOp.Greater, intConst(3)), BinOp.And,
+        unary(UnaryOp.IsNull, id("b"))));
+    exprs.add(bin(bin(id("a"), BinOp.Less, intConst(0)), BinOp.Or,
+        unary(UnaryOp.IsNotNull, id("f"))));
+    exprs.add(unary(UnaryOp.Minus, id("a")));
+    exprs.add(unary(UnaryOp.Minus, id("f")));
+    exprs.add(unary(UnaryOp.IsNotNull, id("s")));
+    exprs.add(bin(id("s"), BinOp.Add, id("a")));
+    exprs.add(bin(id("s"), BinOp.Eq, new ConstExpr(Type.getPrimitive(Type.TypeName.STRING),
+        "x")));
+    exprs.add(square(bin(id("a"), BinOp.Add, intConst(1))));
+    exprs.add(square(id("f")));
+    return exprs;
+  }
+
+  /** Populate the row for the i'th test event. */
+  private void fillRow(TypedRow row, RowLayout layout, int i) {
+    row.wrap(null);
+    row.setInt(layout.getSlot("a"), i - 5);
+    if (i % 3 == 0) {
+      row.setNull(layout.getSlot("b"));
+    } else {
+      row.setLong(layout.getSlot("b"), 1000000007L * i);
+    }
+
+    if (i % 4 == 0) {
+      row.setNull(layout.getSlot("f"));
+    } else {
+      row.setDouble(layout.getSlot("f"), (float) (i * 0.1));
+    }
+
+    row.setDouble(layout.getSlot("d"), i * 0.5);
+    if (i % 5 == 0) {
+      row.setNull(layout.getSlot("s"));
+    } else {
+      row.setObject(layout.getSlot("s"), new Utf8(i % 2 == 0 ? "x" : "y"));
+    }
+
+    if (i % 7 == 0) {
+      row.setNull(layout.getSlot("flag"));
+    } else {
+      row.setBoolean(layout.getSlot("flag"), i % 2 == 0);
+    }
+  }
+
+  /** Type check and bind the expressions, and return a row for them. */
+  private TypedRow prepare(List<Expr> exprs) throws Exception {
+    for (Expr e : exprs) {
+      e.accept(new TypeChecker(mSymbols));
+    }
+
+    // Bind every field, so that fillRow() can set them all.
+    List<Expr> allExprs = new ArrayList<Expr>();
+    for (String name : new String[] { "a", "b", "f", "d", "s", "flag" }) {
+      Expr field = id(name);
+      field.accept(new TypeChecker(mSymbols));
+      allExprs.add(field);
+    }
+    allExprs.addAll(exprs);
+    return new TypedRow(BindSlotsVisitor.bind(allExprs));
+  }
+
+  @Test
+  public void testMatchesInterpreter() throws Exception {
+    List<Expr> exprs = makeExprs();
+    TypedRow row = prepare(exprs);
+    List<CompiledExpr> compiled = new ArrayList<CompiledExpr>();
+    for (Expr e : exprs) {
+      compiled.add(ExprCompiler.compile(e));
+    }
+
+    for (int i = 0; i < 30; i++) {
+      fillRow(row, row.getLayout(), i);
+      for (int j = 0; j < exprs.size(); j++) {
+        Expr e = exprs.get(j);
+        Object expected = e.eval(row);
+        assertEquals("Row " + i + ": " + e.toStringOneLine(), expected,
+            compiled.get(j).evalObject(row));
+        if (expected instanceof Boolean) {
+          boolean actual = compiled.get(j).evalBoolean(row);
+          assertFalse(row.wasNull());
+          assertEquals(((Boolean) expected).booleanValue(), actual);
+        } else if (null == expected) {
+          assertTrue(compiled.get(j).evalIsNull(row));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testPrimitiveResults() throws Exception {
+    Expr intExpr = bin(id("a"), BinOp.Times, intConst(3));
+    Expr floatExpr = bin(id("f"), BinOp.Add, id("a"));
+    List<Expr> exprs = new ArrayList<Expr>();
+    exprs.add(intExpr);
+    exprs.add(floatExpr);
+    TypedRow row = prepare(exprs);
+
+    CompiledExpr compiledInt = ExprCompiler.compile(intExpr);
+    CompiledExpr compiledFloat = ExprCompiler.compile(floatExpr);
+    assertEquals(RowLayout.Storage.LONG, compiledInt.getStorage());
+    assertEquals(RowLayout.Storage.DOUBLE, compiledFloat.getStorage());
+
+    fillRow(row, row.getLayout(), 7);
+    assertEquals(6L, compiledInt.evalLong(row));
+    assertFalse(row.wasNull());
+    assertEquals(0.7f + 2, compiledFloat.evalDouble(row), 0.0);
+    assertEquals(Float.valueOf(0.7f + 2), compiledFloat.evalObject(row));
+
+    fillRow(row, row.getLayout(), 8); // f is null.
+    compiledFloat.evalDouble(row);
+    assertTrue(row.wasNull());
+    assertNull(compiledFloat.evalObject(row));
+  }
+
+  /**
+   * Time interpreted and compiled evaluation of an expression over BENCHMARK_ROWS rows.
+   */
+  private void runBenchmark(String label, Expr expr) throws Exception {
+    List<Expr> exprs = new ArrayList<Expr>();
+    exprs.add(expr);
+    RowLayout layout = prepare(exprs).getLayout();
+    CompiledExpr compiled = ExprCompiler.compile(expr);
+
+    // Populate the rows ahead of time, so that only evaluation is timed.
+    TypedRow[] rows = new TypedRow[1024];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = new TypedRow(layout);
+      fillRow(rows[i], layout, i);
+    }
+
+    long interpretedNanos = 0;
+    long compiledNanos = 0;
+    Object sink = null;
+    for (int pass = 0; pass < 3; pass++) {
+      // Earlier passes warm up the JIT; only the last is reported.
+      long start = System.nanoTime();
+      for (int i = 0; i < BENCHMARK_ROWS; i++) {
+        sink = expr.eval(rows[i & 1023]);
+      }
+      interpretedNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < BENCHMARK_ROWS; i++) {
+        sink = compiled.evalObject(rows[i & 1023]);
+      }
+      compiledNanos = System.nanoTime() - start;
+    }
+
+    LOG.info(label + ": " + expr.toStringOneLine() + " (last value " + sink + ")");
+    LOG.info("Interpreted ns per event: " + ((double) interpretedNanos / BENCHMARK_ROWS));
+    LOG.info("Compiled ns per event: " + ((double) compiledNanos / BENCHMARK_ROWS));
+    LOG.info("Speedup: " + ((double) interpretedNanos / compiledNanos));
+  }
+
+  @Test(groups = { "slow" })
+  public void testWhereBenchmark() throws Exception {
+    runBenchmark("WHERE", bin(bin(bin(id("a"), BinOp.Mod, intConst(10)), BinOp.Eq,
+        intConst(0)), BinOp.And, bin(id("d"), BinOp.Greater, doubleConst(100.0))));
+  }
+
+  @Test(groups = { "slow" })
+  public void testSelectBenchmark() throws Exception {
+    runBenchmark("SELECT", bin(bin(id("a"), BinOp.Times, intConst(2)), BinOp.Add,
+        bin(id("b"), BinOp.Subtract, intConst(1))));
+  }
+}
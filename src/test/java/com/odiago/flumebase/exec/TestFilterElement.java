@@ -0,0 +1,146 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.lang.Type;
+import com.odiago.flumebase.lang.TypeChecker;
+
+import com.odiago.flumebase.parser.BinExpr;
+import com.odiago.flumebase.parser.BinOp;
+import com.odiago.flumebase.parser.ConstExpr;
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.IdentifierExpr;
+import com.odiago.flumebase.parser.TypedField;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that FilterElement records its statistics, and reorders its
+ * conjuncts by their measured selectivity.
+ */
+public class TestFilterElement {
+
+  /** Context which counts the events emitted to it. */
+  private static class CountingContext extends FlowElementContext {
+    private int mNumEvents;
+
+    @Override
+    public void emit(EventWrapper e) {
+      mNumEvents++;
+    }
+
+    @Override
+    public void emitBatch(EventBatch batch) {
+      mNumEvents += batch.size();
+    }
+
+    @Override
+    public void notifyCompletion() {
+    }
+
+    public int getNumEvents() {
+      return mNumEvents;
+    }
+  }
+
+  private static final TypedField FIELD_A =
+      new TypedField("a", Type.getPrimitive(Type.TypeName.INT));
+
+  /** @return the type checked expression 'a op val'. */
+  private Expr compare(BinOp op, int val) throws Exception {
+    SymbolTable symbols = new HashSymbolTable(new BuiltInSymbolTable());
+    symbols.addSymbol(new AssignedSymbol("a", FIELD_A.getType(), "a",
+        IdentifierExpr.AccessType.FIELD));
+    Expr e = new BinExpr(new IdentifierExpr("a"), op,
+        new ConstExpr(Type.getPrimitive(Type.TypeName.INT), Integer.valueOf(val)));
+    e.accept(new TypeChecker(symbols));
+    return e;
+  }
+
+  /** @return an event whose field 'a' holds the specified value. */
+  private EventWrapper makeEvent(int val) {
+    List<TypedField> fields = new ArrayList<TypedField>();
+    fields.add(FIELD_A);
+    TypedRow row = new TypedRow(new RowLayout(fields));
+    row.setInt(0, val);
+    return row;
+  }
+
+  /** Deliver events with values [0, numEvents) to the filter, in batches. */
+  private void deliver(FilterElement filter, int numEvents) throws Exception {
+    EventBatch batch = new EventBatch(256);
+    for (int i = 0; i < numEvents; i++) {
+      batch.add(makeEvent(i));
+      if (batch.size() == 256) {
+        filter.deliverEvents(batch);
+        batch = new EventBatch(256);
+      }
+    }
+    if (!batch.isEmpty()) {
+      filter.deliverEvents(batch);
+    }
+  }
+
+  @Test
+  public void testStats() throws Exception {
+    CountingContext context = new CountingContext();
+    List<Expr> conjuncts = new ArrayList<Expr>();
+    conjuncts.add(compare(BinOp.Less, 10));
+    FilterElement filter = new FilterElement(context, conjuncts);
+
+    deliver(filter, 100);
+    filter.deliverEvent(makeEvent(5));
+    assertEquals(11, context.getNumEvents());
+
+    // The statistics are published periodically by the thread delivering
+    // events, which is this one.
+    ElementStats stats = filter.getStats();
+    stats.publish();
+    assertEquals(101, stats.getEventsIn());
+    assertEquals(11, stats.getEventsOut());
+    assertEquals(2, stats.getDeliveries());
+    assertEquals(11.0 / 101.0, stats.getSelectivity(), 1e-9);
+    assertTrue(stats.getProcessingNanos() > 0);
+  }
+
+  @Test
+  public void testAdaptiveOrder() throws Exception {
+    CountingContext context = new CountingContext();
+    Expr unselective = compare(BinOp.GreaterEq, 0);
+    Expr selective = compare(BinOp.Less, 10);
+    List<Expr> conjuncts = new ArrayList<Expr>();
+    conjuncts.add(unselective);
+    conjuncts.add(selective);
+    FilterElement filter = new FilterElement(context, conjuncts);
+    assertSame(unselective, filter.getConjuncts().get(0));
+
+    // Every conjunct is tested against the sampled events, so the results are unchanged.
+    int numEvents = 2 * FilterElement.SAMPLE_INTERVAL * FilterElement.REORDER_INTERVAL;
+    deliver(filter, numEvents);
+    assertEquals(10, context.getNumEvents());
+
+    // The conjunct which rejects events should now be tested first.
+    assertSame(selective, filter.getConjuncts().get(0));
+    assertSame(unselective, filter.getConjuncts().get(1));
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.local.LocalEnvironment;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.testutil.MemStreamBuilder;
+import com.odiago.flumebase.testutil.RtsqlTestCase;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that the metrics of a running flow are gathered by the environment.
+ */
+public class TestFlowMetrics extends RtsqlTestCase {
+
+  private static final int NUM_RECORDS = 40;
+
+  /** Interval (ms) between the timestamps of consecutive events. */
+  private static final long EVENT_INTERVAL = 50;
+
+  /** Age (ms) of the timestamps of the events when the flow starts. */
+  private static final long EVENT_AGE = 3600 * 1000;
+
+  @Test
+  public void testRunningFlowMetrics() throws IOException, InterruptedException {
+    // Replay the events at the pace of their timestamps, so the flow runs for a while.
+    // The timestamps are an hour old; this must not count toward their latency.
+    MemStreamBuilder streamBuilder = new MemStreamBuilder("memstream");
+    streamBuilder.addField(new TypedField("x", Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.setLatencyPolicy(InMemStreamSymbol.LatencyPolicy.Timestamp);
+    long start = System.currentTimeMillis() - EVENT_AGE;
+    for (int i = 0; i < NUM_RECORDS; i++) {
+      streamBuilder.addEvent(Integer.toString(i), start + i * EVENT_INTERVAL);
+    }
+    getSymbolTable().addSymbol(streamBuilder.build());
+
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    Map<String, String> opts = getQueryOpts();
+    opts.put(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testMetrics");
+    QuerySubmitResponse response = env.submitQuery(
+        "SELECT x FROM memstream WHERE x % 2 = 0", opts);
+    FlowId id = response.getFlowId();
+    assertNotNull(response.getMessage(), id);
+
+    // Wait for a few events to make it through the flow.
+    FlowMetrics metrics = null;
+    long deadline = System.currentTimeMillis() + 10000;
+    while (System.currentTimeMillis() < deadline) {
+      metrics = env.getFlowMetrics().get(id);
+      assertNotNull(metrics);
+      if (metrics.eventsOut >= 3) {
+        break;
+      }
+      Thread.sleep(EVENT_INTERVAL);
+    }
+
+    assertEquals(id, metrics.flowId);
+    assertTrue(metrics.eventsOut >= 3);
+    assertTrue(metrics.eventsIn >= 2 * metrics.eventsOut - 1);
+    assertTrue(metrics.uptimeMillis > 0);
+    assertTrue(metrics.getInputRate() > 0.0);
+    assertTrue(metrics.latencyP50 <= metrics.latencyP99);
+    assertTrue(metrics.latencyP99 <= metrics.latencyMax);
+    assertTrue(metrics.latencyMax > 0);
+    assertTrue(metrics.latencyMax < EVENT_AGE * 1000);
+    assertTrue(metrics.eventLagP50 <= metrics.eventLagP99);
+    assertTrue(metrics.eventLagP99 <= metrics.eventLagMax);
+
+    // The histogram's buckets are accurate to within 1/32 of their values.
+    assertTrue(metrics.eventLagP50 >= EVENT_AGE - EVENT_AGE / 32);
+    assertEquals(0, metrics.lateEventsDropped);
+
+    boolean foundFilter = false;
+    for (FlowMetrics.Element element : metrics.elements) {
+      if (element.name.equals("FilterElement")) {
+        foundFilter = true;
+        assertTrue(element.eventsOut <= element.eventsIn);
+      }
+    }
+    assertTrue(foundFilter);
+
+    joinFlow(id);
+    assertEquals(NUM_RECORDS / 2, getOutput("testMetrics").getRecords().size());
+    assertFalse(env.getFlowMetrics().containsKey(id));
+  }
+}
@@ -21,6 +21,8 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 
+import java.util.Arrays;
+
 import org.apache.avro.generic.GenericData;
 
 import org.apache.avro.util.Utf8;
@@ -266,4 +268,99 @@ public class TestFlumeNodeSource extends RtsqlTestCase {
     env.cancelFlow(queryId2);
     joinFlow(queryId2);
   }
+
+  @Test(groups = { "slow" })
+  public void testSharedFlowCancellation() throws Exception {
+    // Run two identical queries over a live stream; they share a hidden flow
+    // which computes the filter for both. Canceling one query leaves the
+    // other running; canceling the second tears down the hidden flow.
+    final String SRC_NODE = "srcnode";
+    File sourceFile = File.createTempFile("records-", ".txt");
+    sourceFile.deleteOnExit();
+    String sourceFilename = sourceFile.getAbsolutePath();
+
+    EmbeddedFlumeConfig flumeConf = getFlumeConfig();
+    String nodeSource = "tail(\"" + sourceFilename + "\")";
+    flumeConf.start();
+    flumeConf.spawnLogicalNode(SRC_NODE, nodeSource, "console");
+
+    StreamBuilder streamBuilder = new StreamBuilder("inputstream");
+    streamBuilder.setSource(SRC_NODE);
+    streamBuilder.setSourceType(StreamSourceType.Node);
+    streamBuilder.setLocal(false);
+    streamBuilder.addField("x", Type.getPrimitive(Type.TypeName.STRING));
+    streamBuilder.addField("y", Type.getPrimitive(Type.TypeName.INT));
+
+    getSymbolTable().addSymbol(streamBuilder.build());
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "shared-out1");
+    QuerySubmitResponse selectResponse1 = env.submitQuery(
+        "SELECT * FROM inputstream WHERE y > 1", getQueryOpts());
+    FlowId queryId1 = selectResponse1.getFlowId();
+    assertNotNull(queryId1);
+
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "shared-out2");
+    QuerySubmitResponse selectResponse2 = env.submitQuery(
+        "SELECT * FROM inputstream WHERE y > 1", getQueryOpts());
+    FlowId queryId2 = selectResponse2.getFlowId();
+    assertNotNull(queryId2);
+
+    assertEquals(1, env.getNumSharedFlows());
+
+    BufferedWriter w = new BufferedWriter(new FileWriter(sourceFile));
+    try {
+      w.write("line1,1\n");
+      w.write("line2,2\n");
+      w.write("line3,3\n");
+    } finally {
+      w.close();
+    }
+
+    // Both queries see the same results.
+    SelectableList<GenericData.Record> outRecords1 = getOutput("shared-out1").getRecords();
+    SelectableList<GenericData.Record> outRecords2 = getOutput("shared-out2").getRecords();
+    for (SelectableList<GenericData.Record> outRecords : Arrays.asList(outRecords1, outRecords2)) {
+      synchronized (outRecords) {
+        while (outRecords.size() < 2) {
+          outRecords.wait();
+        }
+
+        assertEquals(2, outRecords.size());
+        this.assertRecordFields(outRecords, "y", Integer.valueOf(2), "x", new Utf8("line2"));
+        this.assertRecordFields(outRecords, "y", Integer.valueOf(3), "x", new Utf8("line3"));
+      }
+    }
+
+    // Canceling the first query leaves the second, and the hidden flow, running.
+    env.cancelFlow(queryId1);
+    joinFlow(queryId1);
+    assertEquals(1, env.getNumSharedFlows());
+
+    w = new BufferedWriter(new FileWriter(sourceFile, true));
+    try {
+      w.write("line4,4\n");
+    } finally {
+      w.close();
+    }
+
+    synchronized (outRecords2) {
+      while (outRecords2.size() < 3) {
+        outRecords2.wait();
+      }
+
+      this.assertRecordFields(outRecords2, "y", Integer.valueOf(4), "x", new Utf8("line4"));
+    }
+
+    // Canceling the last reader tears down the hidden flow. It is canceled
+    // asynchronously, by the timer thread.
+    env.cancelFlow(queryId2);
+    joinFlow(queryId2);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (env.getNumSharedFlows() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(0, env.getNumSharedFlows());
+  }
 }
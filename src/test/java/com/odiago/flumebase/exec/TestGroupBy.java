@@ -17,7 +17,11 @@
 
 package com.odiago.flumebase.exec;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 
 import java.util.Collections;
 import java.util.List;
@@ -30,15 +34,19 @@ import org.slf4j.LoggerFactory;
 import org.testng.annotations.Test;
 
 import com.odiago.flumebase.exec.local.LocalEnvironment;
+import com.odiago.flumebase.exec.local.LocalFlowBuilder;
 import com.odiago.flumebase.exec.local.MemoryOutputElement;
 
 import com.odiago.flumebase.lang.Type;
 
+import com.odiago.flumebase.parser.FormatSpec;
 import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.StreamSourceType;
 import com.odiago.flumebase.parser.TypedField;
 
 import com.odiago.flumebase.testutil.MemStreamBuilder;
 import com.odiago.flumebase.testutil.RtsqlTestCase;
+import com.odiago.flumebase.testutil.StreamBuilder;
 
 import static org.testng.AssertJUnit.*;
 
@@ -574,4 +582,226 @@ public class TestGroupBy extends RtsqlTestCase {
       assertRecordFields(results, "a", Integer.valueOf(2), "c", Integer.valueOf(3));
     }
   }
+
+  @Test
+  public void testPartitionedGrouping() throws IOException, InterruptedException {
+    // Test that a GROUP BY aggregation split across several partitions
+    // produces exactly one result per group.
+    int numGroups = 8;
+    int numRecords = 400;
+    String [] records = new String[numRecords];
+    long [] times = new long[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      records[i] = "" + (i % numGroups) + "," + i;
+      times[i] = 100;
+    }
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    getConf().setInt(LocalFlowBuilder.NUM_PARTITIONS_KEY, 4);
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT a, SUM(b) AS c FROM s GROUP BY a OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    // Group g holds the values g, g + 8, g + 16, ...; its sum is 50 * g + 8 * (0 + ... + 49).
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(numGroups, results.size());
+      for (int g = 0; g < numGroups; g++) {
+        assertRecordFields(results, "a", Integer.valueOf(g),
+            "c", Integer.valueOf(50 * g + 8 * 1225));
+      }
+    }
+  }
+
+  @Test
+  public void testPartitionedGroupingSmallQueues() throws IOException, InterruptedException {
+    // Use more groups than the buffers between threads hold, and send each
+    // event separately. The replicas emit results for every group as their
+    // windows close, while the flow's thread (running the filter) is still
+    // filling their inputs; the flow must complete rather than deadlock
+    // between the two.
+    int numGroups = 64;
+    int numRecords = 4096;
+    String [] records = new String[numRecords];
+    long [] times = new long[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      records[i] = "" + (i % numGroups) + ",1";
+      times[i] = 10 * i;
+    }
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    getConf().setInt(LocalFlowBuilder.NUM_PARTITIONS_KEY, 4);
+    getConf().setInt(LocalEnvironment.QUEUE_CAPACITY_KEY, 4);
+    getConf().setInt(LocalEnvironment.MAX_BATCH_SIZE_KEY, 1);
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT a, COUNT(b) AS c FROM s WHERE b > 0 GROUP BY a "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    // Each group receives an event every 640 ms, so each of its windows
+    // holds one or two events.
+    assertNotNull(results);
+    synchronized (results) {
+      assertTrue(results.size() > numGroups);
+      for (int g = 0; g < numGroups; g++) {
+        assertRecordExists(results, "a", Integer.valueOf(g));
+      }
+      for (GenericData.Record record : results) {
+        int count = ((Integer) record.get("c")).intValue();
+        assertTrue("Unexpected count " + count, count == 1 || count == 2);
+      }
+    }
+  }
+
+  @Test
+  public void testSpilledGrouping() throws IOException, InterruptedException {
+    // Hold more buckets in the aggregation windows than fit in a 1 MB budget,
+    // so that older buckets are spilled, and read back to compute MIN() and
+    // to evict them from SUM() and COUNT().
+    int numGroups = 2000;
+    int numRecords = 20000;
+    String [] records = new String[numRecords];
+    long [] times = new long[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      records[i] = "" + (i % numGroups) + "," + i;
+      times[i] = 2 * i;
+    }
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    getConf().setInt(LocalEnvironment.STATE_MEMORY_BUDGET_KEY, 1);
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT a, SUM(b) AS s, COUNT(b) AS c, MIN(b) AS m FROM s GROUP BY a "
+        + "OVER RANGE INTERVAL 20 SECONDS PRECEDING");
+
+    // Each group receives an event every 4 seconds, into a new bucket, and
+    // a window closes on each of them. A window holds a run of c consecutive
+    // values of its group, from m: m, m + 2000, ..., whose sum is
+    // c * m + 2000 * c * (c - 1) / 2.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(numRecords, results.size());
+      for (GenericData.Record record : results) {
+        int a = ((Integer) record.get("a")).intValue();
+        int c = ((Integer) record.get("c")).intValue();
+        int m = ((Integer) record.get("m")).intValue();
+        assertEquals(a, m % numGroups);
+        assertEquals(Integer.valueOf(c * m + 2000 * c * (c - 1) / 2), record.get("s"));
+      }
+    }
+  }
+
+  @Test
+  public void testSlidingWindow() throws IOException, InterruptedException {
+    // Test that values leave the window as it slides forward, for aggregates
+    // maintained incrementally (count, sum, avg) and recomputed per window (min).
+    String [] records = { "1,1", "1,2", "1,4", "2,100", "1,8" };
+    long [] times = { 0, 500, 1200, 1250, 1300 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT a, SUM(b) AS s, COUNT(b) AS c, AVG(b) AS v, MIN(b) AS m FROM s GROUP BY a "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    // Each event closes a window for its group. The window ending at t=1200
+    // no longer includes the event at t=0.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(5, results.size());
+      assertRecordFields(results, "s", Integer.valueOf(1), "c", Integer.valueOf(1));
+      assertRecordFields(results, "s", Integer.valueOf(3), "c", Integer.valueOf(2));
+      assertRecordFields(results, "s", Integer.valueOf(6), "c", Integer.valueOf(2));
+      assertRecordFields(results, "s", Integer.valueOf(14), "c", Integer.valueOf(3));
+      assertRecordFields(results, "s", Integer.valueOf(100), "c", Integer.valueOf(1));
+
+      assertRecordFields(results, "s", Integer.valueOf(3), "v", Integer.valueOf(1));
+      assertRecordFields(results, "s", Integer.valueOf(6), "v", Integer.valueOf(3));
+      assertRecordFields(results, "s", Integer.valueOf(14), "v", Integer.valueOf(4));
+
+      assertRecordFields(results, "s", Integer.valueOf(3), "m", Integer.valueOf(1));
+      assertRecordFields(results, "s", Integer.valueOf(6), "m", Integer.valueOf(2));
+      assertRecordFields(results, "s", Integer.valueOf(14), "m", Integer.valueOf(2));
+      assertRecordFields(results, "s", Integer.valueOf(100), "a", Integer.valueOf(2));
+    }
+  }
+
+  /**
+   * Create a stream read from a file of "timestamp,b" lines, whose events
+   * are timestamped from the first column.
+   */
+  private StreamSymbol makeEventTimeStream(String... lines) throws IOException {
+    File sourceFile = File.createTempFile("eventtime-", ".txt");
+    sourceFile.deleteOnExit();
+    BufferedWriter writer = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(sourceFile)));
+    try {
+      for (String line : lines) {
+        writer.write(line);
+        writer.write("\n");
+      }
+    } finally {
+      writer.close();
+    }
+
+    StreamBuilder streamBuilder = new StreamBuilder("s");
+    streamBuilder.addField(new TypedField("ts", Type.getPrimitive(Type.TypeName.TIMESTAMP)));
+    streamBuilder.addField(new TypedField("b", Type.getPrimitive(Type.TypeName.INT)));
+    FormatSpec formatSpec = new FormatSpec("delimited");
+    formatSpec.setParam(FileSourceElement.TIMESTAMP_COL_KEY, "ts");
+    streamBuilder.setFormat(formatSpec);
+    streamBuilder.setLocal(true);
+    streamBuilder.setSourceType(StreamSourceType.File);
+    streamBuilder.setSource(sourceFile.getAbsolutePath());
+    return streamBuilder.build();
+  }
+
+  @Test
+  public void testEventTimeWatermarks() throws IOException, InterruptedException {
+    // Read events whose timestamps are taken from a column of a file. The
+    // file is read far faster than its timestamps advance, and contains gaps
+    // and out-of-order events; windows are closed by the watermarks generated
+    // from the timestamps, so none of them are skipped.
+    StreamSymbol stream = makeEventTimeStream(
+        "1000,1", "1500,2", "1490,16", "60000,4", "60100,8");
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT SUM(b) AS s FROM s OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(5, results.size());
+      assertRecordExists(results, "s", Integer.valueOf(1));
+      assertRecordExists(results, "s", Integer.valueOf(17));
+      assertRecordExists(results, "s", Integer.valueOf(19));
+      assertRecordExists(results, "s", Integer.valueOf(4));
+      assertRecordExists(results, "s", Integer.valueOf(12));
+    }
+  }
+
+  @Test
+  public void testEventBehindWatermark() throws IOException, InterruptedException {
+    // Events are read in pairs, each followed by a watermark. The event at
+    // t=1200 arrives after the watermark has closed the windows ending before
+    // t=1500, but the window ending at t=1500 still holds its bucket; it is
+    // counted there. The event at t=400 is outside of every open window, and
+    // is dropped.
+    StreamSymbol stream = makeEventTimeStream(
+        "1000,1", "1500,2", "1200,16", "400,32", "60000,4", "60100,8");
+
+    getConf().setInt(LocalEnvironment.MAX_BATCH_SIZE_KEY, 2);
+    getConf().setLong(LocalEnvironment.BATCH_LINGER_KEY, 60000);
+    getConf().setLong(LocalEnvironment.MAX_EVENT_LATENESS_KEY, 0);
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT SUM(b) AS s FROM s OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(4, results.size());
+      assertRecordExists(results, "s", Integer.valueOf(1));
+      assertRecordExists(results, "s", Integer.valueOf(19));
+      assertRecordExists(results, "s", Integer.valueOf(4));
+      assertRecordExists(results, "s", Integer.valueOf(12));
+    }
+  }
 }
@@ -0,0 +1,65 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.lang.Type;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that HashSymbolTable may be modified while it is being iterated over.
+ */
+public class TestHashSymbolTable {
+
+  private Symbol makeSymbol(String name) {
+    return new Symbol(name, Type.getPrimitive(Type.TypeName.INT));
+  }
+
+  @Test
+  public void testModifyWhileIterating() {
+    HashSymbolTable parent = new HashSymbolTable();
+    parent.addSymbol(makeSymbol("p"));
+    HashSymbolTable symTab = new HashSymbolTable(parent);
+    symTab.addSymbol(makeSymbol("a"));
+    symTab.addSymbol(makeSymbol("b"));
+
+    Set<String> names = new HashSet<String>();
+    Iterator<Symbol> it = symTab.iterator();
+    while (it.hasNext()) {
+      Symbol sym = it.next();
+      names.add(sym.getName());
+      // These must not disturb the iteration in progress.
+      symTab.remove("a");
+      symTab.addSymbol(makeSymbol("c" + names.size()));
+    }
+
+    // The iterator reflects the symbols present when it was created.
+    assertEquals(3, names.size());
+    assertTrue(names.contains("a"));
+    assertTrue(names.contains("b"));
+    assertTrue(names.contains("p"));
+    assertNull(symTab.resolveLocal("a"));
+    assertNotNull(symTab.resolveLocal("c1"));
+  }
+}
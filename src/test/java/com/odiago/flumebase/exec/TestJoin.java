@@ -26,6 +26,7 @@ import org.apache.avro.generic.GenericData;
 import org.testng.annotations.Test;
 
 import com.odiago.flumebase.exec.local.LocalEnvironment;
+import com.odiago.flumebase.exec.local.LocalFlowBuilder;
 import com.odiago.flumebase.exec.local.MemoryOutputElement;
 
 import com.odiago.flumebase.lang.Type;
@@ -263,4 +264,115 @@ public class TestJoin extends RtsqlTestCase {
       assertRecordFields(results, "a", Integer.valueOf(1), "d", Integer.valueOf(21));
     }
   }
+
+  @Test
+  public void testPartitionedJoin() throws IOException, InterruptedException {
+    // Run a join whose key space is split across several partitions.
+    int numRecords = 50;
+    String [] leftRecords = new String[numRecords];
+    long [] leftTimes = new long[numRecords];
+    String [] rightRecords = new String[numRecords];
+    long [] rightTimes = new long[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      leftRecords[i] = "" + i + "," + (100 + i);
+      leftTimes[i] = i;
+      rightRecords[i] = "" + i + "," + (200 + i);
+      rightTimes[i] = i;
+    }
+
+    StreamSymbol leftStream = makeStream("lt", "a", "b", leftRecords, leftTimes);
+    StreamSymbol rightStream = makeStream("rt", "c", "d", rightRecords, rightTimes);
+
+    getConf().setInt(LocalFlowBuilder.NUM_PARTITIONS_KEY, 3);
+    List<GenericData.Record> results = submitQuery(leftStream, rightStream,
+        "SELECT * FROM lt JOIN rt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING");
+
+    // Each left record joins exactly one right record.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(numRecords, results.size());
+      for (int i = 0; i < numRecords; i++) {
+        assertRecordFields(results, "a", Integer.valueOf(i), "c", Integer.valueOf(i));
+        assertRecordFields(results, "a", Integer.valueOf(i), "d", Integer.valueOf(200 + i));
+      }
+    }
+  }
+
+  @Test
+  public void testPartitionedFanOutJoin() throws IOException, InterruptedException {
+    // Each key matches many events on the other side, so the replicas emit far
+    // more events than the buffers between threads hold. The flow's thread
+    // (running the filter) both feeds the replicas and merges their output;
+    // it must keep draining their output rather than deadlock against them.
+    int numKeys = 16;
+    int numRecords = 800;
+    String [] leftRecords = new String[numRecords];
+    long [] leftTimes = new long[numRecords];
+    String [] rightRecords = new String[numRecords];
+    long [] rightTimes = new long[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      leftRecords[i] = "" + (i % numKeys) + "," + i;
+      leftTimes[i] = i;
+      rightRecords[i] = "" + (i % numKeys) + "," + (1000 + i);
+      rightTimes[i] = i;
+    }
+
+    StreamSymbol leftStream = makeStream("lt", "a", "b", leftRecords, leftTimes);
+    StreamSymbol rightStream = makeStream("rt", "c", "d", rightRecords, rightTimes);
+
+    getConf().setInt(LocalFlowBuilder.NUM_PARTITIONS_KEY, 4);
+    getConf().setInt(LocalEnvironment.QUEUE_CAPACITY_KEY, 4);
+    getConf().setInt(LocalEnvironment.MAX_BATCH_SIZE_KEY, 1);
+    List<GenericData.Record> results = submitQuery(leftStream, rightStream,
+        "SELECT * FROM lt JOIN rt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING "
+        + "WHERE b >= 0");
+
+    // The n'th left record with a given key joins the first n right records
+    // with that key: those in the window preceding it.
+    int perKey = numRecords / numKeys;
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(numKeys * perKey * (perKey + 1) / 2, results.size());
+      for (int k = 0; k < numKeys; k++) {
+        // The first left record with each key joins only the first right record.
+        assertRecordFields(results, "b", Integer.valueOf(k), "d", Integer.valueOf(1000 + k));
+        assertRecordFields(results, "d", Integer.valueOf(1000 + numRecords - numKeys + k),
+            "b", Integer.valueOf(numRecords - numKeys + k));
+      }
+    }
+  }
+
+  @Test
+  public void testSpilledJoin() throws IOException, InterruptedException {
+    // Hold more events in the join window than fit in a 1 MB budget, so
+    // that older events are spilled and joined from disk.
+    int numRecords = 5000;
+    String [] leftRecords = new String[numRecords];
+    long [] leftTimes = new long[numRecords];
+    String [] rightRecords = new String[numRecords];
+    long [] rightTimes = new long[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      leftRecords[i] = "" + i + "," + (100 + i);
+      leftTimes[i] = i * 10;
+      rightRecords[i] = "" + i + "," + (200 + i);
+      rightTimes[i] = i * 10;
+    }
+
+    StreamSymbol leftStream = makeStream("lt", "a", "b", leftRecords, leftTimes);
+    StreamSymbol rightStream = makeStream("rt", "c", "d", rightRecords, rightTimes);
+
+    getConf().setInt(LocalEnvironment.STATE_MEMORY_BUDGET_KEY, 1);
+    List<GenericData.Record> results = submitQuery(leftStream, rightStream,
+        "SELECT * FROM lt JOIN rt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING");
+
+    // Each left record joins exactly one right record.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(numRecords, results.size());
+      for (int i = 0; i < numRecords; i += 97) {
+        assertRecordFields(results, "a", Integer.valueOf(i), "b", Integer.valueOf(100 + i));
+        assertRecordFields(results, "a", Integer.valueOf(i), "d", Integer.valueOf(200 + i));
+      }
+    }
+  }
 }
@@ -0,0 +1,102 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test the counters and histograms held in a MetricsRegistry.
+ */
+public class TestMetricsRegistry {
+
+  @Test
+  public void testBuckets() {
+    // Small values are counted exactly.
+    for (int i = 0; i < 32; i++) {
+      assertEquals(i, LatencyHistogram.bucketIndex(i));
+      assertEquals(i, LatencyHistogram.highestValueInBucket(i));
+    }
+
+    // Every value falls in a bucket whose bounds are within ~3% of it.
+    long[] values = { 32, 33, 63, 64, 65, 100, 1000, 123456, 987654321L, Long.MAX_VALUE };
+    for (long value : values) {
+      int index = LatencyHistogram.bucketIndex(value);
+      long highest = LatencyHistogram.highestValueInBucket(index);
+      assertTrue("value " + value + " highest " + highest, highest >= value);
+      assertTrue("value " + value + " highest " + highest, highest - value <= value / 32);
+      if (index > 0) {
+        assertTrue(LatencyHistogram.highestValueInBucket(index - 1) < value);
+      }
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getValueAtPercentile(50.0));
+    assertEquals(0, histogram.getMax());
+
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    histogram.record(-5); // Recorded as zero.
+
+    assertEquals(1001, histogram.getCount());
+    assertEquals(0, histogram.getValueAtPercentile(0.0));
+    long median = histogram.getValueAtPercentile(50.0);
+    assertTrue("median " + median, median >= 500 && median <= 500 + 500 / 32);
+    long p99 = histogram.getValueAtPercentile(99.0);
+    assertTrue("p99 " + p99, p99 >= 990 && p99 <= 990 + 990 / 32);
+    long max = histogram.getMax();
+    assertTrue("max " + max, max >= 1000 && max <= 1000 + 1000 / 32);
+    assertEquals(max, histogram.getValueAtPercentile(100.0));
+  }
+
+  @Test
+  public void testConcurrentCounter() throws InterruptedException {
+    final MetricsRegistry registry = new MetricsRegistry();
+    final int numIncrements = 100000;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      threads.add(new Thread() {
+        public void run() {
+          StripedCounter counter = registry.getCounter("c");
+          for (int j = 0; j < numIncrements; j++) {
+            counter.increment();
+          }
+          registry.getCounter("d").add(numIncrements);
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertSame(registry.getCounter("c"), registry.getCounter("c"));
+    assertEquals(4 * numIncrements, registry.getCounter("c").get());
+    assertEquals(Long.valueOf(4 * numIncrements), registry.getCounterValues().get("d"));
+  }
+}
@@ -0,0 +1,355 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.avro.Schema;
+
+import org.apache.avro.generic.GenericData;
+
+import org.apache.avro.util.Utf8;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.exec.local.DirectCoupledFlowElemContext;
+import com.odiago.flumebase.exec.local.MemoryOutputElement;
+import com.odiago.flumebase.exec.local.TimerFlowElemContext;
+import com.odiago.flumebase.exec.local.TimerWheel;
+
+import com.odiago.flumebase.lang.AssignFieldLabelsVisitor;
+import com.odiago.flumebase.lang.CountStarVisitor;
+import com.odiago.flumebase.lang.IdentifyAggregates;
+import com.odiago.flumebase.lang.ReplaceWindows;
+import com.odiago.flumebase.lang.Type;
+import com.odiago.flumebase.lang.TypeChecker;
+
+import com.odiago.flumebase.parser.ASTGenerator;
+import com.odiago.flumebase.parser.SQLStatement;
+import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.AggregateNode;
+import com.odiago.flumebase.plan.EvaluateExprsNode;
+import com.odiago.flumebase.plan.FilterNode;
+import com.odiago.flumebase.plan.FlowSpecification;
+import com.odiago.flumebase.plan.MemoryOutputNode;
+import com.odiago.flumebase.plan.NamedSourceNode;
+import com.odiago.flumebase.plan.PlanContext;
+import com.odiago.flumebase.plan.PlanNode;
+import com.odiago.flumebase.plan.ProjectionNode;
+import com.odiago.flumebase.plan.PropagateSchemas;
+
+import com.odiago.flumebase.testutil.MemStreamBuilder;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that the records emitted by select, filter and aggregation elements
+ * are passed downstream in memory, as RecordEventWrappers, rather than
+ * being encoded; and that the sink reads the right values out of them.
+ *
+ * <p>Queries are planned as the LocalEnvironment plans them, and the
+ * elements of their flows are connected in this thread, with a TapElement
+ * between each pair of elements to record the events passed between
+ * them.</p>
+ */
+public class TestRecordEventWrapper {
+
+  /** Element which records the events emitted by its upstream element. */
+  private static class TapElement extends FlowElementImpl {
+    private final List<EventWrapper> mEvents = new ArrayList<EventWrapper>();
+    private FlowElement mUpstream;
+
+    public TapElement(FlowElementContext context) {
+      super(context);
+    }
+
+    @Override
+    public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+      mEvents.add(e);
+      emit(e);
+    }
+
+    public List<EventWrapper> getEvents() {
+      return mEvents;
+    }
+
+    public FlowElement getUpstream() {
+      return mUpstream;
+    }
+
+    public void setUpstream(FlowElement upstream) {
+      mUpstream = upstream;
+    }
+  }
+
+  /** Context which delivers events directly to the next element. */
+  private static class TestContext extends DirectCoupledFlowElemContext {
+    public TestContext(FlowElement downstream) {
+      super(downstream);
+    }
+
+    @Override
+    public void notifyCompletion() {
+      // The elements are closed in order by runFlow(); nothing to notify.
+    }
+  }
+
+  /** Context for an element driven by a timer, whose timer never fires. */
+  private static class TestTimerContext extends TimerFlowElemContext {
+    public TestTimerContext(FlowElement downstream, TimerWheel timerWheel) {
+      super(downstream, timerWheel);
+    }
+
+    @Override
+    public void notifyCompletion() {
+    }
+  }
+
+  private SymbolTable mSymbols;
+  private Configuration mConf;
+  private TimerWheel mTimerWheel;
+  private InMemStreamSymbol mStream;
+
+  /** The elements of the current flow, from the source's child to the sink. */
+  private List<FlowElement> mElements;
+
+  /** The taps of the current flow, in the same order. */
+  private List<TapElement> mTaps;
+
+  private MemoryOutputElement mOutput;
+
+  @BeforeMethod
+  public void setUp() {
+    MemStreamBuilder streamBuilder = new MemStreamBuilder("s");
+    streamBuilder.addField(new TypedField("a", Type.getNullable(Type.TypeName.STRING)));
+    streamBuilder.addField(new TypedField("b", Type.getNullable(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField("c", Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addEvent("x,1,10", 1000);
+    streamBuilder.addEvent("y,\\N,20", 1100);
+    streamBuilder.addEvent("x,3,30", 1200);
+    streamBuilder.addEvent("\\N,4,40", 1300);
+    streamBuilder.addEvent("y,\\N,50", 1400);
+    mStream = (InMemStreamSymbol) streamBuilder.build();
+
+    mSymbols = new HashSymbolTable(new BuiltInSymbolTable());
+    mSymbols.addSymbol(mStream);
+    mConf = new Configuration();
+    mConf.set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "out");
+    mTimerWheel = new TimerWheel(mConf);
+    mElements = new ArrayList<FlowElement>();
+    mTaps = new ArrayList<TapElement>();
+  }
+
+  /** Plan a query the way the LocalEnvironment does. */
+  private FlowSpecification planQuery(String query) throws Exception {
+    SQLStatement stmt = new ASTGenerator().parse(query, System.err);
+    assertNotNull(stmt);
+    stmt.accept(new AssignFieldLabelsVisitor());
+    stmt.accept(new CountStarVisitor());
+    stmt.accept(new TypeChecker(mSymbols));
+    stmt.accept(new ReplaceWindows());
+    stmt.accept(new IdentifyAggregates());
+    PlanContext planContext = new PlanContext();
+    planContext.setConf(mConf);
+    planContext.setSymbolTable(mSymbols);
+    FlowSpecification spec = stmt.createExecPlan(planContext).getFlowSpec();
+    spec.setConf(mConf);
+    spec.bfs(new PropagateSchemas());
+    return spec;
+  }
+
+  /**
+   * Create the elements of a plan which is a chain of nodes from a source to
+   * a memory output, with a tap after each element but the sink.
+   * @return the source node of the plan.
+   */
+  private NamedSourceNode buildFlow(FlowSpecification spec) throws Exception {
+    assertEquals(1, spec.getRootSet().size());
+    NamedSourceNode source = (NamedSourceNode) spec.getRootSet().get(0);
+    List<PlanNode> nodes = new ArrayList<PlanNode>();
+    PlanNode node = source;
+    while (!(node instanceof MemoryOutputNode)) {
+      assertEquals(1, node.getChildren().size());
+      node = node.getChildren().get(0);
+      nodes.add(node);
+    }
+
+    mOutput = new MemoryOutputElement(new TestContext(null),
+        ((MemoryOutputNode) node).getFields());
+    FlowElement downstream = mOutput;
+    mElements.add(mOutput);
+    for (int i = nodes.size() - 2; i >= 0; i--) {
+      node = nodes.get(i);
+      TapElement tap = new TapElement(new TestContext(downstream));
+      FlowElement elem;
+      if (node instanceof FilterNode) {
+        elem = new FilterElement(new TestContext(tap), ((FilterNode) node).getConjuncts());
+      } else if (node instanceof ProjectionNode) {
+        ProjectionNode projNode = (ProjectionNode) node;
+        elem = new ProjectionElement(new TestContext(tap),
+            (Schema) projNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR),
+            projNode.getInputFields(), projNode.getOutputFields());
+      } else if (node instanceof EvaluateExprsNode) {
+        EvaluateExprsNode evalNode = (EvaluateExprsNode) node;
+        elem = new EvaluationElement(new TestContext(tap), evalNode.getExprs(),
+            evalNode.getPropagateFields(),
+            (Schema) evalNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR));
+      } else if (node instanceof AggregateNode) {
+        elem = new BucketedAggregationElement(new TestTimerContext(tap, mTimerWheel),
+            (AggregateNode) node);
+      } else {
+        fail("Unexpected plan node: " + node);
+        return null;
+      }
+      tap.setUpstream(elem);
+      mTaps.add(0, tap);
+      mElements.add(0, elem);
+      downstream = elem;
+    }
+
+    for (FlowElement elem : mElements) {
+      elem.open();
+    }
+    return source;
+  }
+
+  /**
+   * Plan and run a query over the stream, delivering its events as the
+   * source would, then closing each element in turn.
+   */
+  private void runQuery(String query) throws Exception {
+    NamedSourceNode source = buildFlow(planQuery(query));
+    RowLayout layout = new RowLayout(source.getFields());
+    FlowElement first = mElements.get(0);
+    Iterator<Event> events = mStream.getEvents();
+    while (events.hasNext()) {
+      EventWrapper wrapper = new ParsingEventWrapper(mStream.getEventParser(), layout);
+      wrapper.reset(events.next());
+      first.deliverEvent(wrapper);
+    }
+
+    for (FlowElement elem : mElements) {
+      elem.close();
+    }
+  }
+
+  /**
+   * Check that every event emitted by the elements downstream of the first
+   * element is a record passed in memory, with an empty body.
+   * @return the total number of events checked.
+   */
+  private int checkRecordsPassed() throws Exception {
+    int numEvents = 0;
+    for (int i = 1; i < mTaps.size(); i++) {
+      for (EventWrapper e : mTaps.get(i).getEvents()) {
+        assertTrue(mTaps.get(i).getUpstream() + " emitted " + e.getClass().getName(),
+            e instanceof RecordEventWrapper);
+        assertEquals(0, e.getEvent().getBody().length);
+        numEvents++;
+      }
+    }
+    return numEvents;
+  }
+
+  /** @return the tap after the first element of the specified class. */
+  private TapElement getTapAfter(Class<?> elementClass) {
+    for (TapElement tap : mTaps) {
+      if (elementClass.isInstance(tap.getUpstream())) {
+        return tap;
+      }
+    }
+    fail("No element of class " + elementClass.getName());
+    return null;
+  }
+
+  @Test
+  public void testSelectAndFilter() throws Exception {
+    // The inner select emits records; the outer filter and select consume them.
+    runQuery("SELECT a, b, d FROM (SELECT a, b, c + 1 AS d FROM s) AS t WHERE d > 15");
+    assertTrue(checkRecordsPassed() > 0);
+
+    // The filter forwards the records it accepts as-is, along with their events.
+    TapElement filterTap = getTapAfter(FilterElement.class);
+    assertEquals(4, filterTap.getEvents().size());
+    for (EventWrapper e : filterTap.getEvents()) {
+      assertTrue(e instanceof RecordEventWrapper);
+    }
+    assertEquals(1100, filterTap.getEvents().get(0).getEvent().getTimestamp());
+
+    List<GenericData.Record> records = mOutput.getRecords();
+    assertEquals(4, records.size());
+    assertEquals(new Utf8("y"), records.get(0).get("a"));
+    assertNull(records.get(0).get("b"));
+    assertEquals(Integer.valueOf(21), records.get(0).get("d"));
+    assertEquals(new Utf8("x"), records.get(1).get("a"));
+    assertEquals(Integer.valueOf(3), records.get(1).get("b"));
+    assertEquals(Integer.valueOf(31), records.get(1).get("d"));
+    assertNull(records.get(2).get("a"));
+    assertEquals(Integer.valueOf(4), records.get(2).get("b"));
+    assertEquals(Integer.valueOf(41), records.get(2).get("d"));
+    assertEquals(new Utf8("y"), records.get(3).get("a"));
+    assertNull(records.get(3).get("b"));
+    assertEquals(Integer.valueOf(51), records.get(3).get("d"));
+  }
+
+  @Test
+  public void testAggregation() throws Exception {
+    // The aggregation consumes the records of the inner select, and emits
+    // records of its own.
+    runQuery("SELECT a, COUNT(b) AS n, SUM(b) AS total FROM (SELECT a, b FROM s) AS t "
+        + "GROUP BY a OVER RANGE INTERVAL 10 SECONDS PRECEDING");
+    assertTrue(checkRecordsPassed() > 0);
+    assertTrue(getTapAfter(BucketedAggregationElement.class).getEvents().size() > 0);
+
+    // Each group's final result is emitted when the window closes.
+    List<GenericData.Record> records = mOutput.getRecords();
+    GenericData.Record x = null;
+    GenericData.Record y = null;
+    GenericData.Record nullKey = null;
+    for (GenericData.Record record : records) {
+      Object a = record.get("a");
+      if (null == a) {
+        nullKey = record;
+      } else if (a.toString().equals("x")) {
+        x = record;
+      } else if (a.toString().equals("y")) {
+        y = record;
+      }
+    }
+
+    assertNotNull(x);
+    assertEquals(Integer.valueOf(2), x.get("n"));
+    assertEquals(Integer.valueOf(4), x.get("total"));
+    assertNotNull(y);
+    assertEquals(Integer.valueOf(0), y.get("n"));
+    assertNull(y.get("total"));
+    assertNotNull(nullKey);
+    assertEquals(Integer.valueOf(1), nullKey.get("n"));
+    assertEquals(Integer.valueOf(4), nullKey.get("total"));
+  }}
@@ -151,6 +151,13 @@ public class TestThroughput extends RtsqlTestCase {
     runThroughputTest("SELECT * FROM " + STREAM_NAME + " WHERE a % 10 = 0", 32, NUM_RECORDS / 10);
   }
 
+  @Test(groups = { "slow" })
+  public void testModUnbatched() throws IOException, InterruptedException {
+    // Same as testMod(), but pass events between elements one at a time.
+    getConf().setInt(LocalEnvironment.MAX_BATCH_SIZE_KEY, 1);
+    runThroughputTest("SELECT * FROM " + STREAM_NAME + " WHERE a % 10 = 0", 32, NUM_RECORDS / 10);
+  }
+
   @Test(groups = { "slow" })
   public void testLargeRecord() throws IOException, InterruptedException {
     runThroughputTest("SELECT * FROM " + STREAM_NAME + " WHERE a % 10 = 0", 1024,
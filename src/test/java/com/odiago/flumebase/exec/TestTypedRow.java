@@ -0,0 +1,145 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.exec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.avro.util.Utf8;
+
+import org.testng.annotations.Test;
+
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.io.DelimitedEventParser;
+
+import com.odiago.flumebase.lang.BindSlotsVisitor;
+import com.odiago.flumebase.lang.Type;
+import com.odiago.flumebase.lang.TypeChecker;
+
+import com.odiago.flumebase.parser.BinExpr;
+import com.odiago.flumebase.parser.BinOp;
+import com.odiago.flumebase.parser.ConstExpr;
+import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.IdentifierExpr;
+import com.odiago.flumebase.parser.TypedField;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that TypedRow stores values in slots and loads them from wrapped events.
+ */
+public class TestTypedRow {
+
+  private RowLayout makeLayout() {
+    List<TypedField> fields = new ArrayList<TypedField>();
+    fields.add(new TypedField("a", Type.getPrimitive(Type.TypeName.INT)));
+    fields.add(new TypedField("b", Type.getNullable(Type.TypeName.DOUBLE)));
+    fields.add(new TypedField("c", Type.getNullable(Type.TypeName.STRING)));
+    fields.add(new TypedField("d", Type.getPrimitive(Type.TypeName.BOOLEAN)));
+    return new RowLayout(fields);
+  }
+
+  @Test
+  public void testLayout() {
+    RowLayout layout = makeLayout();
+    assertEquals(4, layout.size());
+    assertEquals(0, layout.getSlot("a"));
+    assertEquals(3, layout.getSlot("d"));
+    assertEquals(-1, layout.getSlot("e"));
+    assertEquals(RowLayout.Storage.LONG, layout.getStorage(0));
+    assertEquals(RowLayout.Storage.DOUBLE, layout.getStorage(1));
+    assertEquals(RowLayout.Storage.OBJECT, layout.getStorage(2));
+    assertEquals(RowLayout.Storage.LONG, layout.getStorage(3));
+  }
+
+  @Test
+  public void testLoadFromEvent() throws Exception {
+    RowLayout layout = makeLayout();
+    EventWrapper wrapper = new ParsingEventWrapper(new DelimitedEventParser(), layout);
+    wrapper.reset(new EventImpl("4,2.5,hello,true".getBytes()));
+
+    TypedRow row = new TypedRow(layout);
+    row.wrap(wrapper);
+    assertFalse(row.isNull(0));
+    assertEquals(4, row.getInt(0));
+    assertEquals(4L, row.getLong(0));
+    assertEquals(Integer.valueOf(4), row.getObject(0));
+    assertEquals(2.5, row.getDouble(1), 0.0);
+    assertEquals(new Utf8("hello"), row.getObject(2));
+    assertTrue(row.getBoolean(3));
+
+    // Fields are also available by name.
+    assertEquals(new Utf8("hello"),
+        row.getField(new TypedField("c", Type.getNullable(Type.TypeName.STRING))));
+
+    // Re-wrapping clears the row.
+    wrapper = new ParsingEventWrapper(new DelimitedEventParser(), layout);
+    wrapper.reset(new EventImpl("5,2.5,\\N,false".getBytes()));
+    row.wrap(wrapper);
+    assertEquals(5, row.getInt(0));
+    assertTrue(row.isNull(2));
+    assertNull(row.getObject(2));
+    assertFalse(row.getBoolean(3));
+  }
+
+  @Test
+  public void testSetters() throws Exception {
+    TypedRow row = new TypedRow(makeLayout());
+    row.wrap(null);
+    row.setInt(0, 12);
+    row.setDouble(1, 0.5);
+    row.setObject(2, new Utf8("x"));
+    row.setBoolean(3, true);
+
+    assertEquals(Integer.valueOf(12), row.getObject(0));
+    assertEquals(Double.valueOf(0.5), row.getObject(1));
+    assertEquals(new Utf8("x"), row.getObject(2));
+    assertEquals(Boolean.TRUE, row.getObject(3));
+
+    row.setNull(1);
+    assertTrue(row.isNull(1));
+    row.setDouble(1, 1.5);
+    assertFalse(row.isNull(1));
+    assertEquals(1.5, row.getDouble(1), 0.0);
+  }
+
+  @Test
+  public void testBoundExpression() throws Exception {
+    SymbolTable symbols = new HashSymbolTable();
+    symbols.addSymbol(new AssignedSymbol("x", Type.getPrimitive(Type.TypeName.INT), "x",
+        IdentifierExpr.AccessType.FIELD));
+
+    IdentifierExpr ident = new IdentifierExpr("x");
+    Expr expr = new BinExpr(ident, BinOp.Times,
+        new ConstExpr(Type.getPrimitive(Type.TypeName.INT), Integer.valueOf(2)));
+    expr.accept(new TypeChecker(symbols));
+
+    RowLayout layout = BindSlotsVisitor.bind(Collections.singletonList(expr));
+    assertEquals(1, layout.size());
+    assertEquals(0, ident.getSlot());
+
+    // The identifier reads its slot directly; no source event is required.
+    TypedRow row = new TypedRow(layout);
+    row.wrap(null);
+    row.setInt(0, 21);
+    assertEquals(Integer.valueOf(42), expr.eval(row));
+  }
+}
@@ -0,0 +1,214 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.generic.GenericData;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.BuiltInSymbolTable;
+import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.HashSymbolTable;
+import com.odiago.flumebase.exec.StreamSymbol;
+import com.odiago.flumebase.exec.SymbolTable;
+
+import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
+
+import com.odiago.flumebase.parser.SelectStmt;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test the Metastore, and the restoration of streams and flows from it.
+ */
+public class TestMetastore {
+
+  private File makeTempDir() throws IOException {
+    File dir = File.createTempFile("flumebase-metastore-", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    return dir;
+  }
+
+  private Metastore openMetastore(File dir, int compactThreshold) throws IOException {
+    Configuration conf = new Configuration();
+    conf.set(Metastore.METASTORE_DIR_KEY, dir.getAbsolutePath());
+    conf.setInt(Metastore.COMPACT_THRESHOLD_KEY, compactThreshold);
+    Metastore metastore = new Metastore(conf);
+    assertTrue(metastore.isEnabled());
+    metastore.open();
+    return metastore;
+  }
+
+  @Test
+  public void testReplay() throws IOException {
+    File dir = makeTempDir();
+    Metastore metastore = openMetastore(dir, 1000);
+    metastore.createStream("s1", "CREATE STREAM s1 (a INT) FROM LOCAL FILE 'x'");
+    metastore.createStream("s2", "CREATE STREAM s2 (a INT) FROM LOCAL FILE 'y'");
+    metastore.dropStream("s1");
+    Map<String, String> overrides = new HashMap<String, String>();
+    overrides.put("some.key", "val");
+    metastore.addFlow(new FlowId(3), "SELECT a FROM s2", overrides);
+    metastore.addFlow(new FlowId(5), "SELECT 2 * a FROM s2",
+        Collections.<String, String>emptyMap());
+    metastore.setFlowName(new FlowId(5), "out");
+    metastore.removeFlow(new FlowId(3));
+    metastore.close();
+
+    metastore = openMetastore(dir, 1000);
+    assertEquals(Collections.singletonList("CREATE STREAM s2 (a INT) FROM LOCAL FILE 'y'"),
+        metastore.getStreamQueries());
+    List<Metastore.FlowRecord> flows = metastore.getFlows();
+    assertEquals(1, flows.size());
+    assertEquals(new FlowId(5), flows.get(0).mFlowId);
+    assertEquals("SELECT 2 * a FROM s2", flows.get(0).mQuery);
+    assertEquals("out", flows.get(0).mStreamName);
+    assertTrue(flows.get(0).mConfOverrides.isEmpty());
+
+    // A flow is only recorded once; its settings survive the compaction at open().
+    metastore.addFlow(new FlowId(7), "SELECT a FROM s2", overrides);
+    metastore.addFlow(new FlowId(7), "SELECT b FROM s2", overrides);
+    metastore.close();
+    metastore = openMetastore(dir, 1000);
+    flows = metastore.getFlows();
+    assertEquals(2, flows.size());
+    assertEquals("SELECT a FROM s2", flows.get(1).mQuery);
+    assertEquals("val", flows.get(1).mConfOverrides.get("some.key"));
+    assertNull(flows.get(1).mStreamName);
+    metastore.close();
+  }
+
+  @Test
+  public void testTornRecord() throws IOException {
+    File dir = makeTempDir();
+    Metastore metastore = openMetastore(dir, 1000);
+    metastore.createStream("s1", "CREATE STREAM s1 (a INT) FROM LOCAL FILE 'x'");
+    metastore.close();
+
+    // Simulate a record whose write was interrupted.
+    FileOutputStream out = new FileOutputStream(new File(dir, "metastore.log"), true);
+    out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, 5, 6 });
+    out.close();
+
+    metastore = openMetastore(dir, 1000);
+    assertEquals(1, metastore.getStreamQueries().size());
+    metastore.createStream("s2", "CREATE STREAM s2 (a INT) FROM LOCAL FILE 'y'");
+    metastore.close();
+
+    metastore = openMetastore(dir, 1000);
+    assertEquals(2, metastore.getStreamQueries().size());
+    metastore.close();
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    File dir = makeTempDir();
+    File logFile = new File(dir, "metastore.log");
+    Metastore metastore = openMetastore(dir, 10);
+    metastore.createStream("s", "CREATE STREAM s (a INT) FROM LOCAL FILE 'x'");
+    long compactedLen = logFile.length();
+    for (int i = 0; i < 1000; i++) {
+      metastore.addFlow(new FlowId(i), "SELECT a FROM s", Collections.<String, String>emptyMap());
+      metastore.removeFlow(new FlowId(i));
+    }
+
+    // The log holds at most a few records for the obsolete flows.
+    assertTrue(logFile.length() < compactedLen + 2000);
+    metastore.addFlow(new FlowId(1000), "SELECT a FROM s",
+        Collections.<String, String>emptyMap());
+    metastore.close();
+
+    metastore = openMetastore(dir, 10);
+    assertEquals(1, metastore.getStreamQueries().size());
+    assertEquals(1, metastore.getFlows().size());
+    assertEquals(new FlowId(1000), metastore.getFlows().get(0).mFlowId);
+    metastore.close();
+  }
+
+  @Test
+  public void testRestoreEnvironment() throws IOException, InterruptedException {
+    File dir = makeTempDir();
+    File dataFile = File.createTempFile("flumebase-metastore-data-", ".txt");
+    FileWriter writer = new FileWriter(dataFile);
+    writer.write("1\n2\n3\n");
+    writer.close();
+
+    Configuration conf = new Configuration();
+    conf.set(Metastore.METASTORE_DIR_KEY, dir.getAbsolutePath());
+    SymbolTable symbolTable = new HashSymbolTable(new BuiltInSymbolTable());
+    LocalEnvironment env = new LocalEnvironment(conf, symbolTable,
+        new HashMap<String, MemoryOutputElement>(), new EmbeddedFlumeConfig(conf));
+    env.connect();
+    try {
+      env.submitQuery("CREATE STREAM fs (a INT) FROM LOCAL FILE '"
+          + dataFile.getAbsolutePath() + "'", Collections.<String, String>emptyMap());
+      assertTrue(symbolTable.resolve("fs") instanceof StreamSymbol);
+    } finally {
+      env.shutdown();
+    }
+
+    // Record a flow over the stream as though it were running at shutdown.
+    Metastore metastore = openMetastore(dir, 1000);
+    Map<String, String> overrides = new HashMap<String, String>();
+    overrides.put(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testMetastore");
+    metastore.addFlow(new FlowId(4), "SELECT a FROM fs", overrides);
+    metastore.close();
+
+    // A new environment defines the stream and redeploys the flow.
+    symbolTable = new HashSymbolTable(new BuiltInSymbolTable());
+    Map<String, MemoryOutputElement> outputs =
+        Collections.synchronizedMap(new HashMap<String, MemoryOutputElement>());
+    env = new LocalEnvironment(conf, symbolTable, outputs, new EmbeddedFlumeConfig(conf));
+    env.connect();
+    try {
+      assertTrue(symbolTable.resolve("fs") instanceof StreamSymbol);
+      assertTrue("Restored flow did not complete", env.joinFlow(new FlowId(4), 60000));
+      List<GenericData.Record> records = outputs.get("testMetastore").getRecords();
+      assertEquals(3, records.size());
+
+      // New flows do not reuse the restored flow's id.
+      FlowId newId = env.submitQuery("SELECT a FROM fs", Collections.<String, String>emptyMap())
+          .getFlowId();
+      assertNotNull(newId);
+      assertTrue(newId.getId() > 4);
+      env.joinFlow(newId, 60000);
+    } finally {
+      env.shutdown();
+    }
+
+    // The completed flows are no longer recorded.
+    metastore = openMetastore(dir, 1000);
+    assertEquals(1, metastore.getStreamQueries().size());
+    assertEquals(0, metastore.getFlows().size());
+    metastore.close();
+    dataFile.delete();
+  }
+}
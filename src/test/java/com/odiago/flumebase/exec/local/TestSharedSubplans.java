@@ -0,0 +1,232 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.BuiltInSymbolTable;
+import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.HashSymbolTable;
+import com.odiago.flumebase.exec.SymbolTable;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.BinExpr;
+import com.odiago.flumebase.parser.BinOp;
+import com.odiago.flumebase.parser.ConstExpr;
+import com.odiago.flumebase.parser.IdentifierExpr;
+import com.odiago.flumebase.parser.StreamSourceType;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.plan.FilterNode;
+import com.odiago.flumebase.plan.FlowSpecification;
+import com.odiago.flumebase.plan.MemoryOutputNode;
+import com.odiago.flumebase.plan.NamedSourceNode;
+import com.odiago.flumebase.plan.PlanNode;
+import com.odiago.flumebase.plan.ProjectionNode;
+import com.odiago.flumebase.plan.SharedOutputNode;
+import com.odiago.flumebase.plan.SharedSourceNode;
+
+import com.odiago.flumebase.testutil.StreamBuilder;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that SharedSubplans splits the common prefixes of flows over live
+ * streams into shared flows, and cancels them when they are no longer read.
+ */
+public class TestSharedSubplans {
+
+  private List<FlowId> mCanceled;
+  private SharedSubplans mSharedSubplans;
+  private SymbolTable mSymbols;
+  private List<TypedField> mFields;
+
+  @BeforeMethod
+  public void setUp() {
+    mCanceled = new ArrayList<FlowId>();
+    mSharedSubplans = new SharedSubplans(new SharedSubplans.Listener() {
+      public void cancelSharedFlow(FlowId flowId) {
+        mCanceled.add(flowId);
+      }
+    });
+
+    mFields = new ArrayList<TypedField>();
+    mFields.add(new TypedField("x", Type.getPrimitive(Type.TypeName.STRING)));
+    mFields.add(new TypedField("y", Type.getPrimitive(Type.TypeName.INT)));
+
+    mSymbols = new HashSymbolTable(new BuiltInSymbolTable());
+    StreamBuilder live = new StreamBuilder("live");
+    live.setSource("srcnode");
+    live.setSourceType(StreamSourceType.Node);
+    live.setLocal(false);
+    StreamBuilder file = new StreamBuilder("file");
+    file.setSource("/tmp/in.txt");
+    file.setSourceType(StreamSourceType.File);
+    file.setLocal(true);
+    for (TypedField field : mFields) {
+      live.addField(field);
+      file.addField(field);
+    }
+    mSymbols.addSymbol(live.build());
+    mSymbols.addSymbol(file.build());
+  }
+
+  /**
+   * @return the plan of "SELECT (projected fields) FROM stream WHERE y &gt; minY".
+   */
+  private FlowSpecification makeSpec(String stream, int minY, List<TypedField> projected) {
+    FlowSpecification spec = new FlowSpecification("query", new Configuration());
+    NamedSourceNode source = new NamedSourceNode(stream, mFields);
+    source.setRequiredFields(mFields);
+    FilterNode filter = new FilterNode(new BinExpr(new IdentifierExpr("y"), BinOp.Greater,
+        new ConstExpr(Type.getPrimitive(Type.TypeName.INT), Integer.valueOf(minY))));
+    ProjectionNode projection = new ProjectionNode(mFields, projected);
+    MemoryOutputNode output = new MemoryOutputNode("out", projected);
+
+    spec.addRoot(source);
+    source.addChild(filter);
+    filter.addChild(projection);
+    projection.addChild(output);
+    return spec;
+  }
+
+  /** Deploy a shared flow under the specified id, as the environment would. */
+  private SharedSubplans.SharedFlow deploy(List<SharedSubplans.SharedFlow> flows, long id) {
+    assertEquals(1, flows.size());
+    SharedSubplans.SharedFlow flow = flows.get(0);
+    flow.setFlowId(new FlowId(id));
+    return flow;
+  }
+
+  /** @return the SharedSubplans.Subplan read by the root of a split flow. */
+  private SharedSubplans.Subplan getRootSubplan(FlowSpecification spec) {
+    assertEquals(1, spec.getRootSet().size());
+    PlanNode root = spec.getRootSet().get(0);
+    assertTrue(root instanceof SharedSourceNode);
+    assertEquals(1, root.getChildren().size());
+    assertSame(root, root.getChildren().get(0).getParents().get(0));
+    return (SharedSubplans.Subplan) root.getAttr(SharedSubplans.SUBPLAN_ATTR);
+  }
+
+  @Test
+  public void testIdenticalFlowsShare() {
+    FlowSpecification spec1 = makeSpec("live", 5, mFields);
+    SharedSubplans.SharedFlow shared = deploy(mSharedSubplans.split(spec1, mSymbols), -1);
+
+    // The shared flow computes source -> filter -> projection, and publishes
+    // the output of both operators.
+    PlanNode source = shared.getSpec().getRootSet().get(0);
+    assertTrue(source instanceof NamedSourceNode);
+    PlanNode filter = source.getChildren().get(0);
+    assertTrue(filter instanceof FilterNode);
+    assertEquals(1, filter.getChildren().size());
+    PlanNode filterOut = filter.getChildren().get(0);
+    assertTrue(filterOut instanceof SharedOutputNode);
+    PlanNode projection = filterOut.getChildren().get(0);
+    assertTrue(projection instanceof ProjectionNode);
+    assertTrue(projection.getChildren().get(0) instanceof SharedOutputNode);
+    assertEquals(2, mSharedSubplans.getNumSubplans());
+
+    // The flow reads the output of the projection, which feeds its output node.
+    SharedSubplans.Subplan subplan1 = getRootSubplan(spec1);
+    assertTrue(spec1.getRootSet().get(0).getChildren().get(0) instanceof MemoryOutputNode);
+
+    // An identical flow needs no new shared flow.
+    FlowSpecification spec2 = makeSpec("live", 5, mFields);
+    assertEquals(0, mSharedSubplans.split(spec2, mSymbols).size());
+    assertSame(subplan1, getRootSubplan(spec2));
+
+    // The shared flow is canceled once both flows release it.
+    mSharedSubplans.releaseAll(spec1);
+    assertEquals(0, mCanceled.size());
+    mSharedSubplans.releaseAll(spec2);
+    assertEquals(1, mCanceled.size());
+    assertEquals(new FlowId(-1), mCanceled.get(0));
+    assertEquals(0, mSharedSubplans.getNumSubplans());
+
+    // A new flow then starts a new shared flow.
+    assertEquals(1, mSharedSubplans.split(makeSpec("live", 5, mFields), mSymbols).size());
+  }
+
+  @Test
+  public void testSharedPrefix() {
+    FlowSpecification spec1 = makeSpec("live", 5, mFields);
+    deploy(mSharedSubplans.split(spec1, mSymbols), -1);
+
+    // Same filter, different projection: the new shared flow reads the
+    // output of the filter from the first one.
+    List<TypedField> projected = new ArrayList<TypedField>();
+    projected.add(mFields.get(0));
+    FlowSpecification spec2 = makeSpec("live", 5, projected);
+    SharedSubplans.SharedFlow shared2 = deploy(mSharedSubplans.split(spec2, mSymbols), -2);
+    PlanNode sharedRoot = shared2.getSpec().getRootSet().get(0);
+    assertTrue(sharedRoot instanceof SharedSourceNode);
+    assertTrue(sharedRoot.getChildren().get(0) instanceof ProjectionNode);
+    assertNotSame(getRootSubplan(spec1), getRootSubplan(spec2));
+    assertEquals(3, mSharedSubplans.getNumSubplans());
+
+    // A different filter shares nothing.
+    FlowSpecification spec3 = makeSpec("live", 6, mFields);
+    SharedSubplans.SharedFlow shared3 = deploy(mSharedSubplans.split(spec3, mSymbols), -3);
+    assertTrue(shared3.getSpec().getRootSet().get(0) instanceof NamedSourceNode);
+
+    // Releasing the first flow leaves its shared flow running for the second.
+    mSharedSubplans.releaseAll(spec1);
+    assertEquals(0, mCanceled.size());
+
+    // Releasing the second cancels its shared flow; when that flow's own
+    // source is closed, the first shared flow is released in turn.
+    mSharedSubplans.releaseAll(spec2);
+    assertEquals(1, mCanceled.size());
+    assertEquals(new FlowId(-2), mCanceled.get(0));
+    mSharedSubplans.releaseAll(shared2.getSpec());
+    assertEquals(2, mCanceled.size());
+    assertEquals(new FlowId(-1), mCanceled.get(1));
+  }
+
+  @Test
+  public void testRetiredFlowNotShared() {
+    FlowSpecification spec1 = makeSpec("live", 5, mFields);
+    SharedSubplans.SharedFlow shared = deploy(mSharedSubplans.split(spec1, mSymbols), -1);
+
+    // Once the shared flow completes, new flows cannot subscribe to it.
+    mSharedSubplans.retire(shared);
+    assertEquals(0, mSharedSubplans.getNumSubplans());
+    assertEquals(1, mSharedSubplans.split(makeSpec("live", 5, mFields), mSymbols).size());
+
+    // Releasing its last reader does not cancel it again.
+    mSharedSubplans.releaseAll(spec1);
+    assertEquals(0, mCanceled.size());
+  }
+
+  @Test
+  public void testReplayedStreamNotShared() {
+    // Each flow reads a file stream from its beginning.
+    FlowSpecification spec = makeSpec("file", 5, mFields);
+    assertEquals(0, mSharedSubplans.split(spec, mSymbols).size());
+    assertTrue(spec.getRootSet().get(0) instanceof NamedSourceNode);
+    assertEquals(0, mSharedSubplans.getNumSubplans());
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.EmptyEventWrapper;
+import com.odiago.flumebase.exec.EventBatch;
+
+import com.odiago.flumebase.util.concurrent.SelectableQueue;
+import com.odiago.flumebase.util.concurrent.SyncSelectableQueue;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that the buffer of a subscriber to a live stream or shared sub-plan
+ * applies its OverflowPolicy when full, rather than blocking the publisher.
+ */
+public class TestSubscriberOverflow {
+
+  private EventBatch makeBatch(int size) {
+    EventBatch batch = new EventBatch(size);
+    for (int i = 0; i < size; i++) {
+      batch.add(new EmptyEventWrapper());
+    }
+    return batch;
+  }
+
+  @Test
+  public void testDrop() throws Exception {
+    MTGeneratorElemContext context = new MTGeneratorElemContext(null, 4, OverflowPolicy.DROP);
+    context.createDownstreamQueues();
+    SelectableQueue<Object> queue = context.getDownstreamQueues().get(0);
+
+    for (int i = 0; i < 4; i++) {
+      context.emit(new EmptyEventWrapper());
+    }
+    assertEquals(0, context.getNumDropped());
+
+    // The queue is full; these are dropped without waiting.
+    context.emit(new EmptyEventWrapper());
+    context.emitBatch(makeBatch(3));
+    context.emitWatermark(100);
+    assertEquals(4, queue.size());
+    assertEquals(4, context.getNumDropped());
+    assertFalse(context.isDisconnected());
+
+    // Once the subscriber catches up, it receives events again.
+    queue.take();
+    context.emitBatch(makeBatch(2));
+    assertEquals(4, queue.size());
+    assertEquals(4, context.getNumDropped());
+  }
+
+  @Test
+  public void testDisconnect() throws Exception {
+    MTGeneratorElemContext context = new MTGeneratorElemContext(null, 4,
+        OverflowPolicy.DISCONNECT);
+    SelectableQueue<Object> controlQueue = new SyncSelectableQueue<Object>();
+    context.initControlQueue(controlQueue);
+    context.createDownstreamQueues();
+    SelectableQueue<Object> queue = context.getDownstreamQueues().get(0);
+
+    for (int i = 0; i < 5; i++) {
+      context.emit(new EmptyEventWrapper());
+    }
+    assertTrue(context.isDisconnected());
+    assertEquals(1, context.getNumDropped());
+
+    // The thread executing the subscriber is asked to complete it.
+    assertEquals(1, controlQueue.size());
+    LocalEnvironment.ControlOp op = (LocalEnvironment.ControlOp) controlQueue.take();
+    assertEquals(LocalEnvironment.ControlOp.Code.NotifyComplete, op.getOpCode());
+    assertSame(context, op.getDatum());
+
+    // The subscriber keeps the events it already received, and no more.
+    queue.take();
+    context.emit(new EmptyEventWrapper());
+    assertEquals(3, queue.size());
+    assertEquals(0, controlQueue.size());
+  }
+}
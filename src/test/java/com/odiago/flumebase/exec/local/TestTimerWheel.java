@@ -0,0 +1,122 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test the TimerWheel.
+ */
+public class TestTimerWheel {
+
+  @Test
+  public void testExpiryOrder() throws Exception {
+    // Use few slots, so that some timeouts must wait several rounds.
+    TimerWheel wheel = new TimerWheel(5, 4);
+    wheel.start();
+    try {
+      final List<Integer> fired = Collections.synchronizedList(new ArrayList<Integer>());
+      final CountDownLatch latch = new CountDownLatch(3);
+      int[] delays = { 120, 10, 60 };
+      long start = System.currentTimeMillis();
+      for (final int delay : delays) {
+        wheel.schedule(delay, new TimerWheel.Task() {
+          public boolean expire() {
+            fired.add(delay);
+            latch.countDown();
+            return true;
+          }
+        });
+      }
+
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+      assertTrue(System.currentTimeMillis() - start >= 120);
+      assertEquals(Integer.valueOf(10), fired.get(0));
+      assertEquals(Integer.valueOf(60), fired.get(1));
+      assertEquals(Integer.valueOf(120), fired.get(2));
+    } finally {
+      wheel.stop();
+    }
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    TimerWheel wheel = new TimerWheel(5, 16);
+    wheel.start();
+    try {
+      final AtomicInteger cancelledRuns = new AtomicInteger();
+      final CountDownLatch latch = new CountDownLatch(1);
+      TimerWheel.Timeout timeout = wheel.schedule(20, new TimerWheel.Task() {
+        public boolean expire() {
+          cancelledRuns.incrementAndGet();
+          return true;
+        }
+      });
+      timeout.cancel();
+      assertTrue(timeout.isCancelled());
+
+      wheel.schedule(60, new TimerWheel.Task() {
+        public boolean expire() {
+          latch.countDown();
+          return true;
+        }
+      });
+
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+      assertEquals(0, cancelledRuns.get());
+    } finally {
+      wheel.stop();
+    }
+  }
+
+  @Test
+  public void testRetry() throws Exception {
+    TimerWheel wheel = new TimerWheel(5, 16);
+    wheel.start();
+    try {
+      // A task that cannot complete is retried on subsequent ticks.
+      final AtomicInteger attempts = new AtomicInteger();
+      final CountDownLatch latch = new CountDownLatch(1);
+      wheel.schedule(10, new TimerWheel.Task() {
+        public boolean expire() {
+          if (attempts.incrementAndGet() < 3) {
+            return false;
+          }
+          latch.countDown();
+          return true;
+        }
+      });
+
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+      assertEquals(3, attempts.get());
+    } finally {
+      wheel.stop();
+    }
+  }
+}
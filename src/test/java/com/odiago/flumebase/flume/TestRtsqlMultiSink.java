@@ -0,0 +1,167 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.flume;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.SharedRecordEventWrapper;
+import com.odiago.flumebase.exec.StreamSymbol;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.StreamSourceType;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.testutil.StreamBuilder;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that an RtsqlMultiSink parses each event once per stream, and shares
+ * the result between the flows subscribed to the stream.
+ */
+public class TestRtsqlMultiSink {
+
+  /** Context which records each event emitted into a flow. */
+  private static class RecordingContext extends FlowElementContext {
+    private final List<EventWrapper> mEvents = new ArrayList<EventWrapper>();
+
+    @Override
+    public synchronized void emit(EventWrapper e) {
+      mEvents.add(e);
+    }
+
+    @Override
+    public void notifyCompletion() {
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+      return 1;
+    }
+
+    public synchronized List<EventWrapper> getEvents() {
+      return new ArrayList<EventWrapper>(mEvents);
+    }
+  }
+
+  private StreamSymbol makeStream(String name) {
+    StreamBuilder builder = new StreamBuilder(name);
+    builder.addField("a", Type.getPrimitive(Type.TypeName.INT));
+    builder.addField("b", Type.getNullable(Type.TypeName.STRING));
+    builder.setSourceType(StreamSourceType.Source);
+    builder.setSource("dummy");
+    return builder.build();
+  }
+
+  /**
+   * Bind a sink context for a flow reading 'stream'. Each flow uses its own
+   * internal names for the stream's fields.
+   * @param requiredField the index of the one field read by the flow.
+   */
+  private RecordingContext bindFlow(String flowSourceId, StreamSymbol stream,
+      int requiredField) {
+    List<TypedField> fields = new ArrayList<TypedField>();
+    for (TypedField field : stream.getFields()) {
+      String avroName = "__" + flowSourceId + "_" + field.getUserAlias();
+      fields.add(new TypedField(field.getUserAlias(), field.getType(), avroName,
+          field.getUserAlias()));
+    }
+
+    RecordingContext context = new RecordingContext();
+    SinkContextBindings.get().bindContext(flowSourceId, new SinkContext(context, null,
+        fields, Arrays.asList(fields.get(requiredField)), stream));
+    return context;
+  }
+
+  private Object getField(EventWrapper e, String flowSourceId, String alias, Type type)
+      throws IOException {
+    return e.getField(new TypedField(alias, type, "__" + flowSourceId + "_" + alias, alias));
+  }
+
+  @Test
+  public void testSharedSubscription() throws IOException {
+    StreamSymbol stream = makeStream("s");
+    StreamSymbol otherStream = makeStream("t");
+    RecordingContext ctx1 = bindFlow("f1", stream, 0);
+    RecordingContext ctx2 = bindFlow("f2", stream, 1);
+    RecordingContext ctx3 = bindFlow("f3", otherStream, 0);
+    Type intType = Type.getPrimitive(Type.TypeName.INT);
+    Type strType = Type.getNullable(Type.TypeName.STRING);
+
+    RtsqlMultiSink multiSink = new RtsqlMultiSink("test-shared-subscription");
+    try {
+      multiSink.addChildSink("f1", new RtsqlSink("f1"));
+      multiSink.open();
+      multiSink.append(new EventImpl("1,one".getBytes()));
+
+      // Attach more flows while the sink is open.
+      multiSink.addChildSink("f2", new RtsqlSink("f2"));
+      multiSink.addChildSink("f3", new RtsqlSink("f3"));
+      multiSink.append(new EventImpl("2,two".getBytes()));
+
+      List<EventWrapper> events1 = ctx1.getEvents();
+      List<EventWrapper> events2 = ctx2.getEvents();
+      List<EventWrapper> events3 = ctx3.getEvents();
+      assertEquals(2, events1.size());
+      assertEquals(1, events2.size());
+      assertEquals(1, events3.size());
+      assertEquals(Integer.valueOf(1), getField(events1.get(0), "f1", "a", intType));
+
+      // f1 and f2 share a single parsed record, each reading it by its own field names.
+      EventWrapper e1 = events1.get(1);
+      EventWrapper e2 = events2.get(0);
+      assertTrue(e1 instanceof SharedRecordEventWrapper);
+      assertSame(e1.getEvent(), e2.getEvent());
+      assertEquals(Integer.valueOf(2), getField(e1, "f1", "a", intType));
+      assertEquals("two", getField(e2, "f2", "b", strType).toString());
+      assertEquals("s", e2.getAttr(FlowElement.STREAM_NAME_ATTR));
+
+      // f3 reads a different stream, and gets its own copy of the event.
+      EventWrapper e3 = events3.get(0);
+      assertNotSame(e1.getEvent(), e3.getEvent());
+      assertEquals("t", e3.getAttr(FlowElement.STREAM_NAME_ATTR));
+      assertEquals(Integer.valueOf(2), getField(e3, "f3", "a", intType));
+
+      // Detach f1; the others continue to receive events.
+      multiSink.removeChildSink("f1");
+      multiSink.append(new EventImpl("3,three".getBytes()));
+      assertEquals(2, ctx1.getEvents().size());
+      events2 = ctx2.getEvents();
+      assertEquals(2, events2.size());
+      assertEquals("three", getField(events2.get(1), "f2", "b", strType).toString());
+      assertEquals(2, ctx3.getEvents().size());
+    } finally {
+      multiSink.close();
+      SinkContextBindings.get().dropContext("f1");
+      SinkContextBindings.get().dropContext("f2");
+      SinkContextBindings.get().dropContext("f3");
+    }
+  }
+}
@@ -21,6 +21,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -85,4 +86,46 @@ public class TestAvroEventParser {
         parser.getColumn(1, Type.getPrimitive(Type.TypeName.STRING));
     assertEquals("foo", outRight.toString());
   }
+
+  @Test
+  public void testProjectedFields() throws ColumnParseException, IOException {
+    // Decode only the required columns of a wider record.
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+    fields.add(new Schema.Field("a", Schema.create(Schema.Type.INT), null, null));
+    fields.add(new Schema.Field("b", Schema.create(Schema.Type.STRING), null, null));
+    fields.add(new Schema.Field("c", Schema.create(Schema.Type.DOUBLE), null, null));
+    fields.add(new Schema.Field("d", Schema.create(Schema.Type.LONG), null, null));
+    Schema schema = Schema.createRecord("widerecord", null, null, false);
+    schema.setFields(fields);
+
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(AvroEventParser.SCHEMA_PARAM, schema.toString());
+    BitSet required = new BitSet();
+    required.set(1);
+    required.set(3);
+
+    for (int i = 0; i < 3; i++) {
+      GenericData.Record record = new GenericData.Record(schema);
+      record.put("a", i);
+      record.put("b", "row" + i);
+      record.put("c", 0.5 * i);
+      record.put("d", 100L + i);
+
+      // Each event gets its own parser, as in the sources.
+      EventParser parser = new AvroEventParser(params, required);
+      parser.reset(makeEvent(record, schema));
+
+      Long outD = (Long) parser.getColumn(3, Type.getPrimitive(Type.TypeName.BIGINT));
+      assertEquals(100L + i, outD.longValue());
+      CharSequence outB = (CharSequence)
+          parser.getColumn(1, Type.getPrimitive(Type.TypeName.STRING));
+      assertEquals("row" + i, outB.toString());
+
+      // A column outside the projection can still be read.
+      Double outC = (Double) parser.getColumn(2, Type.getPrimitive(Type.TypeName.DOUBLE));
+      assertEquals(0.5 * i, outC.doubleValue(), 0.0);
+      Integer outA = (Integer) parser.getColumn(0, Type.getPrimitive(Type.TypeName.INT));
+      assertEquals(i, outA.intValue());
+    }
+  }
 }
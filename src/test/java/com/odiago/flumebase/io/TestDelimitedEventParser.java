@@ -17,6 +17,8 @@
 
 package com.odiago.flumebase.io;
 
+import java.util.Random;
+
 import org.apache.avro.util.Utf8;
 
 import org.testng.annotations.Test;
@@ -132,4 +134,144 @@ public class TestDelimitedEventParser {
     int i = (Integer) ep.getColumn(1, Type.getPrimitive(Type.TypeName.INT));
     assertEquals(2, i);
   }
+
+  @Test
+  public void testTypedCols() throws Exception {
+    DelimitedEventParser ep = new DelimitedEventParser();
+    ep.reset(makeEvent("true,-12345678901,2.5,-0.25,\\N,x"));
+
+    assertEquals(Boolean.TRUE, ep.getColumn(0, Type.getPrimitive(Type.TypeName.BOOLEAN)));
+    assertEquals(Long.valueOf(-12345678901L),
+        ep.getColumn(1, Type.getPrimitive(Type.TypeName.BIGINT)));
+    assertEquals(Float.valueOf(2.5f), ep.getColumn(2, Type.getPrimitive(Type.TypeName.FLOAT)));
+    assertEquals(Double.valueOf(-0.25),
+        ep.getColumn(3, Type.getPrimitive(Type.TypeName.DOUBLE)));
+    assertNull(ep.getColumn(4, Type.getNullable(Type.TypeName.STRING)));
+    assertEquals(new Utf8("x"), ep.getColumn(5, Type.getNullable(Type.TypeName.STRING)));
+
+    // A non-nullable string field holding the null sequence is just text.
+    ep.reset(makeEvent("\\N"));
+    assertEquals(new Utf8("\\N"), ep.getColumn(0, Type.getPrimitive(Type.TypeName.STRING)));
+
+    ep.reset(makeEvent("1,x2,-"));
+    try {
+      ep.getColumn(1, Type.getPrimitive(Type.TypeName.INT));
+      fail("Expected error parsing non-numeric int");
+    } catch (ColumnParseException cpe) {
+      // expected; ok
+    }
+
+    try {
+      ep.getColumn(2, Type.getPrimitive(Type.TypeName.INT));
+      fail("Expected error parsing '-' as an int");
+    } catch (ColumnParseException cpe) {
+      // expected; ok
+    }
+  }
+
+  /**
+   * Check that the parser reads a FLOAT and a DOUBLE field holding the
+   * specified text as Float.valueOf() and Double.valueOf() do.
+   */
+  private void checkFloatingPoint(DelimitedEventParser ep, String text) throws Exception {
+    ep.reset(makeEvent(text + "," + text));
+    assertEquals(text, Float.valueOf(text),
+        ep.getColumn(0, Type.getPrimitive(Type.TypeName.FLOAT)));
+    assertEquals(text, Double.valueOf(text),
+        ep.getColumn(1, Type.getPrimitive(Type.TypeName.DOUBLE)));
+  }
+
+  @Test
+  public void testFloatingPoint() throws Exception {
+    DelimitedEventParser ep = new DelimitedEventParser();
+    String[] cases = { "0", "-0", "-0.0", "+1.5", "1.", ".5", "0.1", "3.14159",
+        "-123456.789", "16777216", "16777217", "0.30000000000000004",
+        "9007199254740993", "1234567890.0987654321", "0.0000000000000000000001",
+        "1e10", "-2.5E-3", "NaN", "-Infinity", "007.50" };
+    for (String text : cases) {
+      checkFloatingPoint(ep, text);
+    }
+
+    Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      long digits = random.nextLong() % 100000000000000000L;
+      int point = random.nextInt(18);
+      StringBuilder sb = new StringBuilder(Long.toString(Math.abs(digits)));
+      while (sb.length() <= point) {
+        sb.insert(0, '0');
+      }
+      sb.insert(sb.length() - point, '.');
+      if (digits < 0) {
+        sb.insert(0, '-');
+      }
+      checkFloatingPoint(ep, sb.toString());
+    }
+
+    ep.reset(makeEvent("1.2.3,-,."));
+    for (int i = 0; i < 3; i++) {
+      try {
+        ep.getColumn(i, Type.getPrimitive(Type.TypeName.DOUBLE));
+        fail("Expected error parsing an invalid double");
+      } catch (ColumnParseException cpe) {
+        // expected; ok
+      }
+    }
+  }
+
+  @Test
+  public void testEmptyFields() throws Exception {
+    DelimitedEventParser ep = new DelimitedEventParser();
+    ep.reset(makeEvent("a,,b,"));
+    assertEquals(new Utf8(""), ep.getColumn(1, Type.getPrimitive(Type.TypeName.STRING)));
+    assertEquals(new Utf8("b"), ep.getColumn(2, Type.getPrimitive(Type.TypeName.STRING)));
+    assertEquals(new Utf8(""), ep.getColumn(3, Type.getPrimitive(Type.TypeName.STRING)));
+
+    // Empty fields are not ints.
+    ep.reset(makeEvent("a,,b,"));
+    try {
+      ep.getColumn(1, Type.getPrimitive(Type.TypeName.INT));
+      fail("Expected error parsing empty int");
+    } catch (ColumnParseException cpe) {
+      // expected; ok
+    }
+
+    try {
+      ep.getColumn(3, Type.getPrimitive(Type.TypeName.INT));
+      fail("Expected error parsing empty trailing int");
+    } catch (ColumnParseException cpe) {
+      // expected; ok
+    }
+  }
+
+  @Test
+  public void testMultiByteText() throws Exception {
+    // The delimiter and the fields are multi-byte UTF-8 characters.
+    DelimitedEventParser ep = new DelimitedEventParser('\u00a7');
+    ep.reset(new EventImpl("caf\u00e9\u00a742\u00a7\u00fcber".getBytes("UTF-8")));
+    assertEquals(new Utf8("\u00fcber"), ep.getColumn(2, Type.getPrimitive(Type.TypeName.STRING)));
+    assertEquals(Integer.valueOf(42), ep.getColumn(1, Type.getPrimitive(Type.TypeName.INT)));
+    assertEquals(new Utf8("caf\u00e9"),
+        ep.getColumn(0, Type.getPrimitive(Type.TypeName.STRING)));
+  }
+
+  @Test
+  public void testManyCols() throws Exception {
+    // More fields than the parser initially holds bounds for.
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append(i);
+    }
+
+    DelimitedEventParser ep = new DelimitedEventParser();
+    ep.reset(makeEvent(sb.toString()));
+    assertEquals(Integer.valueOf(99), ep.getColumn(99, Type.getPrimitive(Type.TypeName.INT)));
+    assertEquals(Integer.valueOf(17), ep.getColumn(17, Type.getPrimitive(Type.TypeName.INT)));
+
+    // Values cached for the previous event are not returned for this one.
+    ep.reset(makeEvent("5,6"));
+    assertEquals(Integer.valueOf(6), ep.getColumn(1, Type.getPrimitive(Type.TypeName.INT)));
+  }
 }
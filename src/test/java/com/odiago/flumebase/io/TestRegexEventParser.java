@@ -56,4 +56,35 @@ public class TestRegexEventParser {
         Type.getPrimitive(Type.TypeName.STRING));
     assertEquals(new Utf8("this is a lovely record"), field3);
   }
+
+  @Test
+  public void testReadFieldsOutOfOrder() throws ColumnParseException, IOException {
+    // Fields may be read in any order, and unmatched groups are missing values.
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("regex", "(\\w+) (\\d+) (\\w+)(?: (\\d+))?");
+
+    EventParser parser = new RegexEventParser(properties);
+    parser.reset(new EventImpl("alpha 12 beta".getBytes()));
+
+    CharSequence field3 = (CharSequence) parser.getColumn(2,
+        Type.getPrimitive(Type.TypeName.STRING));
+    assertEquals(new Utf8("beta"), field3);
+    try {
+      parser.getColumn(3, Type.getNullable(Type.TypeName.INT));
+      fail("Expected ColumnParseException for an unmatched group");
+    } catch (ColumnParseException cpe) {
+      // Expected; the ParsingEventWrapper will treat this as null.
+    }
+    Integer field2 = (Integer) parser.getColumn(1, Type.getPrimitive(Type.TypeName.INT));
+    assertEquals(Integer.valueOf(12), field2);
+    assertNull(parser.getColumn(4, Type.getNullable(Type.TypeName.STRING)));
+
+    // The parser can be reused for another event.
+    parser.reset(new EventImpl("gamma 3 delta 7".getBytes()));
+    Integer field4 = (Integer) parser.getColumn(3, Type.getNullable(Type.TypeName.INT));
+    assertEquals(Integer.valueOf(7), field4);
+    CharSequence field1 = (CharSequence) parser.getColumn(0,
+        Type.getPrimitive(Type.TypeName.STRING));
+    assertEquals(new Utf8("gamma"), field1);
+  }
 }
@@ -0,0 +1,182 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.io.IOException;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.generic.GenericData;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.QuerySubmitResponse;
+import com.odiago.flumebase.exec.StreamSymbol;
+
+import com.odiago.flumebase.exec.local.LocalEnvironment;
+import com.odiago.flumebase.exec.local.MemoryOutputElement;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.SelectStmt;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.testutil.MemStreamBuilder;
+import com.odiago.flumebase.testutil.RtsqlTestCase;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that filters are split, pushed toward their sources and ordered by
+ * the OptimizeFilters pass, without changing the results of their queries.
+ */
+public class TestOptimizeFilters extends RtsqlTestCase {
+
+  private static final String JOIN_QUERY = "SELECT * FROM lt JOIN rt ON a=c "
+      + "OVER RANGE INTERVAL 1 MINUTES PRECEDING WHERE b > 10 AND length(d) > 2";
+
+  /**
+   * Create the stream lt, with fields (a INT NOT NULL, b INT), and rt, with
+   * fields (c INT NOT NULL, d STRING).
+   */
+  private void makeStreams() {
+    MemStreamBuilder leftBuilder = new MemStreamBuilder("lt");
+    leftBuilder.addField(new TypedField("a", Type.getPrimitive(Type.TypeName.INT)));
+    leftBuilder.addField(new TypedField("b", Type.getNullable(Type.TypeName.INT)));
+    leftBuilder.addEvent("0,10", 0);
+    leftBuilder.addEvent("1,11", 1);
+    leftBuilder.addEvent("2,12", 2);
+    getSymbolTable().addSymbol(leftBuilder.build());
+
+    MemStreamBuilder rightBuilder = new MemStreamBuilder("rt");
+    rightBuilder.addField(new TypedField("c", Type.getPrimitive(Type.TypeName.INT)));
+    rightBuilder.addField(new TypedField("d", Type.getNullable(Type.TypeName.STRING)));
+    rightBuilder.addEvent("0,abc", 0);
+    rightBuilder.addEvent("1,a", 1);
+    rightBuilder.addEvent("2,abcd", 2);
+    getSymbolTable().addSymbol(rightBuilder.build());
+
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testOptimize");
+  }
+
+  /** @return the execution plan EXPLAIN reports for a query. */
+  private String explain(String query, Map<String, String> opts)
+      throws IOException, InterruptedException {
+    LocalEnvironment env = getEnvironment();
+    if (!env.isConnected()) {
+      env.connect();
+    }
+
+    QuerySubmitResponse response = env.submitQuery("EXPLAIN " + query, opts);
+    String msg = response.getMessage();
+    int planStart = msg.indexOf("Execution plan:");
+    assertTrue(msg, planStart >= 0);
+    return msg.substring(planStart);
+  }
+
+  /** @return the records a query emits. */
+  private List<GenericData.Record> runQuery(String query)
+      throws IOException, InterruptedException {
+    LocalEnvironment env = getEnvironment();
+    if (!env.isConnected()) {
+      env.connect();
+    }
+
+    QuerySubmitResponse response = env.submitQuery(query, getQueryOpts());
+    FlowId id = response.getFlowId();
+    assertNotNull(response.getMessage(), id);
+    joinFlow(id);
+
+    MemoryOutputElement output = getOutput("testOptimize");
+    assertNotNull(output);
+    return output.getRecords();
+  }
+
+  /** @return the number of occurrences of 'str' in 'text'. */
+  private int count(String text, String str) {
+    int count = 0;
+    for (int pos = text.indexOf(str); pos >= 0; pos = text.indexOf(str, pos + 1)) {
+      count++;
+    }
+    return count;
+  }
+
+  @Test
+  public void testPushBelowJoin() throws IOException, InterruptedException {
+    makeStreams();
+
+    // Each conjunct reads one side of the join, and is evaluated before it.
+    String plan = explain(JOIN_QUERY, getQueryOpts());
+    assertEquals(plan, 2, count(plan, "FilterNode"));
+    assertTrue(plan, plan.lastIndexOf("FilterNode") < plan.indexOf("Join "));
+
+    List<GenericData.Record> results = runQuery(JOIN_QUERY);
+    synchronized (results) {
+      assertEquals(1, results.size());
+      assertRecordFields(results, "a", Integer.valueOf(2), "c", Integer.valueOf(2));
+    }
+  }
+
+  @Test
+  public void testDisabled() throws IOException, InterruptedException {
+    makeStreams();
+
+    Map<String, String> opts = getQueryOpts();
+    opts.put(OptimizeFilters.OPTIMIZE_FILTERS_KEY, "false");
+    String plan = explain(JOIN_QUERY, opts);
+    assertEquals(plan, 1, count(plan, "FilterNode"));
+    assertTrue(plan, plan.indexOf("FilterNode") > plan.indexOf("Join "));
+  }
+
+  @Test
+  public void testConjunctOrder() throws IOException, InterruptedException {
+    makeStreams();
+
+    // The comparison should be evaluated before the function call.
+    String query = "SELECT c FROM rt WHERE length(d) > 2 AND c = 2";
+    String plan = explain(query, getQueryOpts());
+    assertEquals(plan, 1, count(plan, "FilterNode"));
+    assertTrue(plan, plan.indexOf("mOp=Eq") < plan.indexOf("FnCallExpr"));
+
+    List<GenericData.Record> results = runQuery(query);
+    synchronized (results) {
+      assertEquals(1, results.size());
+      assertRecordExists(results, "c", Integer.valueOf(2));
+    }
+  }
+
+  @Test
+  public void testPushBelowProjection() throws IOException, InterruptedException {
+    makeStreams();
+
+    // The outer filter reads a field the nested SELECT passes through unchanged.
+    String query = "SELECT x FROM (SELECT a AS x, b FROM lt) AS s WHERE b > 10";
+    String plan = explain(query, getQueryOpts());
+    assertEquals(plan, 1, count(plan, "FilterNode"));
+    assertTrue(plan, plan.indexOf("FilterNode") < plan.indexOf("ProjectionNode"));
+
+    List<GenericData.Record> results = runQuery(query);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordExists(results, "x", Integer.valueOf(1));
+      assertRecordExists(results, "x", Integer.valueOf(2));
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test the GroupKeyMap.
+ */
+public class TestGroupKeyMap {
+
+  private static Object[] key(Object... elems) {
+    return elems;
+  }
+
+  @Test
+  public void testPutGet() {
+    GroupKeyMap<String> map = new GroupKeyMap<String>();
+    assertTrue(map.isEmpty());
+
+    Object[] k1 = key("a", Integer.valueOf(1));
+    map.put(k1, GroupKeyMap.hash(k1), "first");
+    assertEquals(1, map.size());
+
+    // Lookups compare keys by value.
+    Object[] probe = key("a", Integer.valueOf(1));
+    assertEquals("first", map.get(probe, GroupKeyMap.hash(probe)));
+    Object[] other = key(Integer.valueOf(1), "a");
+    assertNull(map.get(other, GroupKeyMap.hash(other)));
+    Object[] shorter = key("a");
+    assertNull(map.get(shorter, GroupKeyMap.hash(shorter)));
+
+    // Null key elements are allowed.
+    Object[] withNull = key(null, Integer.valueOf(1));
+    map.put(withNull, GroupKeyMap.hash(withNull), "null");
+    assertEquals("null", map.get(key(null, Integer.valueOf(1)), GroupKeyMap.hash(withNull)));
+
+    // The empty key is a valid key.
+    Object[] empty = key();
+    map.put(empty, GroupKeyMap.hash(empty), "empty");
+    assertEquals("empty", map.get(key(), GroupKeyMap.hash(empty)));
+
+    // Replace an existing mapping.
+    map.put(probe, GroupKeyMap.hash(probe), "second");
+    assertEquals(3, map.size());
+    assertEquals("second", map.get(k1, GroupKeyMap.hash(k1)));
+  }
+
+  @Test
+  public void testRemove() {
+    GroupKeyMap<String> map = new GroupKeyMap<String>();
+    Object[] k = key("x");
+    int hash = GroupKeyMap.hash(k);
+    map.put(k, hash, "v");
+
+    // Only removed if mapped to the specified value.
+    assertFalse(map.remove(key("x"), hash, "w"));
+    assertEquals(1, map.size());
+    assertTrue(map.remove(key("x"), hash, "v"));
+    assertTrue(map.isEmpty());
+    assertNull(map.get(k, hash));
+    assertFalse(map.remove(k, hash, "v"));
+  }
+
+  @Test
+  public void testCollidingHashes() {
+    // Keys with the same hash code occupy consecutive slots; removing
+    // one of them must leave the others reachable.
+    GroupKeyMap<Integer> map = new GroupKeyMap<Integer>();
+    int hash = 12345;
+    for (int i = 0; i < 40; i++) {
+      map.put(key(Integer.valueOf(i)), hash, Integer.valueOf(i));
+    }
+
+    for (int i = 0; i < 40; i += 3) {
+      assertTrue(map.remove(key(Integer.valueOf(i)), hash, Integer.valueOf(i)));
+    }
+
+    for (int i = 0; i < 40; i++) {
+      Integer expected = (i % 3 == 0) ? null : Integer.valueOf(i);
+      assertEquals(expected, map.get(key(Integer.valueOf(i)), hash));
+    }
+  }
+
+  @Test
+  public void testMatchesHashMap() {
+    // Apply a random series of operations to a GroupKeyMap and a HashMap.
+    Random r = new Random(1234);
+    GroupKeyMap<Integer> map = new GroupKeyMap<Integer>();
+    Map<List<Object>, Integer> expected = new HashMap<List<Object>, Integer>();
+
+    for (int i = 0; i < 100000; i++) {
+      Object[] k = key(Integer.valueOf(r.nextInt(50)), "k" + r.nextInt(40));
+      int hash = GroupKeyMap.hash(k);
+      List<Object> listKey = Arrays.asList(k);
+      int op = r.nextInt(3);
+      if (op == 0) {
+        Integer val = Integer.valueOf(i);
+        map.put(k, hash, val);
+        expected.put(listKey, val);
+      } else if (op == 1) {
+        Integer val = expected.get(listKey);
+        if (null != val) {
+          assertTrue(map.remove(k, hash, val));
+          expected.remove(listKey);
+        } else {
+          assertFalse(map.remove(k, hash, Integer.valueOf(i)));
+        }
+      } else {
+        assertEquals(expected.get(listKey), map.get(k, hash));
+      }
+      assertEquals(expected.size(), map.size());
+    }
+
+    for (Map.Entry<List<Object>, Integer> entry : expected.entrySet()) {
+      Object[] k = entry.getKey().toArray();
+      assertEquals(entry.getValue(), map.get(k, GroupKeyMap.hash(k)));
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test the StateStore implementations, and the StateBudget which creates them.
+ */
+public class TestStateStore {
+
+  /** Serializes Strings, except for empty ones. */
+  private static class StringSerializer implements ValueSerializer<String> {
+    public long estimateSize(String value) {
+      return 40 + 2 * value.length();
+    }
+
+    public boolean write(String value, DataOutput out) throws IOException {
+      if (value.length() == 0) {
+        return false;
+      }
+      out.writeUTF(value);
+      return true;
+    }
+
+    public String read(DataInput in) throws IOException {
+      return in.readUTF();
+    }
+  }
+
+  private static File makeSpillDir() throws IOException {
+    File dir = File.createTempFile("spill", ".dir");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    return dir;
+  }
+
+  @Test
+  public void testHeapStore() throws IOException {
+    StateStore<String> store = StateBudget.UNLIMITED.newStore(new StringSerializer(), "test-");
+    assertTrue(store instanceof HeapStateStore);
+
+    Object[] slots = new Object[] { "a", "bc" };
+    assertNull(store.spill(slots, slots.length));
+    assertEquals("a", slots[0]);
+    assertFalse(store.isSpilled(slots[1]));
+    assertEquals("bc", store.get(slots[1]));
+    assertEquals(44, store.sizeOf(slots[1]));
+  }
+
+  @Test
+  public void testMappedStore() throws IOException {
+    File dir = makeSpillDir();
+    try {
+      StateBudget budget = new StateBudget(1024, dir);
+      StateStore<String> store = budget.newStore(new StringSerializer(), "test-");
+      assertTrue(store instanceof MappedStateStore);
+
+      // The empty string cannot be serialized, and stays on the heap.
+      Object[] slots = new Object[] { "first", "", "second", "third" };
+      Object spill = store.spill(slots, 3);
+      assertNotNull(spill);
+      assertEquals(1, dir.list().length);
+      assertTrue(store.isSpilled(slots[0]));
+      assertFalse(store.isSpilled(slots[1]));
+      assertTrue(store.isSpilled(slots[2]));
+      assertFalse(store.isSpilled(slots[3]));
+      assertTrue(store.sizeOf(slots[2]) < store.sizeOf("second"));
+      assertEquals("first", store.get(slots[0]));
+      assertEquals("", store.get(slots[1]));
+      assertEquals("second", store.get(slots[2]));
+      assertEquals("third", store.get(slots[3]));
+
+      // Spilled slots are skipped by later spills.
+      Object[] refs = new Object[] { slots[0], slots[1] };
+      assertNull(store.spill(refs, refs.length));
+      assertEquals(1, dir.list().length);
+      assertSame(slots[0], refs[0]);
+
+      store.release(spill);
+      assertEquals(0, dir.list().length);
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void testBudget() {
+    StateBudget budget = new StateBudget(100, null);
+    assertTrue(budget.isLimited());
+    budget.add(60);
+    assertFalse(budget.isExceeded());
+    budget.add(60);
+    assertTrue(budget.isExceeded());
+    budget.add(-60);
+    assertFalse(budget.isExceeded());
+    assertEquals(60, budget.getUsedBytes());
+
+    // An unlimited budget never records its usage.
+    StateBudget.UNLIMITED.add(1000);
+    assertFalse(StateBudget.UNLIMITED.isExceeded());
+    assertEquals(0, StateBudget.UNLIMITED.getUsedBytes());
+  }
+}
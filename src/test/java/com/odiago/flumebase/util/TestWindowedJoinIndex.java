@@ -0,0 +1,448 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test the WindowedJoinIndex, and compare it against the WindowedHashMap.
+ */
+public class TestWindowedJoinIndex {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      TestWindowedJoinIndex.class.getName());
+
+  private List<Integer> getRange(WindowedJoinIndex<String, Integer> index, String key,
+      long lo, long hi, boolean openLo, boolean openHi) {
+    List<Integer> out = new ArrayList<Integer>();
+    int count = index.getRange(key, lo, hi, openLo, openHi, out);
+    assertEquals(out.size(), count);
+    return out;
+  }
+
+  @Test
+  public void testRanges() {
+    WindowedJoinIndex<String, Integer> index = new WindowedJoinIndex<String, Integer>(100);
+    assertTrue(index.isEmpty());
+    index.put("foo", Integer.valueOf(42), 312);
+    assertEquals(1, index.size());
+
+    assertEquals(Collections.singletonList(42), getRange(index, "foo", 300, 400, true, false));
+    assertEquals(0, getRange(index, "foo", 200, 300, true, false).size());
+    assertEquals(0, getRange(index, "foo", 500, 600, true, false).size());
+    assertEquals(0, getRange(index, "bar", 300, 400, true, false).size());
+
+    // Closed and open ends of the interval.
+    assertEquals(1, getRange(index, "foo", 300, 312, true, false).size());
+    assertEquals(0, getRange(index, "foo", 300, 312, true, true).size());
+    assertEquals(1, getRange(index, "foo", 312, 315, false, false).size());
+    assertEquals(0, getRange(index, "foo", 312, 315, true, false).size());
+
+    // Values are returned in timestamp order.
+    index.put("foo", Integer.valueOf(1), 1000);
+    index.put("foo", Integer.valueOf(2), 2000);
+    index.put("foo", Integer.valueOf(3), 3000);
+    List<Integer> vals = getRange(index, "foo", 1500, 3500, true, false);
+    assertEquals(2, vals.size());
+    assertEquals(Integer.valueOf(2), vals.get(0));
+    assertEquals(Integer.valueOf(3), vals.get(1));
+    assertEquals(4, getRange(index, "foo", 0, 3000, false, false).size());
+    assertEquals(4, index.size());
+    assertEquals(1, index.numKeys());
+    assertEquals(312, index.oldestTimestamp());
+  }
+
+  @Test
+  public void testOutOfOrder() {
+    WindowedJoinIndex<String, Integer> index = new WindowedJoinIndex<String, Integer>(10);
+    // Enough entries for one key to wrap its ring buffer and grow it.
+    long[] times = { 50, 40, 60, 45, 5, 100, 55, 55, 30, 99, 0 };
+    for (int i = 0; i < times.length; i++) {
+      index.put("k", Integer.valueOf((int) times[i]), times[i]);
+    }
+
+    List<Integer> vals = getRange(index, "k", 0, 100, false, false);
+    assertEquals(times.length, vals.size());
+    for (int i = 1; i < vals.size(); i++) {
+      assertTrue(vals.get(i - 1) <= vals.get(i));
+    }
+    assertEquals(0, index.oldestTimestamp());
+
+    // Late entries are recorded in the oldest segment after their own, and
+    // expire along with it.
+    index.removeOlderThan(50);
+    assertEquals(times.length, index.size());
+    index.removeOlderThan(60);
+    assertEquals(Collections.singletonList(60), getRange(index, "k", 0, 60, false, false));
+    assertEquals(3, index.size());
+
+    // A late entry for an already-expired time is held until expired again.
+    index.put("k", Integer.valueOf(1), 1);
+    assertEquals(Collections.singletonList(1), getRange(index, "k", 0, 10, false, false));
+    index.removeOlderThan(70);
+    assertEquals(0, getRange(index, "k", 0, 10, false, false).size());
+    assertEquals(2, index.size());
+  }
+
+  @Test
+  public void testDuplicateTimestamps() {
+    WindowedJoinIndex<String, Integer> index = new WindowedJoinIndex<String, Integer>(10);
+    index.put("k", Integer.valueOf(1), 5);
+    index.put("k", Integer.valueOf(2), 5);
+    index.put("j", Integer.valueOf(3), 5);
+    assertEquals(2, getRange(index, "k", 5, 5, false, false).size());
+    index.removeOlderThan(10);
+    assertTrue(index.isEmpty());
+    assertEquals(0, index.numKeys());
+  }
+
+  @Test
+  public void testVisitEntries() throws IOException {
+    WindowedJoinIndex<String, Integer> index = new WindowedJoinIndex<String, Integer>(10);
+    long[] times = { 50, 40, 60, 45, 5, 100, 55, 55, 30, 99, 0 };
+    for (int i = 0; i < times.length; i++) {
+      index.put(i % 2 == 0 ? "k" : "j", Integer.valueOf((int) times[i]), times[i]);
+    }
+    index.removeOlderThan(50);
+    index.put("k", Integer.valueOf(1), 1); // Recorded in an existing segment.
+
+    // Copy the index through the visitor. The copy may expire entries sooner,
+    // but lookups which do not extend behind the expiry time are the same.
+    final WindowedJoinIndex<String, Integer> copy = new WindowedJoinIndex<String, Integer>(10);
+    index.visitEntries(new WindowedJoinIndex.EntryVisitor<String, Integer>() {
+      public void visit(String key, Integer value, long timestamp) {
+        copy.put(key, value, timestamp);
+      }
+    });
+    assertEquals(index.size(), copy.size());
+    assertEquals(getRange(index, "k", 0, 200, false, false),
+        getRange(copy, "k", 0, 200, false, false));
+    for (long expiry = 50; expiry <= 110; expiry += 10) {
+      index.removeOlderThan(expiry);
+      copy.removeOlderThan(expiry);
+      assertEquals(getRange(index, "k", expiry, 200, false, false),
+          getRange(copy, "k", expiry, 200, false, false));
+      assertEquals(getRange(index, "j", expiry, 200, false, false),
+          getRange(copy, "j", expiry, 200, false, false));
+    }
+    assertTrue(copy.isEmpty());
+  }
+
+  @Test
+  public void testExpiry() {
+    WindowedJoinIndex<String, Integer> index = new WindowedJoinIndex<String, Integer>(100);
+    for (int i = 0; i < 1000; i++) {
+      index.put("key" + (i % 10), Integer.valueOf(i), i);
+    }
+    assertEquals(1000, index.size());
+    assertEquals(10, index.numKeys());
+
+    // 250 is in the middle of a segment, which is not yet expired; the
+    // oldest timestamp it reports is conservative.
+    index.removeOlderThan(250);
+    assertEquals(750, index.size());
+    assertEquals(200, index.oldestTimestamp());
+    assertEquals(5, getRange(index, "key3", 250, 300, false, true).size());
+
+    index.removeOlderThan(300);
+    assertEquals(700, index.size());
+    assertEquals(300, index.oldestTimestamp());
+
+    // Keys with no remaining entries are dropped.
+    index.put("other", Integer.valueOf(0), 1050);
+    index.removeOlderThan(1000);
+    assertEquals(1, index.size());
+    assertEquals(1, index.numKeys());
+    index.removeOlderThan(1100);
+    assertTrue(index.isEmpty());
+    assertEquals(0, index.numKeys());
+    assertEquals(Long.MIN_VALUE, index.oldestTimestamp());
+
+    // The index can be refilled after being emptied.
+    index.put("key1", Integer.valueOf(5), 2000);
+    assertEquals(Collections.singletonList(5), getRange(index, "key1", 0, 3000, false, false));
+    index.clear();
+    assertTrue(index.isEmpty());
+    assertEquals(0, getRange(index, "key1", 0, 3000, false, false).size());
+  }
+
+  @Test
+  public void testMatchesWindowedHashMap() {
+    // Run a randomized join-like workload over both structures. Lookups
+    // never extend behind the expiry time, so both must agree.
+    Random rnd = new Random(1234);
+    WindowedJoinIndex<String, Integer> index = new WindowedJoinIndex<String, Integer>(64);
+    WindowedHashMap<String, Integer, Long> map = new WindowedHashMap<String, Integer, Long>();
+    // The WindowedHashMap cannot expire two entries with the same key and timestamp.
+    Set<String> keyTimes = new HashSet<String>();
+    long now = 0;
+    for (int i = 0; i < 5000; i++) {
+      now += rnd.nextInt(20);
+      long t = now - rnd.nextInt(30); // Slightly out of order.
+      String key = "k" + rnd.nextInt(50);
+      if (!keyTimes.add(key + "@" + t)) {
+        continue;
+      }
+      index.put(key, Integer.valueOf(i), t);
+      map.put(key, Integer.valueOf(i), Long.valueOf(t));
+
+      long expiry = now - 500;
+      index.removeOlderThan(expiry);
+      map.removeOlderThan(Long.valueOf(expiry));
+
+      String lookupKey = "k" + rnd.nextInt(50);
+      long lo = expiry + rnd.nextInt(400);
+      long hi = lo + rnd.nextInt(200);
+      boolean openLo = rnd.nextBoolean();
+      boolean openHi = rnd.nextBoolean();
+      List<Integer> expected = new ArrayList<Integer>(map.getRange(lookupKey,
+          Long.valueOf(lo), Long.valueOf(hi), openLo, openHi));
+      List<Integer> actual = getRange(index, lookupKey, lo, hi, openLo, openHi);
+      Collections.sort(expected);
+      Collections.sort(actual);
+      assertEquals(expected, actual);
+
+      if (!map.isEmpty()) {
+        assertTrue(index.oldestTimestamp() <= map.oldestTimestamp().longValue());
+      }
+    }
+  }
+
+  /** Serializes Integers, except for negative ones. */
+  private static class IntSerializer implements ValueSerializer<Integer> {
+    public long estimateSize(Integer value) {
+      return 64;
+    }
+
+    public boolean write(Integer value, DataOutput out) throws IOException {
+      if (value.intValue() < 0) {
+        return false;
+      }
+      out.writeInt(value.intValue());
+      return true;
+    }
+
+    public Integer read(DataInput in) throws IOException {
+      return Integer.valueOf(in.readInt());
+    }
+  }
+
+  private static File makeSpillDir() throws IOException {
+    File dir = File.createTempFile("spill", ".dir");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    return dir;
+  }
+
+  @Test
+  public void testSpill() throws IOException {
+    File dir = makeSpillDir();
+    try {
+      // Room for about 100 entries, with segments of 100 entries.
+      StateBudget budget = new StateBudget(100 * 80, dir);
+      WindowedJoinIndex<String, Integer> index = new WindowedJoinIndex<String, Integer>(
+          100, budget.newStore(new IntSerializer(), "join-"), budget);
+      WindowedJoinIndex<String, Integer> expected = new WindowedJoinIndex<String, Integer>(100);
+      for (int i = 0; i < 500; i++) {
+        Integer val = Integer.valueOf(i % 7 == 0 ? -i : i);
+        index.put("key" + (i % 10), val, i);
+        expected.put("key" + (i % 10), val, i);
+      }
+
+      // The oldest segments are spilled, but not the newest.
+      assertEquals(500, index.size());
+      assertTrue(index.numSpilled() > 0);
+      assertTrue(index.numSpilled() < 400);
+      assertTrue(index.getMemoryBytes() < 500 * 80);
+      assertEquals(index.getMemoryBytes(), budget.getUsedBytes());
+      assertTrue(dir.list().length > 0);
+
+      for (int k = 0; k < 10; k++) {
+        assertEquals(getRange(expected, "key" + k, 0, 500, false, false),
+            getRange(index, "key" + k, 0, 500, false, false));
+        assertEquals(getRange(expected, "key" + k, 150, 420, true, true),
+            getRange(index, "key" + k, 150, 420, true, true));
+      }
+
+      // Spill files are deleted as their segments expire.
+      int numFiles = dir.list().length;
+      index.removeOlderThan(200);
+      assertEquals(300, index.size());
+      assertTrue(dir.list().length < numFiles);
+      assertEquals(getRange(expected, "key3", 0, 500, false, false).subList(20, 50),
+          getRange(index, "key3", 0, 500, false, false));
+
+      index.clear();
+      assertEquals(0, dir.list().length);
+      assertEquals(0, index.numSpilled());
+      assertEquals(0, index.getMemoryBytes());
+      assertEquals(0, budget.getUsedBytes());
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void testSharedBudget() throws IOException {
+    File dir = makeSpillDir();
+    try {
+      // Room for about 300 entries, shared by two indices.
+      StateBudget budget = new StateBudget(300 * 80, dir);
+      WindowedJoinIndex<String, Integer> first = new WindowedJoinIndex<String, Integer>(
+          100, budget.newStore(new IntSerializer(), "join-"), budget);
+      WindowedJoinIndex<String, Integer> second = new WindowedJoinIndex<String, Integer>(
+          100, budget.newStore(new IntSerializer(), "join-"), budget);
+      for (int i = 0; i < 250; i++) {
+        first.put("key" + (i % 10), Integer.valueOf(i), i);
+      }
+      assertEquals(0, first.numSpilled());
+
+      // The second index exceeds the budget, and spills its own entries.
+      for (int i = 0; i < 250; i++) {
+        second.put("key" + (i % 10), Integer.valueOf(i), i);
+      }
+      assertEquals(0, first.numSpilled());
+      assertTrue(second.numSpilled() > 0);
+      assertEquals(first.getMemoryBytes() + second.getMemoryBytes(), budget.getUsedBytes());
+      assertEquals(Integer.valueOf(5), getRange(second, "key5", 0, 10, false, false).get(0));
+
+      first.clear();
+      second.clear();
+      assertEquals(0, budget.getUsedBytes());
+      assertEquals(0, dir.list().length);
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  private static final int BENCHMARK_KEYS = 1000000;
+  private static final int BENCHMARK_EVENTS = 3000000;
+
+  /** Window width of the benchmark join, in milliseconds. */
+  private static final long BENCHMARK_WINDOW = 2000;
+
+  /** Events per millisecond in the benchmark. */
+  private static final int BENCHMARK_RATE = 1000;
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /** The workload of one side of a HashJoinElement, for either structure. */
+  private abstract static class JoinWorkload {
+    abstract void put(Integer key, Object value, long timestamp);
+    abstract int join(Integer key, long lo, long hi);
+    abstract void expire(long timestamp);
+
+    /** @return the number of join candidates found. */
+    long run(Integer[] keys) {
+      long matches = 0;
+      for (int i = 0; i < BENCHMARK_EVENTS; i++) {
+        long now = i / BENCHMARK_RATE;
+        Integer key = keys[i % keys.length];
+        matches += join(key, now - BENCHMARK_WINDOW, now);
+        put(key, key, now);
+        expire(now - BENCHMARK_WINDOW);
+      }
+      return matches;
+    }
+  }
+
+  private void benchmark(String label, JoinWorkload workload, Integer[] keys) {
+    long memBefore = usedMemory();
+    long start = System.nanoTime();
+    long matches = workload.run(keys);
+    long nanos = System.nanoTime() - start;
+    long memAfter = usedMemory();
+    LOG.info(label + ": " + ((double) nanos / BENCHMARK_EVENTS) + " ns per event; "
+        + ((memAfter - memBefore) / (1024 * 1024)) + " MB retained; " + matches + " matches");
+  }
+
+  @Test(groups = { "slow" })
+  public void testJoinBenchmark() {
+    // Events with 1M distinct keys in a shuffled order, so that each key
+    // recurs within the window.
+    List<Integer> keyList = new ArrayList<Integer>(BENCHMARK_KEYS);
+    for (int i = 0; i < BENCHMARK_KEYS; i++) {
+      keyList.add(Integer.valueOf(i));
+    }
+    Collections.shuffle(keyList, new Random(42));
+    Integer[] keys = keyList.toArray(new Integer[BENCHMARK_KEYS]);
+
+    final WindowedHashMap<Integer, Object, Long> map = new WindowedHashMap<Integer, Object, Long>();
+    benchmark("WindowedHashMap", new JoinWorkload() {
+      void put(Integer key, Object value, long timestamp) {
+        map.put(key, value, Long.valueOf(timestamp));
+      }
+
+      int join(Integer key, long lo, long hi) {
+        return map.getRange(key, Long.valueOf(lo), Long.valueOf(hi), true, false).size();
+      }
+
+      void expire(long timestamp) {
+        map.removeOlderThan(Long.valueOf(timestamp));
+      }
+    }, keys);
+    map.clear();
+
+    final WindowedJoinIndex<Integer, Object> index =
+        new WindowedJoinIndex<Integer, Object>(BENCHMARK_WINDOW / 8);
+    final List<Object> out = new ArrayList<Object>();
+    benchmark("WindowedJoinIndex", new JoinWorkload() {
+      void put(Integer key, Object value, long timestamp) {
+        index.put(key, value, timestamp);
+      }
+
+      int join(Integer key, long lo, long hi) {
+        out.clear();
+        return index.getRange(key, lo, hi, true, false, out);
+      }
+
+      void expire(long timestamp) {
+        index.removeOlderThan(timestamp);
+      }
+    }, keys);
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.util.concurrent;
+
+import org.testng.annotations.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.testng.AssertJUnit.*;
+
+public class TestRingBufferSelectableQueue extends QueueTestCase {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      TestRingBufferSelectableQueue.class.getName());
+
+  /** Number of events pushed through each queue in the throughput comparison. */
+  private static final int THROUGHPUT_EVENTS = 2000000;
+
+  @Test
+  public void testCapacity() throws Exception {
+    RingBufferSelectableQueue<Long> queue = new RingBufferSelectableQueue<Long>(100);
+    assertEquals(128, queue.capacity());
+    assertEquals(WaitStrategy.PARK, queue.getWaitStrategy());
+    assertFalse(queue.canRead());
+
+    for (int i = 0; i < 128; i++) {
+      assertTrue(queue.offer(Long.valueOf(i)));
+    }
+    assertFalse(queue.offer(Long.valueOf(128)));
+    assertEquals(128, queue.size());
+    assertTrue(queue.canRead());
+
+    for (int i = 0; i < 128; i++) {
+      assertEquals(Long.valueOf(i), queue.poll());
+    }
+    assertEquals(0, queue.size());
+    assertFalse(queue.canRead());
+
+    try {
+      queue.poll();
+      fail("Expected EmptyException");
+    } catch (EmptyException ee) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testSimple() {
+    for (WaitStrategy strategy : WaitStrategy.values()) {
+      // 1 producer, 1 consumer, bigger buffer than we need.
+      runTest(new RingBufferSelectableQueue<Long>(512, strategy), 1, 1, 100);
+
+      // 1 producer, 1 consumer, smaller buffer than we need.
+      runTest(new RingBufferSelectableQueue<Long>(16, strategy), 1, 1, 100);
+    }
+  }
+
+  @Test
+  public void testFanOut() {
+    for (WaitStrategy strategy : WaitStrategy.values()) {
+      runTest(new RingBufferSelectableQueue<Long>(128, strategy), 1, 2, 10000);
+      runTest(new RingBufferSelectableQueue<Long>(2048, strategy), 1, 4, 25000);
+    }
+  }
+
+  @Test
+  public void testFanIn() {
+    for (WaitStrategy strategy : WaitStrategy.values()) {
+      runTest(new RingBufferSelectableQueue<Long>(128, strategy), 2, 1, 10000);
+      runTest(new RingBufferSelectableQueue<Long>(2048, strategy), 4, 1, 25000);
+    }
+  }
+
+  @Test
+  public void testMultiMulti() {
+    for (WaitStrategy strategy : WaitStrategy.values()) {
+      runTest(new RingBufferSelectableQueue<Long>(128, strategy), 2, 2, 10000);
+      runTest(new RingBufferSelectableQueue<Long>(2048, strategy), 3, 3, 25000);
+    }
+  }
+
+  /**
+   * Push a fixed number of events from one producer to one consumer through
+   * the queue, and return the observed throughput in events per second.
+   */
+  private long measureThroughput(final SelectableQueue<Object> queue)
+      throws InterruptedException {
+    final Object event = new Object();
+    Thread producer = new Thread() {
+      public void run() {
+        try {
+          for (int i = 0; i < THROUGHPUT_EVENTS; i++) {
+            queue.put(event);
+          }
+        } catch (InterruptedException ie) {
+          LOG.info("Interrupted in producer!");
+        }
+      }
+    };
+
+    long start = System.nanoTime();
+    producer.start();
+    for (int i = 0; i < THROUGHPUT_EVENTS; i++) {
+      assertSame(event, queue.take());
+    }
+    long elapsed = System.nanoTime() - start;
+    producer.join();
+
+    return (long) THROUGHPUT_EVENTS * 1000000000L / Math.max(1L, elapsed);
+  }
+
+  /**
+   * Compare single-producer/single-consumer throughput of the ring buffer
+   * with that of the lock-based ArrayBoundedSelectableQueue.
+   */
+  @Test(groups = { "slow" })
+  public void testThroughput() throws InterruptedException {
+    long arrayRate = measureThroughput(new ArrayBoundedSelectableQueue<Object>(128));
+    LOG.info("ArrayBoundedSelectableQueue: " + arrayRate + " events/sec");
+    for (WaitStrategy strategy : WaitStrategy.values()) {
+      long ringRate = measureThroughput(new RingBufferSelectableQueue<Object>(128, strategy));
+      LOG.info("RingBufferSelectableQueue (" + strategy + "): " + ringRate + " events/sec");
+    }
+  }
+}
@@ -189,4 +189,14 @@ public class TestSelectable {
     queues.add(new SyncSelectableQueue<Long>());
     runTest(queues, 500);
   }
+
+  @Test
+  public void testRingBufferQueues() {
+    // lock-free bounded queues mixed with an infinite queue.
+    List<SelectableQueue<Long>> queues = new ArrayList<SelectableQueue<Long>>();
+    queues.add(new RingBufferSelectableQueue<Long>(16, WaitStrategy.PARK));
+    queues.add(new RingBufferSelectableQueue<Long>(16, WaitStrategy.YIELD));
+    queues.add(new SyncSelectableQueue<Long>());
+    runTest(queues, 5000);
+  }
 }